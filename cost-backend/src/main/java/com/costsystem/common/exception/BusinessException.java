@@ -1,5 +1,7 @@
 package com.costsystem.common.exception;
 
+import java.util.Map;
+
 /**
  * 业务异常类
  * 严格遵循 cost-system-java 技能规则
@@ -9,26 +11,41 @@ package com.costsystem.common.exception;
 public class BusinessException extends RuntimeException {
 
     private final int code;
+    private final Map<String, Object> details;
 
     public BusinessException(int code, String message) {
+        this(code, message, null);
+    }
+
+    /**
+     * 携带结构化错误明细，随响应的 data 字段返回
+     */
+    public BusinessException(int code, String message, Map<String, Object> details) {
         super(message);
         this.code = code;
+        this.details = details;
     }
 
     public BusinessException(String code, String message) {
         super(message);
         this.code = parseCode(code);
+        this.details = null;
     }
 
     public BusinessException(String message) {
         super(message);
         this.code = 400;
+        this.details = null;
     }
 
     public int getCode() {
         return code;
     }
 
+    public Map<String, Object> getDetails() {
+        return details;
+    }
+
     /**
      * 解析错误代码
      */
@@ -14,6 +14,7 @@ import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 
 import jakarta.servlet.http.HttpServletRequest;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
@@ -31,10 +32,11 @@ public class GlobalExceptionHandler {
      * 业务异常处理
      */
     @ExceptionHandler(BusinessException.class)
-    public ResponseEntity<ApiResponse<Void>> handleBusinessException(BusinessException e, HttpServletRequest request) {
+    public ResponseEntity<ApiResponse<Map<String, Object>>> handleBusinessException(BusinessException e,
+                                                                                   HttpServletRequest request) {
         logger.warn("业务异常: {} - {}", e.getCode(), e.getMessage());
         return ResponseEntity.status(resolveStatus(e.getCode()))
-                .body(ApiResponse.error(e.getCode(), e.getMessage()));
+                .body(new ApiResponse<>(e.getCode(), e.getMessage(), e.getDetails()));
     }
 
     /**
@@ -0,0 +1,62 @@
+package com.costsystem.modules.costcalc.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 指标计算线程池配置
+ * 独立于公共 ForkJoinPool，避免重算占满应用内其他并行任务
+ */
+@Configuration
+public class CalcExecutorConfig {
+
+    @Bean(destroyMethod = "shutdown")
+    public ForkJoinPool calcForkJoinPool(@Value("${cost-system.calc.parallelism:0}") int parallelism) {
+        int size = parallelism > 0
+                ? parallelism
+                : Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+        return new ForkJoinPool(size);
+    }
+
+    /**
+     * 模板批量重算的版本级工作线程，线程数即同时重算的版本数上限
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService calcBatchExecutor(@Value("${cost-system.calc.batch-concurrency:2}") int concurrency) {
+        AtomicInteger sequence = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, concurrency),
+                runnable -> new Thread(runnable, "calc-batch-" + sequence.incrementAndGet()));
+    }
+
+    /**
+     * 模板批量重算的任务调度线程：依次执行各任务的分块调度，任务之间串行，避免多个任务争用同一工作线程池
+     */
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService calcBatchScheduler() {
+        return Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "calc-batch-scheduler"));
+    }
+
+    /**
+     * 版本重算线程，重算经 RecalcCoordinator 提交到这里；
+     * 排队数达到 recalc-backlog 时拒绝新的重算，而不是无限堆积
+     */
+    @Bean(destroyMethod = "shutdownNow")
+    public ThreadPoolExecutor calcRecalcExecutor(@Value("${cost-system.calc.recalc-threads:4}") int threads,
+                                                 @Value("${cost-system.calc.recalc-backlog:64}") int backlog) {
+        AtomicInteger sequence = new AtomicInteger();
+        int size = Math.max(1, threads);
+        return new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, backlog)),
+                runnable -> new Thread(runnable, "calc-recalc-" + sequence.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+}
@@ -0,0 +1,50 @@
+package com.costsystem.modules.costcalc.controller;
+
+import com.costsystem.common.annotation.RequirePerm;
+import com.costsystem.common.dto.ApiResponse;
+import com.costsystem.modules.costcalc.dto.CalcBatchJobDto;
+import com.costsystem.modules.costcalc.service.CalcBatchJobService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * 模板批量重算控制器
+ */
+@RestController
+@RequestMapping("/api")
+@Tag(name = "批量重算", description = "模板下草稿版本批量重算任务")
+public class CalcBatchJobController {
+
+    private final CalcBatchJobService calcBatchJobService;
+
+    public CalcBatchJobController(CalcBatchJobService calcBatchJobService) {
+        this.calcBatchJobService = calcBatchJobService;
+    }
+
+    @PostMapping("/templates/{templateId}/recalc-jobs")
+    @Operation(summary = "启动模板批量重算")
+    @RequirePerm("RULE_MANAGE")
+    public ApiResponse<CalcBatchJobDto> startJob(
+            @AuthenticationPrincipal Long currentUserId,
+            @PathVariable Long templateId) {
+        return ApiResponse.success(calcBatchJobService.startJob(currentUserId, templateId));
+    }
+
+    @GetMapping("/templates/{templateId}/recalc-jobs")
+    @Operation(summary = "查询模板批量重算任务")
+    @RequirePerm("RULE_MANAGE")
+    public ApiResponse<List<CalcBatchJobDto>> listJobs(@PathVariable Long templateId) {
+        return ApiResponse.success(calcBatchJobService.listJobs(templateId));
+    }
+
+    @GetMapping("/calc/recalc-jobs/{jobId}")
+    @Operation(summary = "查询批量重算任务进度")
+    @RequirePerm("RULE_MANAGE")
+    public ApiResponse<CalcBatchJobDto> getJob(@PathVariable Long jobId) {
+        return ApiResponse.success(calcBatchJobService.getJob(jobId));
+    }
+}
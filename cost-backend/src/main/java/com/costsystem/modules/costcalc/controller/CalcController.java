@@ -3,7 +3,14 @@ package com.costsystem.modules.costcalc.controller;
 import com.costsystem.common.annotation.RequirePerm;
 import com.costsystem.common.dto.ApiResponse;
 import com.costsystem.modules.costcalc.dto.IndicatorValueDto;
+import com.costsystem.modules.costcalc.dto.OrgIndicatorTotalDto;
+import com.costsystem.modules.costcalc.dto.RecalcJobDto;
+import com.costsystem.modules.costcalc.dto.RuleCacheStatsDto;
+import com.costsystem.modules.costcalc.dto.SlowRuleDto;
 import com.costsystem.modules.costcalc.service.CalcService;
+import com.costsystem.modules.costcalc.service.IndicatorRollupService;
+import com.costsystem.modules.costcalc.service.RecalcCoordinator;
+import com.costsystem.modules.costcalc.service.RecalcJobService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
@@ -21,9 +28,16 @@ import java.util.Map;
 public class CalcController {
 
     private final CalcService calcService;
+    private final RecalcCoordinator recalcCoordinator;
+    private final RecalcJobService recalcJobService;
+    private final IndicatorRollupService indicatorRollupService;
 
-    public CalcController(CalcService calcService) {
+    public CalcController(CalcService calcService, RecalcCoordinator recalcCoordinator,
+                          RecalcJobService recalcJobService, IndicatorRollupService indicatorRollupService) {
         this.calcService = calcService;
+        this.recalcCoordinator = recalcCoordinator;
+        this.recalcJobService = recalcJobService;
+        this.indicatorRollupService = indicatorRollupService;
     }
 
     @PostMapping("/versions/{versionId}/recalc")
@@ -32,7 +46,26 @@ public class CalcController {
     public ApiResponse<List<IndicatorValueDto>> recalc(
             @AuthenticationPrincipal Long currentUserId,
             @PathVariable Long versionId) {
-        return ApiResponse.success(calcService.recalculate(currentUserId, versionId));
+        return ApiResponse.success(recalcCoordinator.recalculate(currentUserId, versionId));
+    }
+
+    @PostMapping("/versions/{versionId}/recalc-jobs")
+    @Operation(summary = "提交异步重算")
+    @RequirePerm("VERSION_EDIT")
+    public ApiResponse<RecalcJobDto> submitRecalcJob(
+            @AuthenticationPrincipal Long currentUserId,
+            @PathVariable Long versionId) {
+        return ApiResponse.success(recalcJobService.submit(currentUserId, versionId));
+    }
+
+    @GetMapping("/versions/{versionId}/recalc-jobs/{jobId}")
+    @Operation(summary = "查询异步重算进度")
+    @RequirePerm("INDICATOR_READ")
+    public ApiResponse<RecalcJobDto> getRecalcJob(
+            @AuthenticationPrincipal Long currentUserId,
+            @PathVariable Long versionId,
+            @PathVariable String jobId) {
+        return ApiResponse.success(recalcJobService.getJob(currentUserId, versionId, jobId));
     }
 
     @GetMapping("/versions/{versionId}/indicators")
@@ -54,8 +87,31 @@ public class CalcController {
         return ApiResponse.success(calcService.getTrace(currentUserId, versionId, key));
     }
 
+    @GetMapping("/calc/rule-cache/stats")
+    @Operation(summary = "查询规则编译缓存统计")
+    @RequirePerm("RULE_MANAGE")
+    public ApiResponse<RuleCacheStatsDto> getRuleCacheStats() {
+        return ApiResponse.success(calcService.getRuleCacheStats());
+    }
+
+    @GetMapping("/calc/rule-profile/slowest")
+    @Operation(summary = "查询统计窗口内最慢的规则")
+    @RequirePerm("RULE_MANAGE")
+    public ApiResponse<List<SlowRuleDto>> getSlowRules(@RequestParam(defaultValue = "20") int limit) {
+        return ApiResponse.success(calcService.getSlowRules(limit));
+    }
+
+    @GetMapping("/orgs/{orgId}/indicator-rollup")
+    @Operation(summary = "查询组织跨项目指标汇总")
+    @RequirePerm("RULE_MANAGE")
+    public ApiResponse<List<OrgIndicatorTotalDto>> getOrgIndicatorRollup(
+            @PathVariable Long orgId,
+            @RequestParam(required = false) List<String> keys) {
+        return ApiResponse.success(indicatorRollupService.getOrgTotals(orgId, keys));
+    }
+
     @GetMapping("/calc/health")
     public ApiResponse<String> health() {
         return ApiResponse.success("Calc module is working!");
     }
-}
+}
@@ -0,0 +1,60 @@
+package com.costsystem.modules.costcalc.controller;
+
+import com.costsystem.common.annotation.RequirePerm;
+import com.costsystem.common.dto.ApiResponse;
+import com.costsystem.modules.costcalc.dto.CalcRuleInfo;
+import com.costsystem.modules.costcalc.dto.CalcRuleSaveRequest;
+import com.costsystem.modules.costcalc.service.CalcRuleService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.validation.Valid;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * 计算规则控制器
+ */
+@RestController
+@RequestMapping("/api/templates/{templateId}/calc-rules")
+@Tag(name = "计算规则管理", description = "模板指标计算规则维护")
+public class CalcRuleController {
+
+    private final CalcRuleService calcRuleService;
+
+    public CalcRuleController(CalcRuleService calcRuleService) {
+        this.calcRuleService = calcRuleService;
+    }
+
+    @GetMapping
+    @Operation(summary = "查询模板计算规则")
+    @RequirePerm("RULE_MANAGE")
+    public ApiResponse<List<CalcRuleInfo>> listRules(@PathVariable Long templateId) {
+        return ApiResponse.success(calcRuleService.listRules(templateId));
+    }
+
+    @PostMapping
+    @Operation(summary = "新增计算规则")
+    @RequirePerm("RULE_MANAGE")
+    public ApiResponse<CalcRuleInfo> createRule(@PathVariable Long templateId,
+                                                @Valid @RequestBody CalcRuleSaveRequest request) {
+        return ApiResponse.success(calcRuleService.createRule(templateId, request));
+    }
+
+    @PutMapping("/{ruleId}")
+    @Operation(summary = "更新计算规则")
+    @RequirePerm("RULE_MANAGE")
+    public ApiResponse<CalcRuleInfo> updateRule(@PathVariable Long templateId,
+                                                @PathVariable Long ruleId,
+                                                @Valid @RequestBody CalcRuleSaveRequest request) {
+        return ApiResponse.success(calcRuleService.updateRule(templateId, ruleId, request));
+    }
+
+    @DeleteMapping("/{ruleId}")
+    @Operation(summary = "删除计算规则")
+    @RequirePerm("RULE_MANAGE")
+    public ApiResponse<Void> deleteRule(@PathVariable Long templateId, @PathVariable Long ruleId) {
+        calcRuleService.deleteRule(templateId, ruleId);
+        return ApiResponse.success();
+    }
+}
@@ -0,0 +1,96 @@
+package com.costsystem.modules.costcalc.dto;
+
+import java.time.LocalDateTime;
+
+/**
+ * 计算规则信息DTO
+ */
+public class CalcRuleInfo {
+
+    private Long id;
+    private Long templateId;
+    private String indicatorKey;
+    private String expression;
+    private Boolean enabled;
+    private Integer orderNo;
+    private LocalDateTime createdAt;
+    private LocalDateTime updatedAt;
+
+    public CalcRuleInfo() {}
+
+    public CalcRuleInfo(Long id, Long templateId, String indicatorKey, String expression,
+                        Boolean enabled, Integer orderNo, LocalDateTime createdAt, LocalDateTime updatedAt) {
+        this.id = id;
+        this.templateId = templateId;
+        this.indicatorKey = indicatorKey;
+        this.expression = expression;
+        this.enabled = enabled;
+        this.orderNo = orderNo;
+        this.createdAt = createdAt;
+        this.updatedAt = updatedAt;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getTemplateId() {
+        return templateId;
+    }
+
+    public void setTemplateId(Long templateId) {
+        this.templateId = templateId;
+    }
+
+    public String getIndicatorKey() {
+        return indicatorKey;
+    }
+
+    public void setIndicatorKey(String indicatorKey) {
+        this.indicatorKey = indicatorKey;
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    public void setExpression(String expression) {
+        this.expression = expression;
+    }
+
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Integer getOrderNo() {
+        return orderNo;
+    }
+
+    public void setOrderNo(Integer orderNo) {
+        this.orderNo = orderNo;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
@@ -0,0 +1,52 @@
+package com.costsystem.modules.costcalc.dto;
+
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.Size;
+
+/**
+ * 计算规则保存请求
+ */
+public class CalcRuleSaveRequest {
+
+    @NotBlank(message = "指标键不能为空")
+    @Size(max = 128, message = "指标键长度不能超过128")
+    private String indicatorKey;
+
+    @NotBlank(message = "规则表达式不能为空")
+    private String expression;
+
+    private Boolean enabled;
+    private Integer orderNo;
+
+    public String getIndicatorKey() {
+        return indicatorKey;
+    }
+
+    public void setIndicatorKey(String indicatorKey) {
+        this.indicatorKey = indicatorKey;
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    public void setExpression(String expression) {
+        this.expression = expression;
+    }
+
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Integer getOrderNo() {
+        return orderNo;
+    }
+
+    public void setOrderNo(Integer orderNo) {
+        this.orderNo = orderNo;
+    }
+}
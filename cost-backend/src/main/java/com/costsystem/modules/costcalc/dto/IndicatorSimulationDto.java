@@ -0,0 +1,87 @@
+package com.costsystem.modules.costcalc.dto;
+
+import java.math.BigDecimal;
+
+/**
+ * 指标模拟结果DTO
+ * currentValue 为按当前明细计算的值，simulatedValue 为叠加未保存变更后的值
+ */
+public class IndicatorSimulationDto {
+
+    private String indicatorKey;
+    private String name;
+    private BigDecimal currentValue;
+    private BigDecimal simulatedValue;
+    private BigDecimal delta;
+    private String unit;
+    private String expression;
+
+    public IndicatorSimulationDto() {}
+
+    public IndicatorSimulationDto(String indicatorKey, String name, BigDecimal currentValue,
+                                  BigDecimal simulatedValue, String unit, String expression) {
+        this.indicatorKey = indicatorKey;
+        this.name = name;
+        this.currentValue = currentValue;
+        this.simulatedValue = simulatedValue;
+        this.delta = simulatedValue.subtract(currentValue);
+        this.unit = unit;
+        this.expression = expression;
+    }
+
+    public String getIndicatorKey() {
+        return indicatorKey;
+    }
+
+    public void setIndicatorKey(String indicatorKey) {
+        this.indicatorKey = indicatorKey;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public BigDecimal getCurrentValue() {
+        return currentValue;
+    }
+
+    public void setCurrentValue(BigDecimal currentValue) {
+        this.currentValue = currentValue;
+    }
+
+    public BigDecimal getSimulatedValue() {
+        return simulatedValue;
+    }
+
+    public void setSimulatedValue(BigDecimal simulatedValue) {
+        this.simulatedValue = simulatedValue;
+    }
+
+    public BigDecimal getDelta() {
+        return delta;
+    }
+
+    public void setDelta(BigDecimal delta) {
+        this.delta = delta;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public void setUnit(String unit) {
+        this.unit = unit;
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    public void setExpression(String expression) {
+        this.expression = expression;
+    }
+}
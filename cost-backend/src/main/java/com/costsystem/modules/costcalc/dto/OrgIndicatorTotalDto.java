@@ -0,0 +1,46 @@
+package com.costsystem.modules.costcalc.dto;
+
+import java.math.BigDecimal;
+
+/**
+ * 组织指标汇总DTO
+ * total 为组织下各启用项目最新已审批/已签发版本的指标值之和，projectCount 为参与汇总的项目数
+ */
+public class OrgIndicatorTotalDto {
+
+    private String indicatorKey;
+    private BigDecimal total;
+    private long projectCount;
+
+    public OrgIndicatorTotalDto() {}
+
+    public OrgIndicatorTotalDto(String indicatorKey, BigDecimal total, Long projectCount) {
+        this.indicatorKey = indicatorKey;
+        this.total = total;
+        this.projectCount = projectCount == null ? 0 : projectCount;
+    }
+
+    public String getIndicatorKey() {
+        return indicatorKey;
+    }
+
+    public void setIndicatorKey(String indicatorKey) {
+        this.indicatorKey = indicatorKey;
+    }
+
+    public BigDecimal getTotal() {
+        return total;
+    }
+
+    public void setTotal(BigDecimal total) {
+        this.total = total;
+    }
+
+    public long getProjectCount() {
+        return projectCount;
+    }
+
+    public void setProjectCount(long projectCount) {
+        this.projectCount = projectCount;
+    }
+}
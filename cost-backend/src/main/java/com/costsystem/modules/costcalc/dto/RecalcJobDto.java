@@ -0,0 +1,114 @@
+package com.costsystem.modules.costcalc.dto;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * 版本异步重算任务DTO
+ * evaluatedRules/totalRules 为已完成的规则条数；slowestRules 为已完成规则中耗时最长的若干条；
+ * indicators 仅在任务成功后返回
+ */
+public class RecalcJobDto {
+
+    private String jobId;
+    private Long versionId;
+    private String status;
+    private int totalRules;
+    private int evaluatedRules;
+    private List<RuleCostDto> slowestRules;
+    private List<IndicatorValueDto> indicators;
+    private String error;
+    private LocalDateTime submittedAt;
+    private LocalDateTime startedAt;
+    private LocalDateTime finishedAt;
+
+    public RecalcJobDto() {}
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    public Long getVersionId() {
+        return versionId;
+    }
+
+    public void setVersionId(Long versionId) {
+        this.versionId = versionId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public int getTotalRules() {
+        return totalRules;
+    }
+
+    public void setTotalRules(int totalRules) {
+        this.totalRules = totalRules;
+    }
+
+    public int getEvaluatedRules() {
+        return evaluatedRules;
+    }
+
+    public void setEvaluatedRules(int evaluatedRules) {
+        this.evaluatedRules = evaluatedRules;
+    }
+
+    public List<RuleCostDto> getSlowestRules() {
+        return slowestRules;
+    }
+
+    public void setSlowestRules(List<RuleCostDto> slowestRules) {
+        this.slowestRules = slowestRules;
+    }
+
+    public List<IndicatorValueDto> getIndicators() {
+        return indicators;
+    }
+
+    public void setIndicators(List<IndicatorValueDto> indicators) {
+        this.indicators = indicators;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public LocalDateTime getSubmittedAt() {
+        return submittedAt;
+    }
+
+    public void setSubmittedAt(LocalDateTime submittedAt) {
+        this.submittedAt = submittedAt;
+    }
+
+    public LocalDateTime getStartedAt() {
+        return startedAt;
+    }
+
+    public void setStartedAt(LocalDateTime startedAt) {
+        this.startedAt = startedAt;
+    }
+
+    public LocalDateTime getFinishedAt() {
+        return finishedAt;
+    }
+
+    public void setFinishedAt(LocalDateTime finishedAt) {
+        this.finishedAt = finishedAt;
+    }
+}
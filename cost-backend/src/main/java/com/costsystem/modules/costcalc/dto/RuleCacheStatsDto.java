@@ -0,0 +1,58 @@
+package com.costsystem.modules.costcalc.dto;
+
+/**
+ * 规则编译缓存统计DTO
+ */
+public class RuleCacheStatsDto {
+
+    private int size;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public RuleCacheStatsDto() {}
+
+    public RuleCacheStatsDto(int size, long hitCount, long missCount, long evictionCount) {
+        this.size = size;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public void setHitCount(long hitCount) {
+        this.hitCount = hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public void setMissCount(long missCount) {
+        this.missCount = missCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public void setEvictionCount(long evictionCount) {
+        this.evictionCount = evictionCount;
+    }
+
+    public double getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0D : (double) hitCount / total;
+    }
+}
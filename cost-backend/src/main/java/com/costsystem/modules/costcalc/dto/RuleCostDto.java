@@ -0,0 +1,93 @@
+package com.costsystem.modules.costcalc.dto;
+
+/**
+ * 单条规则一次求值的开销DTO
+ * nodes 为访问的表达式节点数，rows 为扫描的明细行数（含嵌套 SUM 的重复扫描，共享聚合扫描不计入）；
+ * parseMicros 为取得编译结果的耗时（命中编译缓存时接近 0），matchedRows 为各聚合命中行数之和，
+ * traceBytes 为规则及其分组指标写入的追溯 JSON 字节数
+ */
+public class RuleCostDto {
+
+    private Long ruleId;
+    private String indicatorKey;
+    private long nodes;
+    private long rows;
+    private long elapsedMillis;
+    private long parseMicros;
+    private long matchedRows;
+    private long traceBytes;
+
+    public RuleCostDto() {}
+
+    public RuleCostDto(Long ruleId, String indicatorKey, long nodes, long rows, long elapsedMillis) {
+        this.ruleId = ruleId;
+        this.indicatorKey = indicatorKey;
+        this.nodes = nodes;
+        this.rows = rows;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public Long getRuleId() {
+        return ruleId;
+    }
+
+    public void setRuleId(Long ruleId) {
+        this.ruleId = ruleId;
+    }
+
+    public String getIndicatorKey() {
+        return indicatorKey;
+    }
+
+    public void setIndicatorKey(String indicatorKey) {
+        this.indicatorKey = indicatorKey;
+    }
+
+    public long getNodes() {
+        return nodes;
+    }
+
+    public void setNodes(long nodes) {
+        this.nodes = nodes;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public void setRows(long rows) {
+        this.rows = rows;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public long getParseMicros() {
+        return parseMicros;
+    }
+
+    public void setParseMicros(long parseMicros) {
+        this.parseMicros = parseMicros;
+    }
+
+    public long getMatchedRows() {
+        return matchedRows;
+    }
+
+    public void setMatchedRows(long matchedRows) {
+        this.matchedRows = matchedRows;
+    }
+
+    public long getTraceBytes() {
+        return traceBytes;
+    }
+
+    public void setTraceBytes(long traceBytes) {
+        this.traceBytes = traceBytes;
+    }
+}
@@ -0,0 +1,121 @@
+package com.costsystem.modules.costcalc.dto;
+
+import java.time.LocalDateTime;
+
+/**
+ * 慢规则统计DTO
+ * 按规则汇总统计窗口内各次重算的求值开销；max* 为窗口内单次最大值，last* 为最近一次重算
+ */
+public class SlowRuleDto {
+
+    private Long ruleId;
+    private Long templateId;
+    private String indicatorKey;
+    private int samples;
+    private long maxElapsedMillis;
+    private long avgElapsedMillis;
+    private long maxParseMicros;
+    private long maxRows;
+    private long maxMatchedRows;
+    private long maxTraceBytes;
+    private Long lastVersionId;
+    private LocalDateTime lastRecalcAt;
+
+    public SlowRuleDto() {}
+
+    public Long getRuleId() {
+        return ruleId;
+    }
+
+    public void setRuleId(Long ruleId) {
+        this.ruleId = ruleId;
+    }
+
+    public Long getTemplateId() {
+        return templateId;
+    }
+
+    public void setTemplateId(Long templateId) {
+        this.templateId = templateId;
+    }
+
+    public String getIndicatorKey() {
+        return indicatorKey;
+    }
+
+    public void setIndicatorKey(String indicatorKey) {
+        this.indicatorKey = indicatorKey;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    public void setSamples(int samples) {
+        this.samples = samples;
+    }
+
+    public long getMaxElapsedMillis() {
+        return maxElapsedMillis;
+    }
+
+    public void setMaxElapsedMillis(long maxElapsedMillis) {
+        this.maxElapsedMillis = maxElapsedMillis;
+    }
+
+    public long getAvgElapsedMillis() {
+        return avgElapsedMillis;
+    }
+
+    public void setAvgElapsedMillis(long avgElapsedMillis) {
+        this.avgElapsedMillis = avgElapsedMillis;
+    }
+
+    public long getMaxParseMicros() {
+        return maxParseMicros;
+    }
+
+    public void setMaxParseMicros(long maxParseMicros) {
+        this.maxParseMicros = maxParseMicros;
+    }
+
+    public long getMaxRows() {
+        return maxRows;
+    }
+
+    public void setMaxRows(long maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    public long getMaxMatchedRows() {
+        return maxMatchedRows;
+    }
+
+    public void setMaxMatchedRows(long maxMatchedRows) {
+        this.maxMatchedRows = maxMatchedRows;
+    }
+
+    public long getMaxTraceBytes() {
+        return maxTraceBytes;
+    }
+
+    public void setMaxTraceBytes(long maxTraceBytes) {
+        this.maxTraceBytes = maxTraceBytes;
+    }
+
+    public Long getLastVersionId() {
+        return lastVersionId;
+    }
+
+    public void setLastVersionId(Long lastVersionId) {
+        this.lastVersionId = lastVersionId;
+    }
+
+    public LocalDateTime getLastRecalcAt() {
+        return lastRecalcAt;
+    }
+
+    public void setLastRecalcAt(LocalDateTime lastRecalcAt) {
+        this.lastRecalcAt = lastRecalcAt;
+    }
+}
@@ -0,0 +1,83 @@
+package com.costsystem.modules.costcalc.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * 版本级追溯明细集合实体
+ * 同一版本各指标追溯中引用的明细ID集合统一压缩存放于此，指标追溯仅保存集合引用
+ * 严格遵循 cost-system-java 技能规则
+ */
+@Entity
+@Table(name = "cost_calc_trace")
+public class CalcTrace {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "version_id", nullable = false, unique = true)
+    private Long versionId;
+
+    @Lob
+    @Column(name = "item_sets", nullable = false, columnDefinition = "longblob")
+    private byte[] itemSets;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    @Column(name = "updated_at", nullable = false)
+    private LocalDateTime updatedAt;
+
+    @PrePersist
+    protected void onCreate() {
+        LocalDateTime now = LocalDateTime.now();
+        createdAt = now;
+        updatedAt = now;
+    }
+
+    @PreUpdate
+    protected void onUpdate() {
+        updatedAt = LocalDateTime.now();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getVersionId() {
+        return versionId;
+    }
+
+    public void setVersionId(Long versionId) {
+        this.versionId = versionId;
+    }
+
+    public byte[] getItemSets() {
+        return itemSets;
+    }
+
+    public void setItemSets(byte[] itemSets) {
+        this.itemSets = itemSets;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
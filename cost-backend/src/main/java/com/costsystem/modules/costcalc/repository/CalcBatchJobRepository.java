@@ -0,0 +1,72 @@
+package com.costsystem.modules.costcalc.repository;
+
+import com.costsystem.modules.costcalc.entity.CalcBatchJob;
+import com.costsystem.modules.costcalc.entity.CalcBatchJob.JobStatus;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * 模板批量重算任务仓储
+ * 任务状态与进度均以条件更新写入，规则变更置为 SUPERSEDED 后执行线程的进度写入即失效
+ * 严格遵循 cost-system-java 技能规则
+ */
+@Repository
+public interface CalcBatchJobRepository extends JpaRepository<CalcBatchJob, Long> {
+
+    List<CalcBatchJob> findTop20ByTemplateIdOrderByIdDesc(Long templateId);
+
+    Optional<CalcBatchJob> findFirstByTemplateIdAndStatusOrderByIdAsc(Long templateId, JobStatus status);
+
+    List<CalcBatchJob> findByStatusInOrderByIdAsc(Collection<JobStatus> statuses);
+
+    @Transactional
+    @Modifying
+    @Query("""
+        UPDATE CalcBatchJob j SET j.status = 'SUPERSEDED', j.finishedAt = :now, j.updatedAt = :now
+        WHERE j.templateId = :templateId AND j.status = 'RUNNING'
+        """)
+    int supersedeRunning(@Param("templateId") Long templateId, @Param("now") LocalDateTime now);
+
+    @Transactional
+    @Modifying
+    @Query("""
+        UPDATE CalcBatchJob j SET j.status = 'RUNNING', j.startedAt = COALESCE(j.startedAt, :now), j.updatedAt = :now
+        WHERE j.id = :id AND j.status IN ('PENDING', 'RUNNING')
+        """)
+    int markRunning(@Param("id") Long id, @Param("now") LocalDateTime now);
+
+    @Transactional
+    @Modifying
+    @Query("""
+        UPDATE CalcBatchJob j SET j.totalCount = :total, j.processedCount = :processed,
+            j.successCount = :success, j.failedCount = :failed, j.skippedCount = :skipped,
+            j.cursorVersionId = :cursor, j.failuresJson = :failuresJson, j.updatedAt = :now
+        WHERE j.id = :id AND j.status = 'RUNNING'
+        """)
+    int updateProgress(@Param("id") Long id,
+                       @Param("total") int total,
+                       @Param("processed") int processed,
+                       @Param("success") int success,
+                       @Param("failed") int failed,
+                       @Param("skipped") int skipped,
+                       @Param("cursor") Long cursor,
+                       @Param("failuresJson") String failuresJson,
+                       @Param("now") LocalDateTime now);
+
+    @Transactional
+    @Modifying
+    @Query("""
+        UPDATE CalcBatchJob j SET j.status = :status, j.finishedAt = :now, j.updatedAt = :now
+        WHERE j.id = :id AND j.status = 'RUNNING'
+        """)
+    int finish(@Param("id") Long id, @Param("status") JobStatus status, @Param("now") LocalDateTime now);
+}
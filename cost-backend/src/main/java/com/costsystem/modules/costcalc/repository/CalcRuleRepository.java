@@ -15,5 +15,7 @@ public interface CalcRuleRepository extends JpaRepository<CalcRule, Long> {
 
     List<CalcRule> findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(Long templateId, Boolean enabled);
 
+    List<CalcRule> findByTemplateIdOrderByOrderNoAscIdAsc(Long templateId);
+
     boolean existsByTemplateId(Long templateId);
 }
@@ -0,0 +1,30 @@
+package com.costsystem.modules.costcalc.repository;
+
+import com.costsystem.modules.costcalc.entity.CalcTrace;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+/**
+ * 版本级追溯明细集合仓储
+ * 严格遵循 cost-system-java 技能规则
+ */
+@Repository
+public interface CalcTraceRepository extends JpaRepository<CalcTrace, Long> {
+
+    Optional<CalcTrace> findByVersionId(Long versionId);
+
+    @Modifying
+    @Query(value = """
+        INSERT INTO cost_calc_trace (version_id, item_sets, created_at, updated_at)
+        VALUES (:versionId, :itemSets, NOW(), NOW())
+        ON DUPLICATE KEY UPDATE item_sets = VALUES(item_sets), updated_at = NOW()
+        """, nativeQuery = true)
+    void upsert(@Param("versionId") Long versionId, @Param("itemSets") byte[] itemSets);
+
+    void deleteByVersionId(Long versionId);
+}
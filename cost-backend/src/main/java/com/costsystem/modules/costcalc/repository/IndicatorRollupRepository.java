@@ -0,0 +1,42 @@
+package com.costsystem.modules.costcalc.repository;
+
+import com.costsystem.modules.costcalc.dto.OrgIndicatorTotalDto;
+import com.costsystem.modules.costcalc.entity.IndicatorRollup;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 跨项目指标汇总仓储
+ * 组织汇总查询走 (org_id, indicator_key, value) 覆盖索引，不回表
+ * 严格遵循 cost-system-java 技能规则
+ */
+@Repository
+public interface IndicatorRollupRepository extends JpaRepository<IndicatorRollup, Long> {
+
+    List<IndicatorRollup> findByProjectId(Long projectId);
+
+    @Modifying
+    @Query("DELETE FROM IndicatorRollup r WHERE r.projectId = :projectId")
+    int deleteByProjectId(@Param("projectId") Long projectId);
+
+    @Query("""
+        SELECT new com.costsystem.modules.costcalc.dto.OrgIndicatorTotalDto(r.indicatorKey, SUM(r.value), COUNT(r))
+        FROM IndicatorRollup r WHERE r.orgId = :orgId
+        GROUP BY r.indicatorKey ORDER BY r.indicatorKey
+        """)
+    List<OrgIndicatorTotalDto> sumByOrgId(@Param("orgId") Long orgId);
+
+    @Query("""
+        SELECT new com.costsystem.modules.costcalc.dto.OrgIndicatorTotalDto(r.indicatorKey, SUM(r.value), COUNT(r))
+        FROM IndicatorRollup r WHERE r.orgId = :orgId AND r.indicatorKey IN :keys
+        GROUP BY r.indicatorKey ORDER BY r.indicatorKey
+        """)
+    List<OrgIndicatorTotalDto> sumByOrgIdAndKeys(@Param("orgId") Long orgId,
+                                                 @Param("keys") Collection<String> keys);
+}
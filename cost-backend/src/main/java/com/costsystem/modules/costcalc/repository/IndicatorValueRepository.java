@@ -1,7 +1,11 @@
 package com.costsystem.modules.costcalc.repository;
 
 import com.costsystem.modules.costcalc.entity.IndicatorValue;
+import jakarta.persistence.LockModeType;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -12,10 +16,17 @@ import java.util.Optional;
  * 严格遵循 cost-system-java 技能规则
  */
 @Repository
-public interface IndicatorValueRepository extends JpaRepository<IndicatorValue, Long> {
+public interface IndicatorValueRepository extends JpaRepository<IndicatorValue, Long>, IndicatorValueRepositoryCustom {
 
     List<IndicatorValue> findByVersionIdOrderByIndicatorKeyAsc(Long versionId);
 
+    /**
+     * 锁定读取版本的指标值；锁定读取读的是最新已提交数据，不受事务开始时快照的影响
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT v FROM IndicatorValue v WHERE v.versionId = :versionId ORDER BY v.indicatorKey ASC")
+    List<IndicatorValue> findForUpdateByVersionId(@Param("versionId") Long versionId);
+
     Optional<IndicatorValue> findByVersionIdAndIndicatorKey(Long versionId, String indicatorKey);
 
     void deleteByVersionIdAndIndicatorKeyNotIn(Long versionId, List<String> indicatorKeys);
@@ -0,0 +1,18 @@
+package com.costsystem.modules.costcalc.repository;
+
+import com.costsystem.modules.costcalc.entity.IndicatorValue;
+
+import java.util.List;
+
+/**
+ * 指标值批量写入
+ * 严格遵循 cost-system-java 技能规则
+ */
+public interface IndicatorValueRepositoryCustom {
+
+    /**
+     * 按 (version_id, indicator_key) 批量插入或更新指标值，单次 JDBC 批处理提交。
+     * 已存在的行只更新值、计算时间与追溯信息，保留原有单位。
+     */
+    void upsertAll(List<IndicatorValue> values);
+}
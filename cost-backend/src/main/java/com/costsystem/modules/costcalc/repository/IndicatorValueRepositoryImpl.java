@@ -0,0 +1,63 @@
+package com.costsystem.modules.costcalc.repository;
+
+import com.costsystem.modules.costcalc.entity.IndicatorValue;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * 指标值批量写入实现（基于 JdbcTemplate，与 JPA 共享当前事务连接）
+ * 严格遵循 cost-system-java 技能规则
+ */
+public class IndicatorValueRepositoryImpl implements IndicatorValueRepositoryCustom {
+
+    private static final String UPSERT_SQL = """
+            INSERT INTO cost_indicator_value
+                (version_id, indicator_key, `value`, unit, calc_time, trace_json, created_at, updated_at)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?)
+            ON DUPLICATE KEY UPDATE
+                `value` = VALUES(`value`),
+                calc_time = VALUES(calc_time),
+                trace_json = VALUES(trace_json),
+                updated_at = VALUES(updated_at)
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public IndicatorValueRepositoryImpl(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public void upsertAll(List<IndicatorValue> values) {
+        if (values == null || values.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(UPSERT_SQL, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                IndicatorValue value = values.get(i);
+                LocalDateTime calcTime = value.getCalcTime() != null ? value.getCalcTime() : LocalDateTime.now();
+                Timestamp timestamp = Timestamp.valueOf(calcTime);
+                ps.setLong(1, value.getVersionId());
+                ps.setString(2, value.getIndicatorKey());
+                ps.setBigDecimal(3, value.getValue());
+                ps.setString(4, value.getUnit());
+                ps.setTimestamp(5, timestamp);
+                ps.setString(6, value.getTraceJson());
+                ps.setTimestamp(7, timestamp);
+                ps.setTimestamp(8, timestamp);
+            }
+
+            @Override
+            public int getBatchSize() {
+                return values.size();
+            }
+        });
+    }
+}
@@ -0,0 +1,335 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.common.exception.BusinessException;
+import com.costsystem.modules.costcalc.dto.CalcBatchJobDto;
+import com.costsystem.modules.costcalc.entity.CalcBatchJob;
+import com.costsystem.modules.costcalc.entity.CalcBatchJob.JobStatus;
+import com.costsystem.modules.costcalc.entity.CalcBatchJob.TriggerType;
+import com.costsystem.modules.costcalc.repository.CalcBatchJobRepository;
+import com.costsystem.modules.costform.entity.FormVersion;
+import com.costsystem.modules.costform.repository.FormVersionRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * 模板批量重算服务
+ * 规则变更后按版本ID升序分块重算模板下全部草稿版本：块内版本由 calcBatchExecutor 并发提交给
+ * RecalcCoordinator 重算并等待结果，每个版本各自独立事务，与同一版本的其他重算不会重叠；
+ * 整块完成后写入进度与游标，中断后从游标之后续跑。
+ * 同一模板再次变更规则时，运行中的任务置为 SUPERSEDED 并在当前块结束后停止，由新任务从头重算；
+ * 尚未开始的任务直接复用，不重复排队。
+ */
+@Service
+public class CalcBatchJobService {
+
+    private static final Logger log = LoggerFactory.getLogger(CalcBatchJobService.class);
+
+    static final int MAX_RECORDED_FAILURES = 50;
+    private static final int MAX_FAILURE_MESSAGE_LENGTH = 500;
+
+    private final CalcBatchJobRepository calcBatchJobRepository;
+    private final FormVersionRepository formVersionRepository;
+    private final RecalcCoordinator recalcCoordinator;
+    private final ExecutorService calcBatchExecutor;
+    private final Executor calcBatchScheduler;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${cost-system.calc.batch-on-rule-change:true}")
+    private boolean batchOnRuleChange = true;
+
+    @Value("${cost-system.calc.batch-chunk-size:20}")
+    private int batchChunkSize = 20;
+
+    /**
+     * calcBatchScheduler 依次执行各任务的分块调度，任务之间串行，避免多个任务争用同一工作线程池
+     */
+    public CalcBatchJobService(CalcBatchJobRepository calcBatchJobRepository,
+                               FormVersionRepository formVersionRepository,
+                               RecalcCoordinator recalcCoordinator,
+                               ExecutorService calcBatchExecutor,
+                               Executor calcBatchScheduler) {
+        this.calcBatchJobRepository = calcBatchJobRepository;
+        this.formVersionRepository = formVersionRepository;
+        this.recalcCoordinator = recalcCoordinator;
+        this.calcBatchExecutor = calcBatchExecutor;
+        this.calcBatchScheduler = calcBatchScheduler;
+    }
+
+    /**
+     * 规则新增/修改/删除后调用，开关关闭时不触发
+     */
+    public void onRulesChanged(Long templateId) {
+        if (batchOnRuleChange) {
+            submit(templateId, null, TriggerType.RULE_CHANGE);
+        }
+    }
+
+    @Transactional
+    public CalcBatchJobDto startJob(Long userId, Long templateId) {
+        return submit(templateId, userId, TriggerType.MANUAL);
+    }
+
+    @Transactional(readOnly = true)
+    public CalcBatchJobDto getJob(Long jobId) {
+        return calcBatchJobRepository.findById(jobId)
+                .map(this::toDto)
+                .orElseThrow(() -> BusinessException.notFound("批量重算任务不存在"));
+    }
+
+    @Transactional(readOnly = true)
+    public List<CalcBatchJobDto> listJobs(Long templateId) {
+        return calcBatchJobRepository.findTop20ByTemplateIdOrderByIdDesc(templateId)
+                .stream()
+                .map(this::toDto)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 应用重启后续跑未完成的任务；运行中的任务从已保存的游标之后继续
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeInterruptedJobs() {
+        for (CalcBatchJob job : calcBatchJobRepository.findByStatusInOrderByIdAsc(
+                List.of(JobStatus.RUNNING, JobStatus.PENDING))) {
+            log.info("续跑批量重算任务: jobId={}, templateId={}, cursor={}",
+                    job.getId(), job.getTemplateId(), job.getCursorVersionId());
+            dispatch(job.getId());
+        }
+    }
+
+    private CalcBatchJobDto submit(Long templateId, Long userId, TriggerType triggerType) {
+        calcBatchJobRepository.supersedeRunning(templateId, LocalDateTime.now());
+        Optional<CalcBatchJob> pending = calcBatchJobRepository
+                .findFirstByTemplateIdAndStatusOrderByIdAsc(templateId, JobStatus.PENDING);
+        if (pending.isPresent()) {
+            return toDto(pending.get());
+        }
+        CalcBatchJob job = new CalcBatchJob();
+        job.setTemplateId(templateId);
+        job.setTriggerType(triggerType);
+        job.setCreatedBy(userId);
+        job = calcBatchJobRepository.save(job);
+        dispatchAfterCommit(job.getId());
+        return toDto(job);
+    }
+
+    /**
+     * 规则变更与任务记录在同一事务中提交后才开始重算，保证重算读取到的是新规则
+     */
+    private void dispatchAfterCommit(Long jobId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            dispatch(jobId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                dispatch(jobId);
+            }
+        });
+    }
+
+    private void dispatch(Long jobId) {
+        calcBatchScheduler.execute(() -> {
+            try {
+                runJob(jobId);
+            } catch (RuntimeException ex) {
+                log.error("批量重算任务异常终止: jobId={}", jobId, ex);
+                calcBatchJobRepository.finish(jobId, JobStatus.FAILED, LocalDateTime.now());
+            }
+        });
+    }
+
+    void runJob(Long jobId) {
+        if (calcBatchJobRepository.markRunning(jobId, LocalDateTime.now()) == 0) {
+            return;
+        }
+        CalcBatchJob job = calcBatchJobRepository.findById(jobId).orElse(null);
+        if (job == null) {
+            return;
+        }
+        List<Long> versionIds = formVersionRepository.findIdsByTemplateIdAndStatusAfter(
+                job.getTemplateId(), FormVersion.VersionStatus.DRAFT, job.getCursorVersionId());
+        Progress progress = new Progress(job, readFailures(job.getFailuresJson()));
+        progress.total = progress.processed + versionIds.size();
+        int chunkSize = Math.max(1, batchChunkSize);
+        for (int from = 0; from < versionIds.size(); from += chunkSize) {
+            List<Long> chunk = versionIds.subList(from, Math.min(from + chunkSize, versionIds.size()));
+            List<Callable<String>> tasks = new ArrayList<>(chunk.size());
+            for (Long versionId : chunk) {
+                tasks.add(() -> recalcVersion(versionId));
+            }
+            List<Future<String>> outcomes;
+            try {
+                outcomes = calcBatchExecutor.invokeAll(tasks);
+            } catch (InterruptedException ex) {
+                // 保持 RUNNING，重启后从游标续跑
+                Thread.currentThread().interrupt();
+                return;
+            }
+            for (int i = 0; i < chunk.size(); i++) {
+                progress.record(chunk.get(i), outcome(outcomes.get(i)));
+            }
+            progress.cursor = chunk.get(chunk.size() - 1);
+            if (!saveProgress(jobId, progress)) {
+                log.info("批量重算任务已被新任务取代: jobId={}", jobId);
+                return;
+            }
+        }
+        if (versionIds.isEmpty()) {
+            saveProgress(jobId, progress);
+        }
+        calcBatchJobRepository.finish(jobId, JobStatus.COMPLETED, LocalDateTime.now());
+    }
+
+    /**
+     * 返回 null 表示重算成功，SKIPPED 表示版本已不是草稿，其余为失败原因
+     */
+    private String recalcVersion(Long versionId) {
+        FormVersion version = formVersionRepository.findById(versionId).orElse(null);
+        if (version == null || version.getStatus() != FormVersion.VersionStatus.DRAFT) {
+            return Progress.SKIPPED;
+        }
+        try {
+            recalcCoordinator.recalculateVersion(versionId);
+            return null;
+        } catch (RuntimeException ex) {
+            log.warn("批量重算版本失败: versionId={}, reason={}", versionId, ex.getMessage());
+            return failureMessage(ex);
+        }
+    }
+
+    private String outcome(Future<String> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            return failureMessage(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return failureMessage(ex);
+        }
+    }
+
+    private String failureMessage(Throwable ex) {
+        String message = ex.getMessage() != null ? ex.getMessage() : ex.getClass().getSimpleName();
+        return message.length() > MAX_FAILURE_MESSAGE_LENGTH
+                ? message.substring(0, MAX_FAILURE_MESSAGE_LENGTH)
+                : message;
+    }
+
+    private boolean saveProgress(Long jobId, Progress progress) {
+        return calcBatchJobRepository.updateProgress(jobId, progress.total, progress.processed,
+                progress.success, progress.failed, progress.skipped, progress.cursor,
+                writeFailures(progress.failures), LocalDateTime.now()) > 0;
+    }
+
+    private List<Map<String, Object>> readFailures(String json) {
+        if (json == null || json.isBlank()) {
+            return new ArrayList<>();
+        }
+        try {
+            return objectMapper.readValue(json, new TypeReference<List<Map<String, Object>>>() {});
+        } catch (JsonProcessingException ex) {
+            return new ArrayList<>();
+        }
+    }
+
+    private String writeFailures(List<Map<String, Object>> failures) {
+        if (failures.isEmpty()) {
+            return null;
+        }
+        try {
+            return objectMapper.writeValueAsString(failures);
+        } catch (JsonProcessingException ex) {
+            return null;
+        }
+    }
+
+    private CalcBatchJobDto toDto(CalcBatchJob job) {
+        CalcBatchJobDto dto = new CalcBatchJobDto();
+        dto.setId(job.getId());
+        dto.setTemplateId(job.getTemplateId());
+        dto.setStatus(job.getStatus() != null ? job.getStatus().name() : null);
+        dto.setTriggerType(job.getTriggerType() != null ? job.getTriggerType().name() : null);
+        dto.setTotalCount(job.getTotalCount());
+        dto.setProcessedCount(job.getProcessedCount());
+        dto.setSuccessCount(job.getSuccessCount());
+        dto.setFailedCount(job.getFailedCount());
+        dto.setSkippedCount(job.getSkippedCount());
+        dto.setCursorVersionId(job.getCursorVersionId());
+        dto.setFailures(readFailures(job.getFailuresJson()));
+        dto.setStartedAt(job.getStartedAt());
+        dto.setFinishedAt(job.getFinishedAt());
+        dto.setCreatedAt(job.getCreatedAt());
+        if (job.getStartedAt() != null) {
+            LocalDateTime end = job.getFinishedAt() != null ? job.getFinishedAt() : LocalDateTime.now();
+            long millis = Duration.between(job.getStartedAt(), end).toMillis();
+            if (millis > 0) {
+                dto.setThroughputPerSecond(Math.round(job.getProcessedCount() * 100_000.0 / millis) / 100.0);
+            }
+        }
+        return dto;
+    }
+
+    /**
+     * 单个任务的累计进度，仅由调度线程读写
+     */
+    private static final class Progress {
+
+        static final String SKIPPED = "SKIPPED";
+
+        int total;
+        int processed;
+        int success;
+        int failed;
+        int skipped;
+        Long cursor;
+        final List<Map<String, Object>> failures;
+
+        Progress(CalcBatchJob job, List<Map<String, Object>> failures) {
+            this.processed = job.getProcessedCount();
+            this.success = job.getSuccessCount();
+            this.failed = job.getFailedCount();
+            this.skipped = job.getSkippedCount();
+            this.cursor = job.getCursorVersionId();
+            this.failures = failures;
+        }
+
+        void record(Long versionId, String outcome) {
+            processed++;
+            if (outcome == null) {
+                success++;
+            } else if (SKIPPED.equals(outcome)) {
+                skipped++;
+            } else {
+                failed++;
+                if (failures.size() < MAX_RECORDED_FAILURES) {
+                    Map<String, Object> failure = new LinkedHashMap<>();
+                    failure.put("versionId", versionId);
+                    failure.put("message", outcome);
+                    failures.add(failure);
+                }
+            }
+        }
+    }
+}
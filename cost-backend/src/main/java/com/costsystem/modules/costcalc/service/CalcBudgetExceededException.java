@@ -0,0 +1,63 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.common.exception.BusinessException;
+import com.costsystem.modules.costcalc.entity.CalcRule;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalBudget;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 规则求值超出预算
+ * details 给出超限的规则、预算范围（RULE 单条规则 / RECALC 整次重算）、超限项及上限与实际用量；
+ * 共享聚合扫描阶段超限时不归属任何规则，ruleId 与 indicatorKey 为空
+ */
+public class CalcBudgetExceededException extends BusinessException {
+
+    private final Long ruleId;
+    private final String indicatorKey;
+
+    private CalcBudgetExceededException(String message, Map<String, Object> details,
+                                        Long ruleId, String indicatorKey) {
+        super(409, message, details);
+        this.ruleId = ruleId;
+        this.indicatorKey = indicatorKey;
+    }
+
+    static CalcBudgetExceededException of(CalcRule rule, EvalBudget.Exceeded exceeded) {
+        Long ruleId = rule == null ? null : rule.getId();
+        String indicatorKey = rule == null ? null : rule.getIndicatorKey();
+        String subject = rule == null
+                ? "聚合扫描"
+                : "规则 " + indicatorKey + "（ID " + ruleId + "）";
+        String message = subject + "超出" + (exceeded.isShared() ? "整次重算" : "单条规则") + "求值预算："
+                + limitText(exceeded.getLimit()) + " " + exceeded.getUsed() + " 超过上限 " + exceeded.getMax();
+        Map<String, Object> details = new LinkedHashMap<>();
+        details.put("ruleId", ruleId);
+        details.put("indicatorKey", indicatorKey);
+        details.put("scope", exceeded.isShared() ? "RECALC" : "RULE");
+        details.put("limit", exceeded.getLimit().name());
+        details.put("max", exceeded.getMax());
+        details.put("used", exceeded.getUsed());
+        return new CalcBudgetExceededException(message, details, ruleId, indicatorKey);
+    }
+
+    private static String limitText(EvalBudget.Limit limit) {
+        switch (limit) {
+            case NODES:
+                return "访问节点数";
+            case ROWS:
+                return "扫描明细行数";
+            default:
+                return "耗时(毫秒)";
+        }
+    }
+
+    public Long getRuleId() {
+        return ruleId;
+    }
+
+    public String getIndicatorKey() {
+        return indicatorKey;
+    }
+}
@@ -0,0 +1,3093 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.common.exception.BusinessException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * 指标规则 DSL：词法、语法解析与求值
+ * 严格遵循 cost-system-java 技能规则
+ */
+final class CalcDsl {
+
+    private CalcDsl() {}
+
+    static class EvalResult {
+        private final BigDecimal value;
+        private final List<SumTrace> sumTraces;
+        private final Map<String, SumTrace> groups;
+
+        EvalResult(BigDecimal value, List<SumTrace> sumTraces) {
+            this(value, sumTraces, null);
+        }
+
+        EvalResult(BigDecimal value, List<SumTrace> sumTraces, Map<String, SumTrace> groups) {
+            this.value = value;
+            this.sumTraces = sumTraces;
+            this.groups = groups;
+        }
+
+        public BigDecimal getValue() {
+            return value == null ? BigDecimal.ZERO : value;
+        }
+
+        public List<SumTrace> getSumTraces() {
+            return sumTraces == null ? Collections.emptyList() : sumTraces;
+        }
+
+        /**
+         * 规则为分组聚合时各分组的结果（按分组键排序），否则为空
+         */
+        public Map<String, SumTrace> getGroups() {
+            return groups == null ? Collections.emptyMap() : groups;
+        }
+    }
+
+    static class SumTrace {
+        private final String expression;
+        private final String field;
+        private final String condition;
+        private final int count;
+        private final BigDecimal value;
+        private final List<Long> itemIds;
+        private final Map<String, SumTrace> groups;
+
+        SumTrace(String expression, String field, String condition,
+                         int count, BigDecimal value, List<Long> itemIds) {
+            this(expression, field, condition, count, value, itemIds, null);
+        }
+
+        SumTrace(String expression, String field, String condition,
+                 int count, BigDecimal value, List<Long> itemIds, Map<String, SumTrace> groups) {
+            this.expression = expression;
+            this.field = field;
+            this.condition = condition;
+            this.count = count;
+            this.value = value;
+            this.itemIds = itemIds;
+            this.groups = groups;
+        }
+
+        public String getExpression() {
+            return expression;
+        }
+
+        /**
+         * 聚合函数名，取自表达式文本
+         */
+        public String getFunction() {
+            int paren = expression == null ? -1 : expression.indexOf('(');
+            return paren > 0 ? expression.substring(0, paren) : Aggregate.SUM.name();
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public String getCondition() {
+            return condition;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public BigDecimal getValue() {
+            return value;
+        }
+
+        public List<Long> getItemIds() {
+            return itemIds;
+        }
+
+        /**
+         * GROUP BY 聚合的各分组结果，键为归并后的分组取值；非分组聚合为空
+         */
+        public Map<String, SumTrace> getGroups() {
+            return groups == null ? Collections.emptyMap() : groups;
+        }
+    }
+
+    static class EvalContext {
+        private static final LineItemSnapshot EMPTY_SNAPSHOT = LineItemSnapshot.of(null, null);
+
+        private final LineItemSnapshot snapshot;
+        private final Map<String, BigDecimal> indicatorMap;
+        private final Map<SumExpr, SumTrace> fusedSums;
+        private final List<SumTrace> sumTraces;
+        private int currentRow = -1;
+        private boolean compiledBackend;
+        private EvalBudget budget;
+        private ParallelScan parallelScan;
+
+        EvalContext(LineItemSnapshot snapshot, Map<String, BigDecimal> indicatorMap) {
+            this(snapshot, indicatorMap, null);
+        }
+
+        EvalContext(LineItemSnapshot snapshot, Map<String, BigDecimal> indicatorMap,
+                    Map<SumExpr, SumTrace> fusedSums) {
+            this.snapshot = snapshot == null ? EMPTY_SNAPSHOT : snapshot;
+            this.indicatorMap = indicatorMap == null ? new HashMap<>() : indicatorMap;
+            this.fusedSums = fusedSums == null ? Collections.emptyMap() : fusedSums;
+            this.sumTraces = new ArrayList<>();
+        }
+
+        /**
+         * 标识符归一化为明细字段名：去掉 line_item. 前缀并转小写
+         */
+        static String normalizeField(String name) {
+            if (name == null) {
+                return null;
+            }
+            String field = name;
+            if (field.startsWith("line_item.")) {
+                field = field.substring("line_item.".length());
+            }
+            return field.toLowerCase(Locale.ROOT);
+        }
+
+        static boolean isLineItemField(String normalizedField) {
+            return LineItemSnapshot.Field.of(normalizedField) != null;
+        }
+
+        public SumTrace getFusedSum(SumExpr sumExpr) {
+            return fusedSums.get(sumExpr);
+        }
+
+        public LineItemSnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        public List<SumTrace> getSumTraces() {
+            return sumTraces;
+        }
+
+        public int getCurrentRow() {
+            return currentRow;
+        }
+
+        /**
+         * 设置当前明细行号，-1 表示不在 SUM 行上下文中
+         */
+        public void setCurrentRow(int currentRow) {
+            this.currentRow = currentRow;
+        }
+
+        public boolean isCompiledBackend() {
+            return compiledBackend;
+        }
+
+        /**
+         * 非融合 SUM 是否使用 MethodHandle 编译后端逐行求值
+         */
+        public void setCompiledBackend(boolean compiledBackend) {
+            this.compiledBackend = compiledBackend;
+        }
+
+        public EvalBudget getBudget() {
+            return budget;
+        }
+
+        /**
+         * 设置求值预算，null 表示不计数也不限制
+         */
+        public void setBudget(EvalBudget budget) {
+            this.budget = budget;
+        }
+
+        public ParallelScan getParallelScan() {
+            return parallelScan;
+        }
+
+        /**
+         * 设置大 SUM 的分段并行扫描，null 表示始终顺序扫描
+         */
+        public void setParallelScan(ParallelScan parallelScan) {
+            this.parallelScan = parallelScan;
+        }
+
+        /**
+         * 供并行分段使用的上下文：共享快照与指标，行号独立；分段预算在扫描中途按批计入本上下文的预算并检查上限
+         */
+        EvalContext forkSegment() {
+            EvalContext segment = new EvalContext(snapshot, indicatorMap, fusedSums);
+            segment.compiledBackend = compiledBackend;
+            segment.budget = budget == null ? null : budget.segment();
+            return segment;
+        }
+
+        /**
+         * 分段扫描结束时计入预算尾数
+         */
+        void settleSegment() {
+            if (budget != null) {
+                budget.settle();
+            }
+        }
+
+        void visitNode() {
+            if (budget != null) {
+                budget.visitNode();
+            }
+        }
+
+        void scanRow() {
+            if (budget != null) {
+                budget.scanRow();
+            }
+        }
+
+        public void addSumTrace(SumTrace trace) {
+            if (trace != null) {
+                sumTraces.add(trace);
+            }
+        }
+
+        public Object resolveIdentifier(IdentifierExpr identifier) {
+            if (identifier.getName() == null) {
+                return null;
+            }
+            if (currentRow >= 0 && identifier.getColumn() != null) {
+                Object fieldValue = snapshot.value(identifier.getColumn(), identifier.getExtPath(), currentRow);
+                if (fieldValue != null) {
+                    return fieldValue;
+                }
+            }
+            return resolveIndicator(identifier.getName());
+        }
+
+        public BigDecimal resolveIndicator(String name) {
+            BigDecimal indicator = indicatorMap.get(name);
+            if (indicator != null) {
+                return indicator;
+            }
+            return BigDecimal.ZERO;
+        }
+    }
+
+    /**
+     * 求值预算：累计访问的表达式节点数、扫描的明细行数与墙钟时间，任一超过上限即抛出 Exceeded 中止求值。
+     * 单条规则的预算由整次重算的预算派生，规则在单线程内计数，每 CHECK_INTERVAL 次检查一次上限并把增量汇总到上级；
+     * 上级只接收汇总，可被并行求值的多条规则及同一 SUM 的并行分段同时累加，汇总时按自身上限检查并继续上报。
+     * 上限为 0 表示不限制该项
+     */
+    static final class EvalBudget {
+        enum Limit {
+            NODES, ROWS, TIME
+        }
+
+        private static final int CHECK_INTERVAL = 1024;
+
+        private final EvalBudget parent;
+        private final long maxNodes;
+        private final long maxRows;
+        private final long timeoutMillis;
+        private final long startNanos = System.nanoTime();
+        private final AtomicLong sharedNodes = new AtomicLong();
+        private final AtomicLong sharedRows = new AtomicLong();
+        private long nodes;
+        private long rows;
+        private long flushedNodes;
+        private long flushedRows;
+        private int unchecked;
+
+        private EvalBudget(EvalBudget parent, long maxNodes, long maxRows, long timeoutMillis) {
+            this.parent = parent;
+            this.maxNodes = maxNodes;
+            this.maxRows = maxRows;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        static EvalBudget of(long maxNodes, long maxRows, long timeoutMillis) {
+            return new EvalBudget(null, maxNodes, maxRows, timeoutMillis);
+        }
+
+        static EvalBudget unlimited() {
+            return of(0, 0, 0);
+        }
+
+        /**
+         * 派生计入本预算的下级预算，下级由单个线程使用
+         */
+        EvalBudget child(long maxNodes, long maxRows, long timeoutMillis) {
+            return new EvalBudget(this, maxNodes, maxRows, timeoutMillis);
+        }
+
+        /**
+         * 派生并行分段的下级预算：自身不设上限，开销按批计入本预算，由本预算的上限约束
+         */
+        EvalBudget segment() {
+            return new EvalBudget(this, 0, 0, 0);
+        }
+
+        void visitNode() {
+            nodes++;
+            if (++unchecked >= CHECK_INTERVAL) {
+                settle();
+            }
+        }
+
+        void scanRow() {
+            rows++;
+            if (++unchecked >= CHECK_INTERVAL) {
+                settle();
+            }
+        }
+
+        /**
+         * 立即检查上限并把未汇总的计数交给上级，求值结束时调用一次以计入尾数
+         */
+        void settle() {
+            unchecked = 0;
+            long elapsed = elapsedMillis();
+            check(getNodes(), getRows(), elapsed, false);
+            if (parent != null) {
+                parent.charge(nodes - flushedNodes, rows - flushedRows);
+                flushedNodes = nodes;
+                flushedRows = rows;
+            }
+        }
+
+        /**
+         * 接收下级汇总的增量，按本预算上限检查后继续计入上级；本预算自身的计数由所属线程在汇总前写入
+         */
+        private void charge(long deltaNodes, long deltaRows) {
+            long usedNodes = nodes + sharedNodes.addAndGet(deltaNodes);
+            long usedRows = rows + sharedRows.addAndGet(deltaRows);
+            check(usedNodes, usedRows, elapsedMillis(), parent == null);
+            if (parent != null) {
+                parent.charge(deltaNodes, deltaRows);
+            }
+        }
+
+        private void check(long usedNodes, long usedRows, long elapsed, boolean shared) {
+            if (maxNodes > 0 && usedNodes > maxNodes) {
+                throw new Exceeded(Limit.NODES, maxNodes, usedNodes, shared);
+            }
+            if (maxRows > 0 && usedRows > maxRows) {
+                throw new Exceeded(Limit.ROWS, maxRows, usedRows, shared);
+            }
+            if (timeoutMillis > 0 && elapsed > timeoutMillis) {
+                throw new Exceeded(Limit.TIME, timeoutMillis, elapsed, shared);
+            }
+        }
+
+        /**
+         * 已访问节点数，含下级已汇总的部分
+         */
+        long getNodes() {
+            return nodes + sharedNodes.get();
+        }
+
+        long getRows() {
+            return rows + sharedRows.get();
+        }
+
+        long elapsedMillis() {
+            return elapsedNanos() / 1_000_000L;
+        }
+
+        long elapsedNanos() {
+            return System.nanoTime() - startNanos;
+        }
+
+        /**
+         * 超出预算；shared 为 true 表示超出的是上级（整次重算）预算
+         */
+        static final class Exceeded extends RuntimeException {
+            private final Limit limit;
+            private final long max;
+            private final long used;
+            private final boolean shared;
+
+            Exceeded(Limit limit, long max, long used, boolean shared) {
+                super(limit + " " + used + " > " + max, null, false, false);
+                this.limit = limit;
+                this.max = max;
+                this.used = used;
+                this.shared = shared;
+            }
+
+            Limit getLimit() {
+                return limit;
+            }
+
+            long getMax() {
+                return max;
+            }
+
+            long getUsed() {
+                return used;
+            }
+
+            boolean isShared() {
+                return shared;
+            }
+        }
+    }
+
+    static class EvalValue {
+        private final Object value;
+
+        EvalValue(Object value) {
+            this.value = value;
+        }
+
+        public boolean isString() {
+            return value instanceof String;
+        }
+
+        public BigDecimal asNumber() {
+            return toNumber(value);
+        }
+
+        public String asString() {
+            return toText(value);
+        }
+
+        public boolean asBoolean() {
+            return toBoolean(value);
+        }
+
+        static BigDecimal toNumber(Object value) {
+            if (value == null) {
+                return BigDecimal.ZERO;
+            }
+            if (value instanceof BigDecimal) {
+                return (BigDecimal) value;
+            }
+            if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                return BigDecimal.valueOf(((Number) value).longValue());
+            }
+            if (value instanceof Number) {
+                return new BigDecimal(value.toString());
+            }
+            if (value instanceof Boolean) {
+                return (Boolean) value ? BigDecimal.ONE : BigDecimal.ZERO;
+            }
+            if (value instanceof String) {
+                try {
+                    return new BigDecimal(((String) value).trim());
+                } catch (Exception ex) {
+                    return BigDecimal.ZERO;
+                }
+            }
+            return BigDecimal.ZERO;
+        }
+
+        static String toText(Object value) {
+            if (value == null) {
+                return null;
+            }
+            if (value instanceof String) {
+                return (String) value;
+            }
+            if (value instanceof BigDecimal) {
+                return ((BigDecimal) value).stripTrailingZeros().toPlainString();
+            }
+            return String.valueOf(value);
+        }
+
+        static boolean toBoolean(Object value) {
+            if (value == null) {
+                return false;
+            }
+            if (value instanceof Boolean) {
+                return (Boolean) value;
+            }
+            if (value instanceof Number) {
+                return new BigDecimal(value.toString()).compareTo(BigDecimal.ZERO) != 0;
+            }
+            if (value instanceof String) {
+                return !((String) value).trim().isEmpty();
+            }
+            return false;
+        }
+
+        /**
+         * 相等比较：任一侧为字符串时按文本比较，否则按数值比较
+         */
+        static boolean valuesEqual(Object left, Object right) {
+            if (left instanceof String || right instanceof String) {
+                String lv = toText(left);
+                String rv = toText(right);
+                return lv != null && lv.equals(rv);
+            }
+            return toNumber(left).compareTo(toNumber(right)) == 0;
+        }
+
+        Object raw() {
+            return value;
+        }
+    }
+
+    interface Node {
+        List<Node> children();
+    }
+
+    interface Expr extends Node {
+        EvalValue eval(EvalContext ctx);
+    }
+
+    interface Condition extends Node {
+        boolean test(EvalContext ctx);
+    }
+
+    /**
+     * 收集表达式中引用的 ext 路径，用于构建快照时预先抽取
+     */
+    static Set<String> collectExtPaths(Collection<? extends Node> roots) {
+        Set<String> paths = new LinkedHashSet<>();
+        Deque<Node> stack = new ArrayDeque<>();
+        for (Node root : roots) {
+            if (root != null) {
+                stack.push(root);
+            }
+        }
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (node instanceof IdentifierExpr && ((IdentifierExpr) node).getExtPath() != null) {
+                paths.add(((IdentifierExpr) node).getExtPath());
+            }
+            for (Node child : node.children()) {
+                stack.push(child);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * 表达式子树的规范形式：节点类型、运算符、字面量与标识符完全相同的子树得到相同的键，
+     * 字符串字面量按长度前缀拼接，不同结构不会得到相同的键；含未知节点类型时返回 null，不参与合并
+     */
+    static String canonicalKey(Node node) {
+        StringBuilder builder = new StringBuilder();
+        return appendCanonical(node, builder) ? builder.toString() : null;
+    }
+
+    private static boolean appendCanonical(Node node, StringBuilder builder) {
+        if (node == null) {
+            builder.append('_');
+            return true;
+        }
+        if (node instanceof NumberExpr) {
+            builder.append("N:").append(((NumberExpr) node).value.toPlainString()).append(';');
+            return true;
+        }
+        if (node instanceof StringExpr) {
+            String value = ((StringExpr) node).value;
+            builder.append("S:").append(value.length()).append(':').append(value).append(';');
+            return true;
+        }
+        if (node instanceof IdentifierExpr) {
+            builder.append("I:").append(((IdentifierExpr) node).name).append(';');
+            return true;
+        }
+        builder.append(node.getClass().getSimpleName()).append('(');
+        boolean known;
+        if (node instanceof UnaryExpr) {
+            builder.append(((UnaryExpr) node).op).append(',');
+            known = appendCanonical(((UnaryExpr) node).expr, builder);
+        } else if (node instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) node;
+            builder.append(binary.op).append(',');
+            known = appendCanonical(binary.left, builder) && appendCanonical(binary.right, builder);
+        } else if (node instanceof SumExpr) {
+            SumExpr sum = (SumExpr) node;
+            builder.append(sum.function).append(',');
+            known = appendCanonical(sum.expr, builder) && appendCanonical(sum.condition, builder)
+                    && appendCanonical(sum.groupBy, builder);
+        } else if (node instanceof RoundExpr) {
+            RoundExpr round = (RoundExpr) node;
+            known = appendCanonical(round.expr, builder) && appendCanonical(round.scale, builder);
+        } else if (node instanceof IfExpr) {
+            IfExpr ifExpr = (IfExpr) node;
+            known = appendCanonical(ifExpr.condition, builder) && appendCanonical(ifExpr.trueExpr, builder)
+                    && appendCanonical(ifExpr.falseExpr, builder);
+        } else if (node instanceof CompareCondition) {
+            CompareCondition compare = (CompareCondition) node;
+            builder.append(compare.op).append(',');
+            known = appendCanonical(compare.left, builder) && appendCanonical(compare.right, builder);
+        } else if (node instanceof InCondition) {
+            InCondition in = (InCondition) node;
+            known = appendCanonical(in.left, builder);
+            for (Expr option : in.options) {
+                known = known && appendCanonical(option, builder);
+            }
+        } else if (node instanceof LogicalCondition) {
+            LogicalCondition logical = (LogicalCondition) node;
+            builder.append(logical.op).append(',');
+            known = appendCanonical(logical.left, builder) && appendCanonical(logical.right, builder);
+        } else if (node instanceof TruthyCondition) {
+            known = appendCanonical(((TruthyCondition) node).expr, builder);
+        } else {
+            known = false;
+        }
+        builder.append(')');
+        return known;
+    }
+
+    static List<Node> nodes(Node... nodes) {
+        List<Node> result = new ArrayList<>(nodes.length);
+        for (Node node : nodes) {
+            if (node != null) {
+                result.add(node);
+            }
+        }
+        return result;
+    }
+
+    static class NumberExpr implements Expr {
+        private final BigDecimal value;
+        private final boolean fixedPoint;
+        private final long unscaled;
+        private final int scale;
+
+        NumberExpr(BigDecimal value) {
+            this.value = value;
+            BigDecimal number = EvalValue.toNumber(value);
+            this.fixedPoint = number.unscaledValue().bitLength() < Long.SIZE;
+            this.unscaled = fixedPoint ? number.unscaledValue().longValue() : 0L;
+            this.scale = number.scale();
+        }
+
+        @Override
+        public EvalValue eval(EvalContext ctx) {
+            ctx.visitNode();
+            return new EvalValue(value);
+        }
+
+        @Override
+        public List<Node> children() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public String toString() {
+            return value == null ? "0" : value.toPlainString();
+        }
+    }
+
+    static class StringExpr implements Expr {
+        private final String value;
+
+        StringExpr(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public EvalValue eval(EvalContext ctx) {
+            ctx.visitNode();
+            return new EvalValue(value);
+        }
+
+        @Override
+        public List<Node> children() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public String toString() {
+            return "'" + value + "'";
+        }
+    }
+
+    static class IdentifierExpr implements Expr {
+        private final String name;
+        private final String field;
+        private final LineItemSnapshot.Field column;
+        private final String extPath;
+
+        IdentifierExpr(String name) {
+            this.name = name;
+            this.field = EvalContext.normalizeField(name);
+            this.column = LineItemSnapshot.Field.of(field);
+            this.extPath = column == LineItemSnapshot.Field.EXT ? field.substring(4) : null;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        /**
+         * 对应的快照列，非明细字段为 null
+         */
+        public LineItemSnapshot.Field getColumn() {
+            return column;
+        }
+
+        public String getExtPath() {
+            return extPath;
+        }
+
+        @Override
+        public EvalValue eval(EvalContext ctx) {
+            ctx.visitNode();
+            return new EvalValue(ctx.resolveIdentifier(this));
+        }
+
+        @Override
+        public List<Node> children() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class UnaryExpr implements Expr {
+        private final String op;
+        private final Expr expr;
+
+        UnaryExpr(String op, Expr expr) {
+            this.op = op;
+            this.expr = expr;
+        }
+
+        @Override
+        public EvalValue eval(EvalContext ctx) {
+            ctx.visitNode();
+            BigDecimal value = expr.eval(ctx).asNumber();
+            if ("-".equals(op)) {
+                return new EvalValue(value.negate());
+            }
+            return new EvalValue(value);
+        }
+
+        @Override
+        public List<Node> children() {
+            return nodes(expr);
+        }
+
+        @Override
+        public String toString() {
+            return op + expr;
+        }
+    }
+
+    static class BinaryExpr implements Expr {
+        private final String op;
+        private final Expr left;
+        private final Expr right;
+
+        BinaryExpr(String op, Expr left, Expr right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public EvalValue eval(EvalContext ctx) {
+            ctx.visitNode();
+            BigDecimal leftValue = left.eval(ctx).asNumber();
+            BigDecimal rightValue = right.eval(ctx).asNumber();
+            switch (op) {
+                case "+":
+                    return new EvalValue(leftValue.add(rightValue));
+                case "-":
+                    return new EvalValue(leftValue.subtract(rightValue));
+                case "*":
+                    return new EvalValue(leftValue.multiply(rightValue));
+                case "/":
+                    if (rightValue.compareTo(BigDecimal.ZERO) == 0) {
+                        return new EvalValue(BigDecimal.ZERO);
+                    }
+                    return new EvalValue(leftValue.divide(rightValue, 10, RoundingMode.HALF_UP));
+                default:
+                    return new EvalValue(BigDecimal.ZERO);
+            }
+        }
+
+        @Override
+        public List<Node> children() {
+            return nodes(left, right);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " " + op + " " + right + ")";
+        }
+    }
+
+    /**
+     * 聚合函数。SUM 与 COUNT 的结果可由变更行的前后差值维护，AVG / MIN / MAX 需在完整明细上求值
+     */
+    enum Aggregate {
+        SUM, COUNT, AVG, MIN, MAX;
+
+        static Aggregate of(String name) {
+            for (Aggregate aggregate : values()) {
+                if (aggregate.name().equalsIgnoreCase(name)) {
+                    return aggregate;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 聚合表达式：SUM / COUNT / AVG / MIN / MAX(被聚合项 [WHERE 条件] [GROUP BY 维度列])。
+     * COUNT(*) 的被聚合项为常量 1，只计命中行数；带 GROUP BY 时只能作为整条规则表达式，
+     * 取值为全部命中行的聚合，各分组结果随追溯一并给出
+     */
+    static class SumExpr implements Expr {
+        private static final Object NO_CONDITION = new Object();
+
+        private final Aggregate function;
+        private final Expr expr;
+        private final Condition condition;
+        private final IdentifierExpr groupBy;
+        private final Map<Object, Optional<RowCompiler.CompiledSum>> compiledSums = new ConcurrentHashMap<>();
+        private volatile Optional<String> canonicalKey;
+
+        SumExpr(Expr expr, Condition condition) {
+            this(Aggregate.SUM, expr, condition, null);
+        }
+
+        SumExpr(Aggregate function, Expr expr, Condition condition, IdentifierExpr groupBy) {
+            this.function = function;
+            this.expr = expr;
+            this.condition = condition;
+            this.groupBy = groupBy;
+        }
+
+        /**
+         * 规范形式，首次使用时计算；表达式随规则编译缓存复用，每条规则只计算一次。无法规范化时为 null
+         */
+        String canonicalKey() {
+            Optional<String> key = canonicalKey;
+            if (key == null) {
+                key = Optional.ofNullable(CalcDsl.canonicalKey(this));
+                canonicalKey = key;
+            }
+            return key.orElse(null);
+        }
+
+        public Aggregate getFunction() {
+            return function;
+        }
+
+        public Expr getExpr() {
+            return expr;
+        }
+
+        public Condition getCondition() {
+            return condition;
+        }
+
+        /**
+         * 分组维度列，不分组时为 null
+         */
+        public IdentifierExpr getGroupBy() {
+            return groupBy;
+        }
+
+        /**
+         * 被聚合项或条件中含嵌套 SUM：内层求值依赖外层行上下文并产生追溯记录，只能顺序扫描
+         */
+        boolean hasNestedSum() {
+            return (expr != null && PredicateIndex.containsSum(expr))
+                    || (condition != null && PredicateIndex.containsSum(condition));
+        }
+
+        /**
+         * 不分组的 SUM 与 COUNT：结果等于各行贡献之和，可按明细行增量维护
+         */
+        public boolean isAdditive() {
+            return groupBy == null && (function == Aggregate.SUM || function == Aggregate.COUNT);
+        }
+
+        /**
+         * 按逐行条件缓存编译结果；表达式随规则编译缓存复用，已预热的编译代码在多次重算间共享
+         */
+        RowCompiler.CompiledSum compiled(Condition rowCondition) {
+            Object key = rowCondition == null ? NO_CONDITION : rowCondition;
+            return compiledSums.computeIfAbsent(key, k -> Optional.ofNullable(RowCompiler.compile(expr, rowCondition)))
+                    .orElse(null);
+        }
+
+        @Override
+        public EvalValue eval(EvalContext ctx) {
+            ctx.visitNode();
+            SumTrace fused = ctx.getFusedSum(this);
+            if (fused != null) {
+                ctx.addSumTrace(fused);
+                return new EvalValue(fused.getValue());
+            }
+            SumAccumulator accumulator = new SumAccumulator(this, ctx.getSnapshot());
+            BitSet selected = accumulator.select(ctx);
+            if (ctx.isCompiledBackend()) {
+                accumulator.compile();
+            }
+            ParallelScan parallelScan = ctx.getParallelScan();
+            if (parallelScan != null && parallelScan.splits(selected, ctx.getSnapshot()) && !hasNestedSum()) {
+                parallelScan.scan(Collections.singletonList(accumulator), selected, ctx);
+            } else if (selected != null) {
+                for (int row = selected.nextSetBit(0); row >= 0; row = selected.nextSetBit(row + 1)) {
+                    ctx.scanRow();
+                    ctx.setCurrentRow(row);
+                    accumulator.accept(ctx, row);
+                }
+            } else {
+                int size = ctx.getSnapshot().size();
+                for (int row = 0; row < size; row++) {
+                    ctx.scanRow();
+                    ctx.setCurrentRow(row);
+                    accumulator.accept(ctx, row);
+                }
+            }
+            ctx.setCurrentRow(-1);
+
+            SumTrace trace = accumulator.toTrace();
+            ctx.addSumTrace(trace);
+            return new EvalValue(trace.getValue());
+        }
+
+        @Override
+        public List<Node> children() {
+            return nodes(expr, condition, groupBy);
+        }
+
+        @Override
+        public String toString() {
+            return function + "(" + (function == Aggregate.COUNT ? "*" : String.valueOf(expr))
+                    + (condition == null ? "" : " WHERE " + condition)
+                    + (groupBy == null ? "" : " GROUP BY " + groupBy) + ")";
+        }
+    }
+
+    /**
+     * 单个聚合的累加器，逐行累加并生成追溯信息。
+     * SUM / AVG 的被聚合项为定点存储的金额列或可定点求值的算术表达式时直接在 long 上累加，
+     * 结果与逐行 BigDecimal 相加完全一致（含 scale）。
+     * GROUP BY 按维度列的字典编码直接定位分组，一次扫描同时累加合计与各分组。分组取值去掉首尾空白并转大写后归并，
+     * 与指标键唯一约束的大小写不敏感比较一致；维度为空的行只计入合计
+     */
+    static class SumAccumulator {
+        private final SumExpr sumExpr;
+        private final LineItemSnapshot snapshot;
+        private final LineItemSnapshot.DecimalColumn fixedColumn;
+        private final FixedPoint fixedPoint;
+        private final Partial total = new Partial();
+        private final LineItemSnapshot.DictColumn groupColumn;
+        private final int[] groupSlots;
+        private final String[] groupKeys;
+        private final Partial[] groups;
+        private Condition rowCondition;
+        private BitSet selectedRows;
+        private RowCompiler.CompiledSum compiled;
+
+        SumAccumulator(SumExpr sumExpr, LineItemSnapshot snapshot) {
+            this.sumExpr = sumExpr;
+            this.snapshot = snapshot;
+            boolean summed = sumExpr.function == Aggregate.SUM || sumExpr.function == Aggregate.AVG;
+            this.fixedColumn = summed ? resolveFixedColumn(sumExpr.expr, snapshot) : null;
+            this.fixedPoint = summed && fixedColumn == null && FixedPoint.supports(sumExpr.expr)
+                    ? new FixedPoint(snapshot) : null;
+            this.rowCondition = sumExpr.condition;
+            this.groupColumn = sumExpr.groupBy == null ? null : snapshot.dictColumn(sumExpr.groupBy.getColumn());
+            if (groupColumn == null) {
+                this.groupSlots = null;
+                this.groupKeys = null;
+                this.groups = null;
+                return;
+            }
+            // 字典编码映射到归并后的分组，分组按取值排序
+            String[] normalized = new String[groupColumn.cardinality()];
+            TreeMap<String, Integer> slots = new TreeMap<>();
+            for (int code = 0; code < normalized.length; code++) {
+                String key = groupColumn.valueOf(code).strip().toUpperCase(Locale.ROOT);
+                if (!key.isEmpty()) {
+                    normalized[code] = key;
+                    slots.put(key, 0);
+                }
+            }
+            this.groupKeys = slots.keySet().toArray(new String[0]);
+            for (int slot = 0; slot < groupKeys.length; slot++) {
+                slots.put(groupKeys[slot], slot);
+            }
+            this.groupSlots = new int[normalized.length];
+            for (int code = 0; code < normalized.length; code++) {
+                groupSlots[code] = normalized[code] == null ? -1 : slots.get(normalized[code]);
+            }
+            this.groups = new Partial[groupKeys.length];
+        }
+
+        /**
+         * 并行分段用的空累加器：共享候选行、剩余条件、编译结果与分组映射，累加状态与定点求值器独立
+         */
+        private SumAccumulator(SumAccumulator source) {
+            this.sumExpr = source.sumExpr;
+            this.snapshot = source.snapshot;
+            this.fixedColumn = source.fixedColumn;
+            this.fixedPoint = source.fixedPoint == null ? null : new FixedPoint(source.snapshot);
+            this.groupColumn = source.groupColumn;
+            this.groupSlots = source.groupSlots;
+            this.groupKeys = source.groupKeys;
+            this.groups = source.groups == null ? null : new Partial[source.groups.length];
+            this.rowCondition = source.rowCondition;
+            this.selectedRows = source.selectedRows;
+            this.compiled = source.compiled;
+        }
+
+        SumAccumulator fork() {
+            return new SumAccumulator(this);
+        }
+
+        /**
+         * 并入紧随其后的分段的累加结果，按分段顺序调用时与顺序扫描的结果及命中明细顺序一致
+         */
+        void merge(SumAccumulator segment) {
+            total.merge(sumExpr.function, segment.total);
+            if (groups == null) {
+                return;
+            }
+            for (int slot = 0; slot < groups.length; slot++) {
+                Partial other = segment.groups[slot];
+                if (other == null) {
+                    continue;
+                }
+                if (groups[slot] == null) {
+                    groups[slot] = new Partial();
+                }
+                groups[slot].merge(sumExpr.function, other);
+            }
+        }
+
+        private static LineItemSnapshot.DecimalColumn resolveFixedColumn(Expr expr, LineItemSnapshot snapshot) {
+            if (!(expr instanceof IdentifierExpr)) {
+                return null;
+            }
+            LineItemSnapshot.Field column = ((IdentifierExpr) expr).getColumn();
+            if (column == null || !column.isDecimal()) {
+                return null;
+            }
+            LineItemSnapshot.DecimalColumn decimalColumn = snapshot.decimalColumn(column);
+            return decimalColumn.isFixedPoint() ? decimalColumn : null;
+        }
+
+        public SumExpr getSumExpr() {
+            return sumExpr;
+        }
+
+        /**
+         * 借助谓词索引预先求出候选行。返回非 null 时调用方只需对候选行调用 accept，
+         * 此后每行只判断索引无法覆盖的剩余条件；返回 null 时仍需逐行判断完整条件
+         */
+        public BitSet select(EvalContext ctx) {
+            PredicateIndex.Selection selection = PredicateIndex.select(sumExpr.condition, ctx);
+            if (selection != null) {
+                selectedRows = selection.getRows();
+                rowCondition = selection.getResidual();
+            }
+            return selectedRows;
+        }
+
+        public BitSet getSelectedRows() {
+            return selectedRows;
+        }
+
+        /**
+         * 将被累加项与剩余条件编译为 MethodHandle，须在 select 之后调用；无法编译时保持解释执行
+         */
+        public void compile() {
+            compiled = sumExpr.compiled(rowCondition);
+        }
+
+        public void accept(EvalContext ctx, int row) {
+            boolean matched = compiled != null
+                    ? compiled.test(ctx, row)
+                    : rowCondition == null || rowCondition.test(ctx);
+            if (!matched) {
+                return;
+            }
+            Partial group = groupOf(row);
+            if (fixedColumn != null && !fixedColumn.isNull(row)) {
+                long unscaled = fixedColumn.unscaled(row);
+                int rowScale = fixedColumn.rowScale(row);
+                total.addFixed(unscaled, fixedColumn.scale(), rowScale);
+                if (group != null) {
+                    group.addFixed(unscaled, fixedColumn.scale(), rowScale);
+                }
+            } else if (fixedPoint != null && fixedPoint.eval(sumExpr.expr, row)) {
+                total.addFixed(fixedPoint.getUnscaled(), fixedPoint.getScale(), fixedPoint.getScale());
+                if (group != null) {
+                    group.addFixed(fixedPoint.getUnscaled(), fixedPoint.getScale(), fixedPoint.getScale());
+                }
+            } else if (sumExpr.function != Aggregate.COUNT) {
+                BigDecimal value = compiled != null ? compiled.value(ctx, row) : sumExpr.expr.eval(ctx).asNumber();
+                total.add(sumExpr.function, value);
+                if (group != null) {
+                    group.add(sumExpr.function, value);
+                }
+            }
+            boolean hasId = snapshot.hasId(row);
+            long id = hasId ? snapshot.id(row) : 0L;
+            total.count(hasId, id);
+            if (group != null) {
+                group.count(hasId, id);
+            }
+        }
+
+        private Partial groupOf(int row) {
+            if (groupColumn == null) {
+                return null;
+            }
+            int code = groupColumn.code(row);
+            int slot = code == LineItemSnapshot.DictColumn.NULL_CODE ? -1 : groupSlots[code];
+            if (slot < 0) {
+                return null;
+            }
+            Partial group = groups[slot];
+            if (group == null) {
+                group = new Partial();
+                groups[slot] = group;
+            }
+            return group;
+        }
+
+        public SumTrace toTrace() {
+            String fieldText = sumExpr.function == Aggregate.COUNT ? "*" : sumExpr.expr.toString();
+            String conditionText = sumExpr.condition == null ? null : sumExpr.condition.toString();
+            String expressionText = sumExpr.toString();
+            Map<String, SumTrace> groupTraces = null;
+            if (groups != null) {
+                groupTraces = new LinkedHashMap<>();
+                for (int slot = 0; slot < groups.length; slot++) {
+                    Partial group = groups[slot];
+                    if (group != null) {
+                        groupTraces.put(groupKeys[slot], new SumTrace(expressionText, fieldText, conditionText,
+                                group.count, group.value(sumExpr.function), group.ids));
+                    }
+                }
+            }
+            return new SumTrace(expressionText, fieldText, conditionText,
+                    total.count, total.value(sumExpr.function), total.ids, groupTraces);
+        }
+    }
+
+    /**
+     * 合计或单个分组的聚合状态
+     */
+    private static final class Partial {
+        private final List<Long> ids = new ArrayList<>();
+        private BigDecimal sum = BigDecimal.ZERO;
+        private BigDecimal extreme;
+        private int count;
+        private long fixedSum;
+        private int fixedScale = Integer.MIN_VALUE;
+        private BigDecimal fixedOverflow;
+        private int fixedMaxScale = Integer.MIN_VALUE;
+
+        void count(boolean hasId, long id) {
+            count++;
+            if (hasId) {
+                ids.add(id);
+            }
+        }
+
+        void add(Aggregate function, BigDecimal value) {
+            if (function == Aggregate.MIN) {
+                extreme = extreme == null || value.compareTo(extreme) < 0 ? value : extreme;
+            } else if (function == Aggregate.MAX) {
+                extreme = extreme == null || value.compareTo(extreme) > 0 ? value : extreme;
+            } else {
+                sum = sum.add(value);
+            }
+        }
+
+        /**
+         * 累加定点值 unscaled × 10^-scale，rowScale 为该行 BigDecimal 取值的 scale。
+         * 累加精度随参与行的最大 scale 提升，溢出部分转存为 BigDecimal
+         */
+        void addFixed(long unscaled, int scale, int rowScale) {
+            if (fixedScale == Integer.MIN_VALUE) {
+                fixedScale = scale;
+            } else if (scale > fixedScale) {
+                try {
+                    fixedSum = FixedPoint.rescale(fixedSum, scale - fixedScale);
+                } catch (ArithmeticException ex) {
+                    spillFixed();
+                }
+                fixedScale = scale;
+            } else if (scale < fixedScale) {
+                try {
+                    unscaled = FixedPoint.rescale(unscaled, fixedScale - scale);
+                } catch (ArithmeticException ex) {
+                    sum = sum.add(BigDecimal.valueOf(unscaled, scale).setScale(rowScale, RoundingMode.UNNECESSARY));
+                    return;
+                }
+            }
+            try {
+                fixedSum = Math.addExact(fixedSum, unscaled);
+            } catch (ArithmeticException ex) {
+                spillFixed();
+                fixedSum = unscaled;
+            }
+            fixedMaxScale = Math.max(fixedMaxScale, rowScale);
+        }
+
+        /**
+         * 并入后续分段：BigDecimal 相加精确且满足结合律，定点部分整体转存为 BigDecimal，
+         * 结果 scale 仍由参与行的最大 scale 决定；MIN / MAX 取值相等时保留先出现者
+         */
+        void merge(Aggregate function, Partial other) {
+            count += other.count;
+            ids.addAll(other.ids);
+            sum = sum.add(other.sum);
+            if (other.extreme != null) {
+                add(function, other.extreme);
+            }
+            if (other.fixedMaxScale == Integer.MIN_VALUE) {
+                return;
+            }
+            BigDecimal otherFixed = BigDecimal.valueOf(other.fixedSum, other.fixedScale);
+            if (other.fixedOverflow != null) {
+                otherFixed = other.fixedOverflow.add(otherFixed);
+            }
+            fixedOverflow = fixedOverflow == null ? otherFixed : fixedOverflow.add(otherFixed);
+            if (fixedScale == Integer.MIN_VALUE) {
+                fixedScale = other.fixedScale;
+            }
+            fixedMaxScale = Math.max(fixedMaxScale, other.fixedMaxScale);
+        }
+
+        private void spillFixed() {
+            BigDecimal spilled = BigDecimal.valueOf(fixedSum, fixedScale);
+            fixedOverflow = fixedOverflow == null ? spilled : fixedOverflow.add(spilled);
+            fixedSum = 0L;
+        }
+
+        /**
+         * 定点部分按参与行的最大 scale 还原，保证结果 scale 与 BigDecimal 逐行相加一致
+         */
+        private BigDecimal total() {
+            if (fixedMaxScale == Integer.MIN_VALUE) {
+                return sum;
+            }
+            BigDecimal fixedPart = BigDecimal.valueOf(fixedSum, fixedScale);
+            if (fixedOverflow != null) {
+                fixedPart = fixedOverflow.add(fixedPart);
+            }
+            return sum.add(fixedPart.setScale(fixedMaxScale, RoundingMode.UNNECESSARY));
+        }
+
+        /**
+         * 聚合结果；没有命中行时 AVG / MIN / MAX 与 SUM 一样为 0，AVG 的精度与除法运算一致
+         */
+        BigDecimal value(Aggregate function) {
+            switch (function) {
+                case COUNT:
+                    return BigDecimal.valueOf(count);
+                case AVG:
+                    return count == 0
+                            ? BigDecimal.ZERO
+                            : total().divide(BigDecimal.valueOf(count), 10, RoundingMode.HALF_UP);
+                case MIN:
+                case MAX:
+                    return extreme == null ? BigDecimal.ZERO : extreme;
+                default:
+                    return total();
+            }
+        }
+    }
+
+    /**
+     * 大 SUM 的分段并行扫描：候选行按数量均分成行号连续的分段，各分段在计算线程池上用独立的累加器与求值上下文扫描，
+     * 全部完成后按分段顺序合并。累加均为精确运算，合并结果（含 scale）与顺序扫描一致，与分段数无关；
+     * 命中明细ID按分段顺序拼接，保持原有行序。分段的开销在扫描中途按批计入所属预算，超限即中止。
+     * 已在计算线程池内（规则层级并行）时以 fork/join 拆分，当前线程参与扫描，不再向同一线程池阻塞提交
+     */
+    static final class ParallelScan {
+        private static final int MIN_SEGMENT_ROWS = 16_384;
+
+        private final ForkJoinPool pool;
+        private final int minRows;
+
+        /**
+         * @param minRows 候选行数达到该值才并行扫描
+         */
+        ParallelScan(ForkJoinPool pool, int minRows) {
+            this.pool = pool;
+            this.minRows = minRows;
+        }
+
+        /**
+         * 候选行（null 表示全部行）是否足以拆成多个分段
+         */
+        boolean splits(BitSet selected, LineItemSnapshot snapshot) {
+            return segments(selected == null ? snapshot.size() : selected.cardinality()) > 1;
+        }
+
+        private int segments(int rows) {
+            if (rows < minRows) {
+                return 1;
+            }
+            return Math.max(1, Math.min(pool.getParallelism(), rows / MIN_SEGMENT_ROWS));
+        }
+
+        /**
+         * 对同一组候选行并行累加各累加器，结果合并回传入的累加器；每行只计一次扫描行数
+         */
+        void scan(List<SumAccumulator> accumulators, BitSet selected, EvalContext ctx) {
+            int size = ctx.getSnapshot().size();
+            int rows = selected == null ? size : selected.cardinality();
+            int segments = segments(rows);
+            int[] bounds = bounds(selected, size, rows, segments);
+            List<Segment> tasks = new ArrayList<>(segments);
+            for (int segment = 0; segment < segments; segment++) {
+                List<SumAccumulator> segmentAccumulators = new ArrayList<>(accumulators.size());
+                for (SumAccumulator accumulator : accumulators) {
+                    segmentAccumulators.add(accumulator.fork());
+                }
+                tasks.add(new Segment(segmentAccumulators, selected, bounds[segment], bounds[segment + 1],
+                        ctx.forkSegment()));
+            }
+            if (ForkJoinTask.getPool() == pool) {
+                ForkJoinTask.invokeAll(tasks);
+            } else {
+                pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+            }
+            for (Segment segment : tasks) {
+                if (segment.failure != null) {
+                    throw segment.failure;
+                }
+                for (int i = 0; i < accumulators.size(); i++) {
+                    accumulators.get(i).merge(segment.accumulators.get(i));
+                }
+            }
+        }
+
+        /**
+         * 各分段的起始行号：候选行按数量均分，分段 k 从第 rows * k / segments 个候选行开始
+         */
+        private static int[] bounds(BitSet selected, int size, int rows, int segments) {
+            int[] bounds = new int[segments + 1];
+            bounds[segments] = size;
+            if (selected == null) {
+                for (int segment = 1; segment < segments; segment++) {
+                    bounds[segment] = (int) ((long) size * segment / segments);
+                }
+                return bounds;
+            }
+            int segment = 1;
+            long next = (long) rows / segments;
+            long seen = 0;
+            for (int row = selected.nextSetBit(0); row >= 0 && segment < segments; row = selected.nextSetBit(row + 1)) {
+                if (seen++ == next) {
+                    bounds[segment++] = row;
+                    next = (long) rows * segment / segments;
+                }
+            }
+            return bounds;
+        }
+
+        /**
+         * 单个分段的扫描任务，失败记在任务上，合并时按分段顺序抛出
+         */
+        private static final class Segment extends RecursiveAction {
+            private final List<SumAccumulator> accumulators;
+            private final BitSet selected;
+            private final int from;
+            private final int to;
+            private final EvalContext ctx;
+            private RuntimeException failure;
+
+            Segment(List<SumAccumulator> accumulators, BitSet selected, int from, int to, EvalContext ctx) {
+                this.accumulators = accumulators;
+                this.selected = selected;
+                this.from = from;
+                this.to = to;
+                this.ctx = ctx;
+            }
+
+            @Override
+            protected void compute() {
+                try {
+                    int row = selected == null ? from : selected.nextSetBit(from);
+                    while (row >= 0 && row < to) {
+                        ctx.scanRow();
+                        ctx.setCurrentRow(row);
+                        for (SumAccumulator accumulator : accumulators) {
+                            accumulator.accept(ctx, row);
+                        }
+                        row = selected == null ? row + 1 : selected.nextSetBit(row + 1);
+                    }
+                    ctx.setCurrentRow(-1);
+                    ctx.settleSegment();
+                } catch (RuntimeException ex) {
+                    failure = ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * 行级定点求值：数值常量、定点存储的金额列、sort_no 及其加减乘、取负在 (long 非标度值, scale) 上计算，
+     * 结果 scale 规则与 BigDecimal 相同，取值完全一致。遇到空值（需回退指标）、除法、溢出或其他节点时
+     * 返回 false，由调用方对该行回退 BigDecimal 求值。实例持有中间结果，不可跨线程共享。
+     */
+    static final class FixedPoint {
+        private static final int MAX_SCALE = 18;
+        private static final long[] POWERS_OF_TEN = new long[MAX_SCALE + 1];
+
+        static {
+            POWERS_OF_TEN[0] = 1L;
+            for (int i = 1; i <= MAX_SCALE; i++) {
+                POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10L;
+            }
+        }
+
+        private final LineItemSnapshot snapshot;
+        private long unscaled;
+        private int scale;
+
+        FixedPoint(LineItemSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * 表达式只由可定点求值的节点组成，且不是单个标识符（单个金额列由累加器直接读取定点值）
+         */
+        static boolean supports(Expr expr) {
+            return !(expr instanceof IdentifierExpr) && isFixedNode(expr);
+        }
+
+        private static boolean isFixedNode(Expr expr) {
+            if (expr instanceof NumberExpr) {
+                return ((NumberExpr) expr).fixedPoint;
+            }
+            if (expr instanceof IdentifierExpr) {
+                LineItemSnapshot.Field column = ((IdentifierExpr) expr).getColumn();
+                return column != null && (column.isDecimal() || column == LineItemSnapshot.Field.SORT_NO);
+            }
+            if (expr instanceof UnaryExpr) {
+                return isFixedNode(((UnaryExpr) expr).expr);
+            }
+            if (expr instanceof BinaryExpr) {
+                BinaryExpr binary = (BinaryExpr) expr;
+                return ("+".equals(binary.op) || "-".equals(binary.op) || "*".equals(binary.op))
+                        && isFixedNode(binary.left) && isFixedNode(binary.right);
+            }
+            return false;
+        }
+
+        /**
+         * unscaled × 10^digits，溢出时抛出 ArithmeticException
+         */
+        static long rescale(long unscaled, int digits) {
+            if (digits > MAX_SCALE) {
+                if (unscaled == 0L) {
+                    return 0L;
+                }
+                throw new ArithmeticException("long overflow");
+            }
+            return Math.multiplyExact(unscaled, POWERS_OF_TEN[digits]);
+        }
+
+        public long getUnscaled() {
+            return unscaled;
+        }
+
+        public int getScale() {
+            return scale;
+        }
+
+        /**
+         * 对第 row 行求值，成功时结果为 getUnscaled() × 10^-getScale()
+         */
+        public boolean eval(Expr expr, int row) {
+            try {
+                return evalNode(expr, row) && Math.abs(scale) <= MAX_SCALE;
+            } catch (ArithmeticException ex) {
+                return false;
+            }
+        }
+
+        private boolean evalNode(Expr expr, int row) {
+            if (expr instanceof NumberExpr) {
+                NumberExpr number = (NumberExpr) expr;
+                unscaled = number.unscaled;
+                scale = number.scale;
+                return number.fixedPoint;
+            }
+            if (expr instanceof IdentifierExpr) {
+                return column(((IdentifierExpr) expr).getColumn(), row);
+            }
+            if (expr instanceof UnaryExpr) {
+                UnaryExpr unary = (UnaryExpr) expr;
+                if (!evalNode(unary.expr, row)) {
+                    return false;
+                }
+                if ("-".equals(unary.op)) {
+                    unscaled = Math.negateExact(unscaled);
+                }
+                return true;
+            }
+            if (expr instanceof BinaryExpr) {
+                BinaryExpr binary = (BinaryExpr) expr;
+                if (!evalNode(binary.left, row)) {
+                    return false;
+                }
+                long leftUnscaled = unscaled;
+                int leftScale = scale;
+                if (!evalNode(binary.right, row)) {
+                    return false;
+                }
+                return combine(binary.op, leftUnscaled, leftScale, unscaled, scale);
+            }
+            return false;
+        }
+
+        private boolean column(LineItemSnapshot.Field column, int row) {
+            if (column == LineItemSnapshot.Field.SORT_NO) {
+                Object value = snapshot.value(column, null, row);
+                if (value == null) {
+                    return false;
+                }
+                unscaled = ((Integer) value).longValue();
+                scale = 0;
+                return true;
+            }
+            if (column == null || !column.isDecimal()) {
+                return false;
+            }
+            LineItemSnapshot.DecimalColumn decimalColumn = snapshot.decimalColumn(column);
+            if (!decimalColumn.isFixedPoint() || decimalColumn.isNull(row)) {
+                return false;
+            }
+            // 还原为该行原始 scale 的非标度值，与列读出的 BigDecimal 完全一致
+            long value = decimalColumn.unscaled(row);
+            int rowScale = decimalColumn.rowScale(row);
+            int columnScale = decimalColumn.scale();
+            if (rowScale < columnScale) {
+                value /= POWERS_OF_TEN[columnScale - rowScale];
+            } else if (rowScale > columnScale) {
+                value = rescale(value, rowScale - columnScale);
+            }
+            unscaled = value;
+            scale = rowScale;
+            return true;
+        }
+
+        private boolean combine(String op, long leftUnscaled, int leftScale, long rightUnscaled, int rightScale) {
+            if ("*".equals(op)) {
+                unscaled = Math.multiplyExact(leftUnscaled, rightUnscaled);
+                scale = leftScale + rightScale;
+                return true;
+            }
+            int resultScale = Math.max(leftScale, rightScale);
+            long left = rescale(leftUnscaled, resultScale - leftScale);
+            long right = rescale(rightUnscaled, resultScale - rightScale);
+            unscaled = "+".equals(op) ? Math.addExact(left, right) : Math.subtractExact(left, right);
+            scale = resultScale;
+            return true;
+        }
+    }
+
+    /**
+     * 融合 SUM 求值：收集模板全部规则中可独立求值的 SUM，
+     * 对明细只扫描一遍同时更新所有累加器，规则求值时直接取用结果
+     */
+    static class FusedSumEvaluator {
+        private FusedSumEvaluator() {}
+
+        public static Map<SumExpr, SumTrace> evaluate(Collection<Expr> exprs, Set<String> indicatorKeys,
+                                                      LineItemSnapshot snapshot) {
+            return evaluate(exprs, indicatorKeys, snapshot, false);
+        }
+
+        /**
+         * @param compiledBackend 为 true 时各 SUM 的逐行求值使用 MethodHandle 编译后端
+         */
+        public static Map<SumExpr, SumTrace> evaluate(Collection<Expr> exprs, Set<String> indicatorKeys,
+                                                      LineItemSnapshot snapshot, boolean compiledBackend) {
+            return evaluate(exprs, indicatorKeys, snapshot, compiledBackend, null);
+        }
+
+        /**
+         * @param budget 扫描计入的预算，共享扫描每行只计一次；null 表示不限制
+         */
+        public static Map<SumExpr, SumTrace> evaluate(Collection<Expr> exprs, Set<String> indicatorKeys,
+                                                      LineItemSnapshot snapshot, boolean compiledBackend,
+                                                      EvalBudget budget) {
+            return evaluate(exprs, indicatorKeys, snapshot, compiledBackend, budget, null);
+        }
+
+        /**
+         * @param parallelScan 候选行足够多时分段并行扫描；null 表示始终顺序扫描
+         */
+        public static Map<SumExpr, SumTrace> evaluate(Collection<Expr> exprs, Set<String> indicatorKeys,
+                                                      LineItemSnapshot snapshot, boolean compiledBackend,
+                                                      EvalBudget budget, ParallelScan parallelScan) {
+            List<SumExpr> sumExprs = new ArrayList<>();
+            for (Expr expr : exprs) {
+                collect(expr, indicatorKeys, sumExprs);
+            }
+            if (sumExprs.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            // 规范形式相同的 SUM（常见于多条规则重复引用同一合计）只求值一次，结果与追溯在各规则间共享
+            List<SumAccumulator> accumulators = new ArrayList<>(sumExprs.size());
+            Map<String, SumAccumulator> byKey = new HashMap<>();
+            Map<SumExpr, SumAccumulator> assigned = new IdentityHashMap<>();
+            for (SumExpr sumExpr : sumExprs) {
+                String key = sumExpr.canonicalKey();
+                SumAccumulator accumulator = key == null ? null : byKey.get(key);
+                if (accumulator == null) {
+                    accumulator = new SumAccumulator(sumExpr, snapshot);
+                    accumulators.add(accumulator);
+                    if (key != null) {
+                        byKey.put(key, accumulator);
+                    }
+                }
+                assigned.put(sumExpr, accumulator);
+            }
+            EvalContext ctx = new EvalContext(snapshot, Collections.emptyMap());
+            ctx.setBudget(budget);
+            try {
+                // 条件可由谓词索引求解的 SUM 只访问候选行，其余 SUM 共享一次全量扫描
+                List<SumAccumulator> scanned = new ArrayList<>();
+                for (SumAccumulator accumulator : accumulators) {
+                    BitSet selected = accumulator.select(ctx);
+                    if (compiledBackend) {
+                        accumulator.compile();
+                    }
+                    if (selected == null) {
+                        scanned.add(accumulator);
+                        continue;
+                    }
+                    if (parallelScan != null && parallelScan.splits(selected, snapshot)) {
+                        parallelScan.scan(Collections.singletonList(accumulator), selected, ctx);
+                        continue;
+                    }
+                    for (int row = selected.nextSetBit(0); row >= 0; row = selected.nextSetBit(row + 1)) {
+                        ctx.scanRow();
+                        ctx.setCurrentRow(row);
+                        accumulator.accept(ctx, row);
+                    }
+                }
+                if (!scanned.isEmpty() && parallelScan != null && parallelScan.splits(null, snapshot)) {
+                    parallelScan.scan(scanned, null, ctx);
+                } else if (!scanned.isEmpty()) {
+                    int size = snapshot.size();
+                    for (int row = 0; row < size; row++) {
+                        ctx.scanRow();
+                        ctx.setCurrentRow(row);
+                        for (SumAccumulator accumulator : scanned) {
+                            accumulator.accept(ctx, row);
+                        }
+                    }
+                }
+                if (budget != null) {
+                    budget.settle();
+                }
+            } catch (EvalBudget.Exceeded ex) {
+                throw ex;
+            } catch (RuntimeException ex) {
+                throw BusinessException.conflict("规则表达式计算失败: " + ex.getMessage());
+            }
+            ctx.setCurrentRow(-1);
+
+            Map<SumAccumulator, SumTrace> traces = new IdentityHashMap<>();
+            for (SumAccumulator accumulator : accumulators) {
+                traces.put(accumulator, accumulator.toTrace());
+            }
+            Map<SumExpr, SumTrace> result = new IdentityHashMap<>();
+            for (Map.Entry<SumExpr, SumAccumulator> entry : assigned.entrySet()) {
+                result.put(entry.getKey(), traces.get(entry.getValue()));
+            }
+            return result;
+        }
+
+        /**
+         * 表达式中可独立求值的顶层 SUM
+         */
+        public static List<SumExpr> rowLocalSums(Expr expr, Set<String> indicatorKeys) {
+            List<SumExpr> sumExprs = new ArrayList<>();
+            collect(expr, indicatorKeys, sumExprs);
+            return sumExprs;
+        }
+
+        /**
+         * 表达式中全部聚合均为可独立求值的 SUM / COUNT 时，聚合结果可按明细行增量维护
+         */
+        public static boolean isDecomposable(Expr expr, Set<String> indicatorKeys) {
+            int count = countSums(expr);
+            return count >= 0 && count == rowLocalSums(expr, indicatorKeys).size();
+        }
+
+        /**
+         * 聚合个数，含不可增量维护的聚合时返回 -1
+         */
+        private static int countSums(Node node) {
+            if (node == null) {
+                return 0;
+            }
+            if (node instanceof SumExpr && !((SumExpr) node).isAdditive()) {
+                return -1;
+            }
+            int count = node instanceof SumExpr ? 1 : 0;
+            for (Node child : node.children()) {
+                int childCount = countSums(child);
+                if (childCount < 0) {
+                    return -1;
+                }
+                count += childCount;
+            }
+            return count;
+        }
+
+        private static void collect(Node node, Set<String> indicatorKeys, List<SumExpr> sumExprs) {
+            if (node == null) {
+                return;
+            }
+            if (node instanceof SumExpr) {
+                // 嵌套在 SUM 内部的 SUM 依赖外层逐行求值，保持原有解释执行
+                if (isRowLocal(node, indicatorKeys)) {
+                    sumExprs.add((SumExpr) node);
+                }
+                return;
+            }
+            for (Node child : node.children()) {
+                collect(child, indicatorKeys, sumExprs);
+            }
+        }
+
+        /**
+         * SUM 内部只引用明细字段（不含嵌套 SUM、不引用指标）时，可在指标求值前独立计算
+         */
+        private static boolean isRowLocal(Node sumNode, Set<String> indicatorKeys) {
+            Deque<Node> stack = new ArrayDeque<>(sumNode.children());
+            while (!stack.isEmpty()) {
+                Node node = stack.pop();
+                if (node instanceof SumExpr) {
+                    return false;
+                }
+                if (node instanceof IdentifierExpr) {
+                    IdentifierExpr identifier = (IdentifierExpr) node;
+                    if (identifier.getColumn() == null || indicatorKeys.contains(identifier.getName())) {
+                        return false;
+                    }
+                }
+                stack.addAll(node.children());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 谓词位图求解：WHERE 中"索引维度列 与 常量"的比较、IN 及其 AND / OR 组合，
+     * 对列的每个不同取值只判断一次，再由取值位图合并出命中行，判断逻辑与逐行求值共用，结果一致。
+     * AND 中无法索引的部分作为剩余条件，只在候选行上判断。
+     */
+    static class PredicateIndex {
+        private PredicateIndex() {}
+
+        static final class Selection {
+            private final BitSet rows;
+            private final Condition residual;
+
+            private Selection(BitSet rows, Condition residual) {
+                this.rows = rows;
+                this.residual = residual;
+            }
+
+            /**
+             * 候选行，null 表示全部行
+             */
+            public BitSet getRows() {
+                return rows;
+            }
+
+            /**
+             * 候选行上仍需逐行判断的条件，null 表示无需判断
+             */
+            public Condition getResidual() {
+                return residual;
+            }
+        }
+
+        /**
+         * 条件中至少有一部分可由索引求解时返回候选行，否则返回 null
+         */
+        public static Selection select(Condition condition, EvalContext ctx) {
+            LineItemSnapshot snapshot = ctx.getSnapshot();
+            // 含嵌套 SUM 的条件求值会产生追溯记录，必须逐行执行
+            if (condition == null || snapshot.size() == 0 || containsSum(condition)) {
+                return null;
+            }
+            Selection selection = resolve(condition, ctx, snapshot);
+            return selection.getRows() == null ? null : selection;
+        }
+
+        private static Selection resolve(Condition condition, EvalContext ctx, LineItemSnapshot snapshot) {
+            if (condition instanceof LogicalCondition) {
+                LogicalCondition logical = (LogicalCondition) condition;
+                Selection left = resolve(logical.left, ctx, snapshot);
+                Selection right = resolve(logical.right, ctx, snapshot);
+                if ("AND".equals(logical.op)) {
+                    if (left.getRows() == null && right.getRows() == null) {
+                        return new Selection(null, condition);
+                    }
+                    BitSet rows;
+                    if (left.getRows() == null || right.getRows() == null) {
+                        rows = left.getRows() != null ? left.getRows() : right.getRows();
+                    } else {
+                        rows = (BitSet) left.getRows().clone();
+                        rows.and(right.getRows());
+                    }
+                    Condition residual = left.getResidual() == null ? right.getResidual()
+                            : right.getResidual() == null ? left.getResidual()
+                            : new LogicalCondition("AND", left.getResidual(), right.getResidual());
+                    return new Selection(rows, residual);
+                }
+                if (left.getRows() != null && left.getResidual() == null
+                        && right.getRows() != null && right.getResidual() == null) {
+                    BitSet rows = (BitSet) left.getRows().clone();
+                    rows.or(right.getRows());
+                    return new Selection(rows, null);
+                }
+                return new Selection(null, condition);
+            }
+            BitSet rows = resolveLeaf(condition, ctx, snapshot);
+            return rows != null ? new Selection(rows, null) : new Selection(null, condition);
+        }
+
+        private static BitSet resolveLeaf(Condition condition, EvalContext ctx, LineItemSnapshot snapshot) {
+            if (condition instanceof CompareCondition) {
+                CompareCondition compare = (CompareCondition) condition;
+                if (isIndexedColumn(compare.left) && isConstant(compare.right)) {
+                    EvalValue constant = compare.right.eval(ctx);
+                    return collect((IdentifierExpr) compare.left, ctx, snapshot,
+                            value -> compare.matches(value, constant));
+                }
+                if (isIndexedColumn(compare.right) && isConstant(compare.left)) {
+                    EvalValue constant = compare.left.eval(ctx);
+                    return collect((IdentifierExpr) compare.right, ctx, snapshot,
+                            value -> compare.matches(constant, value));
+                }
+                return null;
+            }
+            if (condition instanceof InCondition) {
+                InCondition in = (InCondition) condition;
+                if (!isIndexedColumn(in.left)) {
+                    return null;
+                }
+                List<EvalValue> options = new ArrayList<>(in.options.size());
+                for (Expr option : in.options) {
+                    if (!isConstant(option)) {
+                        return null;
+                    }
+                    options.add(option.eval(ctx));
+                }
+                return collect((IdentifierExpr) in.left, ctx, snapshot, value -> {
+                    for (EvalValue option : options) {
+                        if (InCondition.matchesOption(value, option)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                });
+            }
+            return null;
+        }
+
+        /**
+         * 对每个不同取值判断一次；空值行按逐行求值的回退语义取同名指标值（缺省为 0）判断
+         */
+        private static BitSet collect(IdentifierExpr identifier, EvalContext ctx, LineItemSnapshot snapshot,
+                                      Predicate<EvalValue> predicate) {
+            LineItemSnapshot.ValueIndex index = snapshot.valueIndex(identifier.getColumn());
+            BitSet rows = new BitSet(snapshot.size());
+            for (int i = 0; i < index.cardinality(); i++) {
+                if (predicate.test(new EvalValue(index.value(i)))) {
+                    rows.or(index.rows(i));
+                }
+            }
+            if (!index.nullRows().isEmpty()
+                    && predicate.test(new EvalValue(ctx.resolveIndicator(identifier.getName())))) {
+                rows.or(index.nullRows());
+            }
+            return rows;
+        }
+
+        private static boolean isIndexedColumn(Expr expr) {
+            if (!(expr instanceof IdentifierExpr)) {
+                return false;
+            }
+            IdentifierExpr identifier = (IdentifierExpr) expr;
+            return identifier.getName() != null && identifier.getColumn() != null
+                    && identifier.getColumn().isIndexed();
+        }
+
+        private static boolean isConstant(Node node) {
+            if (node instanceof IdentifierExpr || node instanceof SumExpr) {
+                return false;
+            }
+            for (Node child : node.children()) {
+                if (!isConstant(child)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean containsSum(Node node) {
+            if (node instanceof SumExpr) {
+                return true;
+            }
+            for (Node child : node.children()) {
+                if (containsSum(child)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * SUM 行级编译后端：把被累加项与 WHERE 条件组合为 MethodHandle，直接读取快照的类型化列
+     * （定点金额列与常量比较退化为 long 比较），省去逐行的 EvalValue 装箱与节点虚调用。
+     * 组合结果作为 class data 定义到独立的 hidden class（模板见 CompiledRowKernel），JIT 可整体内联。
+     * 各节点语义复用 EvalValue 的静态转换，与解释执行结果一致；含无法编译的节点时整体退回解释执行。
+     */
+    static class RowCompiler {
+        private static final MethodType OBJECT_TYPE = MethodType.methodType(Object.class, EvalContext.class, int.class);
+        private static final MethodType NUMBER_TYPE = MethodType.methodType(BigDecimal.class, EvalContext.class, int.class);
+        private static final MethodType BOOLEAN_TYPE = MethodType.methodType(boolean.class, EvalContext.class, int.class);
+
+        private static final MethodHandle ADD;
+        private static final MethodHandle SUBTRACT;
+        private static final MethodHandle MULTIPLY;
+        private static final MethodHandle DIVIDE;
+        private static final MethodHandle NEGATE;
+        private static final MethodHandle ROUND;
+        private static final MethodHandle TO_NUMBER;
+        private static final MethodHandle TO_BOOLEAN;
+        private static final MethodHandle VALUES_EQUAL;
+        private static final MethodHandle COMPARE;
+        private static final MethodHandle NOT;
+        private static final MethodHandle MATCHES_ANY;
+        private static final MethodHandle DECIMAL_CELL;
+        private static final MethodHandle DICT_CELL;
+        private static final MethodHandle CELL;
+        private static final MethodHandle INDICATOR;
+        private static final MethodHandle DICT_MATCHES;
+        private static final MethodHandle FIXED_COMPARE;
+        private static final Map<String, MethodHandle> COMPARE_TESTS = new HashMap<>();
+        private static volatile byte[] kernelBytes;
+
+        static {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            try {
+                MethodType binary = MethodType.methodType(BigDecimal.class, BigDecimal.class, BigDecimal.class);
+                ADD = lookup.findVirtual(BigDecimal.class, "add", MethodType.methodType(BigDecimal.class, BigDecimal.class));
+                SUBTRACT = lookup.findVirtual(BigDecimal.class, "subtract",
+                        MethodType.methodType(BigDecimal.class, BigDecimal.class));
+                MULTIPLY = lookup.findVirtual(BigDecimal.class, "multiply",
+                        MethodType.methodType(BigDecimal.class, BigDecimal.class));
+                DIVIDE = lookup.findStatic(RowCompiler.class, "divide", binary);
+                NEGATE = lookup.findVirtual(BigDecimal.class, "negate", MethodType.methodType(BigDecimal.class));
+                ROUND = lookup.findStatic(RowCompiler.class, "round", binary);
+                TO_NUMBER = lookup.findStatic(EvalValue.class, "toNumber",
+                        MethodType.methodType(BigDecimal.class, Object.class));
+                TO_BOOLEAN = lookup.findStatic(EvalValue.class, "toBoolean",
+                        MethodType.methodType(boolean.class, Object.class));
+                VALUES_EQUAL = lookup.findStatic(EvalValue.class, "valuesEqual",
+                        MethodType.methodType(boolean.class, Object.class, Object.class));
+                COMPARE = lookup.findVirtual(BigDecimal.class, "compareTo",
+                        MethodType.methodType(int.class, BigDecimal.class));
+                NOT = lookup.findStatic(RowCompiler.class, "not", MethodType.methodType(boolean.class, boolean.class));
+                MATCHES_ANY = lookup.findStatic(RowCompiler.class, "matchesAny",
+                        MethodType.methodType(boolean.class, Object[].class, Object.class));
+                DECIMAL_CELL = lookup.findStatic(RowCompiler.class, "decimalCell", MethodType.methodType(
+                        BigDecimal.class, LineItemSnapshot.Field.class, String.class, EvalContext.class, int.class));
+                DICT_CELL = lookup.findStatic(RowCompiler.class, "dictCell", MethodType.methodType(
+                        Object.class, LineItemSnapshot.Field.class, String.class, EvalContext.class, int.class));
+                CELL = lookup.findStatic(RowCompiler.class, "cell", MethodType.methodType(Object.class,
+                        LineItemSnapshot.Field.class, String.class, String.class, EvalContext.class, int.class));
+                INDICATOR = lookup.findStatic(RowCompiler.class, "indicator",
+                        MethodType.methodType(Object.class, String.class, EvalContext.class, int.class));
+                DICT_MATCHES = lookup.findStatic(RowCompiler.class, "dictMatches", MethodType.methodType(boolean.class,
+                        LineItemSnapshot.Field.class, String[].class, Object[].class, String.class,
+                        EvalContext.class, int.class));
+                FIXED_COMPARE = lookup.findStatic(RowCompiler.class, "fixedCompare", MethodType.methodType(int.class,
+                        LineItemSnapshot.Field.class, long.class, BigDecimal.class, String.class,
+                        EvalContext.class, int.class));
+                MethodType test = MethodType.methodType(boolean.class, int.class);
+                COMPARE_TESTS.put(">", lookup.findStatic(RowCompiler.class, "greater", test));
+                COMPARE_TESTS.put(">=", lookup.findStatic(RowCompiler.class, "greaterOrEqual", test));
+                COMPARE_TESTS.put("<", lookup.findStatic(RowCompiler.class, "less", test));
+                COMPARE_TESTS.put("<=", lookup.findStatic(RowCompiler.class, "lessOrEqual", test));
+            } catch (ReflectiveOperationException ex) {
+                throw new ExceptionInInitializerError(ex);
+            }
+        }
+
+        /**
+         * 编译结果：逐行判断条件并求被累加项
+         */
+        interface CompiledSum {
+            boolean test(EvalContext ctx, int row);
+
+            BigDecimal value(EvalContext ctx, int row);
+        }
+
+        /**
+         * 节点无法编译时抛出，由 compile 捕获后退回解释执行
+         */
+        private static final class NotCompilable extends RuntimeException {
+            private NotCompilable() {
+                super(null, null, false, false);
+            }
+        }
+
+        private RowCompiler() {}
+
+        /**
+         * 编译 SUM 的被累加项与逐行条件，含嵌套 SUM 等无法编译的节点时返回 null。
+         * 编译结果不绑定快照，可在同一表达式的多次求值间复用
+         */
+        public static CompiledSum compile(Expr expr, Condition condition) {
+            MethodHandle value;
+            MethodHandle test;
+            try {
+                value = number(expr);
+                test = condition == null ? constant(boolean.class, true) : test(condition);
+            } catch (NotCompilable ex) {
+                return null;
+            }
+            try {
+                MethodHandles.Lookup kernel = MethodHandles.lookup()
+                        .defineHiddenClassWithClassData(kernelBytes(), List.of(test, value), true);
+                return (CompiledSum) kernel.findConstructor(kernel.lookupClass(), MethodType.methodType(void.class))
+                        .invoke();
+            } catch (Throwable ex) {
+                throw new IllegalStateException("SUM 编译失败: " + ex.getMessage(), ex);
+            }
+        }
+
+        private static byte[] kernelBytes() {
+            byte[] bytes = kernelBytes;
+            if (bytes == null) {
+                try (InputStream input = RowCompiler.class.getResourceAsStream("CompiledRowKernel.class")) {
+                    if (input == null) {
+                        throw new IllegalStateException("缺少编译模板 CompiledRowKernel.class");
+                    }
+                    bytes = input.readAllBytes();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                kernelBytes = bytes;
+            }
+            return bytes;
+        }
+
+        private static MethodHandle value(Expr expr) {
+            if (expr instanceof NumberExpr) {
+                return constant(Object.class, ((NumberExpr) expr).value);
+            }
+            if (expr instanceof StringExpr) {
+                return constant(Object.class, ((StringExpr) expr).value);
+            }
+            if (expr instanceof IdentifierExpr) {
+                return identifier((IdentifierExpr) expr);
+            }
+            if (expr instanceof IfExpr) {
+                IfExpr ifExpr = (IfExpr) expr;
+                if (ifExpr.condition == null) {
+                    return value(ifExpr.falseExpr);
+                }
+                return MethodHandles.guardWithTest(test(ifExpr.condition),
+                        value(ifExpr.trueExpr), value(ifExpr.falseExpr));
+            }
+            return number(expr).asType(OBJECT_TYPE);
+        }
+
+        private static MethodHandle number(Expr expr) {
+            if (expr instanceof NumberExpr) {
+                return constant(BigDecimal.class, EvalValue.toNumber(((NumberExpr) expr).value));
+            }
+            if (expr instanceof IdentifierExpr) {
+                IdentifierExpr identifier = (IdentifierExpr) expr;
+                LineItemSnapshot.Field column = identifier.getColumn();
+                if (identifier.getName() != null && column != null && column.isDecimal()) {
+                    return MethodHandles.insertArguments(DECIMAL_CELL, 0, column, identifier.getName());
+                }
+            }
+            if (expr instanceof UnaryExpr) {
+                UnaryExpr unary = (UnaryExpr) expr;
+                MethodHandle operand = number(unary.expr);
+                return "-".equals(unary.op) ? MethodHandles.filterReturnValue(operand, NEGATE) : operand;
+            }
+            if (expr instanceof BinaryExpr) {
+                BinaryExpr binary = (BinaryExpr) expr;
+                return combine(arithmetic(binary.op), number(binary.left), number(binary.right));
+            }
+            if (expr instanceof RoundExpr) {
+                RoundExpr round = (RoundExpr) expr;
+                return combine(ROUND, number(round.expr), number(round.scale));
+            }
+            if (expr instanceof SumExpr || expr == null) {
+                throw new NotCompilable();
+            }
+            return MethodHandles.filterReturnValue(value(expr), TO_NUMBER);
+        }
+
+        private static MethodHandle identifier(IdentifierExpr identifier) {
+            String name = identifier.getName();
+            if (name == null) {
+                return constant(Object.class, null);
+            }
+            LineItemSnapshot.Field column = identifier.getColumn();
+            if (column == null) {
+                return MethodHandles.insertArguments(INDICATOR, 0, name);
+            }
+            if (column.isDecimal()) {
+                return number(identifier).asType(OBJECT_TYPE);
+            }
+            if (column.isDictionary()) {
+                return MethodHandles.insertArguments(DICT_CELL, 0, column, name);
+            }
+            return MethodHandles.insertArguments(CELL, 0, column, identifier.getExtPath(), name);
+        }
+
+        private static MethodHandle test(Condition condition) {
+            if (condition instanceof CompareCondition) {
+                return compare((CompareCondition) condition);
+            }
+            if (condition instanceof InCondition) {
+                InCondition in = (InCondition) condition;
+                return matches(in.left, in.options);
+            }
+            if (condition instanceof LogicalCondition) {
+                LogicalCondition logical = (LogicalCondition) condition;
+                MethodHandle left = test(logical.left);
+                MethodHandle right = test(logical.right);
+                if ("AND".equals(logical.op)) {
+                    return MethodHandles.guardWithTest(left, right, constant(boolean.class, false));
+                }
+                return MethodHandles.guardWithTest(left, constant(boolean.class, true), right);
+            }
+            if (condition instanceof TruthyCondition) {
+                return MethodHandles.filterReturnValue(value(((TruthyCondition) condition).expr), TO_BOOLEAN);
+            }
+            throw new NotCompilable();
+        }
+
+        private static MethodHandle compare(CompareCondition condition) {
+            switch (condition.op) {
+                case "=":
+                case "==":
+                    return matches(condition.left, Collections.singletonList(condition.right));
+                case "!=":
+                    return MethodHandles.filterReturnValue(
+                            matches(condition.left, Collections.singletonList(condition.right)), NOT);
+                case ">":
+                case ">=":
+                case "<":
+                case "<=":
+                    MethodHandle fixed = fixedCompare(condition.left, condition.right);
+                    MethodHandle order = fixed != null
+                            ? fixed
+                            : combine(COMPARE, number(condition.left), number(condition.right));
+                    return MethodHandles.filterReturnValue(order, COMPARE_TESTS.get(condition.op));
+                default:
+                    return constant(boolean.class, false);
+            }
+        }
+
+        /**
+         * 左侧与任一选项相等；选项均为常量时预先求值，字典列直接与常量文本比较
+         */
+        private static MethodHandle matches(Expr left, List<Expr> options) {
+            if (options.stream().allMatch(PredicateIndex::isConstant)) {
+                Object[] constants = new Object[options.size()];
+                for (int i = 0; i < constants.length; i++) {
+                    constants[i] = constantValue(options.get(i));
+                }
+                LineItemSnapshot.Field dictionaryField = dictionaryField(left);
+                if (dictionaryField != null) {
+                    // 非空字典值为字符串，按文本相等比较
+                    String[] texts = new String[constants.length];
+                    for (int i = 0; i < constants.length; i++) {
+                        texts[i] = EvalValue.toText(constants[i]);
+                    }
+                    return MethodHandles.insertArguments(DICT_MATCHES, 0,
+                            dictionaryField, texts, constants, ((IdentifierExpr) left).getName());
+                }
+                return MethodHandles.filterReturnValue(value(left),
+                        MethodHandles.insertArguments(MATCHES_ANY, 0, (Object) constants));
+            }
+            MethodHandle result = constant(boolean.class, false);
+            for (int i = options.size() - 1; i >= 0; i--) {
+                MethodHandle equal = combine(VALUES_EQUAL, value(left), value(options.get(i)));
+                result = MethodHandles.guardWithTest(equal, constant(boolean.class, true), result);
+            }
+            return result;
+        }
+
+        private static LineItemSnapshot.Field dictionaryField(Expr expr) {
+            if (!(expr instanceof IdentifierExpr) || ((IdentifierExpr) expr).getName() == null) {
+                return null;
+            }
+            LineItemSnapshot.Field column = ((IdentifierExpr) expr).getColumn();
+            return column != null && column.isDictionary() ? column : null;
+        }
+
+        /**
+         * 金额列与可按列精度精确定点表示的数值常量比较时，对定点存储的行直接比较 long
+         */
+        private static MethodHandle fixedCompare(Expr left, Expr right) {
+            if (!(left instanceof IdentifierExpr) || !(right instanceof NumberExpr)) {
+                return null;
+            }
+            IdentifierExpr identifier = (IdentifierExpr) left;
+            LineItemSnapshot.Field column = identifier.getColumn();
+            if (identifier.getName() == null || column == null || !column.isDecimal()) {
+                return null;
+            }
+            BigDecimal constant = EvalValue.toNumber(((NumberExpr) right).value);
+            long unscaled;
+            try {
+                unscaled = constant.setScale(column.getScale(), RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+            } catch (ArithmeticException ex) {
+                return null;
+            }
+            return MethodHandles.insertArguments(FIXED_COMPARE, 0, column, unscaled, constant, identifier.getName());
+        }
+
+        private static Object constantValue(Expr expr) {
+            try {
+                return expr.eval(new EvalContext(null, Collections.emptyMap())).raw();
+            } catch (RuntimeException ex) {
+                throw new NotCompilable();
+            }
+        }
+
+        private static MethodHandle arithmetic(String op) {
+            switch (op) {
+                case "+":
+                    return ADD;
+                case "-":
+                    return SUBTRACT;
+                case "*":
+                    return MULTIPLY;
+                case "/":
+                    return DIVIDE;
+                default:
+                    throw new NotCompilable();
+            }
+        }
+
+        private static MethodHandle constant(Class<?> type, Object value) {
+            MethodHandle constant = MethodHandles.constant(type, value);
+            return MethodHandles.dropArguments(constant, 0, EvalContext.class, int.class);
+        }
+
+        /**
+         * op(left(ctx, row), right(ctx, row))
+         */
+        private static MethodHandle combine(MethodHandle op, MethodHandle left, MethodHandle right) {
+            MethodHandle collected = MethodHandles.collectArguments(op, 0, left);
+            MethodHandle filtered = MethodHandles.collectArguments(collected, 2, right);
+            MethodType type = MethodType.methodType(op.type().returnType(), EvalContext.class, int.class);
+            return MethodHandles.permuteArguments(filtered, type, 0, 1, 0, 1);
+        }
+
+        private static BigDecimal divide(BigDecimal left, BigDecimal right) {
+            if (right.compareTo(BigDecimal.ZERO) == 0) {
+                return BigDecimal.ZERO;
+            }
+            return left.divide(right, 10, RoundingMode.HALF_UP);
+        }
+
+        private static BigDecimal round(BigDecimal value, BigDecimal scale) {
+            return value.setScale(scale.intValue(), RoundingMode.HALF_UP);
+        }
+
+        private static boolean not(boolean value) {
+            return !value;
+        }
+
+        private static boolean greater(int order) {
+            return order > 0;
+        }
+
+        private static boolean greaterOrEqual(int order) {
+            return order >= 0;
+        }
+
+        private static boolean less(int order) {
+            return order < 0;
+        }
+
+        private static boolean lessOrEqual(int order) {
+            return order <= 0;
+        }
+
+        private static boolean matchesAny(Object[] options, Object value) {
+            for (Object option : options) {
+                if (EvalValue.valuesEqual(value, option)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // 以下单元格读取与 EvalContext.resolveIdentifier 一致：空值回退为同名指标
+
+        private static BigDecimal decimalCell(LineItemSnapshot.Field column, String name, EvalContext ctx, int row) {
+            BigDecimal value = ctx.getSnapshot().decimalColumn(column).value(row);
+            return value != null ? value : ctx.resolveIndicator(name);
+        }
+
+        private static Object dictCell(LineItemSnapshot.Field column, String name, EvalContext ctx, int row) {
+            String value = ctx.getSnapshot().dictColumn(column).value(row);
+            return value != null ? value : ctx.resolveIndicator(name);
+        }
+
+        private static Object cell(LineItemSnapshot.Field column, String extPath, String name,
+                                   EvalContext ctx, int row) {
+            Object value = ctx.getSnapshot().value(column, extPath, row);
+            return value != null ? value : ctx.resolveIndicator(name);
+        }
+
+        private static Object indicator(String name, EvalContext ctx, int row) {
+            return ctx.resolveIndicator(name);
+        }
+
+        private static boolean dictMatches(LineItemSnapshot.Field column, String[] texts, Object[] options,
+                                           String name, EvalContext ctx, int row) {
+            String value = ctx.getSnapshot().dictColumn(column).value(row);
+            if (value == null) {
+                return matchesAny(options, ctx.resolveIndicator(name));
+            }
+            for (String text : texts) {
+                if (value.equals(text)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int fixedCompare(LineItemSnapshot.Field column, long unscaled, BigDecimal constant,
+                                        String name, EvalContext ctx, int row) {
+            LineItemSnapshot.DecimalColumn decimalColumn = ctx.getSnapshot().decimalColumn(column);
+            if (decimalColumn.isFixedPoint() && !decimalColumn.isNull(row)) {
+                return Long.compare(decimalColumn.unscaled(row), unscaled);
+            }
+            return decimalCell(column, name, ctx, row).compareTo(constant);
+        }
+    }
+
+    static class RoundExpr implements Expr {
+        private final Expr expr;
+        private final Expr scale;
+
+        RoundExpr(Expr expr, Expr scale) {
+            this.expr = expr;
+            this.scale = scale;
+        }
+
+        @Override
+        public EvalValue eval(EvalContext ctx) {
+            ctx.visitNode();
+            BigDecimal value = expr.eval(ctx).asNumber();
+            int scaleValue = scale.eval(ctx).asNumber().intValue();
+            return new EvalValue(value.setScale(scaleValue, RoundingMode.HALF_UP));
+        }
+
+        @Override
+        public List<Node> children() {
+            return nodes(expr, scale);
+        }
+
+        @Override
+        public String toString() {
+            return "ROUND(" + expr + ", " + scale + ")";
+        }
+    }
+
+    static class IfExpr implements Expr {
+        private final Condition condition;
+        private final Expr trueExpr;
+        private final Expr falseExpr;
+
+        IfExpr(Condition condition, Expr trueExpr, Expr falseExpr) {
+            this.condition = condition;
+            this.trueExpr = trueExpr;
+            this.falseExpr = falseExpr;
+        }
+
+        @Override
+        public EvalValue eval(EvalContext ctx) {
+            ctx.visitNode();
+            if (condition == null) {
+                return falseExpr.eval(ctx);
+            }
+            if (condition.test(ctx)) {
+                return trueExpr.eval(ctx);
+            }
+            return falseExpr.eval(ctx);
+        }
+
+        @Override
+        public List<Node> children() {
+            return nodes(condition, trueExpr, falseExpr);
+        }
+
+        @Override
+        public String toString() {
+            return "IF(" + condition + ", " + trueExpr + ", " + falseExpr + ")";
+        }
+    }
+
+    static class CompareCondition implements Condition {
+        private final Expr left;
+        private final Expr right;
+        private final String op;
+
+        CompareCondition(Expr left, Expr right, String op) {
+            this.left = left;
+            this.right = right;
+            this.op = op;
+        }
+
+        @Override
+        public boolean test(EvalContext ctx) {
+            ctx.visitNode();
+            return matches(left.eval(ctx), right.eval(ctx));
+        }
+
+        boolean matches(EvalValue leftValue, EvalValue rightValue) {
+            switch (op) {
+                case "=":
+                case "==":
+                    return equalsValue(leftValue, rightValue);
+                case "!=":
+                    return !equalsValue(leftValue, rightValue);
+                case ">":
+                    return compareNumber(leftValue, rightValue) > 0;
+                case ">=":
+                    return compareNumber(leftValue, rightValue) >= 0;
+                case "<":
+                    return compareNumber(leftValue, rightValue) < 0;
+                case "<=":
+                    return compareNumber(leftValue, rightValue) <= 0;
+                default:
+                    return false;
+            }
+        }
+
+        private boolean equalsValue(EvalValue leftValue, EvalValue rightValue) {
+            return EvalValue.valuesEqual(leftValue.raw(), rightValue.raw());
+        }
+
+        private int compareNumber(EvalValue leftValue, EvalValue rightValue) {
+            return leftValue.asNumber().compareTo(rightValue.asNumber());
+        }
+
+        @Override
+        public List<Node> children() {
+            return nodes(left, right);
+        }
+
+        @Override
+        public String toString() {
+            return left + " " + op + " " + right;
+        }
+    }
+
+    static class InCondition implements Condition {
+        private final Expr left;
+        private final List<Expr> options;
+
+        InCondition(Expr left, List<Expr> options) {
+            this.left = left;
+            this.options = options == null ? Collections.emptyList() : options;
+        }
+
+        @Override
+        public boolean test(EvalContext ctx) {
+            ctx.visitNode();
+            EvalValue leftValue = left.eval(ctx);
+            for (Expr option : options) {
+                if (matchesOption(leftValue, option.eval(ctx))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        static boolean matchesOption(EvalValue leftValue, EvalValue rightValue) {
+            return EvalValue.valuesEqual(leftValue.raw(), rightValue.raw());
+        }
+
+        @Override
+        public List<Node> children() {
+            List<Node> result = nodes(left);
+            result.addAll(options);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(left).append(" IN (");
+            for (int i = 0; i < options.size(); i++) {
+                if (i > 0) {
+                    builder.append(", ");
+                }
+                builder.append(options.get(i));
+            }
+            builder.append(")");
+            return builder.toString();
+        }
+    }
+
+    static class LogicalCondition implements Condition {
+        private final String op;
+        private final Condition left;
+        private final Condition right;
+
+        LogicalCondition(String op, Condition left, Condition right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(EvalContext ctx) {
+            ctx.visitNode();
+            if ("AND".equals(op)) {
+                return left.test(ctx) && right.test(ctx);
+            }
+            return left.test(ctx) || right.test(ctx);
+        }
+
+        /**
+         * 结构相等：谓词索引每次求解都会重新组合剩余条件，按结构比较以便复用编译结果
+         */
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof LogicalCondition)) {
+                return false;
+            }
+            LogicalCondition that = (LogicalCondition) other;
+            return Objects.equals(op, that.op) && left.equals(that.left) && right.equals(that.right);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(op, left, right);
+        }
+
+        @Override
+        public List<Node> children() {
+            return nodes(left, right);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " " + op + " " + right + ")";
+        }
+    }
+
+    static class TruthyCondition implements Condition {
+        private final Expr expr;
+
+        TruthyCondition(Expr expr) {
+            this.expr = expr;
+        }
+
+        @Override
+        public boolean test(EvalContext ctx) {
+            ctx.visitNode();
+            return expr.eval(ctx).asBoolean();
+        }
+
+        @Override
+        public List<Node> children() {
+            return nodes(expr);
+        }
+
+        @Override
+        public String toString() {
+            return expr.toString();
+        }
+    }
+
+    static class ExpressionEvaluator {
+        private ExpressionEvaluator() {}
+
+        public static Expr parse(String expression) {
+            if (expression == null || expression.isBlank()) {
+                return null;
+            }
+            try {
+                Parser parser = new Parser(expression);
+                Expr expr = parser.parseExpression();
+                parser.expectEnd();
+                ensureGroupedAtRoot(expr);
+                return expr;
+            } catch (RuntimeException ex) {
+                throw BusinessException.conflict("规则表达式解析失败: " + ex.getMessage());
+            }
+        }
+
+        /**
+         * 分组聚合的结果是一组指标，只能作为整条规则表达式
+         */
+        private static void ensureGroupedAtRoot(Expr root) {
+            Deque<Node> stack = new ArrayDeque<>(root.children());
+            while (!stack.isEmpty()) {
+                Node node = stack.pop();
+                if (node instanceof SumExpr && ((SumExpr) node).getGroupBy() != null) {
+                    throw new IllegalArgumentException("GROUP BY 聚合只能作为完整的规则表达式");
+                }
+                stack.addAll(node.children());
+            }
+        }
+
+        public static EvalResult evaluate(Expr expr, EvalContext ctx) {
+            if (expr == null) {
+                return new EvalResult(BigDecimal.ZERO, Collections.emptyList());
+            }
+            try {
+                BigDecimal value = expr.eval(ctx).asNumber();
+                List<SumTrace> sumTraces = ctx.getSumTraces();
+                if (expr instanceof SumExpr && ((SumExpr) expr).getGroupBy() != null) {
+                    // 外层聚合最后完成，其追溯位于末尾
+                    return new EvalResult(value, sumTraces, sumTraces.get(sumTraces.size() - 1).getGroups());
+                }
+                return new EvalResult(value, sumTraces);
+            } catch (EvalBudget.Exceeded ex) {
+                throw ex;
+            } catch (RuntimeException ex) {
+                throw BusinessException.conflict("规则表达式计算失败: " + ex.getMessage());
+            }
+        }
+    }
+
+    enum TokenType {
+        IDENT, NUMBER, STRING, OP, COMMA, LPAREN, RPAREN, EOF
+    }
+
+    static class Token {
+        private final TokenType type;
+        private final String text;
+
+        Token(TokenType type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+    }
+
+    static class Tokenizer {
+        private final String input;
+        private final int length;
+        private int index;
+
+        Tokenizer(String input) {
+            this.input = input == null ? "" : input;
+            this.length = this.input.length();
+        }
+
+        public List<Token> tokenize() {
+            List<Token> tokens = new ArrayList<>();
+            while (index < length) {
+                char ch = input.charAt(index);
+                if (Character.isWhitespace(ch)) {
+                    index++;
+                    continue;
+                }
+                if (isIdentifierStart(ch)) {
+                    tokens.add(readIdentifier());
+                    continue;
+                }
+                if (Character.isDigit(ch)) {
+                    tokens.add(readNumber());
+                    continue;
+                }
+                if (ch == '\'' || ch == '"') {
+                    tokens.add(readString(ch));
+                    continue;
+                }
+                if (ch == '(') {
+                    tokens.add(new Token(TokenType.LPAREN, "("));
+                    index++;
+                    continue;
+                }
+                if (ch == ')') {
+                    tokens.add(new Token(TokenType.RPAREN, ")"));
+                    index++;
+                    continue;
+                }
+                if (ch == ',') {
+                    tokens.add(new Token(TokenType.COMMA, ","));
+                    index++;
+                    continue;
+                }
+                String op = readOperator();
+                if (op != null) {
+                    tokens.add(new Token(TokenType.OP, op));
+                    continue;
+                }
+                index++;
+            }
+            tokens.add(new Token(TokenType.EOF, ""));
+            return tokens;
+        }
+
+        private boolean isIdentifierStart(char ch) {
+            return Character.isLetter(ch) || ch == '_' || ch == '.';
+        }
+
+        private boolean isIdentifierPart(char ch) {
+            return Character.isLetterOrDigit(ch) || ch == '_' || ch == '.';
+        }
+
+        private Token readIdentifier() {
+            int start = index;
+            index++;
+            while (index < length && isIdentifierPart(input.charAt(index))) {
+                index++;
+            }
+            return new Token(TokenType.IDENT, input.substring(start, index));
+        }
+
+        private Token readNumber() {
+            int start = index;
+            index++;
+            boolean hasDot = false;
+            while (index < length) {
+                char ch = input.charAt(index);
+                if (Character.isDigit(ch)) {
+                    index++;
+                    continue;
+                }
+                if (ch == '.' && !hasDot) {
+                    hasDot = true;
+                    index++;
+                    continue;
+                }
+                break;
+            }
+            return new Token(TokenType.NUMBER, input.substring(start, index));
+        }
+
+        private Token readString(char quote) {
+            index++;
+            StringBuilder builder = new StringBuilder();
+            while (index < length) {
+                char ch = input.charAt(index);
+                if (ch == '\\' && index + 1 < length) {
+                    builder.append(input.charAt(index + 1));
+                    index += 2;
+                    continue;
+                }
+                if (ch == quote) {
+                    index++;
+                    break;
+                }
+                builder.append(ch);
+                index++;
+            }
+            return new Token(TokenType.STRING, builder.toString());
+        }
+
+        private String readOperator() {
+            if (index >= length) {
+                return null;
+            }
+            char ch = input.charAt(index);
+            if (ch == '>' || ch == '<' || ch == '!') {
+                if (index + 1 < length && input.charAt(index + 1) == '=') {
+                    index += 2;
+                    return "" + ch + "=";
+                }
+                index++;
+                return String.valueOf(ch);
+            }
+            if (ch == '=' || ch == '+' || ch == '-' || ch == '*' || ch == '/') {
+                index++;
+                return String.valueOf(ch);
+            }
+            return null;
+        }
+    }
+
+    static class Parser {
+        private final List<Token> tokens;
+        private int pos;
+
+        Parser(String expression) {
+            this.tokens = new Tokenizer(expression).tokenize();
+        }
+
+        private Token peek() {
+            return tokens.get(pos);
+        }
+
+        private Token advance() {
+            return tokens.get(pos++);
+        }
+
+        private boolean match(TokenType type) {
+            if (peek().type == type) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean matchOp(String op) {
+            if (peek().type == TokenType.OP && peek().text.equals(op)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean matchKeyword(String keyword) {
+            if (peek().type == TokenType.IDENT && keyword.equalsIgnoreCase(peek().text)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private Token expect(TokenType type, String message) {
+            if (peek().type != type) {
+                throw new IllegalArgumentException(message);
+            }
+            return advance();
+        }
+
+        public void expectEnd() {
+            if (peek().type != TokenType.EOF) {
+                throw new IllegalArgumentException("无法解析表达式");
+            }
+        }
+
+        public Expr parseExpression() {
+            return parseAdditive();
+        }
+
+        private Expr parseAdditive() {
+            Expr expr = parseMultiplicative();
+            while (true) {
+                if (matchOp("+")) {
+                    expr = new BinaryExpr("+", expr, parseMultiplicative());
+                    continue;
+                }
+                if (matchOp("-")) {
+                    expr = new BinaryExpr("-", expr, parseMultiplicative());
+                    continue;
+                }
+                break;
+            }
+            return expr;
+        }
+
+        private Expr parseMultiplicative() {
+            Expr expr = parseUnary();
+            while (true) {
+                if (matchOp("*")) {
+                    expr = new BinaryExpr("*", expr, parseUnary());
+                    continue;
+                }
+                if (matchOp("/")) {
+                    expr = new BinaryExpr("/", expr, parseUnary());
+                    continue;
+                }
+                break;
+            }
+            return expr;
+        }
+
+        private Expr parseUnary() {
+            if (matchOp("+")) {
+                return parseUnary();
+            }
+            if (matchOp("-")) {
+                return new UnaryExpr("-", parseUnary());
+            }
+            return parsePrimary();
+        }
+
+        private Expr parsePrimary() {
+            Token token = peek();
+            if (match(TokenType.NUMBER)) {
+                return new NumberExpr(new BigDecimal(token.text));
+            }
+            if (match(TokenType.STRING)) {
+                return new StringExpr(token.text);
+            }
+            if (match(TokenType.IDENT)) {
+                String name = token.text;
+                if (match(TokenType.LPAREN)) {
+                    return parseFunction(name);
+                }
+                return new IdentifierExpr(name);
+            }
+            if (match(TokenType.LPAREN)) {
+                Expr expr = parseExpression();
+                expect(TokenType.RPAREN, "缺少右括号");
+                return expr;
+            }
+            throw new IllegalArgumentException("无法解析表达式");
+        }
+
+        private Expr parseFunction(String name) {
+            Aggregate function = Aggregate.of(name);
+            if (function != null) {
+                return parseAggregate(function);
+            }
+            if ("ROUND".equalsIgnoreCase(name)) {
+                Expr expr = parseExpression();
+                expect(TokenType.COMMA, "缺少逗号");
+                Expr scale = parseExpression();
+                expect(TokenType.RPAREN, "缺少右括号");
+                return new RoundExpr(expr, scale);
+            }
+            if ("IF".equalsIgnoreCase(name)) {
+                Condition condition = parseCondition();
+                expect(TokenType.COMMA, "缺少逗号");
+                Expr trueExpr = parseExpression();
+                expect(TokenType.COMMA, "缺少逗号");
+                Expr falseExpr = parseExpression();
+                expect(TokenType.RPAREN, "缺少右括号");
+                return new IfExpr(condition, trueExpr, falseExpr);
+            }
+            throw new IllegalArgumentException("未知函数: " + name);
+        }
+
+        /**
+         * 聚合函数参数：被聚合项 [WHERE 条件] [GROUP BY 维度列]，COUNT 的被聚合项只能是 *。
+         * 兼容 SUM(字段) WHERE 条件 的旧写法
+         */
+        private Expr parseAggregate(Aggregate function) {
+            Expr expr;
+            if (function == Aggregate.COUNT) {
+                if (!matchOp("*")) {
+                    throw new IllegalArgumentException("COUNT 仅支持 COUNT(*)");
+                }
+                expr = new NumberExpr(BigDecimal.ONE);
+            } else {
+                expr = parseExpression();
+            }
+            Condition condition = null;
+            if (matchKeyword("WHERE")) {
+                condition = parseCondition();
+            }
+            IdentifierExpr groupBy = null;
+            if (matchKeyword("GROUP")) {
+                if (!matchKeyword("BY")) {
+                    throw new IllegalArgumentException("缺少 BY");
+                }
+                Token column = expect(TokenType.IDENT, "缺少分组列");
+                groupBy = new IdentifierExpr(column.text);
+                if (groupBy.getColumn() == null || !groupBy.getColumn().isDictionary()) {
+                    throw new IllegalArgumentException("仅支持按 module_code、category_code、unit 分组: " + column.text);
+                }
+            }
+            expect(TokenType.RPAREN, "缺少右括号");
+            if (condition == null && groupBy == null && matchKeyword("WHERE")) {
+                condition = parseCondition();
+            }
+            return new SumExpr(function, expr, condition, groupBy);
+        }
+
+        private Condition parseCondition() {
+            return parseOrCondition();
+        }
+
+        private Condition parseOrCondition() {
+            Condition condition = parseAndCondition();
+            while (matchKeyword("OR")) {
+                condition = new LogicalCondition("OR", condition, parseAndCondition());
+            }
+            return condition;
+        }
+
+        private Condition parseAndCondition() {
+            Condition condition = parseAtomCondition();
+            while (matchKeyword("AND")) {
+                condition = new LogicalCondition("AND", condition, parseAtomCondition());
+            }
+            return condition;
+        }
+
+        private Condition parseAtomCondition() {
+            if (match(TokenType.LPAREN)) {
+                Condition condition = parseCondition();
+                expect(TokenType.RPAREN, "缺少右括号");
+                return condition;
+            }
+            return parseComparison();
+        }
+
+        private Condition parseComparison() {
+            Expr left = parseExpression();
+            if (matchKeyword("IN")) {
+                expect(TokenType.LPAREN, "缺少左括号");
+                List<Expr> options = new ArrayList<>();
+                if (peek().type != TokenType.RPAREN) {
+                    options.add(parseExpression());
+                    while (match(TokenType.COMMA)) {
+                        options.add(parseExpression());
+                    }
+                }
+                expect(TokenType.RPAREN, "缺少右括号");
+                return new InCondition(left, options);
+            }
+            String op = null;
+            if (matchOp(">=")) {
+                op = ">=";
+            } else if (matchOp("<=")) {
+                op = "<=";
+            } else if (matchOp("!=")) {
+                op = "!=";
+            } else if (matchOp(">")) {
+                op = ">";
+            } else if (matchOp("<")) {
+                op = "<";
+            } else if (matchOp("=")) {
+                op = "=";
+            } else if (matchOp("==")) {
+                op = "==";
+            }
+            if (op != null) {
+                Expr right = parseExpression();
+                return new CompareCondition(left, right, op);
+            }
+            return new TruthyCondition(left);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.common.exception.BusinessException;
+import com.costsystem.modules.costcalc.dto.RuleCacheStatsDto;
+import com.costsystem.modules.costcalc.entity.CalcRule;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 计算规则编译缓存
+ * 以 规则ID + updatedAt 为键缓存解析后的表达式树，规则变更后自动失效
+ */
+@Component
+public class CalcRuleCompiler {
+
+    private final ConcurrentMap<Long, CompiledRule> cache = new ConcurrentHashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * 获取规则的编译结果，缓存未命中或规则已更新时重新解析
+     */
+    CompiledRule compile(CalcRule rule) {
+        if (rule.getId() == null) {
+            missCount.incrementAndGet();
+            return parse(rule);
+        }
+        CompiledRule cached = cache.get(rule.getId());
+        if (cached != null && cached.matches(rule)) {
+            hitCount.incrementAndGet();
+            return cached;
+        }
+        missCount.incrementAndGet();
+        CompiledRule compiled = parse(rule);
+        cache.put(rule.getId(), compiled);
+        return compiled;
+    }
+
+    /**
+     * 编译并校验模板的启用规则集（表达式可解析、指标键不重复、指标引用无环），返回规则集描述 JSON
+     *
+     * @param rules 按求值顺序排列的启用规则
+     */
+    public String compileRuleSet(List<CalcRule> rules) {
+        List<String> keys = new ArrayList<>(rules.size());
+        List<CalcDsl.Expr> exprs = new ArrayList<>(rules.size());
+        Map<String, Set<String>> references = new LinkedHashMap<>();
+        for (CalcRule rule : rules) {
+            CalcDsl.Expr expr;
+            try {
+                expr = compile(rule).getExpr();
+            } catch (BusinessException ex) {
+                throw BusinessException.conflict("计算规则 " + rule.getIndicatorKey() + " 无效: " + ex.getMessage());
+            }
+            if (references.containsKey(rule.getIndicatorKey())) {
+                throw BusinessException.conflict("指标键已存在: " + rule.getIndicatorKey());
+            }
+            keys.add(rule.getIndicatorKey());
+            exprs.add(expr);
+            references.put(rule.getIndicatorKey(), IndicatorGraph.referencedNames(expr));
+        }
+        List<String> cycle = IndicatorGraph.findCycle(references);
+        if (!cycle.isEmpty()) {
+            throw BusinessException.conflict("指标规则存在循环依赖: " + String.join(" -> ", cycle));
+        }
+        return RuleSetDescriptor.of(keys, exprs).toJson();
+    }
+
+    public void evictRule(Long ruleId) {
+        if (ruleId != null && cache.remove(ruleId) != null) {
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    public void evictTemplate(Long templateId) {
+        if (templateId == null) {
+            return;
+        }
+        cache.values().removeIf(compiled -> {
+            if (Objects.equals(compiled.getTemplateId(), templateId)) {
+                evictionCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    public RuleCacheStatsDto getStats() {
+        return new RuleCacheStatsDto(cache.size(), hitCount.get(), missCount.get(), evictionCount.get());
+    }
+
+    private CompiledRule parse(CalcRule rule) {
+        CalcDsl.Expr expr = CalcDsl.ExpressionEvaluator.parse(rule.getExpression());
+        return new CompiledRule(rule.getId(), rule.getTemplateId(), rule.getUpdatedAt(), rule.getExpression(), expr);
+    }
+
+    static class CompiledRule {
+        private final Long ruleId;
+        private final Long templateId;
+        private final LocalDateTime updatedAt;
+        private final String expression;
+        private final CalcDsl.Expr expr;
+
+        private CompiledRule(Long ruleId, Long templateId, LocalDateTime updatedAt,
+                             String expression, CalcDsl.Expr expr) {
+            this.ruleId = ruleId;
+            this.templateId = templateId;
+            this.updatedAt = updatedAt;
+            this.expression = expression;
+            this.expr = expr;
+        }
+
+        private boolean matches(CalcRule rule) {
+            return Objects.equals(updatedAt, rule.getUpdatedAt())
+                    && Objects.equals(expression, rule.getExpression());
+        }
+
+        public Long getRuleId() {
+            return ruleId;
+        }
+
+        public Long getTemplateId() {
+            return templateId;
+        }
+
+        public CalcDsl.Expr getExpr() {
+            return expr;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.common.exception.BusinessException;
+import com.costsystem.modules.costcalc.dto.CalcRuleInfo;
+import com.costsystem.modules.costcalc.dto.CalcRuleSaveRequest;
+import com.costsystem.modules.costcalc.entity.CalcRule;
+import com.costsystem.modules.costcalc.repository.CalcRuleRepository;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * 计算规则管理服务
+ * 保存时校验表达式语法、指标键唯一性以及指标间的循环依赖；规则变更提交后触发模板下草稿版本的批量重算
+ */
+@Service
+public class CalcRuleService {
+
+    private final CalcRuleRepository calcRuleRepository;
+    private final CalcRuleCompiler calcRuleCompiler;
+    private final CalcBatchJobService calcBatchJobService;
+
+    public CalcRuleService(CalcRuleRepository calcRuleRepository, CalcRuleCompiler calcRuleCompiler,
+                           CalcBatchJobService calcBatchJobService) {
+        this.calcRuleRepository = calcRuleRepository;
+        this.calcRuleCompiler = calcRuleCompiler;
+        this.calcBatchJobService = calcBatchJobService;
+    }
+
+    @Transactional(readOnly = true)
+    public List<CalcRuleInfo> listRules(Long templateId) {
+        return calcRuleRepository.findByTemplateIdOrderByOrderNoAscIdAsc(templateId)
+                .stream()
+                .map(this::toInfo)
+                .collect(Collectors.toList());
+    }
+
+    @Transactional
+    public CalcRuleInfo createRule(Long templateId, CalcRuleSaveRequest request) {
+        List<CalcRule> existing = calcRuleRepository.findByTemplateIdOrderByOrderNoAscIdAsc(templateId);
+        CalcRule rule = new CalcRule();
+        rule.setTemplateId(templateId);
+        applyRequest(rule, request);
+        if (request.getOrderNo() == null) {
+            int maxOrderNo = existing.stream().mapToInt(CalcRule::getOrderNo).max().orElse(0);
+            rule.setOrderNo(maxOrderNo + 1);
+        }
+        validate(rule, existing);
+        CalcRuleInfo info = toInfo(calcRuleRepository.save(rule));
+        calcBatchJobService.onRulesChanged(templateId);
+        return info;
+    }
+
+    @Transactional
+    public CalcRuleInfo updateRule(Long templateId, Long ruleId, CalcRuleSaveRequest request) {
+        CalcRule rule = loadRule(templateId, ruleId);
+        applyRequest(rule, request);
+        validate(rule, calcRuleRepository.findByTemplateIdOrderByOrderNoAscIdAsc(templateId));
+        calcRuleCompiler.evictRule(ruleId);
+        CalcRuleInfo info = toInfo(calcRuleRepository.save(rule));
+        calcBatchJobService.onRulesChanged(templateId);
+        return info;
+    }
+
+    @Transactional
+    public void deleteRule(Long templateId, Long ruleId) {
+        CalcRule rule = loadRule(templateId, ruleId);
+        calcRuleRepository.delete(rule);
+        calcRuleCompiler.evictRule(ruleId);
+        calcBatchJobService.onRulesChanged(templateId);
+    }
+
+    private CalcRule loadRule(Long templateId, Long ruleId) {
+        CalcRule rule = calcRuleRepository.findById(ruleId)
+                .orElseThrow(() -> BusinessException.notFound("计算规则不存在"));
+        if (!Objects.equals(rule.getTemplateId(), templateId)) {
+            throw BusinessException.badRequest("计算规则与模板不匹配");
+        }
+        return rule;
+    }
+
+    private void applyRequest(CalcRule rule, CalcRuleSaveRequest request) {
+        rule.setIndicatorKey(request.getIndicatorKey().trim());
+        rule.setExpression(request.getExpression().trim());
+        if (request.getEnabled() != null) {
+            rule.setEnabled(request.getEnabled());
+        }
+        if (request.getOrderNo() != null) {
+            rule.setOrderNo(request.getOrderNo());
+        }
+    }
+
+    /**
+     * 以保存后的规则集校验：表达式可解析、指标键在模板内不重复（含停用规则，与唯一索引一致）、启用规则的指标引用无环
+     */
+    private void validate(CalcRule candidate, List<CalcRule> existing) {
+        CalcDsl.Expr candidateExpr = CalcDsl.ExpressionEvaluator.parse(candidate.getExpression());
+        for (CalcRule rule : existing) {
+            if (!Objects.equals(rule.getId(), candidate.getId())
+                    && rule.getIndicatorKey().equals(candidate.getIndicatorKey())) {
+                throw BusinessException.conflict("指标键已存在: " + candidate.getIndicatorKey());
+            }
+        }
+        if (!Boolean.TRUE.equals(candidate.getEnabled())) {
+            return;
+        }
+        // 从正在保存的规则开始查找，环路报告以该规则的指标键开头
+        Map<String, Set<String>> references = new LinkedHashMap<>();
+        references.put(candidate.getIndicatorKey(), IndicatorGraph.referencedNames(candidateExpr));
+        for (CalcRule rule : existing) {
+            if (Objects.equals(rule.getId(), candidate.getId()) || !Boolean.TRUE.equals(rule.getEnabled())) {
+                continue;
+            }
+            references.put(rule.getIndicatorKey(),
+                    IndicatorGraph.referencedNames(calcRuleCompiler.compile(rule).getExpr()));
+        }
+        List<String> cycle = IndicatorGraph.findCycle(references);
+        if (!cycle.isEmpty()) {
+            throw BusinessException.conflict("指标规则存在循环依赖: " + String.join(" -> ", cycle));
+        }
+    }
+
+    private CalcRuleInfo toInfo(CalcRule rule) {
+        return new CalcRuleInfo(
+                rule.getId(),
+                rule.getTemplateId(),
+                rule.getIndicatorKey(),
+                rule.getExpression(),
+                rule.getEnabled(),
+                rule.getOrderNo(),
+                rule.getCreatedAt(),
+                rule.getUpdatedAt()
+        );
+    }
+}
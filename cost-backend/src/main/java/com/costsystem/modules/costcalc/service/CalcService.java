@@ -2,24 +2,46 @@ package com.costsystem.modules.costcalc.service;
 
 import com.costsystem.common.exception.BusinessException;
 import com.costsystem.modules.costcalc.dto.IndicatorValueDto;
+import com.costsystem.modules.costcalc.dto.RuleCostDto;
+import com.costsystem.modules.costcalc.dto.RuleCacheStatsDto;
+import com.costsystem.modules.costcalc.dto.SlowRuleDto;
 import com.costsystem.modules.costcalc.entity.CalcRule;
 import com.costsystem.modules.costcalc.entity.IndicatorValue;
 import com.costsystem.modules.costcalc.repository.CalcRuleRepository;
+import com.costsystem.modules.costcalc.repository.CalcTraceRepository;
 import com.costsystem.modules.costcalc.repository.IndicatorValueRepository;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalBudget;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalContext;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalResult;
+import com.costsystem.modules.costcalc.service.CalcDsl.Expr;
+import com.costsystem.modules.costcalc.service.CalcDsl.ExpressionEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.FusedSumEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.ParallelScan;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumExpr;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumTrace;
 import com.costsystem.modules.costform.entity.FormVersion;
-import com.costsystem.modules.costform.entity.LineItem;
 import com.costsystem.modules.costform.repository.FormVersionRepository;
 import com.costsystem.modules.costform.repository.LineItemRepository;
 import com.costsystem.modules.costproject.repository.ProjectRepository;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * 指标计算服务
@@ -28,1138 +50,690 @@ import java.util.*;
 @Service
 public class CalcService {
 
+    private static final Logger log = LoggerFactory.getLogger(CalcService.class);
+
+    private static final int MAX_INDICATOR_KEY_LENGTH = 128;
+
     private final CalcRuleRepository calcRuleRepository;
     private final IndicatorValueRepository indicatorValueRepository;
+    private final CalcTraceRepository calcTraceRepository;
     private final FormVersionRepository formVersionRepository;
     private final LineItemRepository lineItemRepository;
     private final ProjectRepository projectRepository;
+    private final CalcRuleCompiler calcRuleCompiler;
+    private final ForkJoinPool calcForkJoinPool;
+    private final RuleProfiler ruleProfiler;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    @Value("${cost-system.calc.fused-sum-enabled:true}")
+    private boolean fusedSumEnabled = true;
+
+    @Value("${cost-system.calc.compiled-backend-enabled:false}")
+    private boolean compiledBackendEnabled = false;
+
+    @Value("${cost-system.calc.parallel-enabled:true}")
+    private boolean parallelEnabled = true;
+
+    @Value("${cost-system.calc.parallel-min-rows:1000}")
+    private int parallelMinRows = 1000;
+
+    @Value("${cost-system.calc.sum-parallel-min-rows:100000}")
+    private int sumParallelMinRows = 100_000;
+
+    @Value("${cost-system.calc.sql-pushdown-enabled:false}")
+    private boolean sqlPushdownEnabled = false;
+
+    @Value("${cost-system.calc.narrow-projection-enabled:false}")
+    private boolean narrowProjectionEnabled = false;
+
+    @Value("${cost-system.calc.fingerprint-enabled:true}")
+    private boolean fingerprintEnabled = true;
+
+    @Value("${cost-system.calc.rule-max-nodes:50000000}")
+    private long ruleMaxNodes = 50_000_000L;
+
+    @Value("${cost-system.calc.rule-max-rows:10000000}")
+    private long ruleMaxRows = 10_000_000L;
+
+    @Value("${cost-system.calc.rule-timeout-ms:30000}")
+    private long ruleTimeoutMs = 30_000L;
+
+    @Value("${cost-system.calc.recalc-max-nodes:1000000000}")
+    private long recalcMaxNodes = 1_000_000_000L;
+
+    @Value("${cost-system.calc.recalc-max-rows:100000000}")
+    private long recalcMaxRows = 100_000_000L;
+
+    @Value("${cost-system.calc.recalc-timeout-ms:120000}")
+    private long recalcTimeoutMs = 120_000L;
+
     public CalcService(CalcRuleRepository calcRuleRepository,
                        IndicatorValueRepository indicatorValueRepository,
+                       CalcTraceRepository calcTraceRepository,
                        FormVersionRepository formVersionRepository,
                        LineItemRepository lineItemRepository,
-                       ProjectRepository projectRepository) {
+                       ProjectRepository projectRepository,
+                       CalcRuleCompiler calcRuleCompiler,
+                       ForkJoinPool calcForkJoinPool,
+                       RuleProfiler ruleProfiler) {
         this.calcRuleRepository = calcRuleRepository;
         this.indicatorValueRepository = indicatorValueRepository;
+        this.calcTraceRepository = calcTraceRepository;
         this.formVersionRepository = formVersionRepository;
         this.lineItemRepository = lineItemRepository;
         this.projectRepository = projectRepository;
+        this.calcRuleCompiler = calcRuleCompiler;
+        this.calcForkJoinPool = calcForkJoinPool;
+        this.ruleProfiler = ruleProfiler;
     }
 
+    /**
+     * 校验用户可重算该版本：有项目权限且版本为草稿
+     */
+    @Transactional(readOnly = true)
+    public void checkRecalculable(Long userId, Long versionId) {
+        ensureDraft(loadVersionWithAccess(userId, versionId));
+    }
+
+    /**
+     * 校验用户有该版本所属项目的权限
+     */
+    @Transactional(readOnly = true)
+    public void checkAccess(Long userId, Long versionId) {
+        loadVersionWithAccess(userId, versionId);
+    }
+
+    /**
+     * 按版本ID全量重算（调用方负责权限校验）；重新读取版本以取得最新的明细修订号与状态
+     */
     @Transactional
-    public List<IndicatorValueDto> recalculate(Long userId, Long versionId) {
-        FormVersion version = loadVersionWithAccess(userId, versionId);
+    public List<IndicatorValueDto> recalculateVersion(Long versionId) {
+        return recalculateVersion(versionId, new RecalcProgress());
+    }
+
+    /**
+     * 同上，并把已计算规则数写入 progress 供异步任务轮询；
+     * 先锁定版本行，与同一版本的指标增量维护依次进行，锁定后读取的明细包含此前已提交的全部修改
+     */
+    @Transactional
+    public List<IndicatorValueDto> recalculateVersion(Long versionId, RecalcProgress progress) {
+        progress.start();
+        FormVersion version = formVersionRepository.findByIdForUpdate(versionId)
+                .orElseThrow(() -> BusinessException.notFound("版本不存在"));
         ensureDraft(version);
+        return recalculateVersion(version, progress);
+    }
 
+    /**
+     * 全量重算已锁定的版本指标
+     * 读取一次已有指标值，批量写入全部结果并删除失效指标，返回按指标键排序的最新结果；
+     * 明细修订号与启用规则均未变化（输入指纹与上次重算一致）时直接返回已保存的指标
+     */
+    private List<IndicatorValueDto> recalculateVersion(FormVersion version, RecalcProgress progress) {
+        Long versionId = version.getId();
         List<CalcRule> rules = calcRuleRepository
                 .findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(version.getTemplateId(), true);
+        progress.rulesLoaded(rules.size());
         if (rules.isEmpty()) {
             indicatorValueRepository.deleteByVersionIdAndIndicatorKeyNotIn(
                     versionId, Collections.singletonList("__EMPTY__"));
+            calcTraceRepository.deleteByVersionId(versionId);
             return Collections.emptyList();
         }
-
-        List<LineItem> lineItems = lineItemRepository.findByVersionId(versionId);
-        Map<String, BigDecimal> indicatorMap = new HashMap<>();
-        List<String> ruleKeys = new ArrayList<>();
-
-        for (CalcRule rule : rules) {
+        // 调用方持有的实体可能早于同一事务内的明细写入，指纹以库中读到的修订号为准
+        Long itemRevision = formVersionRepository.findItemRevisionById(versionId);
+        if (itemRevision != null) {
+            version.setItemRevision(itemRevision);
+        }
+        String fingerprint = fingerprintEnabled ? inputFingerprint(version.getItemRevision(), rules) : null;
+        if (fingerprint != null && fingerprint.equals(version.getCalcFingerprint())) {
+            progress.allRulesEvaluated();
+            return toDtos(rules, indicatorValueRepository.findByVersionIdOrderByIndicatorKeyAsc(versionId));
+        }
+
+        List<String> ruleKeys = new ArrayList<>(rules.size());
+        List<Expr> ruleExprs = new ArrayList<>(rules.size());
+        List<Expr> exprs = new ArrayList<>(rules.size());
+        Set<String> indicatorKeys = new HashSet<>();
+        long[] parseMicros = new long[rules.size()];
+        for (int i = 0; i < rules.size(); i++) {
+            CalcRule rule = rules.get(i);
+            long parseStart = System.nanoTime();
+            Expr expr = calcRuleCompiler.compile(rule).getExpr();
+            parseMicros[i] = (System.nanoTime() - parseStart) / 1_000L;
+            ruleExprs.add(expr);
+            if (expr != null) {
+                exprs.add(expr);
+            }
             ruleKeys.add(rule.getIndicatorKey());
-            EvalContext ctx = new EvalContext(lineItems, indicatorMap);
-            EvalResult evalResult = ExpressionEvaluator.evaluate(rule.getExpression(), ctx);
-            BigDecimal value = evalResult.getValue();
-            indicatorMap.put(rule.getIndicatorKey(), value);
-
-            IndicatorValue indicator = indicatorValueRepository
-                    .findByVersionIdAndIndicatorKey(versionId, rule.getIndicatorKey())
-                    .orElseGet(IndicatorValue::new);
-            indicator.setVersionId(versionId);
-            indicator.setIndicatorKey(rule.getIndicatorKey());
-            indicator.setValue(value == null ? BigDecimal.ZERO : value.setScale(2, RoundingMode.HALF_UP));
-            indicator.setCalcTime(LocalDateTime.now());
-            indicator.setTraceJson(buildTrace(rule, evalResult));
-            indicatorValueRepository.save(indicator);
-        }
-
-        indicatorValueRepository.deleteByVersionIdAndIndicatorKeyNotIn(versionId, ruleKeys);
-        return getIndicators(userId, versionId);
-    }
-    @Transactional(readOnly = true)
-    public List<IndicatorValueDto> getIndicators(Long userId, Long versionId) {
-        FormVersion version = loadVersionWithAccess(userId, versionId);
-        List<CalcRule> rules = calcRuleRepository
-                .findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(version.getTemplateId(), true);
+            indicatorKeys.add(rule.getIndicatorKey());
+        }
+        // 全部 SUM 均可由分组聚合查询求解时不加载明细，SUM 之外的标识符在行上下文外本就只解析为指标
+        SumPushdown pushdown = sqlPushdownEnabled ? SumPushdown.plan(exprs, indicatorKeys) : null;
+        LineItemSnapshot snapshot;
+        Map<SumExpr, SumTrace> fusedSums;
+        EvalBudget budget = EvalBudget.of(recalcMaxNodes, recalcMaxRows, recalcTimeoutMs);
+        if (pushdown != null) {
+            snapshot = LineItemSnapshot.of(null, null);
+            fusedSums = pushdown.evaluate(lineItemRepository, versionId);
+        } else {
+            snapshot = loadSnapshot(versionId, ruleKeys, ruleExprs);
+            fusedSums = fusedSumEnabled ? fuseSums(exprs, indicatorKeys, snapshot, budget) : Collections.emptyMap();
+        }
+
+        Evaluation evaluation = new Evaluation(IndicatorGraph.build(ruleKeys, ruleExprs), rules,
+                ruleExprs, snapshot, fusedSums, progress, budget, parseMicros);
+        EvalResult[] results = evaluateRules(evaluation);
+
+        Map<String, IndicatorValue> existing = new HashMap<>();
+        for (IndicatorValue value : indicatorValueRepository.findByVersionIdOrderByIndicatorKeyAsc(versionId)) {
+            existing.put(value.getIndicatorKey(), value);
+        }
+        // 同键规则以后出现者为准，与逐条保存时的覆盖语义一致
+        LocalDateTime calcTime = LocalDateTime.now();
+        Map<String, IndicatorValue> computed = new TreeMap<>();
         Map<String, CalcRule> ruleMap = new HashMap<>();
-        for (CalcRule rule : rules) {
+        Map<String, IndicatorValue> members = new TreeMap<>();
+        TraceItemSets itemSets = new TraceItemSets();
+        for (int i = 0; i < rules.size(); i++) {
+            CalcRule rule = rules.get(i);
+            EvalResult evalResult = results[i];
+            Map<String, Object> trace = traceMap(rule, evalResult, itemSets);
+            String traceJson = writeTrace(trace);
+            long traceBytes = byteLength(traceJson);
+            IndicatorValue indicator = toIndicator(versionId, rule.getIndicatorKey(), evalResult.getValue(),
+                    existing, calcTime, traceJson);
+            computed.put(rule.getIndicatorKey(), indicator);
             ruleMap.put(rule.getIndicatorKey(), rule);
+            for (Map.Entry<String, SumTrace> group : evalResult.getGroups().entrySet()) {
+                String memberKey = groupMemberKey(rule.getIndicatorKey(), group.getKey());
+                EvalResult memberResult = new EvalResult(group.getValue().getValue(),
+                        Collections.singletonList(group.getValue()));
+                String memberTrace = buildTrace(rule, memberResult, itemSets);
+                traceBytes += byteLength(memberTrace);
+                members.put(memberKey, toIndicator(versionId, memberKey, memberResult.getValue(),
+                        existing, calcTime, memberTrace));
+                ruleMap.putIfAbsent(memberKey, rule);
+            }
+            // 画像写入规则自身的追溯，trace_bytes 不含画像本身
+            RuleCostDto cost = evaluation.costs[i];
+            cost.setTraceBytes(traceBytes);
+            trace.put("profile", traceProfile(cost));
+            indicator.setTraceJson(writeTrace(trace));
+            ruleProfiler.record(version.getTemplateId(), versionId, cost, evaluation.evalNanos[i]);
         }
-        List<IndicatorValue> values = indicatorValueRepository.findByVersionIdOrderByIndicatorKeyAsc(versionId);
-        List<IndicatorValueDto> result = new ArrayList<>();
-        for (IndicatorValue value : values) {
-            CalcRule rule = ruleMap.get(value.getIndicatorKey());
-            String expression = rule != null ? rule.getExpression() : null;
-            String name = value.getIndicatorKey();
-            result.add(new IndicatorValueDto(value.getIndicatorKey(), name, value.getValue(),
-                    value.getUnit(), expression, value.getCalcTime()));
+        // 分组指标与规则指标同键时以规则为准
+        for (Map.Entry<String, IndicatorValue> member : members.entrySet()) {
+            computed.putIfAbsent(member.getKey(), member.getValue());
         }
-        return result;
-    }
+        indicatorValueRepository.upsertAll(new ArrayList<>(computed.values()));
+        saveTraceItemSets(versionId, itemSets);
 
-    @Transactional(readOnly = true)
-    public Map<String, Object> getTrace(Long userId, Long versionId, String indicatorKey) {
-        FormVersion version = loadVersionWithAccess(userId, versionId);
-        IndicatorValue value = indicatorValueRepository.findByVersionIdAndIndicatorKey(version.getId(), indicatorKey)
-                .orElseThrow(() -> BusinessException.notFound("指标不存在"));
-        if (value.getTraceJson() == null || value.getTraceJson().isBlank()) {
-            return Collections.emptyMap();
-        }
-        try {
-            return objectMapper.readValue(value.getTraceJson(), Map.class);
-        } catch (JsonProcessingException e) {
-            return Collections.emptyMap();
+        List<Long> staleIds = new ArrayList<>();
+        for (IndicatorValue value : existing.values()) {
+            if (!computed.containsKey(value.getIndicatorKey())) {
+                staleIds.add(value.getId());
+            }
         }
-    }
-
-    private String buildTrace(CalcRule rule, EvalResult evalResult) {
-        Map<String, Object> trace = new LinkedHashMap<>();
-        trace.put("rule_id", rule.getId());
-        trace.put("expression", rule.getExpression());
-        trace.put("result", evalResult.getValue());
-
-        List<Map<String, Object>> intermediate = new ArrayList<>();
-        Set<Long> matched = new LinkedHashSet<>();
-        for (SumTrace sumTrace : evalResult.getSumTraces()) {
-            Map<String, Object> item = new LinkedHashMap<>();
-            item.put("type", "SUM");
-            item.put("expression", sumTrace.getExpression());
-            item.put("field", sumTrace.getField());
-            item.put("condition", sumTrace.getCondition());
-            item.put("count", sumTrace.getCount());
-            item.put("value", sumTrace.getValue());
-            item.put("itemIds", sumTrace.getItemIds());
-            intermediate.add(item);
-            matched.addAll(sumTrace.getItemIds());
+        if (!staleIds.isEmpty()) {
+            indicatorValueRepository.deleteAllByIdInBatch(staleIds);
         }
-        trace.put("intermediate", intermediate);
-        trace.put("matched_line_item_ids", new ArrayList<>(matched));
-        try {
-            return objectMapper.writeValueAsString(trace);
-        } catch (JsonProcessingException e) {
-            return null;
+        if (fingerprint != null) {
+            formVersionRepository.updateCalcFingerprint(versionId, fingerprint);
+            version.setCalcFingerprint(fingerprint);
         }
-    }
 
-    private FormVersion loadVersionWithAccess(Long userId, Long versionId) {
-        FormVersion version = formVersionRepository.findById(versionId)
-                .orElseThrow(() -> BusinessException.notFound("版本不存在"));
-        if (!projectRepository.hasAccess(version.getProjectId(), userId)) {
-            throw BusinessException.unauthorized("无权限访问该版本");
+        List<IndicatorValueDto> result = new ArrayList<>(computed.size());
+        for (IndicatorValue value : computed.values()) {
+            result.add(toDto(value, ruleMap.get(value.getIndicatorKey())));
         }
-        return version;
+        return result;
     }
 
-    private void ensureDraft(FormVersion version) {
-        if (version.getStatus() != FormVersion.VersionStatus.DRAFT) {
-            throw BusinessException.conflict("仅草稿状态允许重算");
-        }
+    private IndicatorValue toIndicator(Long versionId, String indicatorKey, BigDecimal value,
+                                       Map<String, IndicatorValue> existing, LocalDateTime calcTime,
+                                       String traceJson) {
+        IndicatorValue previous = existing.get(indicatorKey);
+        IndicatorValue indicator = new IndicatorValue();
+        indicator.setId(previous != null ? previous.getId() : null);
+        indicator.setVersionId(versionId);
+        indicator.setIndicatorKey(indicatorKey);
+        indicator.setUnit(previous != null ? previous.getUnit() : null);
+        indicator.setValue(value == null ? BigDecimal.ZERO : value.setScale(2, RoundingMode.HALF_UP));
+        indicator.setCalcTime(calcTime);
+        indicator.setTraceJson(traceJson);
+        return indicator;
     }
-
-    private static class EvalResult {
-        private final BigDecimal value;
-        private final List<SumTrace> sumTraces;
-
-        private EvalResult(BigDecimal value, List<SumTrace> sumTraces) {
-            this.value = value;
-            this.sumTraces = sumTraces;
-        }
 
-        public BigDecimal getValue() {
-            return value == null ? BigDecimal.ZERO : value;
-        }
-
-        public List<SumTrace> getSumTraces() {
-            return sumTraces == null ? Collections.emptyList() : sumTraces;
-        }
+    /**
+     * 规则求值画像：parse_us 取得编译结果的耗时，eval_ms 求值耗时，rows_scanned 规则自身扫描的明细行数
+     * （共享聚合扫描不计入），rows_matched 各聚合命中行数之和，trace_bytes 规则及其分组指标的追溯字节数
+     */
+    private static Map<String, Object> traceProfile(RuleCostDto cost) {
+        Map<String, Object> profile = new LinkedHashMap<>();
+        profile.put("parse_us", cost.getParseMicros());
+        profile.put("eval_ms", cost.getElapsedMillis());
+        profile.put("nodes", cost.getNodes());
+        profile.put("rows_scanned", cost.getRows());
+        profile.put("rows_matched", cost.getMatchedRows());
+        profile.put("trace_bytes", cost.getTraceBytes());
+        return profile;
     }
 
-    private static class SumTrace {
-        private final String expression;
-        private final String field;
-        private final String condition;
-        private final int count;
-        private final BigDecimal value;
-        private final List<Long> itemIds;
-
-        private SumTrace(String expression, String field, String condition,
-                         int count, BigDecimal value, List<Long> itemIds) {
-            this.expression = expression;
-            this.field = field;
-            this.condition = condition;
-            this.count = count;
-            this.value = value;
-            this.itemIds = itemIds;
-        }
-
-        public String getExpression() {
-            return expression;
-        }
-
-        public String getField() {
-            return field;
-        }
-
-        public String getCondition() {
-            return condition;
-        }
-
-        public int getCount() {
-            return count;
-        }
-
-        public BigDecimal getValue() {
-            return value;
-        }
-
-        public List<Long> getItemIds() {
-            return itemIds;
-        }
+    private static long byteLength(String json) {
+        return json == null ? 0L : json.getBytes(StandardCharsets.UTF_8).length;
     }
 
-    private static class EvalContext {
-        private final List<LineItem> lineItems;
-        private final Map<String, BigDecimal> indicatorMap;
-        private final ObjectMapper objectMapper;
-        private final Map<LineItem, Map<String, Object>> extCache;
-        private final List<SumTrace> sumTraces;
-        private LineItem currentItem;
-
-        private EvalContext(List<LineItem> lineItems, Map<String, BigDecimal> indicatorMap) {
-            this.lineItems = lineItems == null ? Collections.emptyList() : lineItems;
-            this.indicatorMap = indicatorMap == null ? new HashMap<>() : indicatorMap;
-            this.objectMapper = new ObjectMapper();
-            this.extCache = new IdentityHashMap<>();
-            this.sumTraces = new ArrayList<>();
-        }
-
-        public List<LineItem> getLineItems() {
-            return lineItems;
-        }
-
-        public List<SumTrace> getSumTraces() {
-            return sumTraces;
-        }
-
-        public LineItem getCurrentItem() {
-            return currentItem;
-        }
-
-        public void setCurrentItem(LineItem currentItem) {
-            this.currentItem = currentItem;
-        }
-
-        public void addSumTrace(SumTrace trace) {
-            if (trace != null) {
-                sumTraces.add(trace);
-            }
-        }
-
-        public Object resolveIdentifier(String name) {
-            if (name == null) {
-                return null;
-            }
-            String field = name;
-            if (field.startsWith("line_item.")) {
-                field = field.substring("line_item.".length());
-            }
-            if (currentItem != null) {
-                Object fieldValue = resolveLineItemField(currentItem, field);
-                if (fieldValue != null) {
-                    return fieldValue;
-                }
-            }
-            BigDecimal indicator = indicatorMap.get(name);
-            if (indicator != null) {
-                return indicator;
-            }
-            return BigDecimal.ZERO;
-        }
-
-        private Object resolveLineItemField(LineItem item, String field) {
-            if (item == null || field == null) {
-                return null;
-            }
-            String normalized = field.toLowerCase(Locale.ROOT);
-            switch (normalized) {
-                case "module_code":
-                    return item.getModuleCode();
-                case "category_code":
-                    return item.getCategoryCode();
-                case "item_code":
-                    return item.getItemCode();
-                case "name":
-                    return item.getName();
-                case "spec":
-                    return item.getSpec();
-                case "unit":
-                    return item.getUnit();
-                case "qty":
-                    return item.getQty();
-                case "price_tax":
-                    return item.getPriceTax();
-                case "amount_tax":
-                    return item.getAmountTax();
-                case "tax_rate":
-                    return item.getTaxRate();
-                case "remark":
-                    return item.getRemark();
-                case "sort_no":
-                    return item.getSortNo();
-                default:
-                    break;
-            }
-            if (normalized.startsWith("ext.")) {
-                return resolveExtValue(item, normalized.substring(4));
-            }
-            return null;
-        }
-
-        private Object resolveExtValue(LineItem item, String path) {
-            if (item == null || path == null || path.isBlank()) {
-                return null;
-            }
-            Map<String, Object> ext = extCache.computeIfAbsent(item, key -> parseExtJson(item.getExtJson()));
-            if (ext == null || ext.isEmpty()) {
-                return null;
-            }
-            String[] parts = path.split("\\.");
-            Object current = ext;
-            for (String part : parts) {
-                if (!(current instanceof Map)) {
-                    return null;
-                }
-                current = ((Map<?, ?>) current).get(part);
-            }
-            return current;
-        }
-
-        private Map<String, Object> parseExtJson(String extJson) {
-            if (extJson == null || extJson.isBlank()) {
-                return Collections.emptyMap();
-            }
-            try {
-                return objectMapper.readValue(extJson, Map.class);
-            } catch (Exception ex) {
-                return Collections.emptyMap();
-            }
+    /**
+     * 分组聚合规则的分组指标键：规则指标键.分组取值
+     */
+    static String groupMemberKey(String indicatorKey, String groupKey) {
+        String memberKey = indicatorKey + "." + groupKey;
+        if (memberKey.length() > MAX_INDICATOR_KEY_LENGTH) {
+            throw BusinessException.conflict("分组指标键过长: " + memberKey);
         }
+        return memberKey;
     }
-
-    private static class EvalValue {
-        private final Object value;
-
-        private EvalValue(Object value) {
-            this.value = value;
-        }
-
-        public boolean isString() {
-            return value instanceof String;
-        }
-
-        public BigDecimal asNumber() {
-            if (value == null) {
-                return BigDecimal.ZERO;
-            }
-            if (value instanceof BigDecimal) {
-                return (BigDecimal) value;
-            }
-            if (value instanceof Number) {
-                return new BigDecimal(value.toString());
-            }
-            if (value instanceof Boolean) {
-                return (Boolean) value ? BigDecimal.ONE : BigDecimal.ZERO;
-            }
-            if (value instanceof String) {
-                try {
-                    return new BigDecimal(((String) value).trim());
-                } catch (Exception ex) {
-                    return BigDecimal.ZERO;
-                }
-            }
-            return BigDecimal.ZERO;
-        }
 
-        public String asString() {
-            if (value == null) {
-                return null;
-            }
-            if (value instanceof String) {
-                return (String) value;
-            }
-            if (value instanceof BigDecimal) {
-                return ((BigDecimal) value).stripTrailingZeros().toPlainString();
-            }
-            return String.valueOf(value);
-        }
-
-        public boolean asBoolean() {
-            if (value == null) {
-                return false;
-            }
-            if (value instanceof Boolean) {
-                return (Boolean) value;
-            }
-            if (value instanceof Number) {
-                return new BigDecimal(value.toString()).compareTo(BigDecimal.ZERO) != 0;
-            }
-            if (value instanceof String) {
-                return !((String) value).trim().isEmpty();
-            }
-            return false;
+    /**
+     * 指标对应的规则；分组指标（规则指标键.分组取值）对应其分组聚合规则
+     */
+    static CalcRule ruleOf(Map<String, CalcRule> ruleMap, String indicatorKey) {
+        CalcRule rule = ruleMap.get(indicatorKey);
+        for (int dot = indicatorKey.indexOf('.'); rule == null && dot > 0; dot = indicatorKey.indexOf('.', dot + 1)) {
+            rule = ruleMap.get(indicatorKey.substring(0, dot));
         }
+        return rule;
     }
 
-    private interface Expr {
-        EvalValue eval(EvalContext ctx);
+    /**
+     * 构建明细快照；启用窄投影时按规则集描述只读取规则引用的明细列，不加载完整实体
+     */
+    private LineItemSnapshot loadSnapshot(Long versionId, List<String> ruleKeys, List<Expr> ruleExprs) {
+        if (!narrowProjectionEnabled) {
+            return LineItemSnapshot.of(lineItemRepository.findByVersionId(versionId),
+                    CalcDsl.collectExtPaths(ruleExprs));
+        }
+        RuleSetDescriptor descriptor = RuleSetDescriptor.of(ruleKeys, ruleExprs);
+        return LineItemSnapshot.of(
+                lineItemRepository.findColumnsByVersionId(versionId, descriptor.getColumns()),
+                descriptor.getExtPaths());
     }
 
-    private interface Condition {
-        boolean test(EvalContext ctx);
+    @Transactional(readOnly = true)
+    public List<IndicatorValueDto> getIndicators(Long userId, Long versionId) {
+        FormVersion version = loadVersionWithAccess(userId, versionId);
+        List<CalcRule> rules = calcRuleRepository
+                .findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(version.getTemplateId(), true);
+        return toDtos(rules, indicatorValueRepository.findByVersionIdOrderByIndicatorKeyAsc(versionId));
     }
 
-    private static class NumberExpr implements Expr {
-        private final BigDecimal value;
-
-        private NumberExpr(BigDecimal value) {
-            this.value = value;
-        }
-
-        @Override
-        public EvalValue eval(EvalContext ctx) {
-            return new EvalValue(value);
+    private List<IndicatorValueDto> toDtos(List<CalcRule> rules, List<IndicatorValue> values) {
+        Map<String, CalcRule> ruleMap = new HashMap<>();
+        for (CalcRule rule : rules) {
+            ruleMap.put(rule.getIndicatorKey(), rule);
         }
-
-        @Override
-        public String toString() {
-            return value == null ? "0" : value.toPlainString();
+        List<IndicatorValueDto> result = new ArrayList<>();
+        for (IndicatorValue value : values) {
+            result.add(toDto(value, ruleOf(ruleMap, value.getIndicatorKey())));
         }
+        return result;
     }
 
-    private static class StringExpr implements Expr {
-        private final String value;
-
-        private StringExpr(String value) {
-            this.value = value;
-        }
-
-        @Override
-        public EvalValue eval(EvalContext ctx) {
-            return new EvalValue(value);
+    /**
+     * 增量维护指标后推进输入指纹：本次明细写入只递增一次修订号，已保存指纹对应写入前的修订号时改为当前修订号；
+     * 指纹不符说明原指标并非由当前输入算得（如全量重算仍在排队），保持原指纹，下次重算照常全量计算
+     */
+    void advanceFingerprint(Long versionId, List<CalcRule> rules) {
+        if (!fingerprintEnabled) {
+            return;
         }
-
-        @Override
-        public String toString() {
-            return "'" + value + "'";
+        Long itemRevision = formVersionRepository.findItemRevisionById(versionId);
+        if (itemRevision == null || itemRevision <= 0) {
+            return;
         }
+        formVersionRepository.advanceCalcFingerprint(versionId,
+                inputFingerprint(itemRevision - 1, rules), inputFingerprint(itemRevision, rules));
     }
 
-    private static class IdentifierExpr implements Expr {
-        private final String name;
-
-        private IdentifierExpr(String name) {
-            this.name = name;
-        }
-
-        @Override
-        public EvalValue eval(EvalContext ctx) {
-            return new EvalValue(ctx.resolveIdentifier(name));
+    /**
+     * 重算输入指纹：版本明细修订号（明细每次写入后递增）与启用规则的ID、顺序、指标键、表达式及更新时间的摘要
+     */
+    private String inputFingerprint(Long itemRevision, List<CalcRule> rules) {
+        StringBuilder input = new StringBuilder().append(itemRevision).append('\n');
+        for (CalcRule rule : rules) {
+            input.append(rule.getId()).append('|').append(rule.getOrderNo()).append('|')
+                    .append(rule.getUpdatedAt()).append('|').append(rule.getIndicatorKey()).append('|')
+                    .append(rule.getExpression()).append('\n');
         }
-
-        @Override
-        public String toString() {
-            return name;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(input.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 不可用", e);
         }
     }
 
-    private static class UnaryExpr implements Expr {
-        private final String op;
-        private final Expr expr;
-
-        private UnaryExpr(String op, Expr expr) {
-            this.op = op;
-            this.expr = expr;
-        }
-
-        @Override
-        public EvalValue eval(EvalContext ctx) {
-            BigDecimal value = expr.eval(ctx).asNumber();
-            if ("-".equals(op)) {
-                return new EvalValue(value.negate());
-            }
-            return new EvalValue(value);
-        }
-
-        @Override
-        public String toString() {
-            return op + expr;
-        }
+    private IndicatorValueDto toDto(IndicatorValue value, CalcRule rule) {
+        String expression = rule != null ? rule.getExpression() : null;
+        String name = value.getIndicatorKey();
+        return new IndicatorValueDto(value.getIndicatorKey(), name, value.getValue(),
+                value.getUnit(), expression, value.getCalcTime());
     }
 
-    private static class BinaryExpr implements Expr {
-        private final String op;
-        private final Expr left;
-        private final Expr right;
-
-        private BinaryExpr(String op, Expr left, Expr right) {
-            this.op = op;
-            this.left = left;
-            this.right = right;
-        }
-
-        @Override
-        public EvalValue eval(EvalContext ctx) {
-            BigDecimal leftValue = left.eval(ctx).asNumber();
-            BigDecimal rightValue = right.eval(ctx).asNumber();
-            switch (op) {
-                case "+":
-                    return new EvalValue(leftValue.add(rightValue));
-                case "-":
-                    return new EvalValue(leftValue.subtract(rightValue));
-                case "*":
-                    return new EvalValue(leftValue.multiply(rightValue));
-                case "/":
-                    if (rightValue.compareTo(BigDecimal.ZERO) == 0) {
-                        return new EvalValue(BigDecimal.ZERO);
-                    }
-                    return new EvalValue(leftValue.divide(rightValue, 10, RoundingMode.HALF_UP));
-                default:
-                    return new EvalValue(BigDecimal.ZERO);
-            }
+    @Transactional(readOnly = true)
+    public Map<String, Object> getTrace(Long userId, Long versionId, String indicatorKey) {
+        FormVersion version = loadVersionWithAccess(userId, versionId);
+        IndicatorValue value = indicatorValueRepository.findByVersionIdAndIndicatorKey(version.getId(), indicatorKey)
+                .orElseThrow(() -> BusinessException.notFound("指标不存在"));
+        if (value.getTraceJson() == null || value.getTraceJson().isBlank()) {
+            return Collections.emptyMap();
         }
-
-        @Override
-        public String toString() {
-            return "(" + left + " " + op + " " + right + ")";
+        try {
+            return expandTrace(version, objectMapper.readValue(value.getTraceJson(), Map.class));
+        } catch (JsonProcessingException e) {
+            return Collections.emptyMap();
         }
     }
-
-    private static class SumExpr implements Expr {
-        private final Expr expr;
-        private final Condition condition;
-
-        private SumExpr(Expr expr, Condition condition) {
-            this.expr = expr;
-            this.condition = condition;
-        }
 
-        @Override
-        public EvalValue eval(EvalContext ctx) {
-            BigDecimal sum = BigDecimal.ZERO;
-            List<Long> ids = new ArrayList<>();
-            int count = 0;
-            for (LineItem item : ctx.getLineItems()) {
-                ctx.setCurrentItem(item);
-                if (condition == null || condition.test(ctx)) {
-                    BigDecimal value = expr.eval(ctx).asNumber();
-                    sum = sum.add(value);
-                    count++;
-                    if (item.getId() != null) {
-                        ids.add(item.getId());
+    /**
+     * 将紧凑追溯展开为完整结构：按集合引用还原各 SUM 的 itemIds，下推求值的 SUM 按条件回查明细，
+     * 并汇总 matched_line_item_ids。旧格式追溯（已内联 itemIds）原样返回
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> expandTrace(FormVersion version, Map<String, Object> trace) {
+        if (trace.containsKey("matched_line_item_ids")) {
+            return trace;
+        }
+        TraceItemSets itemSets = null;
+        Map<String, List<Long>> pushdownItemIds = null;
+        Set<Long> matched = new LinkedHashSet<>();
+        Object intermediate = trace.get("intermediate");
+        if (intermediate instanceof List) {
+            for (Object entry : (List<?>) intermediate) {
+                Map<String, Object> item = (Map<String, Object>) entry;
+                Object ref = item.remove("itemSet");
+                List<Long> itemIds;
+                if (Boolean.TRUE.equals(item.remove("pushdown"))) {
+                    if (pushdownItemIds == null) {
+                        pushdownItemIds = loadPushdownItemIds(version, trace);
                     }
+                    itemIds = pushdownItemIds.get(String.valueOf(item.get("expression")));
+                } else if (ref != null) {
+                    if (itemSets == null) {
+                        itemSets = loadTraceItemSets(version.getId());
+                    }
+                    itemIds = itemSets.get(ref.toString());
+                } else {
+                    continue;
+                }
+                item.put("itemIds", itemIds != null ? itemIds : Collections.emptyList());
+                if (itemIds != null) {
+                    matched.addAll(itemIds);
                 }
             }
-            ctx.setCurrentItem(null);
-
-            String fieldText = expr.toString();
-            String conditionText = condition == null ? null : condition.toString();
-            String expressionText = "SUM(" + fieldText + (conditionText == null ? "" : " WHERE " + conditionText) + ")";
-            ctx.addSumTrace(new SumTrace(expressionText, fieldText, conditionText, count, sum, ids));
-            return new EvalValue(sum);
-        }
-
-        @Override
-        public String toString() {
-            return "SUM(" + expr + (condition == null ? "" : " WHERE " + condition) + ")";
         }
+        trace.put("matched_line_item_ids", new ArrayList<>(matched));
+        return trace;
     }
 
-    private static class RoundExpr implements Expr {
-        private final Expr expr;
-        private final Expr scale;
-
-        private RoundExpr(Expr expr, Expr scale) {
-            this.expr = expr;
-            this.scale = scale;
-        }
-
-        @Override
-        public EvalValue eval(EvalContext ctx) {
-            BigDecimal value = expr.eval(ctx).asNumber();
-            int scaleValue = scale.eval(ctx).asNumber().intValue();
-            return new EvalValue(value.setScale(scaleValue, RoundingMode.HALF_UP));
+    /**
+     * 回查下推 SUM 命中的明细ID。规则在计算后已被修改或删除时无法还原条件，返回空结果
+     */
+    private Map<String, List<Long>> loadPushdownItemIds(FormVersion version, Map<String, Object> trace) {
+        if (!(trace.get("rule_id") instanceof Number)) {
+            return Collections.emptyMap();
         }
-
-        @Override
-        public String toString() {
-            return "ROUND(" + expr + ", " + scale + ")";
+        Optional<CalcRule> rule = calcRuleRepository.findById(((Number) trace.get("rule_id")).longValue())
+                .filter(candidate -> Objects.equals(candidate.getTemplateId(), version.getTemplateId())
+                        && Objects.equals(candidate.getExpression(), trace.get("expression")));
+        Expr expr = rule.isPresent() ? calcRuleCompiler.compile(rule.get()).getExpr() : null;
+        if (expr == null) {
+            return Collections.emptyMap();
         }
+        return SumPushdown.matchedItemIds(
+                SumPushdown.sums(Collections.singletonList(expr)), lineItemRepository, version.getId());
     }
 
-    private static class IfExpr implements Expr {
-        private final Condition condition;
-        private final Expr trueExpr;
-        private final Expr falseExpr;
-
-        private IfExpr(Condition condition, Expr trueExpr, Expr falseExpr) {
-            this.condition = condition;
-            this.trueExpr = trueExpr;
-            this.falseExpr = falseExpr;
-        }
-
-        @Override
-        public EvalValue eval(EvalContext ctx) {
-            if (condition == null) {
-                return falseExpr.eval(ctx);
-            }
-            if (condition.test(ctx)) {
-                return trueExpr.eval(ctx);
-            }
-            return falseExpr.eval(ctx);
-        }
-
-        @Override
-        public String toString() {
-            return "IF(" + condition + ", " + trueExpr + ", " + falseExpr + ")";
+    /**
+     * 读取版本的追溯明细集合池，不存在或数据损坏时返回空池
+     */
+    TraceItemSets loadTraceItemSets(Long versionId) {
+        try {
+            return calcTraceRepository.findByVersionId(versionId)
+                    .map(trace -> TraceItemSets.decode(trace.getItemSets()))
+                    .orElseGet(TraceItemSets::new);
+        } catch (IllegalArgumentException ex) {
+            return new TraceItemSets();
         }
     }
-
-    private static class CompareCondition implements Condition {
-        private final Expr left;
-        private final Expr right;
-        private final String op;
-
-        private CompareCondition(Expr left, Expr right, String op) {
-            this.left = left;
-            this.right = right;
-            this.op = op;
-        }
 
-        @Override
-        public boolean test(EvalContext ctx) {
-            EvalValue leftValue = left.eval(ctx);
-            EvalValue rightValue = right.eval(ctx);
-            switch (op) {
-                case "=":
-                case "==":
-                    return equalsValue(leftValue, rightValue);
-                case "!=":
-                    return !equalsValue(leftValue, rightValue);
-                case ">":
-                    return compareNumber(leftValue, rightValue) > 0;
-                case ">=":
-                    return compareNumber(leftValue, rightValue) >= 0;
-                case "<":
-                    return compareNumber(leftValue, rightValue) < 0;
-                case "<=":
-                    return compareNumber(leftValue, rightValue) <= 0;
-                default:
-                    return false;
-            }
-        }
-
-        private boolean equalsValue(EvalValue leftValue, EvalValue rightValue) {
-            if (leftValue.isString() || rightValue.isString()) {
-                String lv = leftValue.asString();
-                String rv = rightValue.asString();
-                if (lv == null || rv == null) {
-                    return false;
-                }
-                return lv.equals(rv);
-            }
-            return leftValue.asNumber().compareTo(rightValue.asNumber()) == 0;
-        }
-
-        private int compareNumber(EvalValue leftValue, EvalValue rightValue) {
-            return leftValue.asNumber().compareTo(rightValue.asNumber());
-        }
-
-        @Override
-        public String toString() {
-            return left + " " + op + " " + right;
-        }
+    void saveTraceItemSets(Long versionId, TraceItemSets itemSets) {
+        calcTraceRepository.upsert(versionId, itemSets.encode());
     }
 
-    private static class InCondition implements Condition {
-        private final Expr left;
-        private final List<Expr> options;
-
-        private InCondition(Expr left, List<Expr> options) {
-            this.left = left;
-            this.options = options == null ? Collections.emptyList() : options;
+    /**
+     * 共享聚合扫描计入整次重算的预算，超限时不归属任何规则
+     */
+    private Map<SumExpr, SumTrace> fuseSums(List<Expr> exprs, Set<String> indicatorKeys, LineItemSnapshot snapshot,
+                                            EvalBudget budget) {
+        try {
+            return FusedSumEvaluator.evaluate(exprs, indicatorKeys, snapshot, compiledBackendEnabled,
+                    budget.child(0, 0, 0), parallelScan());
+        } catch (EvalBudget.Exceeded ex) {
+            throw CalcBudgetExceededException.of(null, ex);
         }
+    }
 
-        @Override
-        public boolean test(EvalContext ctx) {
-            EvalValue leftValue = left.eval(ctx);
-            for (Expr option : options) {
-                EvalValue rightValue = option.eval(ctx);
-                if (leftValue.isString() || rightValue.isString()) {
-                    String lv = leftValue.asString();
-                    String rv = rightValue.asString();
-                    if (lv != null && lv.equals(rv)) {
-                        return true;
-                    }
-                } else if (leftValue.asNumber().compareTo(rightValue.asNumber()) == 0) {
-                    return true;
+    /**
+     * 按依赖层级求值：同层规则互不依赖，明细量达到阈值时在计算线程池上并行执行。
+     * 每条规则只看到其依赖指标的值，结果与按顺序逐条求值一致。
+     */
+    private EvalResult[] evaluateRules(Evaluation evaluation) {
+        boolean parallel = parallelEnabled && evaluation.snapshot.size() >= parallelMinRows;
+        for (List<Integer> level : evaluation.graph.getLevels()) {
+            if (!parallel || level.size() < 2) {
+                for (Integer index : level) {
+                    evaluation.results[index] = evaluateRule(evaluation, index);
                 }
+                continue;
             }
-            return false;
-        }
-
-        @Override
-        public String toString() {
-            StringBuilder builder = new StringBuilder();
-            builder.append(left).append(" IN (");
-            for (int i = 0; i < options.size(); i++) {
-                if (i > 0) {
-                    builder.append(", ");
-                }
-                builder.append(options.get(i));
+            List<Callable<EvalResult>> tasks = new ArrayList<>(level.size());
+            for (Integer index : level) {
+                tasks.add(() -> evaluateRule(evaluation, index));
             }
-            builder.append(")");
-            return builder.toString();
-        }
-    }
-
-    private static class LogicalCondition implements Condition {
-        private final String op;
-        private final Condition left;
-        private final Condition right;
-
-        private LogicalCondition(String op, Condition left, Condition right) {
-            this.op = op;
-            this.left = left;
-            this.right = right;
-        }
-
-        @Override
-        public boolean test(EvalContext ctx) {
-            if ("AND".equals(op)) {
-                return left.test(ctx) && right.test(ctx);
+            List<Future<EvalResult>> futures = calcForkJoinPool.invokeAll(tasks);
+            for (int n = 0; n < level.size(); n++) {
+                evaluation.results[level.get(n)] = await(futures.get(n));
             }
-            return left.test(ctx) || right.test(ctx);
-        }
-
-        @Override
-        public String toString() {
-            return "(" + left + " " + op + " " + right + ")";
         }
+        return evaluation.results;
     }
 
-    private static class TruthyCondition implements Condition {
-        private final Expr expr;
-
-        private TruthyCondition(Expr expr) {
-            this.expr = expr;
-        }
+    /**
+     * 每条规则使用由整次重算预算派生的单条规则预算，超限时以规则为单位报错；开销计入进度，接近预算时记录告警
+     */
+    private EvalResult evaluateRule(Evaluation evaluation, int index) {
+        IndicatorGraph graph = evaluation.graph;
+        CalcRule rule = evaluation.rules.get(index);
+        Map<String, BigDecimal> indicatorMap = new HashMap<>();
+        for (int dep : graph.getDependencies(index)) {
+            indicatorMap.put(graph.getKey(dep), evaluation.results[dep].getValue());
+        }
+        EvalContext ctx = new EvalContext(evaluation.snapshot, indicatorMap, evaluation.fusedSums);
+        ctx.setCompiledBackend(compiledBackendEnabled);
+        ctx.setParallelScan(parallelScan());
+        EvalBudget budget = evaluation.budget.child(ruleMaxNodes, ruleMaxRows, ruleTimeoutMs);
+        ctx.setBudget(budget);
+        EvalResult result;
+        try {
+            result = ExpressionEvaluator.evaluate(evaluation.exprs.get(index), ctx);
+            budget.settle();
+        } catch (EvalBudget.Exceeded ex) {
+            throw CalcBudgetExceededException.of(rule, ex);
+        }
+        long evalNanos = budget.elapsedNanos();
+        RuleCostDto cost = ruleCost(rule, budget, evalNanos, evaluation.parseMicros[index], result);
+        evaluation.costs[index] = cost;
+        evaluation.evalNanos[index] = evalNanos;
+        if (nearLimit(cost.getNodes(), ruleMaxNodes) || nearLimit(cost.getRows(), ruleMaxRows)
+                || nearLimit(cost.getElapsedMillis(), ruleTimeoutMs)) {
+            log.warn("规则求值开销接近预算: indicatorKey={}, ruleId={}, nodes={}, rows={}, elapsedMs={}",
+                    rule.getIndicatorKey(), rule.getId(), cost.getNodes(), cost.getRows(), cost.getElapsedMillis());
+        }
+        evaluation.progress.ruleEvaluated(cost);
+        return result;
+    }
 
-        @Override
-        public boolean test(EvalContext ctx) {
-            return expr.eval(ctx).asBoolean();
-        }
+    /**
+     * 由已结算的规则预算生成求值开销，rows_matched 取各聚合命中行数之和
+     */
+    static RuleCostDto ruleCost(CalcRule rule, EvalBudget budget, long evalNanos, long parseMicros,
+                                EvalResult result) {
+        RuleCostDto cost = new RuleCostDto(rule.getId(), rule.getIndicatorKey(),
+                budget.getNodes(), budget.getRows(), evalNanos / 1_000_000L);
+        cost.setParseMicros(parseMicros);
+        long matchedRows = 0;
+        for (SumTrace sumTrace : result.getSumTraces()) {
+            matchedRows += sumTrace.getCount();
+        }
+        cost.setMatchedRows(matchedRows);
+        return cost;
+    }
 
-        @Override
-        public String toString() {
-            return expr.toString();
-        }
+    /**
+     * 单个 SUM 的候选行达到 sum-parallel-min-rows 时在计算线程池上分段并行扫描，与规则层级并行共用同一开关
+     */
+    private ParallelScan parallelScan() {
+        return parallelEnabled ? new ParallelScan(calcForkJoinPool, sumParallelMinRows) : null;
     }
 
-    private static class ExpressionEvaluator {
-        private ExpressionEvaluator() {}
+    private static boolean nearLimit(long used, long max) {
+        return max > 0 && used * 2 > max;
+    }
 
-        public static EvalResult evaluate(String expression, EvalContext ctx) {
-            if (expression == null || expression.isBlank()) {
-                return new EvalResult(BigDecimal.ZERO, Collections.emptyList());
-            }
-            try {
-                Parser parser = new Parser(expression);
-                Expr expr = parser.parseExpression();
-                parser.expectEnd();
-                BigDecimal value = expr.eval(ctx).asNumber();
-                return new EvalResult(value, ctx.getSumTraces());
-            } catch (RuntimeException ex) {
-                throw BusinessException.conflict("规则表达式解析失败: " + ex.getMessage());
+    private EvalResult await(Future<EvalResult> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw BusinessException.conflict("指标计算被中断");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw BusinessException.conflict("规则表达式计算失败: " + e.getCause().getMessage());
         }
     }
-
-    private enum TokenType {
-        IDENT, NUMBER, STRING, OP, COMMA, LPAREN, RPAREN, EOF
-    }
 
-    private static class Token {
-        private final TokenType type;
-        private final String text;
-
-        private Token(TokenType type, String text) {
-            this.type = type;
-            this.text = text;
-        }
+    public RuleCacheStatsDto getRuleCacheStats() {
+        return calcRuleCompiler.getStats();
     }
 
-    private static class Tokenizer {
-        private final String input;
-        private final int length;
-        private int index;
-
-        private Tokenizer(String input) {
-            this.input = input == null ? "" : input;
-            this.length = this.input.length();
-        }
-
-        public List<Token> tokenize() {
-            List<Token> tokens = new ArrayList<>();
-            while (index < length) {
-                char ch = input.charAt(index);
-                if (Character.isWhitespace(ch)) {
-                    index++;
-                    continue;
-                }
-                if (isIdentifierStart(ch)) {
-                    tokens.add(readIdentifier());
-                    continue;
-                }
-                if (Character.isDigit(ch)) {
-                    tokens.add(readNumber());
-                    continue;
-                }
-                if (ch == '\'' || ch == '"') {
-                    tokens.add(readString(ch));
-                    continue;
-                }
-                if (ch == '(') {
-                    tokens.add(new Token(TokenType.LPAREN, "("));
-                    index++;
-                    continue;
-                }
-                if (ch == ')') {
-                    tokens.add(new Token(TokenType.RPAREN, ")"));
-                    index++;
-                    continue;
-                }
-                if (ch == ',') {
-                    tokens.add(new Token(TokenType.COMMA, ","));
-                    index++;
-                    continue;
-                }
-                String op = readOperator();
-                if (op != null) {
-                    tokens.add(new Token(TokenType.OP, op));
-                    continue;
-                }
-                index++;
-            }
-            tokens.add(new Token(TokenType.EOF, ""));
-            return tokens;
-        }
-
-        private boolean isIdentifierStart(char ch) {
-            return Character.isLetter(ch) || ch == '_' || ch == '.';
-        }
+    /**
+     * 统计窗口内跨模板最慢的规则
+     */
+    public List<SlowRuleDto> getSlowRules(int limit) {
+        return ruleProfiler.slowestRules(Math.max(1, Math.min(limit, 100)));
+    }
 
-        private boolean isIdentifierPart(char ch) {
-            return Character.isLetterOrDigit(ch) || ch == '_' || ch == '.';
-        }
+    /**
+     * 构建紧凑追溯：SUM 命中的明细ID列表存入集合池，追溯中只记录集合引用（itemSet）；
+     * 下推求值的 SUM 不含明细ID，只记录 pushdown 标记
+     */
+    private String buildTrace(CalcRule rule, EvalResult evalResult, TraceItemSets itemSets) {
+        return writeTrace(traceMap(rule, evalResult, itemSets));
+    }
 
-        private Token readIdentifier() {
-            int start = index;
-            index++;
-            while (index < length && isIdentifierPart(input.charAt(index))) {
-                index++;
-            }
-            return new Token(TokenType.IDENT, input.substring(start, index));
-        }
+    /**
+     * 构建带求值画像的追溯，画像格式与全量重算一致，trace_bytes 为不含画像的追溯字节数
+     */
+    String buildProfiledTrace(CalcRule rule, EvalResult evalResult, TraceItemSets itemSets, RuleCostDto cost) {
+        Map<String, Object> trace = traceMap(rule, evalResult, itemSets);
+        cost.setTraceBytes(byteLength(writeTrace(trace)));
+        trace.put("profile", traceProfile(cost));
+        return writeTrace(trace);
+    }
 
-        private Token readNumber() {
-            int start = index;
-            index++;
-            boolean hasDot = false;
-            while (index < length) {
-                char ch = input.charAt(index);
-                if (Character.isDigit(ch)) {
-                    index++;
-                    continue;
-                }
-                if (ch == '.' && !hasDot) {
-                    hasDot = true;
-                    index++;
-                    continue;
-                }
-                break;
-            }
-            return new Token(TokenType.NUMBER, input.substring(start, index));
-        }
+    private Map<String, Object> traceMap(CalcRule rule, EvalResult evalResult, TraceItemSets itemSets) {
+        Map<String, Object> trace = new LinkedHashMap<>();
+        trace.put("rule_id", rule.getId());
+        trace.put("expression", rule.getExpression());
+        trace.put("result", evalResult.getValue());
 
-        private Token readString(char quote) {
-            index++;
-            StringBuilder builder = new StringBuilder();
-            while (index < length) {
-                char ch = input.charAt(index);
-                if (ch == '\\' && index + 1 < length) {
-                    builder.append(input.charAt(index + 1));
-                    index += 2;
-                    continue;
-                }
-                if (ch == quote) {
-                    index++;
-                    break;
-                }
-                builder.append(ch);
-                index++;
+        List<Map<String, Object>> intermediate = new ArrayList<>();
+        for (SumTrace sumTrace : evalResult.getSumTraces()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("type", sumTrace.getFunction());
+            item.put("expression", sumTrace.getExpression());
+            item.put("field", sumTrace.getField());
+            item.put("condition", sumTrace.getCondition());
+            item.put("count", sumTrace.getCount());
+            item.put("value", sumTrace.getValue());
+            if (sumTrace.getItemIds() == null) {
+                item.put("pushdown", true);
+            } else {
+                item.put("itemSet", itemSets.add(sumTrace.getItemIds()));
             }
-            return new Token(TokenType.STRING, builder.toString());
+            intermediate.add(item);
         }
+        trace.put("intermediate", intermediate);
+        return trace;
+    }
 
-        private String readOperator() {
-            if (index >= length) {
-                return null;
-            }
-            char ch = input.charAt(index);
-            if (ch == '>' || ch == '<' || ch == '!') {
-                if (index + 1 < length && input.charAt(index + 1) == '=') {
-                    index += 2;
-                    return "" + ch + "=";
-                }
-                index++;
-                return String.valueOf(ch);
-            }
-            if (ch == '=' || ch == '+' || ch == '-' || ch == '*' || ch == '/') {
-                index++;
-                return String.valueOf(ch);
-            }
+    private String writeTrace(Map<String, Object> trace) {
+        try {
+            return objectMapper.writeValueAsString(trace);
+        } catch (JsonProcessingException e) {
             return null;
         }
     }
-
-    private static class Parser {
-        private final List<Token> tokens;
-        private int pos;
-
-        private Parser(String expression) {
-            this.tokens = new Tokenizer(expression).tokenize();
-        }
-
-        private Token peek() {
-            return tokens.get(pos);
-        }
-
-        private Token advance() {
-            return tokens.get(pos++);
-        }
-
-        private boolean match(TokenType type) {
-            if (peek().type == type) {
-                pos++;
-                return true;
-            }
-            return false;
-        }
-
-        private boolean matchOp(String op) {
-            if (peek().type == TokenType.OP && peek().text.equals(op)) {
-                pos++;
-                return true;
-            }
-            return false;
-        }
-
-        private boolean matchKeyword(String keyword) {
-            if (peek().type == TokenType.IDENT && keyword.equalsIgnoreCase(peek().text)) {
-                pos++;
-                return true;
-            }
-            return false;
-        }
-
-        private Token expect(TokenType type, String message) {
-            if (peek().type != type) {
-                throw new IllegalArgumentException(message);
-            }
-            return advance();
-        }
-
-        public void expectEnd() {
-            if (peek().type != TokenType.EOF) {
-                throw new IllegalArgumentException("无法解析表达式");
-            }
-        }
 
-        public Expr parseExpression() {
-            return parseAdditive();
-        }
-
-        private Expr parseAdditive() {
-            Expr expr = parseMultiplicative();
-            while (true) {
-                if (matchOp("+")) {
-                    expr = new BinaryExpr("+", expr, parseMultiplicative());
-                    continue;
-                }
-                if (matchOp("-")) {
-                    expr = new BinaryExpr("-", expr, parseMultiplicative());
-                    continue;
-                }
-                break;
-            }
-            return expr;
-        }
-
-        private Expr parseMultiplicative() {
-            Expr expr = parseUnary();
-            while (true) {
-                if (matchOp("*")) {
-                    expr = new BinaryExpr("*", expr, parseUnary());
-                    continue;
-                }
-                if (matchOp("/")) {
-                    expr = new BinaryExpr("/", expr, parseUnary());
-                    continue;
-                }
-                break;
-            }
-            return expr;
-        }
-
-        private Expr parseUnary() {
-            if (matchOp("+")) {
-                return parseUnary();
-            }
-            if (matchOp("-")) {
-                return new UnaryExpr("-", parseUnary());
-            }
-            return parsePrimary();
-        }
-
-        private Expr parsePrimary() {
-            Token token = peek();
-            if (match(TokenType.NUMBER)) {
-                return new NumberExpr(new BigDecimal(token.text));
-            }
-            if (match(TokenType.STRING)) {
-                return new StringExpr(token.text);
-            }
-            if (match(TokenType.IDENT)) {
-                String name = token.text;
-                if (match(TokenType.LPAREN)) {
-                    return parseFunction(name);
-                }
-                return new IdentifierExpr(name);
-            }
-            if (match(TokenType.LPAREN)) {
-                Expr expr = parseExpression();
-                expect(TokenType.RPAREN, "缺少右括号");
-                return expr;
-            }
-            throw new IllegalArgumentException("无法解析表达式");
-        }
-
-        private Expr parseFunction(String name) {
-            if ("SUM".equalsIgnoreCase(name)) {
-                Expr expr = parseExpression();
-                Condition condition = null;
-                if (matchKeyword("WHERE")) {
-                    condition = parseCondition();
-                }
-                expect(TokenType.RPAREN, "缺少右括号");
-                if (condition == null && matchKeyword("WHERE")) {
-                    condition = parseCondition();
-                }
-                return new SumExpr(expr, condition);
-            }
-            if ("ROUND".equalsIgnoreCase(name)) {
-                Expr expr = parseExpression();
-                expect(TokenType.COMMA, "缺少逗号");
-                Expr scale = parseExpression();
-                expect(TokenType.RPAREN, "缺少右括号");
-                return new RoundExpr(expr, scale);
-            }
-            if ("IF".equalsIgnoreCase(name)) {
-                Condition condition = parseCondition();
-                expect(TokenType.COMMA, "缺少逗号");
-                Expr trueExpr = parseExpression();
-                expect(TokenType.COMMA, "缺少逗号");
-                Expr falseExpr = parseExpression();
-                expect(TokenType.RPAREN, "缺少右括号");
-                return new IfExpr(condition, trueExpr, falseExpr);
-            }
-            throw new IllegalArgumentException("未知函数: " + name);
-        }
-
-        private Condition parseCondition() {
-            return parseOrCondition();
-        }
-
-        private Condition parseOrCondition() {
-            Condition condition = parseAndCondition();
-            while (matchKeyword("OR")) {
-                condition = new LogicalCondition("OR", condition, parseAndCondition());
-            }
-            return condition;
-        }
-
-        private Condition parseAndCondition() {
-            Condition condition = parseAtomCondition();
-            while (matchKeyword("AND")) {
-                condition = new LogicalCondition("AND", condition, parseAtomCondition());
-            }
-            return condition;
+    private FormVersion loadVersionWithAccess(Long userId, Long versionId) {
+        FormVersion version = formVersionRepository.findById(versionId)
+                .orElseThrow(() -> BusinessException.notFound("版本不存在"));
+        if (!projectRepository.hasAccess(version.getProjectId(), userId)) {
+            throw BusinessException.unauthorized("无权限访问该版本");
         }
+        return version;
+    }
 
-        private Condition parseAtomCondition() {
-            if (match(TokenType.LPAREN)) {
-                Condition condition = parseCondition();
-                expect(TokenType.RPAREN, "缺少右括号");
-                return condition;
-            }
-            return parseComparison();
+    private void ensureDraft(FormVersion version) {
+        if (version.getStatus() != FormVersion.VersionStatus.DRAFT) {
+            throw BusinessException.conflict("仅草稿状态允许重算");
         }
+    }
 
-        private Condition parseComparison() {
-            Expr left = parseExpression();
-            if (matchKeyword("IN")) {
-                expect(TokenType.LPAREN, "缺少左括号");
-                List<Expr> options = new ArrayList<>();
-                if (peek().type != TokenType.RPAREN) {
-                    options.add(parseExpression());
-                    while (match(TokenType.COMMA)) {
-                        options.add(parseExpression());
-                    }
-                }
-                expect(TokenType.RPAREN, "缺少右括号");
-                return new InCondition(left, options);
-            }
-            String op = null;
-            if (matchOp(">=")) {
-                op = ">=";
-            } else if (matchOp("<=")) {
-                op = "<=";
-            } else if (matchOp("!=")) {
-                op = "!=";
-            } else if (matchOp(">")) {
-                op = ">";
-            } else if (matchOp("<")) {
-                op = "<";
-            } else if (matchOp("=")) {
-                op = "=";
-            } else if (matchOp("==")) {
-                op = "==";
-            }
-            if (op != null) {
-                Expr right = parseExpression();
-                return new CompareCondition(left, right, op);
-            }
-            return new TruthyCondition(left);
+    /**
+     * 一次重算中按规则求值所需的共享状态
+     */
+    private static final class Evaluation {
+        private final IndicatorGraph graph;
+        private final List<CalcRule> rules;
+        private final List<Expr> exprs;
+        private final LineItemSnapshot snapshot;
+        private final Map<SumExpr, SumTrace> fusedSums;
+        private final RecalcProgress progress;
+        private final EvalBudget budget;
+        private final long[] parseMicros;
+        private final EvalResult[] results;
+        private final RuleCostDto[] costs;
+        private final long[] evalNanos;
+
+        private Evaluation(IndicatorGraph graph, List<CalcRule> rules, List<Expr> exprs, LineItemSnapshot snapshot,
+                           Map<SumExpr, SumTrace> fusedSums, RecalcProgress progress, EvalBudget budget,
+                           long[] parseMicros) {
+            this.graph = graph;
+            this.rules = rules;
+            this.exprs = exprs;
+            this.snapshot = snapshot;
+            this.fusedSums = fusedSums;
+            this.progress = progress;
+            this.budget = budget;
+            this.parseMicros = parseMicros;
+            this.results = new EvalResult[graph.size()];
+            this.costs = new RuleCostDto[graph.size()];
+            this.evalNanos = new long[graph.size()];
         }
     }
-}
-
+}
@@ -0,0 +1,312 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.common.exception.BusinessException;
+import com.costsystem.modules.costcalc.dto.IndicatorSimulationDto;
+import com.costsystem.modules.costcalc.entity.CalcRule;
+import com.costsystem.modules.costcalc.entity.IndicatorValue;
+import com.costsystem.modules.costcalc.repository.CalcRuleRepository;
+import com.costsystem.modules.costcalc.repository.IndicatorValueRepository;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalContext;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalResult;
+import com.costsystem.modules.costcalc.service.CalcDsl.Expr;
+import com.costsystem.modules.costcalc.service.CalcDsl.ExpressionEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.FusedSumEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumExpr;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumTrace;
+import com.costsystem.modules.costform.entity.FormVersion;
+import com.costsystem.modules.costform.entity.LineItem;
+import com.costsystem.modules.costform.repository.FormVersionRepository;
+import com.costsystem.modules.costform.repository.LineItemRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * 指标模拟服务
+ * 在版本明细的内存基线上叠加未保存的变更并重算指标，不写入任何数据。
+ * 基线（明细、编译后的规则与各 SUM 结果）按版本缓存，以版本的明细修订号（item_revision）与规则编译结果校验是否过期；
+ * 全部 SUM 可按行分解时只对变更行求差值，否则在叠加后的完整明细上重新计算
+ */
+@Service
+public class CalcSimulationService {
+
+    private static final BigDecimal ZERO = BigDecimal.ZERO.setScale(2);
+
+    private final CalcRuleRepository calcRuleRepository;
+    private final IndicatorValueRepository indicatorValueRepository;
+    private final LineItemRepository lineItemRepository;
+    private final FormVersionRepository formVersionRepository;
+    private final CalcRuleCompiler calcRuleCompiler;
+
+    @Value("${cost-system.calc.simulation-cache-size:16}")
+    private int simulationCacheSize = 16;
+
+    private final Map<Long, Baseline> baselines = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Baseline> eldest) {
+            return size() > simulationCacheSize;
+        }
+    };
+
+    public CalcSimulationService(CalcRuleRepository calcRuleRepository,
+                                 IndicatorValueRepository indicatorValueRepository,
+                                 LineItemRepository lineItemRepository,
+                                 FormVersionRepository formVersionRepository,
+                                 CalcRuleCompiler calcRuleCompiler) {
+        this.calcRuleRepository = calcRuleRepository;
+        this.indicatorValueRepository = indicatorValueRepository;
+        this.lineItemRepository = lineItemRepository;
+        this.formVersionRepository = formVersionRepository;
+        this.calcRuleCompiler = calcRuleCompiler;
+    }
+
+    /**
+     * 模拟明细变更后的指标（调用方负责权限与状态校验）
+     *
+     * @param deletedIds 待删除的明细ID
+     * @param patch      接收只读的当前明细（按ID索引），返回变更后的明细：带ID的行替换原行，不带ID的行作为新增
+     */
+    @Transactional(readOnly = true)
+    public List<IndicatorSimulationDto> simulate(FormVersion version, Collection<Long> deletedIds,
+                                                 Function<Map<Long, LineItem>, List<LineItem>> patch) {
+        Baseline baseline = loadBaseline(version);
+        Set<Long> deleted = deletedIds == null ? Collections.emptySet() : new HashSet<>(deletedIds);
+        List<LineItem> before = new ArrayList<>();
+        for (Long id : deleted) {
+            LineItem item = baseline.items.get(id);
+            if (item == null) {
+                throw BusinessException.notFound("明细不存在");
+            }
+            before.add(item);
+        }
+        List<LineItem> after = new ArrayList<>();
+        for (LineItem item : patch.apply(baseline.items)) {
+            if (item.getId() != null && deleted.contains(item.getId())) {
+                continue;
+            }
+            if (item.getId() != null) {
+                before.add(baseline.items.get(item.getId()));
+            }
+            after.add(item);
+        }
+
+        Map<String, BigDecimal> simulated;
+        if (before.isEmpty() && after.isEmpty()) {
+            simulated = baseline.values;
+        } else if (baseline.decomposable) {
+            simulated = evaluate(baseline, LineItemSnapshot.of(null, null), applyDelta(baseline, before, after));
+        } else {
+            Map<Long, LineItem> overlay = new LinkedHashMap<>(baseline.items);
+            overlay.keySet().removeAll(deleted);
+            List<LineItem> created = new ArrayList<>();
+            for (LineItem item : after) {
+                if (item.getId() != null) {
+                    overlay.put(item.getId(), item);
+                } else {
+                    created.add(item);
+                }
+            }
+            List<LineItem> items = new ArrayList<>(overlay.values());
+            items.addAll(created);
+            LineItemSnapshot snapshot = LineItemSnapshot.of(items, baseline.extPaths);
+            simulated = evaluate(baseline, snapshot,
+                    FusedSumEvaluator.evaluate(baseline.nonNullExprs(), baseline.keySet(), snapshot));
+        }
+
+        // 分组指标可能只出现在一侧，缺失的一侧按 0 处理
+        Set<String> keys = new TreeSet<>(baseline.values.keySet());
+        keys.addAll(simulated.keySet());
+        List<IndicatorSimulationDto> result = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            CalcRule rule = CalcService.ruleOf(baseline.ruleMap, key);
+            result.add(new IndicatorSimulationDto(key, key,
+                    baseline.values.getOrDefault(key, ZERO), simulated.getOrDefault(key, ZERO),
+                    baseline.units.get(key), rule.getExpression()));
+        }
+        return result;
+    }
+
+    /**
+     * 明细保存或删除后丢弃版本基线；处于事务中时在提交后执行，避免并发模拟用未提交前的数据重建基线
+     */
+    public void evict(Long versionId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            removeBaseline(versionId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                removeBaseline(versionId);
+            }
+        });
+    }
+
+    private void removeBaseline(Long versionId) {
+        synchronized (baselines) {
+            baselines.remove(versionId);
+        }
+    }
+
+    /**
+     * 读取缓存的版本基线，明细修订号变化或规则被修改时重建。明细每次增删改都在同一事务内递增修订号，
+     * 先取修订号再读明细，读取期间发生的变更只会使基线比修订号新，下次调用时按过期处理
+     */
+    private Baseline loadBaseline(FormVersion version) {
+        Long versionId = version.getId();
+        Long revision = formVersionRepository.findItemRevisionById(versionId);
+        List<CalcRule> rules = calcRuleRepository
+                .findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(version.getTemplateId(), true);
+        List<Expr> exprs = new ArrayList<>(rules.size());
+        for (CalcRule rule : rules) {
+            exprs.add(calcRuleCompiler.compile(rule).getExpr());
+        }
+        Baseline cached;
+        synchronized (baselines) {
+            cached = baselines.get(versionId);
+        }
+        if (cached != null && cached.matches(revision, rules, exprs)) {
+            return cached;
+        }
+        Baseline baseline = buildBaseline(versionId, revision, rules, exprs);
+        synchronized (baselines) {
+            baselines.put(versionId, baseline);
+        }
+        return baseline;
+    }
+
+    private Baseline buildBaseline(Long versionId, Long revision, List<CalcRule> rules, List<Expr> exprs) {
+        Map<Long, LineItem> items = new LinkedHashMap<>();
+        for (LineItem item : lineItemRepository.findByVersionId(versionId)) {
+            items.put(item.getId(), item);
+        }
+        Map<String, String> units = new HashMap<>();
+        for (IndicatorValue value : indicatorValueRepository.findByVersionIdOrderByIndicatorKeyAsc(versionId)) {
+            units.put(value.getIndicatorKey(), value.getUnit());
+        }
+        Baseline baseline = new Baseline(revision, rules, exprs, Collections.unmodifiableMap(items), units);
+        LineItemSnapshot snapshot = LineItemSnapshot.of(new ArrayList<>(items.values()), baseline.extPaths);
+        baseline.sums = FusedSumEvaluator.evaluate(baseline.nonNullExprs(), baseline.keySet(), snapshot);
+        baseline.values = evaluate(baseline, snapshot, baseline.sums);
+        return baseline;
+    }
+
+    /**
+     * 基线 SUM 减去变更前各行、加上变更后各行的贡献，只需对变更行求值
+     */
+    private Map<SumExpr, SumTrace> applyDelta(Baseline baseline, List<LineItem> before, List<LineItem> after) {
+        Map<SumExpr, SumTrace> removed = FusedSumEvaluator.evaluate(baseline.nonNullExprs(), baseline.keySet(),
+                LineItemSnapshot.of(before, baseline.extPaths));
+        Map<SumExpr, SumTrace> added = FusedSumEvaluator.evaluate(baseline.nonNullExprs(), baseline.keySet(),
+                LineItemSnapshot.of(after, baseline.extPaths));
+        Map<SumExpr, SumTrace> sums = new IdentityHashMap<>();
+        for (Map.Entry<SumExpr, SumTrace> entry : baseline.sums.entrySet()) {
+            SumTrace base = entry.getValue();
+            SumTrace minus = removed.get(entry.getKey());
+            SumTrace plus = added.get(entry.getKey());
+            sums.put(entry.getKey(), new SumTrace(base.getExpression(), base.getField(), base.getCondition(),
+                    base.getCount() - minus.getCount() + plus.getCount(),
+                    base.getValue().subtract(minus.getValue()).add(plus.getValue()),
+                    Collections.emptyList()));
+        }
+        return sums;
+    }
+
+    /**
+     * 按规则顺序求值，规则只读取排在其前面的指标，与重算的依赖层级求值结果一致；同键规则以后出现者为准，
+     * 分组指标与规则指标同键时以规则为准
+     */
+    private Map<String, BigDecimal> evaluate(Baseline baseline, LineItemSnapshot snapshot,
+                                             Map<SumExpr, SumTrace> sums) {
+        Map<String, BigDecimal> indicatorMap = new HashMap<>();
+        Map<String, BigDecimal> values = new TreeMap<>();
+        Map<String, BigDecimal> members = new HashMap<>();
+        for (int i = 0; i < baseline.rules.size(); i++) {
+            String key = baseline.rules.get(i).getIndicatorKey();
+            EvalResult evalResult = ExpressionEvaluator.evaluate(baseline.exprs.get(i),
+                    new EvalContext(snapshot, indicatorMap, sums));
+            BigDecimal value = evalResult.getValue();
+            indicatorMap.put(key, value);
+            values.put(key, value == null ? BigDecimal.ZERO : value.setScale(2, RoundingMode.HALF_UP));
+            for (Map.Entry<String, SumTrace> group : evalResult.getGroups().entrySet()) {
+                members.put(CalcService.groupMemberKey(key, group.getKey()),
+                        group.getValue().getValue().setScale(2, RoundingMode.HALF_UP));
+            }
+        }
+        for (Map.Entry<String, BigDecimal> member : members.entrySet()) {
+            values.putIfAbsent(member.getKey(), member.getValue());
+        }
+        return values;
+    }
+
+    /**
+     * 版本模拟基线，构建完成后只读，可被并发请求共享
+     */
+    private static class Baseline {
+        private final Long revision;
+        private final List<CalcRule> rules;
+        private final List<Expr> exprs;
+        private final Map<Long, LineItem> items;
+        private final Map<String, String> units;
+        private final Map<String, CalcRule> ruleMap = new HashMap<>();
+        private final Set<String> extPaths;
+        private final boolean decomposable;
+        private Map<SumExpr, SumTrace> sums;
+        private Map<String, BigDecimal> values;
+
+        Baseline(Long revision, List<CalcRule> rules, List<Expr> exprs,
+                 Map<Long, LineItem> items, Map<String, String> units) {
+            this.revision = revision;
+            this.rules = rules;
+            this.exprs = exprs;
+            this.items = items;
+            this.units = units;
+            for (CalcRule rule : rules) {
+                ruleMap.put(rule.getIndicatorKey(), rule);
+            }
+            this.extPaths = CalcDsl.collectExtPaths(nonNullExprs());
+            boolean allDecomposable = true;
+            for (Expr expr : exprs) {
+                if (expr != null && !FusedSumEvaluator.isDecomposable(expr, ruleMap.keySet())) {
+                    allDecomposable = false;
+                }
+            }
+            this.decomposable = allDecomposable;
+        }
+
+        boolean matches(Long currentRevision, List<CalcRule> currentRules, List<Expr> currentExprs) {
+            if (!Objects.equals(revision, currentRevision) || currentRules.size() != rules.size()) {
+                return false;
+            }
+            for (int i = 0; i < rules.size(); i++) {
+                if (!Objects.equals(rules.get(i).getId(), currentRules.get(i).getId())
+                        || !Objects.equals(rules.get(i).getIndicatorKey(), currentRules.get(i).getIndicatorKey())
+                        || exprs.get(i) != currentExprs.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        List<Expr> nonNullExprs() {
+            List<Expr> result = new ArrayList<>(exprs.size());
+            for (Expr expr : exprs) {
+                if (expr != null) {
+                    result.add(expr);
+                }
+            }
+            return result;
+        }
+
+        Set<String> keySet() {
+            return ruleMap.keySet();
+        }
+    }
+}
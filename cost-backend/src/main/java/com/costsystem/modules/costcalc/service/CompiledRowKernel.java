@@ -0,0 +1,54 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalContext;
+
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.math.BigDecimal;
+
+/**
+ * 编译后端的 hidden class 模板
+ * 每个编译后的 SUM 以本类字节码定义一个独立的 hidden class，条件与被累加项的 MethodHandle 作为 class data
+ * 存入 static final 字段，JIT 将其视为常量并内联整棵 MethodHandle 树。本类本身不会被直接加载使用。
+ */
+final class CompiledRowKernel implements CalcDsl.RowCompiler.CompiledSum {
+
+    private static final MethodHandle CONDITION;
+    private static final MethodHandle VALUE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            CONDITION = MethodHandles.classDataAt(lookup, ConstantDescs.DEFAULT_NAME, MethodHandle.class, 0);
+            VALUE = MethodHandles.classDataAt(lookup, ConstantDescs.DEFAULT_NAME, MethodHandle.class, 1);
+        } catch (IllegalAccessException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    CompiledRowKernel() {
+    }
+
+    @Override
+    public boolean test(EvalContext ctx, int row) {
+        try {
+            return (boolean) CONDITION.invokeExact(ctx, row);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public BigDecimal value(EvalContext ctx, int row) {
+        try {
+            return (BigDecimal) VALUE.invokeExact(ctx, row);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.dto.RuleCostDto;
+import com.costsystem.modules.costcalc.entity.CalcRule;
+import com.costsystem.modules.costcalc.entity.IndicatorValue;
+import com.costsystem.modules.costcalc.repository.CalcRuleRepository;
+import com.costsystem.modules.costcalc.repository.IndicatorValueRepository;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalBudget;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalContext;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalResult;
+import com.costsystem.modules.costcalc.service.CalcDsl.Expr;
+import com.costsystem.modules.costcalc.service.CalcDsl.ExpressionEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.FusedSumEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumAccumulator;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumExpr;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumTrace;
+import com.costsystem.modules.costform.entity.FormVersion;
+import com.costsystem.modules.costform.entity.LineItem;
+import com.costsystem.modules.costform.repository.FormVersionRepository;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * 指标增量维护服务
+ * 明细保存/删除后，按变更行的前后差值修正已持久化的 SUM 结果，只重算受影响的指标；
+ * 存在无法按行分解的规则或历史追溯信息不完整时，在明细事务提交后经 RecalcCoordinator 提交全量重算，
+ * 不在保存请求内同步执行。增量维护先锁定版本行，与同一版本的其他增量维护及全量重算依次进行。
+ */
+@Service
+public class IncrementalCalcService {
+
+    private static final Logger log = LoggerFactory.getLogger(IncrementalCalcService.class);
+
+    private final CalcRuleRepository calcRuleRepository;
+    private final IndicatorValueRepository indicatorValueRepository;
+    private final FormVersionRepository formVersionRepository;
+    private final CalcRuleCompiler calcRuleCompiler;
+    private final CalcService calcService;
+    private final RecalcCoordinator recalcCoordinator;
+    private final ObjectMapper traceMapper = new ObjectMapper()
+            .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+
+    @Value("${cost-system.calc.incremental-enabled:true}")
+    private boolean incrementalEnabled = true;
+
+    public IncrementalCalcService(CalcRuleRepository calcRuleRepository,
+                                  IndicatorValueRepository indicatorValueRepository,
+                                  FormVersionRepository formVersionRepository,
+                                  CalcRuleCompiler calcRuleCompiler,
+                                  CalcService calcService,
+                                  RecalcCoordinator recalcCoordinator) {
+        this.calcRuleRepository = calcRuleRepository;
+        this.indicatorValueRepository = indicatorValueRepository;
+        this.formVersionRepository = formVersionRepository;
+        this.calcRuleCompiler = calcRuleCompiler;
+        this.calcService = calcService;
+        this.recalcCoordinator = recalcCoordinator;
+    }
+
+    /**
+     * 应用明细变更。版本尚未计算过指标时不做处理，等待显式重算
+     */
+    @Transactional
+    public void applyLineItemChanges(FormVersion version, List<LineItemChange> changes) {
+        if (!incrementalEnabled || version == null || changes == null || changes.isEmpty()) {
+            return;
+        }
+        // 先锁定版本行，再以锁定读取取得最新已提交的指标值作为基准，并发保存不会基于同一基准互相覆盖
+        formVersionRepository.findByIdForUpdate(version.getId());
+        List<IndicatorValue> stored = indicatorValueRepository.findForUpdateByVersionId(version.getId());
+        if (stored.isEmpty()) {
+            return;
+        }
+        List<CalcRule> rules = calcRuleRepository
+                .findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(version.getTemplateId(), true);
+        if (!applyIncrementally(version, rules, stored, changes)) {
+            log.debug("版本 {} 指标无法增量维护，提交后全量重算", version.getId());
+            recalculateAfterCommit(version.getId());
+            return;
+        }
+        calcService.advanceFingerprint(version.getId(), rules);
+    }
+
+    private void recalculateAfterCommit(Long versionId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            submitRecalc(versionId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                submitRecalc(versionId);
+            }
+        });
+    }
+
+    private void submitRecalc(Long versionId) {
+        recalcCoordinator.submit(versionId).whenComplete((indicators, failure) -> {
+            if (failure != null) {
+                log.warn("版本 {} 全量重算失败: {}", versionId, failure.getMessage());
+            }
+        });
+    }
+
+    private boolean applyIncrementally(FormVersion version, List<CalcRule> rules,
+                                       List<IndicatorValue> stored, List<LineItemChange> changes) {
+        Map<String, IndicatorValue> storedByKey = new HashMap<>();
+        for (IndicatorValue value : stored) {
+            storedByKey.put(value.getIndicatorKey(), value);
+        }
+        Set<String> indicatorKeys = new HashSet<>();
+        for (CalcRule rule : rules) {
+            indicatorKeys.add(rule.getIndicatorKey());
+        }
+        if (rules.isEmpty() || indicatorKeys.size() != rules.size() || !indicatorKeys.equals(storedByKey.keySet())) {
+            return false;
+        }
+
+        List<Expr> exprs = new ArrayList<>(rules.size());
+        List<StoredTrace> traces = new ArrayList<>(rules.size());
+        long[] parseMicros = new long[rules.size()];
+        TraceItemSets storedSets = calcService.loadTraceItemSets(version.getId());
+        for (CalcRule rule : rules) {
+            long parseStart = System.nanoTime();
+            Expr expr = calcRuleCompiler.compile(rule).getExpr();
+            parseMicros[exprs.size()] = (System.nanoTime() - parseStart) / 1_000L;
+            if (expr != null && !FusedSumEvaluator.isDecomposable(expr, indicatorKeys)) {
+                return false;
+            }
+            StoredTrace trace = StoredTrace.parse(traceMapper, storedByKey.get(rule.getIndicatorKey()), storedSets);
+            if (trace == null || !trace.matches(rule)) {
+                return false;
+            }
+            exprs.add(expr);
+            traces.add(trace);
+        }
+
+        LineItemSnapshot before = snapshotOf(changes, true, exprs);
+        LineItemSnapshot after = snapshotOf(changes, false, exprs);
+        Map<SumExpr, SumTrace> sums = new IdentityHashMap<>();
+        Map<String, SumTrace[]> deltas = new HashMap<>();
+        Set<Integer> dirtyRules = new HashSet<>();
+        for (int i = 0; i < rules.size(); i++) {
+            if (exprs.get(i) == null) {
+                continue;
+            }
+            for (SumExpr sumExpr : FusedSumEvaluator.rowLocalSums(exprs.get(i), indicatorKeys)) {
+                SumTrace previous = traces.get(i).consumeSum(sumExpr.toString());
+                if (previous == null) {
+                    // 上次计算未求值该 SUM（如 IF 未命中分支），缺少基准值
+                    return false;
+                }
+                // 多条规则中规范形式相同的 SUM 只对变更行求值一次
+                String key = sumExpr.canonicalKey();
+                SumTrace[] delta = key == null ? null : deltas.get(key);
+                if (delta == null) {
+                    delta = new SumTrace[]{accumulate(sumExpr, before), accumulate(sumExpr, after)};
+                    if (key != null) {
+                        deltas.put(key, delta);
+                    }
+                }
+                SumTrace removed = delta[0];
+                SumTrace added = delta[1];
+                if (removed.getCount() == 0 && added.getCount() == 0) {
+                    sums.put(sumExpr, previous);
+                    continue;
+                }
+                sums.put(sumExpr, applyDelta(previous, removed, added));
+                dirtyRules.add(i);
+            }
+        }
+        if (dirtyRules.isEmpty()) {
+            return true;
+        }
+
+        Map<String, BigDecimal> indicatorMap = new HashMap<>();
+        Set<String> dirtyKeys = new HashSet<>();
+        Map<Integer, EvalResult> reevaluated = new LinkedHashMap<>();
+        Map<Integer, RuleCostDto> costs = new HashMap<>();
+        for (int i = 0; i < rules.size(); i++) {
+            CalcRule rule = rules.get(i);
+            if (!dirtyRules.contains(i) && !referencesAny(exprs.get(i), dirtyKeys)) {
+                indicatorMap.put(rule.getIndicatorKey(), traces.get(i).getResult());
+                continue;
+            }
+            dirtyKeys.add(rule.getIndicatorKey());
+            EvalContext ctx = new EvalContext(null, indicatorMap, sums);
+            EvalBudget budget = EvalBudget.unlimited();
+            ctx.setBudget(budget);
+            EvalResult evalResult = ExpressionEvaluator.evaluate(exprs.get(i), ctx);
+            budget.settle();
+            indicatorMap.put(rule.getIndicatorKey(), evalResult.getValue());
+            reevaluated.put(i, evalResult);
+            costs.put(i, CalcService.ruleCost(rule, budget, budget.elapsedNanos(), parseMicros[i], evalResult));
+        }
+
+        // 未变更指标沿用原集合引用，先复制其集合，再写入重算指标的新集合，未再引用的旧集合随之丢弃
+        TraceItemSets itemSets = new TraceItemSets();
+        for (int i = 0; i < rules.size(); i++) {
+            if (reevaluated.containsKey(i)) {
+                continue;
+            }
+            for (String ref : traces.get(i).getItemSetRefs()) {
+                if (!itemSets.copy(ref, storedSets)) {
+                    return false;
+                }
+            }
+        }
+        LocalDateTime calcTime = LocalDateTime.now();
+        for (Map.Entry<Integer, EvalResult> entry : reevaluated.entrySet()) {
+            CalcRule rule = rules.get(entry.getKey());
+            EvalResult evalResult = entry.getValue();
+            BigDecimal value = evalResult.getValue();
+            IndicatorValue indicator = traces.get(entry.getKey()).getIndicator();
+            indicator.setValue(value == null ? BigDecimal.ZERO : value.setScale(2, RoundingMode.HALF_UP));
+            indicator.setCalcTime(calcTime);
+            // 画像记录本次增量求值的开销，不计入慢规则统计
+            indicator.setTraceJson(calcService.buildProfiledTrace(rule, evalResult, itemSets,
+                    costs.get(entry.getKey())));
+            indicatorValueRepository.save(indicator);
+        }
+        calcService.saveTraceItemSets(version.getId(), itemSets);
+        return true;
+    }
+
+    private LineItemSnapshot snapshotOf(List<LineItemChange> changes, boolean before, List<Expr> exprs) {
+        List<LineItem> items = new ArrayList<>(changes.size());
+        for (LineItemChange change : changes) {
+            LineItem item = before ? change.getBefore() : change.getAfter();
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        return LineItemSnapshot.of(items, CalcDsl.collectExtPaths(exprs));
+    }
+
+    private SumTrace accumulate(SumExpr sumExpr, LineItemSnapshot snapshot) {
+        SumAccumulator accumulator = new SumAccumulator(sumExpr, snapshot);
+        EvalContext ctx = new EvalContext(snapshot, Collections.emptyMap());
+        for (int row = 0; row < snapshot.size(); row++) {
+            ctx.setCurrentRow(row);
+            accumulator.accept(ctx, row);
+        }
+        return accumulator.toTrace();
+    }
+
+    /**
+     * SUM 新值 = 原值 - 变更前命中行 + 变更后命中行；
+     * 命中明细 ID 保持原有顺序，仍命中的变更行留在原位，新命中的行追加在末尾
+     */
+    private SumTrace applyDelta(SumTrace previous, SumTrace removed, SumTrace added) {
+        int count = previous.getCount() - removed.getCount() + added.getCount();
+        BigDecimal value = count == 0
+                ? BigDecimal.ZERO
+                : previous.getValue().subtract(removed.getValue()).add(added.getValue());
+        Set<Long> stillMatched = new HashSet<>(added.getItemIds());
+        Set<Long> ids = new LinkedHashSet<>(previous.getItemIds());
+        for (Long id : removed.getItemIds()) {
+            if (!stillMatched.contains(id)) {
+                ids.remove(id);
+            }
+        }
+        ids.addAll(added.getItemIds());
+        return new SumTrace(previous.getExpression(), previous.getField(), previous.getCondition(),
+                count, value, new ArrayList<>(ids));
+    }
+
+    private boolean referencesAny(Expr expr, Set<String> keys) {
+        return !keys.isEmpty() && !Collections.disjoint(IndicatorGraph.referencedNames(expr), keys);
+    }
+
+    /**
+     * 明细变更：新增时 before 为空，删除时 after 为空
+     */
+    public static class LineItemChange {
+        private final LineItem before;
+        private final LineItem after;
+
+        private LineItemChange(LineItem before, LineItem after) {
+            this.before = before;
+            this.after = after;
+        }
+
+        public static LineItemChange created(LineItem after) {
+            return new LineItemChange(null, after);
+        }
+
+        public static LineItemChange updated(LineItem before, LineItem after) {
+            return new LineItemChange(before, after);
+        }
+
+        public static LineItemChange deleted(LineItem before) {
+            return new LineItemChange(before, null);
+        }
+
+        public LineItem getBefore() {
+            return before;
+        }
+
+        public LineItem getAfter() {
+            return after;
+        }
+    }
+
+    /**
+     * 已持久化的指标追溯信息，作为增量维护的基准
+     */
+    private static class StoredTrace {
+        private final IndicatorValue indicator;
+        private final Object ruleId;
+        private final String expression;
+        private final BigDecimal result;
+        private final Map<String, Deque<SumTrace>> sums;
+        private final List<String> itemSetRefs;
+
+        private StoredTrace(IndicatorValue indicator, Object ruleId, String expression,
+                            BigDecimal result, Map<String, Deque<SumTrace>> sums, List<String> itemSetRefs) {
+            this.indicator = indicator;
+            this.ruleId = ruleId;
+            this.expression = expression;
+            this.result = result;
+            this.sums = sums;
+            this.itemSetRefs = itemSetRefs;
+        }
+
+        static StoredTrace parse(ObjectMapper mapper, IndicatorValue indicator, TraceItemSets itemSets) {
+            if (indicator == null || indicator.getTraceJson() == null || indicator.getTraceJson().isBlank()) {
+                return null;
+            }
+            try {
+                Map<?, ?> trace = mapper.readValue(indicator.getTraceJson(), Map.class);
+                Map<String, Deque<SumTrace>> sums = new HashMap<>();
+                List<String> itemSetRefs = new ArrayList<>();
+                Object intermediate = trace.get("intermediate");
+                if (intermediate instanceof List) {
+                    for (Object entry : (List<?>) intermediate) {
+                        Map<?, ?> item = (Map<?, ?>) entry;
+                        if (!"SUM".equals(item.get("type")) && !"COUNT".equals(item.get("type"))) {
+                            continue;
+                        }
+                        if (Boolean.TRUE.equals(item.get("pushdown"))) {
+                            // 下推求值的追溯不含明细ID，无法按行修正，回退全量重算（仍由分组聚合查询求解）
+                            return null;
+                        }
+                        List<Long> itemIds;
+                        if (item.get("itemSet") != null) {
+                            String ref = item.get("itemSet").toString();
+                            itemIds = itemSets.get(ref);
+                            if (itemIds == null) {
+                                return null;
+                            }
+                            itemSetRefs.add(ref);
+                        } else {
+                            itemIds = new ArrayList<>();
+                            for (Object id : (List<?>) item.get("itemIds")) {
+                                itemIds.add(((Number) id).longValue());
+                            }
+                        }
+                        SumTrace sumTrace = new SumTrace((String) item.get("expression"), (String) item.get("field"),
+                                (String) item.get("condition"), ((Number) item.get("count")).intValue(),
+                                toDecimal(item.get("value")), itemIds);
+                        sums.computeIfAbsent(sumTrace.getExpression(), key -> new ArrayDeque<>()).add(sumTrace);
+                    }
+                }
+                return new StoredTrace(indicator, trace.get("rule_id"), (String) trace.get("expression"),
+                        toDecimal(trace.get("result")), sums, itemSetRefs);
+            } catch (Exception ex) {
+                return null;
+            }
+        }
+
+        private static BigDecimal toDecimal(Object value) {
+            if (value instanceof BigDecimal) {
+                return (BigDecimal) value;
+            }
+            if (value instanceof Number) {
+                return new BigDecimal(value.toString());
+            }
+            return BigDecimal.ZERO;
+        }
+
+        boolean matches(CalcRule rule) {
+            return ruleId instanceof Number && rule.getId() != null
+                    && ((Number) ruleId).longValue() == rule.getId()
+                    && Objects.equals(expression, rule.getExpression());
+        }
+
+        /**
+         * 按出现顺序取出同文本 SUM 的上次结果
+         */
+        SumTrace consumeSum(String sumExpression) {
+            Deque<SumTrace> candidates = sums.get(sumExpression);
+            return candidates == null ? null : candidates.poll();
+        }
+
+        IndicatorValue getIndicator() {
+            return indicator;
+        }
+
+        BigDecimal getResult() {
+            return result;
+        }
+
+        List<String> getItemSetRefs() {
+            return itemSetRefs;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.service.CalcDsl.Expr;
+import com.costsystem.modules.costcalc.service.CalcDsl.IdentifierExpr;
+import com.costsystem.modules.costcalc.service.CalcDsl.Node;
+
+import java.util.*;
+
+/**
+ * 指标依赖图
+ * 依据规则表达式中的标识符引用建立指标间依赖，按层级划分可并行求值的规则。
+ * 规则只能读取排在其前面的指标（与按 orderNo 顺序求值的语义一致），引用靠后的指标按 0 处理。
+ */
+final class IndicatorGraph {
+
+    private final List<String> keys;
+    private final List<int[]> dependencies;
+    private final List<List<Integer>> levels;
+
+    private IndicatorGraph(List<String> keys, List<int[]> dependencies, List<List<Integer>> levels) {
+        this.keys = keys;
+        this.dependencies = dependencies;
+        this.levels = levels;
+    }
+
+    /**
+     * @param keys  按求值顺序排列的指标键
+     * @param exprs 与 keys 一一对应的表达式，可为 null
+     */
+    static IndicatorGraph build(List<String> keys, List<Expr> exprs) {
+        List<int[]> dependencies = new ArrayList<>(keys.size());
+        int[] depth = new int[keys.size()];
+        Map<String, Integer> latest = new HashMap<>();
+        List<List<Integer>> levels = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Set<Integer> deps = new TreeSet<>();
+            for (String name : referencedNames(exprs.get(i))) {
+                Integer dep = latest.get(name);
+                if (dep != null) {
+                    deps.add(dep);
+                }
+            }
+            int level = 0;
+            int[] depArray = new int[deps.size()];
+            int n = 0;
+            for (Integer dep : deps) {
+                depArray[n++] = dep;
+                level = Math.max(level, depth[dep] + 1);
+            }
+            depth[i] = level;
+            dependencies.add(depArray);
+            if (levels.size() <= level) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(level).add(i);
+            latest.put(keys.get(i), i);
+        }
+        return new IndicatorGraph(keys, dependencies, levels);
+    }
+
+    /**
+     * 检测指标间的循环引用（不考虑规则顺序），返回环路上的指标键，无环时返回空列表
+     */
+    static List<String> findCycle(Map<String, Set<String>> references) {
+        Map<String, Integer> state = new HashMap<>();
+        Deque<String> path = new ArrayDeque<>();
+        for (String key : references.keySet()) {
+            List<String> cycle = visit(key, references, state, path);
+            if (!cycle.isEmpty()) {
+                return cycle;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    private static List<String> visit(String key, Map<String, Set<String>> references,
+                                      Map<String, Integer> state, Deque<String> path) {
+        Integer current = state.get(key);
+        if (current != null && current == 2) {
+            return Collections.emptyList();
+        }
+        if (current != null && current == 1) {
+            List<String> cycle = new ArrayList<>();
+            Iterator<String> iterator = path.descendingIterator();
+            boolean inCycle = false;
+            while (iterator.hasNext()) {
+                String node = iterator.next();
+                inCycle = inCycle || node.equals(key);
+                if (inCycle) {
+                    cycle.add(node);
+                }
+            }
+            cycle.add(key);
+            return cycle;
+        }
+        state.put(key, 1);
+        path.push(key);
+        for (String dep : references.getOrDefault(key, Collections.emptySet())) {
+            if (references.containsKey(dep)) {
+                List<String> cycle = visit(dep, references, state, path);
+                if (!cycle.isEmpty()) {
+                    return cycle;
+                }
+            }
+        }
+        path.pop();
+        state.put(key, 2);
+        return Collections.emptyList();
+    }
+
+    /**
+     * 表达式中出现的全部标识符名称
+     */
+    static Set<String> referencedNames(Expr expr) {
+        if (expr == null) {
+            return Collections.emptySet();
+        }
+        Set<String> names = new LinkedHashSet<>();
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(expr);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (node instanceof IdentifierExpr) {
+                names.add(((IdentifierExpr) node).getName());
+            }
+            for (Node child : node.children()) {
+                stack.push(child);
+            }
+        }
+        return names;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public String getKey(int index) {
+        return keys.get(index);
+    }
+
+    public int[] getDependencies(int index) {
+        return dependencies.get(index);
+    }
+
+    /**
+     * 依赖层级：同一层内的规则互不依赖，可并行求值
+     */
+    public List<List<Integer>> getLevels() {
+        return levels;
+    }
+}
@@ -0,0 +1,87 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.dto.OrgIndicatorTotalDto;
+import com.costsystem.modules.costcalc.entity.IndicatorRollup;
+import com.costsystem.modules.costcalc.entity.IndicatorValue;
+import com.costsystem.modules.costcalc.repository.IndicatorRollupRepository;
+import com.costsystem.modules.costcalc.repository.IndicatorValueRepository;
+import com.costsystem.modules.costform.entity.FormVersion;
+import com.costsystem.modules.costform.repository.FormVersionRepository;
+import com.costsystem.modules.costproject.entity.Project;
+import com.costsystem.modules.costproject.repository.ProjectRepository;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 跨项目指标汇总服务
+ * 每个启用项目只保留最新已审批/已签发版本的指标值，按组织与指标键汇总，供组织看板单条查询读取。
+ * 重算只作用于草稿版本，已审批/已签发版本的指标值不再变化，
+ * 因此只在版本状态变化与项目状态/所属组织变化时按项目整体刷新，刷新与状态变更在同一事务内提交。
+ */
+@Service
+public class IndicatorRollupService {
+
+    private static final Set<FormVersion.VersionStatus> ROLLUP_STATUSES =
+            EnumSet.of(FormVersion.VersionStatus.APPROVED, FormVersion.VersionStatus.ISSUED);
+
+    private final IndicatorRollupRepository rollupRepository;
+    private final IndicatorValueRepository indicatorValueRepository;
+    private final FormVersionRepository versionRepository;
+    private final ProjectRepository projectRepository;
+
+    public IndicatorRollupService(IndicatorRollupRepository rollupRepository,
+                                  IndicatorValueRepository indicatorValueRepository,
+                                  FormVersionRepository versionRepository,
+                                  ProjectRepository projectRepository) {
+        this.rollupRepository = rollupRepository;
+        this.indicatorValueRepository = indicatorValueRepository;
+        this.versionRepository = versionRepository;
+        this.projectRepository = projectRepository;
+    }
+
+    /**
+     * 重建项目的汇总行；项目已归档、未归属组织或没有已审批/已签发版本时移出汇总
+     */
+    @Transactional
+    public void refreshProject(Long projectId) {
+        rollupRepository.deleteByProjectId(projectId);
+        Project project = projectRepository.findById(projectId).orElse(null);
+        if (project == null || project.getOrgId() == null
+                || project.getStatus() != Project.ProjectStatus.ACTIVE) {
+            return;
+        }
+        FormVersion version = versionRepository.findTopByProjectIdAndStatusInOrderByVersionNoDesc(
+                projectId, ROLLUP_STATUSES);
+        if (version == null) {
+            return;
+        }
+        List<IndicatorRollup> rows = new ArrayList<>();
+        for (IndicatorValue value : indicatorValueRepository.findByVersionIdOrderByIndicatorKeyAsc(version.getId())) {
+            IndicatorRollup row = new IndicatorRollup();
+            row.setOrgId(project.getOrgId());
+            row.setProjectId(projectId);
+            row.setVersionId(version.getId());
+            row.setIndicatorKey(value.getIndicatorKey());
+            row.setValue(value.getValue());
+            rows.add(row);
+        }
+        rollupRepository.saveAll(rows);
+    }
+
+    /**
+     * 组织下各指标的合计，keys 为空时返回全部指标
+     */
+    @Transactional(readOnly = true)
+    public List<OrgIndicatorTotalDto> getOrgTotals(Long orgId, Collection<String> keys) {
+        if (keys == null || keys.isEmpty()) {
+            return rollupRepository.sumByOrgId(orgId);
+        }
+        return rollupRepository.sumByOrgIdAndKeys(orgId, keys);
+    }
+}
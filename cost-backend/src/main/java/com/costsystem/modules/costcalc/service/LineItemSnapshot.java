@@ -0,0 +1,711 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costform.entity.LineItem;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 明细行列式快照
+ * 维度列字典编码为 int，金额列按字段精度存为定点 long，ext 字段按规则引用路径一次流式抽取为类型化列。
+ * 计算引擎的 SUM / WHERE 直接在快照上按行号求值，不再访问 JPA 实体。
+ */
+final class LineItemSnapshot {
+
+    static final long NULL_ID = Long.MIN_VALUE;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    enum Field {
+        MODULE_CODE("module_code"),
+        CATEGORY_CODE("category_code"),
+        ITEM_CODE("item_code"),
+        NAME("name"),
+        SPEC("spec"),
+        UNIT("unit"),
+        QTY("qty", 4),
+        PRICE_TAX("price_tax", 6),
+        AMOUNT_TAX("amount_tax", 2),
+        TAX_RATE("tax_rate", 4),
+        REMARK("remark"),
+        SORT_NO("sort_no"),
+        EXT("ext");
+
+        private static final Map<String, Field> BY_NAME = new HashMap<>();
+
+        static {
+            for (Field field : values()) {
+                if (field != EXT) {
+                    BY_NAME.put(field.columnName, field);
+                }
+            }
+        }
+
+        private final String columnName;
+        private final int scale;
+
+        Field(String columnName) {
+            this(columnName, -1);
+        }
+
+        Field(String columnName, int scale) {
+            this.columnName = columnName;
+            this.scale = scale;
+        }
+
+        public String getColumnName() {
+            return columnName;
+        }
+
+        /**
+         * 金额列的定点精度，与 LineItem 字段精度保持一致；非金额列返回 -1
+         */
+        public int getScale() {
+            return scale;
+        }
+
+        public boolean isDecimal() {
+            return this == QTY || this == PRICE_TAX || this == AMOUNT_TAX || this == TAX_RATE;
+        }
+
+        public boolean isDictionary() {
+            return this == MODULE_CODE || this == CATEGORY_CODE || this == UNIT;
+        }
+
+        /**
+         * 可建立取值位图索引的维度列
+         */
+        public boolean isIndexed() {
+            return isDictionary() || this == TAX_RATE;
+        }
+
+        /**
+         * 归一化字段名映射为快照列，非明细字段返回 null
+         */
+        static Field of(String normalizedField) {
+            if (normalizedField == null) {
+                return null;
+            }
+            if (normalizedField.startsWith("ext.")) {
+                return EXT;
+            }
+            return BY_NAME.get(normalizedField);
+        }
+    }
+
+    private final int size;
+    private final long[] ids;
+    private final DictColumn moduleCodes;
+    private final DictColumn categoryCodes;
+    private final DictColumn units;
+    private final String[] itemCodes;
+    private final String[] names;
+    private final String[] specs;
+    private final String[] remarks;
+    private final Integer[] sortNos;
+    private final DecimalColumn qty;
+    private final DecimalColumn priceTax;
+    private final DecimalColumn amountTax;
+    private final DecimalColumn taxRate;
+    private final String[] extJson;
+    private final Map<String, ExtColumn> extColumns;
+    private final Map<Field, ValueIndex> valueIndexes = new ConcurrentHashMap<>();
+
+    private LineItemSnapshot(List<LineItem> lineItems) {
+        this.size = lineItems.size();
+        this.ids = new long[size];
+        String[] modules = new String[size];
+        String[] categories = new String[size];
+        String[] unitValues = new String[size];
+        this.itemCodes = new String[size];
+        this.names = new String[size];
+        this.specs = new String[size];
+        this.remarks = new String[size];
+        this.sortNos = new Integer[size];
+        BigDecimal[] qtyValues = new BigDecimal[size];
+        BigDecimal[] priceValues = new BigDecimal[size];
+        BigDecimal[] amountValues = new BigDecimal[size];
+        BigDecimal[] rateValues = new BigDecimal[size];
+        this.extJson = new String[size];
+        for (int row = 0; row < size; row++) {
+            LineItem item = lineItems.get(row);
+            ids[row] = item.getId() == null ? NULL_ID : item.getId();
+            modules[row] = item.getModuleCode();
+            categories[row] = item.getCategoryCode();
+            unitValues[row] = item.getUnit();
+            itemCodes[row] = item.getItemCode();
+            names[row] = item.getName();
+            specs[row] = item.getSpec();
+            remarks[row] = item.getRemark();
+            sortNos[row] = item.getSortNo();
+            qtyValues[row] = item.getQty();
+            priceValues[row] = item.getPriceTax();
+            amountValues[row] = item.getAmountTax();
+            rateValues[row] = item.getTaxRate();
+            extJson[row] = item.getExtJson();
+        }
+        this.moduleCodes = new DictColumn(modules);
+        this.categoryCodes = new DictColumn(categories);
+        this.units = new DictColumn(unitValues);
+        this.qty = new DecimalColumn(qtyValues, Field.QTY.getScale());
+        this.priceTax = new DecimalColumn(priceValues, Field.PRICE_TAX.getScale());
+        this.amountTax = new DecimalColumn(amountValues, Field.AMOUNT_TAX.getScale());
+        this.taxRate = new DecimalColumn(rateValues, Field.TAX_RATE.getScale());
+        this.extColumns = new ConcurrentHashMap<>();
+    }
+
+    static LineItemSnapshot of(List<LineItem> lineItems, Collection<String> extPaths) {
+        LineItemSnapshot snapshot = new LineItemSnapshot(lineItems == null ? Collections.emptyList() : lineItems);
+        snapshot.extractExt(extPaths == null ? Collections.emptySet() : extPaths);
+        return snapshot;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean hasId(int row) {
+        return ids[row] != NULL_ID;
+    }
+
+    public long id(int row) {
+        return ids[row];
+    }
+
+    public DictColumn dictColumn(Field field) {
+        switch (field) {
+            case MODULE_CODE:
+                return moduleCodes;
+            case CATEGORY_CODE:
+                return categoryCodes;
+            case UNIT:
+                return units;
+            default:
+                return null;
+        }
+    }
+
+    public DecimalColumn decimalColumn(Field field) {
+        switch (field) {
+            case QTY:
+                return qty;
+            case PRICE_TAX:
+                return priceTax;
+            case AMOUNT_TAX:
+                return amountTax;
+            case TAX_RATE:
+                return taxRate;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 维度列的取值位图索引，首次使用时构建并在快照内共享；非索引列返回 null
+     */
+    public ValueIndex valueIndex(Field field) {
+        if (field == null || !field.isIndexed()) {
+            return null;
+        }
+        return valueIndexes.computeIfAbsent(field, this::buildValueIndex);
+    }
+
+    private ValueIndex buildValueIndex(Field field) {
+        List<Object> values = new ArrayList<>();
+        List<BitSet> rows = new ArrayList<>();
+        BitSet nullRows = new BitSet();
+        if (field.isDictionary()) {
+            DictColumn column = dictColumn(field);
+            for (int code = 0; code < column.cardinality(); code++) {
+                values.add(column.dictionary.get(code));
+                rows.add(new BitSet());
+            }
+            for (int row = 0; row < size; row++) {
+                int code = column.code(row);
+                if (code == DictColumn.NULL_CODE) {
+                    nullRows.set(row);
+                } else {
+                    rows.get(code).set(row);
+                }
+            }
+        } else {
+            // 数值比较只与数值本身有关（与 scale 无关），按去尾零后的取值归并
+            DecimalColumn column = decimalColumn(field);
+            Map<BigDecimal, Integer> lookup = new HashMap<>();
+            for (int row = 0; row < size; row++) {
+                BigDecimal value = column.value(row);
+                if (value == null) {
+                    nullRows.set(row);
+                    continue;
+                }
+                BigDecimal key = value.stripTrailingZeros();
+                Integer code = lookup.get(key);
+                if (code == null) {
+                    code = values.size();
+                    values.add(key);
+                    rows.add(new BitSet());
+                    lookup.put(key, code);
+                }
+                rows.get(code).set(row);
+            }
+        }
+        return new ValueIndex(values, rows, nullRows);
+    }
+
+    /**
+     * 读取单元格值，语义与直接读取 LineItem 字段一致（空值返回 null）
+     */
+    public Object value(Field field, String extPath, int row) {
+        switch (field) {
+            case MODULE_CODE:
+                return moduleCodes.value(row);
+            case CATEGORY_CODE:
+                return categoryCodes.value(row);
+            case ITEM_CODE:
+                return itemCodes[row];
+            case NAME:
+                return names[row];
+            case SPEC:
+                return specs[row];
+            case UNIT:
+                return units.value(row);
+            case QTY:
+                return qty.value(row);
+            case PRICE_TAX:
+                return priceTax.value(row);
+            case AMOUNT_TAX:
+                return amountTax.value(row);
+            case TAX_RATE:
+                return taxRate.value(row);
+            case REMARK:
+                return remarks[row];
+            case SORT_NO:
+                return sortNos[row];
+            case EXT:
+                return extValue(extPath, row);
+            default:
+                return null;
+        }
+    }
+
+    private Object extValue(String path, int row) {
+        if (path == null || path.isBlank()) {
+            return null;
+        }
+        ExtColumn column = extColumns.get(path);
+        if (column == null) {
+            extractExt(Collections.singleton(path));
+            column = extColumns.get(path);
+        }
+        return column.value(row);
+    }
+
+    /**
+     * 每行 ext_json 只做一次流式扫描：按引用路径组成的前缀树只下钻被引用的键，其余子树直接跳过，
+     * 不再整行反序列化为 Map。取值语义与 ObjectMapper 读成 Map 后逐级取键一致（整数/浮点/字符串/布尔，
+     * 引用到对象或数组时为对应的 Map/List；JSON 非法或根不是对象时整行为空）
+     */
+    private synchronized void extractExt(Collection<String> paths) {
+        List<String> pending = new ArrayList<>();
+        for (String path : paths) {
+            if (path != null && !path.isBlank() && !extColumns.containsKey(path) && !pending.contains(path)) {
+                pending.add(path);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        ExtPathNode root = new ExtPathNode();
+        List<ExtColumnBuilder> columnBuilders = new ArrayList<>();
+        int[] columnOfPath = new int[pending.size()];
+        for (int i = 0; i < pending.size(); i++) {
+            ExtPathNode node = root;
+            for (String part : pending.get(i).split("\\.")) {
+                node = node.children.computeIfAbsent(part, key -> new ExtPathNode());
+            }
+            if (node.column < 0) {
+                node.column = columnBuilders.size();
+                columnBuilders.add(new ExtColumnBuilder(size));
+            }
+            columnOfPath[i] = node.column;
+        }
+        ExtColumnBuilder[] builders = columnBuilders.toArray(new ExtColumnBuilder[0]);
+        for (int row = 0; row < size; row++) {
+            String json = extJson[row];
+            if (json == null || json.isBlank()) {
+                continue;
+            }
+            try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(json)) {
+                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                    readObject(parser, root, builders, row);
+                }
+            } catch (IOException | RuntimeException ex) {
+                clear(root, builders, row);
+            }
+        }
+        // 整列抽取完成后再发布，并行求值的规则不会读到半成品
+        ExtColumn[] columns = new ExtColumn[builders.length];
+        for (int i = 0; i < builders.length; i++) {
+            columns[i] = builders[i].build();
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            extColumns.put(pending.get(i), columns[columnOfPath[i]]);
+        }
+    }
+
+    private static void readObject(JsonParser parser, ExtPathNode node, ExtColumnBuilder[] builders, int row)
+            throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            ExtPathNode child = node.children.get(parser.currentName());
+            JsonToken token = parser.nextToken();
+            if (child == null) {
+                parser.skipChildren();
+                continue;
+            }
+            // 重复键以最后一次出现为准，与读成 Map 时一致
+            clear(child, builders, row);
+            if (child.column >= 0) {
+                Object value = readValue(parser, token);
+                builders[child.column].set(row, value);
+                if (value instanceof Map) {
+                    assignNested(child, (Map<?, ?>) value, builders, row);
+                }
+            } else if (token == JsonToken.START_OBJECT) {
+                readObject(parser, child, builders, row);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (parser.currentToken() != JsonToken.END_OBJECT) {
+            throw new IOException("ext_json 对象未正常结束");
+        }
+    }
+
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getNumberValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                return OBJECT_MAPPER.readValue(parser, Object.class);
+        }
+    }
+
+    /**
+     * 同时引用了对象本身及其下级路径时，下级路径从已读出的 Map 中取值
+     */
+    private static void assignNested(ExtPathNode node, Map<?, ?> value, ExtColumnBuilder[] builders, int row) {
+        for (Map.Entry<String, ExtPathNode> entry : node.children.entrySet()) {
+            Object child = value.get(entry.getKey());
+            ExtPathNode childNode = entry.getValue();
+            if (childNode.column >= 0) {
+                builders[childNode.column].set(row, child);
+            }
+            if (child instanceof Map) {
+                assignNested(childNode, (Map<?, ?>) child, builders, row);
+            }
+        }
+    }
+
+    private static void clear(ExtPathNode node, ExtColumnBuilder[] builders, int row) {
+        if (node.column >= 0) {
+            builders[node.column].set(row, null);
+        }
+        for (ExtPathNode child : node.children.values()) {
+            clear(child, builders, row);
+        }
+    }
+
+    /**
+     * 取值位图索引：列的每个不同取值对应一个行位图，空值行单独记录
+     */
+    static final class ValueIndex {
+        private final List<Object> values;
+        private final List<BitSet> rows;
+        private final BitSet nullRows;
+
+        private ValueIndex(List<Object> values, List<BitSet> rows, BitSet nullRows) {
+            this.values = values;
+            this.rows = rows;
+            this.nullRows = nullRows;
+        }
+
+        public int cardinality() {
+            return values.size();
+        }
+
+        public Object value(int index) {
+            return values.get(index);
+        }
+
+        public BitSet rows(int index) {
+            return rows.get(index);
+        }
+
+        public BitSet nullRows() {
+            return nullRows;
+        }
+    }
+
+    /**
+     * 字典编码列，空值编码为 -1
+     */
+    static final class DictColumn {
+        static final int NULL_CODE = -1;
+
+        private final int[] codes;
+        private final List<String> dictionary = new ArrayList<>();
+        private final Map<String, Integer> lookup = new HashMap<>();
+
+        private DictColumn(String[] values) {
+            this.codes = new int[values.length];
+            for (int row = 0; row < values.length; row++) {
+                String value = values[row];
+                if (value == null) {
+                    codes[row] = NULL_CODE;
+                    continue;
+                }
+                Integer code = lookup.get(value);
+                if (code == null) {
+                    code = dictionary.size();
+                    dictionary.add(value);
+                    lookup.put(value, code);
+                }
+                codes[row] = code;
+            }
+        }
+
+        public int code(int row) {
+            return codes[row];
+        }
+
+        public String value(int row) {
+            int code = codes[row];
+            return code == NULL_CODE ? null : dictionary.get(code);
+        }
+
+        /**
+         * 编码对应的取值
+         */
+        public String valueOf(int code) {
+            return dictionary.get(code);
+        }
+
+        /**
+         * 查询取值对应的编码，字典中不存在时返回 -1
+         */
+        public int codeOf(String value) {
+            Integer code = value == null ? null : lookup.get(value);
+            return code == null ? NULL_CODE : code;
+        }
+
+        public int cardinality() {
+            return dictionary.size();
+        }
+    }
+
+    /**
+     * 定点小数列：按列精度存为 long，同时保留每行原始 scale 以便还原出完全一致的 BigDecimal。
+     * 存在无法无损定点表示的取值时整列退化为 BigDecimal 存储。
+     */
+    static final class DecimalColumn {
+        private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+        private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+
+        private final int scale;
+        private final BitSet nulls;
+        private final long[] unscaled;
+        private final byte[] rowScales;
+        private final BigDecimal[] boxed;
+
+        private DecimalColumn(BigDecimal[] values, int scale) {
+            this.scale = scale;
+            this.nulls = new BitSet(values.length);
+            long[] unscaledValues = new long[values.length];
+            byte[] scales = new byte[values.length];
+            boolean fixedPoint = true;
+            for (int row = 0; row < values.length && fixedPoint; row++) {
+                BigDecimal value = values[row];
+                if (value == null) {
+                    nulls.set(row);
+                    continue;
+                }
+                Long fixed = toFixed(value, scale);
+                if (fixed == null || value.scale() < Byte.MIN_VALUE || value.scale() > Byte.MAX_VALUE) {
+                    fixedPoint = false;
+                    continue;
+                }
+                unscaledValues[row] = fixed;
+                scales[row] = (byte) value.scale();
+            }
+            if (fixedPoint) {
+                this.unscaled = unscaledValues;
+                this.rowScales = scales;
+                this.boxed = null;
+            } else {
+                this.unscaled = null;
+                this.rowScales = null;
+                this.boxed = values.clone();
+            }
+        }
+
+        private static Long toFixed(BigDecimal value, int scale) {
+            BigDecimal rescaled;
+            try {
+                rescaled = value.setScale(scale, RoundingMode.UNNECESSARY);
+            } catch (ArithmeticException ex) {
+                return null;
+            }
+            BigInteger unscaledValue = rescaled.unscaledValue();
+            if (unscaledValue.compareTo(LONG_MAX) > 0 || unscaledValue.compareTo(LONG_MIN) < 0) {
+                return null;
+            }
+            return unscaledValue.longValue();
+        }
+
+        public int scale() {
+            return scale;
+        }
+
+        public boolean isFixedPoint() {
+            return unscaled != null;
+        }
+
+        public boolean isNull(int row) {
+            return nulls.get(row);
+        }
+
+        /**
+         * 按列精度的定点值，仅在 isFixedPoint() 且非空时有效
+         */
+        public long unscaled(int row) {
+            return unscaled[row];
+        }
+
+        public int rowScale(int row) {
+            return rowScales[row];
+        }
+
+        public BigDecimal value(int row) {
+            if (boxed != null) {
+                return boxed[row];
+            }
+            if (nulls.get(row)) {
+                return null;
+            }
+            BigDecimal value = BigDecimal.valueOf(unscaled[row], scale);
+            int rowScale = rowScales[row];
+            return rowScale == scale ? value : value.setScale(rowScale, RoundingMode.UNNECESSARY);
+        }
+    }
+
+    /**
+     * ext 路径前缀树节点，column 为以该节点结尾的路径对应的列序号
+     */
+    private static final class ExtPathNode {
+        private final Map<String, ExtPathNode> children = new HashMap<>();
+        private int column = -1;
+    }
+
+    /**
+     * ext 字段列：整列均为整数时存 long[]，均为浮点时存 double[]，否则退化为 Object[]。
+     * 读出时还原为 Long / Double，与 EvalValue 的数值、文本语义一致
+     */
+    static final class ExtColumn {
+        private final BitSet present;
+        private final long[] longs;
+        private final double[] doubles;
+        private final Object[] objects;
+
+        private ExtColumn(BitSet present, long[] longs, double[] doubles, Object[] objects) {
+            this.present = present;
+            this.longs = longs;
+            this.doubles = doubles;
+            this.objects = objects;
+        }
+
+        public Object value(int row) {
+            if (objects != null) {
+                return objects[row];
+            }
+            if (!present.get(row)) {
+                return null;
+            }
+            return longs != null ? (Object) longs[row] : (Object) doubles[row];
+        }
+    }
+
+    private static final class ExtColumnBuilder {
+        private final int size;
+        private final BitSet present;
+        private long[] longs;
+        private double[] doubles;
+        private Object[] objects;
+
+        private ExtColumnBuilder(int size) {
+            this.size = size;
+            this.present = new BitSet(size);
+        }
+
+        void set(int row, Object value) {
+            if (value == null) {
+                present.clear(row);
+                if (objects != null) {
+                    objects[row] = null;
+                }
+                return;
+            }
+            present.set(row);
+            if (objects == null) {
+                if ((value instanceof Integer || value instanceof Long) && doubles == null) {
+                    if (longs == null) {
+                        longs = new long[size];
+                    }
+                    longs[row] = ((Number) value).longValue();
+                    return;
+                }
+                if (value instanceof Double && longs == null) {
+                    if (doubles == null) {
+                        doubles = new double[size];
+                    }
+                    doubles[row] = (Double) value;
+                    return;
+                }
+                toObjects();
+            }
+            objects[row] = value;
+        }
+
+        private void toObjects() {
+            objects = new Object[size];
+            for (int row = present.nextSetBit(0); row >= 0; row = present.nextSetBit(row + 1)) {
+                if (longs != null) {
+                    objects[row] = longs[row];
+                } else if (doubles != null) {
+                    objects[row] = doubles[row];
+                }
+            }
+            longs = null;
+            doubles = null;
+        }
+
+        ExtColumn build() {
+            return new ExtColumn(present, objects == null ? longs : null, objects == null ? doubles : null, objects);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.common.exception.BusinessException;
+import com.costsystem.modules.costcalc.dto.IndicatorValueDto;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 版本重算协调器
+ * 手动重算、异步重算任务与模板批量重算经此提交到 calcRecalcExecutor。
+ * 同一版本任一时刻至多一次重算在执行，重算进行中到达的请求合并为至多一次后续重算：
+ * 这些调用方共享后续重算的结果，后续重算开始时重新读取版本，因此能看到运行期间提交的明细修改。
+ * 不同版本在线程池上互不阻塞；排队已满时以冲突错误拒绝，不无限堆积。
+ */
+@Service
+public class RecalcCoordinator {
+
+    private final CalcService calcService;
+    private final Executor calcRecalcExecutor;
+    private final Object lock = new Object();
+    private final Map<Long, Slot> slots = new HashMap<>();
+
+    public RecalcCoordinator(CalcService calcService, Executor calcRecalcExecutor) {
+        this.calcService = calcService;
+        this.calcRecalcExecutor = calcRecalcExecutor;
+    }
+
+    /**
+     * 校验权限与版本状态后提交重算并等待结果
+     */
+    public List<IndicatorValueDto> recalculate(Long userId, Long versionId) {
+        calcService.checkRecalculable(userId, versionId);
+        return recalculateVersion(versionId);
+    }
+
+    /**
+     * 提交重算并等待结果（调用方负责权限校验），供批量重算等服务内部调用
+     */
+    public List<IndicatorValueDto> recalculateVersion(Long versionId) {
+        try {
+            return submit(versionId).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw BusinessException.conflict("指标计算被中断");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * 提交重算不等待，返回其结果
+     */
+    public CompletableFuture<List<IndicatorValueDto>> submit(Long versionId) {
+        return enqueue(versionId).getFuture();
+    }
+
+    /**
+     * 无运行中的重算时立即开始；否则返回（必要时创建）排在其后的那一次重算
+     */
+    Run enqueue(Long versionId) {
+        Run run;
+        synchronized (lock) {
+            Slot slot = slots.get(versionId);
+            if (slot != null) {
+                if (slot.pending == null) {
+                    slot.pending = new Run();
+                }
+                return slot.pending;
+            }
+            slot = new Slot();
+            slot.running = new Run();
+            slots.put(versionId, slot);
+            run = slot.running;
+        }
+        start(versionId, run);
+        return run;
+    }
+
+    private void start(Long versionId, Run run) {
+        try {
+            calcRecalcExecutor.execute(() -> execute(versionId, run));
+        } catch (RejectedExecutionException e) {
+            Run pending;
+            synchronized (lock) {
+                Slot slot = slots.remove(versionId);
+                pending = slot == null ? null : slot.pending;
+            }
+            BusinessException rejected = BusinessException.conflict("重算排队已满，请稍后重试");
+            run.future.completeExceptionally(rejected);
+            if (pending != null) {
+                pending.future.completeExceptionally(rejected);
+            }
+        }
+    }
+
+    private void execute(Long versionId, Run run) {
+        List<IndicatorValueDto> result = null;
+        Throwable failure = null;
+        try {
+            result = calcService.recalculateVersion(versionId, run.progress);
+        } catch (Throwable e) {
+            failure = e;
+        }
+        Run next;
+        synchronized (lock) {
+            Slot slot = slots.get(versionId);
+            next = slot.pending;
+            if (next == null) {
+                slots.remove(versionId);
+            } else {
+                slot.running = next;
+                slot.pending = null;
+            }
+        }
+        if (next != null) {
+            start(versionId, next);
+        }
+        if (failure == null) {
+            run.future.complete(result);
+        } else {
+            run.future.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * 一次实际执行的重算，合并进来的调用方共享其结果与进度
+     */
+    static final class Run {
+        private final CompletableFuture<List<IndicatorValueDto>> future = new CompletableFuture<>();
+        private final RecalcProgress progress = new RecalcProgress();
+
+        CompletableFuture<List<IndicatorValueDto>> getFuture() {
+            return future;
+        }
+
+        RecalcProgress getProgress() {
+            return progress;
+        }
+    }
+
+    private static final class Slot {
+        private Run running;
+        private Run pending;
+    }
+}
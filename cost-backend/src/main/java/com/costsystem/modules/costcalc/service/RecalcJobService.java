@@ -0,0 +1,181 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.common.exception.BusinessException;
+import com.costsystem.modules.costcalc.dto.IndicatorValueDto;
+import com.costsystem.modules.costcalc.dto.RecalcJobDto;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 版本异步重算任务服务
+ * 提交后立即返回任务ID，重算经 RecalcCoordinator 在重算线程池上执行，不占用 HTTP 线程；
+ * 同时进行的重算数受线程数限制，数据库连接占用随之有界。
+ * 未完成任务数达到 recalc-queue-capacity 时拒绝新任务；任务仅保存在本节点内存中，保留最近若干条。
+ */
+@Service
+public class RecalcJobService {
+
+    private static final Logger log = LoggerFactory.getLogger(RecalcJobService.class);
+
+    static final int MAX_RETAINED_JOBS = 200;
+    static final int SLOWEST_RULES = 10;
+    private static final int MAX_ERROR_LENGTH = 500;
+
+    private final CalcService calcService;
+    private final RecalcCoordinator recalcCoordinator;
+    private final Map<String, RecalcJob> jobs = new LinkedHashMap<>();
+    private final AtomicInteger activeJobs = new AtomicInteger();
+    private final Counter submittedCounter;
+    private final Counter rejectedCounter;
+    private final Counter failedCounter;
+    private final Timer waitTimer;
+    private final Timer durationTimer;
+
+    @Value("${cost-system.calc.recalc-queue-capacity:32}")
+    private int queueCapacity = 32;
+
+    public RecalcJobService(CalcService calcService,
+                            RecalcCoordinator recalcCoordinator,
+                            MeterRegistry meterRegistry) {
+        this.calcService = calcService;
+        this.recalcCoordinator = recalcCoordinator;
+        meterRegistry.gauge("calc.recalc.jobs.active", activeJobs);
+        this.submittedCounter = meterRegistry.counter("calc.recalc.jobs", "result", "submitted");
+        this.rejectedCounter = meterRegistry.counter("calc.recalc.jobs", "result", "rejected");
+        this.failedCounter = meterRegistry.counter("calc.recalc.jobs", "result", "failed");
+        this.waitTimer = meterRegistry.timer("calc.recalc.jobs.wait");
+        this.durationTimer = meterRegistry.timer("calc.recalc.jobs.duration");
+    }
+
+    /**
+     * 校验权限与版本状态后提交异步重算，排队已满时拒绝
+     */
+    public RecalcJobDto submit(Long userId, Long versionId) {
+        calcService.checkRecalculable(userId, versionId);
+        if (activeJobs.incrementAndGet() > queueCapacity) {
+            activeJobs.decrementAndGet();
+            rejectedCounter.increment();
+            throw BusinessException.conflict("重算任务排队已满，请稍后重试");
+        }
+        submittedCounter.increment();
+        LocalDateTime submittedAt = LocalDateTime.now();
+        RecalcJob job = new RecalcJob(UUID.randomUUID().toString(), versionId, submittedAt,
+                recalcCoordinator.enqueue(versionId));
+        register(job);
+        job.run.getFuture().whenComplete((indicators, failure) -> finish(job, failure));
+        return toDto(job);
+    }
+
+    public RecalcJobDto getJob(Long userId, Long versionId, String jobId) {
+        calcService.checkAccess(userId, versionId);
+        RecalcJob job;
+        synchronized (jobs) {
+            job = jobs.get(jobId);
+        }
+        if (job == null || !job.versionId.equals(versionId)) {
+            throw BusinessException.notFound("重算任务不存在");
+        }
+        return toDto(job);
+    }
+
+    int getActiveJobs() {
+        return activeJobs.get();
+    }
+
+    private void register(RecalcJob job) {
+        synchronized (jobs) {
+            jobs.put(job.id, job);
+            // 未完成任务不超过排队上限，只淘汰最早的已完成任务
+            Iterator<RecalcJob> iterator = jobs.values().iterator();
+            while (jobs.size() > MAX_RETAINED_JOBS && iterator.hasNext()) {
+                if (iterator.next().finishedAt != null) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private void finish(RecalcJob job, Throwable failure) {
+        job.finishedAt = LocalDateTime.now();
+        activeJobs.decrementAndGet();
+        LocalDateTime startedAt = job.run.getProgress().getStartedAt();
+        if (startedAt != null) {
+            waitTimer.record(Duration.between(job.submittedAt, startedAt));
+        }
+        durationTimer.record(Duration.between(job.submittedAt, job.finishedAt));
+        if (failure != null) {
+            failedCounter.increment();
+            log.warn("异步重算失败: versionId={}, jobId={}, reason={}", job.versionId, job.id, errorMessage(failure));
+        }
+    }
+
+    private RecalcJobDto toDto(RecalcJob job) {
+        RecalcProgress progress = job.run.getProgress();
+        RecalcJobDto dto = new RecalcJobDto();
+        dto.setJobId(job.id);
+        dto.setVersionId(job.versionId);
+        dto.setTotalRules(progress.getTotalRules());
+        dto.setEvaluatedRules(progress.getEvaluatedRules());
+        dto.setSlowestRules(progress.getSlowestRules(SLOWEST_RULES));
+        dto.setSubmittedAt(job.submittedAt);
+        dto.setStartedAt(progress.getStartedAt());
+        dto.setFinishedAt(job.finishedAt);
+        if (job.finishedAt == null) {
+            dto.setStatus((progress.getStartedAt() == null ? JobStatus.PENDING : JobStatus.RUNNING).name());
+            return dto;
+        }
+        List<IndicatorValueDto> indicators;
+        try {
+            indicators = job.run.getFuture().join();
+        } catch (CompletionException e) {
+            dto.setStatus(JobStatus.FAILED.name());
+            dto.setError(errorMessage(e.getCause()));
+            return dto;
+        }
+        dto.setStatus(JobStatus.COMPLETED.name());
+        dto.setIndicators(indicators);
+        return dto;
+    }
+
+    private String errorMessage(Throwable ex) {
+        if (ex instanceof CompletionException && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        String message = ex.getMessage() != null ? ex.getMessage() : ex.getClass().getSimpleName();
+        return message.length() > MAX_ERROR_LENGTH ? message.substring(0, MAX_ERROR_LENGTH) : message;
+    }
+
+    enum JobStatus {
+        PENDING, RUNNING, COMPLETED, FAILED
+    }
+
+    private static final class RecalcJob {
+        private final String id;
+        private final Long versionId;
+        private final LocalDateTime submittedAt;
+        private final RecalcCoordinator.Run run;
+        private volatile LocalDateTime finishedAt;
+
+        private RecalcJob(String id, Long versionId, LocalDateTime submittedAt, RecalcCoordinator.Run run) {
+            this.id = id;
+            this.versionId = versionId;
+            this.submittedAt = submittedAt;
+            this.run = run;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.dto.RuleCostDto;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 单次版本重算的进度
+ * 由重算线程写入、轮询线程读取；并行层内多条规则同时完成时按原子计数累加。
+ * 同时记录每条规则的求值开销，便于找出耗时规则
+ */
+public final class RecalcProgress {
+
+    private volatile LocalDateTime startedAt;
+    private volatile int totalRules;
+    private final AtomicInteger evaluatedRules = new AtomicInteger();
+    private final Queue<RuleCostDto> ruleCosts = new ConcurrentLinkedQueue<>();
+
+    void start() {
+        startedAt = LocalDateTime.now();
+    }
+
+    void rulesLoaded(int count) {
+        totalRules = count;
+    }
+
+    void ruleEvaluated(RuleCostDto cost) {
+        ruleCosts.add(cost);
+        evaluatedRules.incrementAndGet();
+    }
+
+    /**
+     * 输入指纹未变化时不再逐条计算，视为全部规则已完成
+     */
+    void allRulesEvaluated() {
+        evaluatedRules.set(totalRules);
+    }
+
+    public LocalDateTime getStartedAt() {
+        return startedAt;
+    }
+
+    public int getTotalRules() {
+        return totalRules;
+    }
+
+    public int getEvaluatedRules() {
+        return evaluatedRules.get();
+    }
+
+    /**
+     * 已完成规则中耗时最长的若干条，耗时相同按扫描行数
+     */
+    public List<RuleCostDto> getSlowestRules(int limit) {
+        List<RuleCostDto> costs = new ArrayList<>(ruleCosts);
+        costs.sort(Comparator.comparingLong(RuleCostDto::getElapsedMillis)
+                .thenComparingLong(RuleCostDto::getRows)
+                .reversed());
+        return costs.size() > limit ? new ArrayList<>(costs.subList(0, limit)) : costs;
+    }
+}
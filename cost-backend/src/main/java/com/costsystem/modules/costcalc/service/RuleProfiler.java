@@ -0,0 +1,114 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.dto.RuleCostDto;
+import com.costsystem.modules.costcalc.dto.SlowRuleDto;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 规则求值画像
+ * 每次重算后记录各规则的开销：求值耗时计入按 indicatorKey 打标签的 Micrometer 计时器，
+ * 开销明细保存在本节点内存的滑动窗口中，用于跨模板列出最慢的规则。
+ * 窗口按时间（profile-window-minutes）与条数（profile-max-samples）双重限制，超出时丢弃最早的记录。
+ */
+@Service
+public class RuleProfiler {
+
+    private final MeterRegistry meterRegistry;
+    private final Deque<Sample> samples = new ArrayDeque<>();
+
+    @Value("${cost-system.calc.profile-window-minutes:60}")
+    private long windowMinutes = 60;
+
+    @Value("${cost-system.calc.profile-max-samples:10000}")
+    private int maxSamples = 10_000;
+
+    public RuleProfiler(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * 记录一条规则在一次重算中的开销
+     *
+     * @param evalNanos 求值耗时（纳秒），计时器使用该精度；窗口统计使用 cost 中的毫秒值
+     */
+    public void record(Long templateId, Long versionId, RuleCostDto cost, long evalNanos) {
+        meterRegistry.timer("calc.rule.evaluation", "indicatorKey", cost.getIndicatorKey())
+                .record(evalNanos, TimeUnit.NANOSECONDS);
+        Sample sample = new Sample(templateId, versionId, cost, System.nanoTime(), LocalDateTime.now());
+        synchronized (samples) {
+            samples.addLast(sample);
+            while (samples.size() > maxSamples) {
+                samples.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * 窗口内按单次最大求值耗时排序的规则，耗时相同按平均耗时
+     */
+    public List<SlowRuleDto> slowestRules(int limit) {
+        List<Sample> window;
+        synchronized (samples) {
+            long cutoff = System.nanoTime() - TimeUnit.MINUTES.toNanos(windowMinutes);
+            while (!samples.isEmpty() && samples.peekFirst().recordedNanos - cutoff <= 0) {
+                samples.removeFirst();
+            }
+            window = new ArrayList<>(samples);
+        }
+        Map<Long, SlowRuleDto> byRule = new LinkedHashMap<>();
+        Map<Long, Long> totalMillis = new LinkedHashMap<>();
+        for (Sample sample : window) {
+            RuleCostDto cost = sample.cost;
+            SlowRuleDto dto = byRule.computeIfAbsent(cost.getRuleId(), id -> new SlowRuleDto());
+            dto.setRuleId(cost.getRuleId());
+            dto.setTemplateId(sample.templateId);
+            dto.setIndicatorKey(cost.getIndicatorKey());
+            dto.setSamples(dto.getSamples() + 1);
+            dto.setMaxElapsedMillis(Math.max(dto.getMaxElapsedMillis(), cost.getElapsedMillis()));
+            dto.setMaxParseMicros(Math.max(dto.getMaxParseMicros(), cost.getParseMicros()));
+            dto.setMaxRows(Math.max(dto.getMaxRows(), cost.getRows()));
+            dto.setMaxMatchedRows(Math.max(dto.getMaxMatchedRows(), cost.getMatchedRows()));
+            dto.setMaxTraceBytes(Math.max(dto.getMaxTraceBytes(), cost.getTraceBytes()));
+            dto.setLastVersionId(sample.versionId);
+            dto.setLastRecalcAt(sample.recordedAt);
+            totalMillis.merge(cost.getRuleId(), cost.getElapsedMillis(), Long::sum);
+        }
+        List<SlowRuleDto> rules = new ArrayList<>(byRule.values());
+        for (SlowRuleDto dto : rules) {
+            dto.setAvgElapsedMillis(totalMillis.get(dto.getRuleId()) / dto.getSamples());
+        }
+        rules.sort(Comparator.comparingLong(SlowRuleDto::getMaxElapsedMillis)
+                .thenComparingLong(SlowRuleDto::getAvgElapsedMillis)
+                .reversed());
+        return rules.size() > limit ? new ArrayList<>(rules.subList(0, limit)) : rules;
+    }
+
+    private static final class Sample {
+        private final Long templateId;
+        private final Long versionId;
+        private final RuleCostDto cost;
+        private final long recordedNanos;
+        private final LocalDateTime recordedAt;
+
+        private Sample(Long templateId, Long versionId, RuleCostDto cost, long recordedNanos,
+                       LocalDateTime recordedAt) {
+            this.templateId = templateId;
+            this.versionId = versionId;
+            this.cost = cost;
+            this.recordedNanos = recordedNanos;
+            this.recordedAt = recordedAt;
+        }
+    }
+}
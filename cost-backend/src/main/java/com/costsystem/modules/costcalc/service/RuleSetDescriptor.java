@@ -0,0 +1,104 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.service.CalcDsl.Expr;
+import com.costsystem.modules.costcalc.service.CalcDsl.IdentifierExpr;
+import com.costsystem.modules.costcalc.service.CalcDsl.Node;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.*;
+
+/**
+ * 规则集描述
+ * 编译后的规则集引用的明细列、ext 路径及指标间依赖。
+ * 明细列按标识符保守收集（与指标同名的标识符同样计入），重算时只需读取这些列即可构建与完整实体等价的快照
+ */
+final class RuleSetDescriptor {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final List<String> columns;
+    private final List<String> extPaths;
+    private final Map<String, List<String>> dependencies;
+
+    private RuleSetDescriptor(List<String> columns, List<String> extPaths, Map<String, List<String>> dependencies) {
+        this.columns = columns;
+        this.extPaths = extPaths;
+        this.dependencies = dependencies;
+    }
+
+    /**
+     * @param keys  按求值顺序排列的指标键
+     * @param exprs 与 keys 一一对应的表达式，可为 null
+     */
+    static RuleSetDescriptor of(List<String> keys, List<Expr> exprs) {
+        Set<String> columns = new TreeSet<>();
+        List<Expr> roots = new ArrayList<>(exprs.size());
+        Set<String> keySet = new HashSet<>(keys);
+        Map<String, List<String>> dependencies = new TreeMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Expr expr = exprs.get(i);
+            if (expr == null) {
+                continue;
+            }
+            roots.add(expr);
+            collectColumns(expr, columns);
+            Set<String> referenced = new TreeSet<>(IndicatorGraph.referencedNames(expr));
+            referenced.retainAll(keySet);
+            referenced.remove(keys.get(i));
+            dependencies.put(keys.get(i), new ArrayList<>(referenced));
+        }
+        List<String> extPaths = new ArrayList<>(new TreeSet<>(CalcDsl.collectExtPaths(roots)));
+        if (!extPaths.isEmpty()) {
+            columns.add("ext_json");
+        }
+        return new RuleSetDescriptor(new ArrayList<>(columns), extPaths, dependencies);
+    }
+
+    private static void collectColumns(Node root, Set<String> columns) {
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (node instanceof IdentifierExpr) {
+                LineItemSnapshot.Field column = ((IdentifierExpr) node).getColumn();
+                if (column != null && column != LineItemSnapshot.Field.EXT) {
+                    columns.add(column.getColumnName());
+                }
+            }
+            for (Node child : node.children()) {
+                stack.push(child);
+            }
+        }
+    }
+
+    /**
+     * 需要读取的明细列（不含ID），引用 ext 路径时包含 ext_json
+     */
+    List<String> getColumns() {
+        return columns;
+    }
+
+    List<String> getExtPaths() {
+        return extPaths;
+    }
+
+    /**
+     * 指标键到其直接引用的其他指标键
+     */
+    Map<String, List<String>> getDependencies() {
+        return dependencies;
+    }
+
+    String toJson() {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("columns", columns);
+        json.put("extPaths", extPaths);
+        json.put("dependencies", dependencies);
+        try {
+            return OBJECT_MAPPER.writeValueAsString(json);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("规则集描述序列化失败", e);
+        }
+    }
+}
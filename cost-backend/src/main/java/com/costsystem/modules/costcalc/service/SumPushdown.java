@@ -0,0 +1,206 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.common.exception.BusinessException;
+import com.costsystem.modules.costcalc.service.CalcDsl.Condition;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalContext;
+import com.costsystem.modules.costcalc.service.CalcDsl.Expr;
+import com.costsystem.modules.costcalc.service.CalcDsl.IdentifierExpr;
+import com.costsystem.modules.costcalc.service.CalcDsl.Node;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumExpr;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumTrace;
+import com.costsystem.modules.costform.entity.LineItem;
+import com.costsystem.modules.costform.repository.LineItemRepository;
+import com.costsystem.modules.costform.repository.LineItemRepositoryCustom.GroupSum;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * SUM 下推
+ * 被累加项为金额列、条件只引用维度列（module_code / category_code / unit / tax_rate）的 SUM 可由数据库求解：
+ * 按条件涉及的维度列分组汇总行数与金额合计，每个分组按原条件判断一次，命中分组相加即为 SUM 结果。
+ * 条件判断与逐行求值共用同一实现，空值、大小写与数值比较语义一致。
+ * 规则集中全部 SUM 均可下推时，整个版本只发出一条分组聚合查询，不加载明细实体；
+ * 追溯中不保存命中明细ID，查看追溯时再按维度列回查。
+ */
+final class SumPushdown {
+
+    private final List<SumExpr> sumExprs;
+    private final List<String> groupColumns;
+    private final List<String> sumColumns;
+
+    private SumPushdown(List<SumExpr> sumExprs, List<String> groupColumns, List<String> sumColumns) {
+        this.sumExprs = sumExprs;
+        this.groupColumns = groupColumns;
+        this.sumColumns = sumColumns;
+    }
+
+    /**
+     * 规则集中全部 SUM（含嵌套于 IF 等表达式中的）均可下推时返回下推计划，否则返回 null
+     */
+    static SumPushdown plan(Collection<Expr> exprs, Set<String> indicatorKeys) {
+        List<SumExpr> sumExprs = new ArrayList<>();
+        Set<String> groupColumns = new TreeSet<>();
+        Set<String> sumColumns = new TreeSet<>();
+        for (SumExpr sumExpr : sums(exprs)) {
+            if (!supports(sumExpr, indicatorKeys)) {
+                return null;
+            }
+            sumExprs.add(sumExpr);
+            sumColumns.add(((IdentifierExpr) sumExpr.getExpr()).getColumn().getColumnName());
+            groupColumns.addAll(conditionColumns(sumExpr));
+        }
+        return new SumPushdown(sumExprs, new ArrayList<>(groupColumns), new ArrayList<>(sumColumns));
+    }
+
+    /**
+     * 不分组的 SUM，被累加项为金额列，条件只引用维度列；标识符与指标同名时逐行求值可能回退到指标值，不下推
+     */
+    private static boolean supports(SumExpr sumExpr, Set<String> indicatorKeys) {
+        if (sumExpr.getFunction() != CalcDsl.Aggregate.SUM || sumExpr.getGroupBy() != null
+                || !(sumExpr.getExpr() instanceof IdentifierExpr)) {
+            return false;
+        }
+        IdentifierExpr field = (IdentifierExpr) sumExpr.getExpr();
+        if (field.getColumn() == null || !field.getColumn().isDecimal() || indicatorKeys.contains(field.getName())) {
+            return false;
+        }
+        Deque<Node> stack = new ArrayDeque<>(CalcDsl.nodes(sumExpr.getCondition()));
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (node instanceof SumExpr) {
+                return false;
+            }
+            if (node instanceof IdentifierExpr) {
+                IdentifierExpr identifier = (IdentifierExpr) node;
+                if (identifier.getColumn() == null || !identifier.getColumn().isIndexed()
+                        || indicatorKeys.contains(identifier.getName())) {
+                    return false;
+                }
+            }
+            stack.addAll(node.children());
+        }
+        return true;
+    }
+
+    /**
+     * 执行分组聚合查询并求出各 SUM，结果可直接作为融合 SUM 结果供规则求值使用
+     */
+    Map<SumExpr, SumTrace> evaluate(LineItemRepository lineItemRepository, Long versionId) {
+        if (sumExprs.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<GroupSum> groups = lineItemRepository.sumByGroups(versionId, groupColumns, sumColumns);
+        List<LineItem> keys = new ArrayList<>(groups.size());
+        for (GroupSum group : groups) {
+            keys.add(group.getKey());
+        }
+        LineItemSnapshot snapshot = LineItemSnapshot.of(keys, null);
+        EvalContext ctx = new EvalContext(snapshot, Collections.emptyMap());
+        Map<SumExpr, SumTrace> result = new IdentityHashMap<>();
+        Map<String, SumTrace> shared = new HashMap<>();
+        try {
+            for (SumExpr sumExpr : sumExprs) {
+                SumTrace reused = sumExpr.canonicalKey() == null ? null : shared.get(sumExpr.canonicalKey());
+                if (reused != null) {
+                    result.put(sumExpr, reused);
+                    continue;
+                }
+                String column = ((IdentifierExpr) sumExpr.getExpr()).getColumn().getColumnName();
+                Condition condition = sumExpr.getCondition();
+                BigDecimal sum = BigDecimal.ZERO;
+                long count = 0;
+                for (int row = 0; row < groups.size(); row++) {
+                    ctx.setCurrentRow(row);
+                    if (condition != null && !condition.test(ctx)) {
+                        continue;
+                    }
+                    GroupSum group = groups.get(row);
+                    count += group.getCount();
+                    if (group.getSum(column) != null) {
+                        sum = sum.add(group.getSum(column));
+                    }
+                }
+                SumTrace trace = toTrace(sumExpr, (int) count, sum);
+                result.put(sumExpr, trace);
+                if (sumExpr.canonicalKey() != null) {
+                    shared.put(sumExpr.canonicalKey(), trace);
+                }
+            }
+        } catch (RuntimeException ex) {
+            throw BusinessException.conflict("规则表达式计算失败: " + ex.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * 下推结果不含命中明细ID（itemIds 为 null），追溯中以 pushdown 标记，查看时回查
+     */
+    private static SumTrace toTrace(SumExpr sumExpr, int count, BigDecimal sum) {
+        String fieldText = sumExpr.getExpr().toString();
+        String conditionText = sumExpr.getCondition() == null ? null : sumExpr.getCondition().toString();
+        return new SumTrace(sumExpr.toString(), fieldText, conditionText, count, sum, null);
+    }
+
+    /**
+     * 回查下推 SUM 命中的明细ID：按ID顺序读取条件引用的维度列，逐行判断原条件，结果按 SUM 表达式文本索引
+     */
+    static Map<String, List<Long>> matchedItemIds(Collection<SumExpr> sumExprs,
+                                                  LineItemRepository lineItemRepository, Long versionId) {
+        Set<String> columns = new TreeSet<>();
+        for (SumExpr sumExpr : sumExprs) {
+            columns.addAll(conditionColumns(sumExpr));
+        }
+        LineItemSnapshot snapshot = LineItemSnapshot.of(
+                lineItemRepository.findColumnsByVersionId(versionId, new ArrayList<>(columns)), null);
+        EvalContext ctx = new EvalContext(snapshot, Collections.emptyMap());
+        Map<String, List<Long>> result = new HashMap<>();
+        for (SumExpr sumExpr : sumExprs) {
+            List<Long> ids = new ArrayList<>();
+            for (int row = 0; row < snapshot.size(); row++) {
+                ctx.setCurrentRow(row);
+                if (sumExpr.getCondition() == null || sumExpr.getCondition().test(ctx)) {
+                    ids.add(snapshot.id(row));
+                }
+            }
+            result.putIfAbsent(sumExpr.toString(), ids);
+        }
+        return result;
+    }
+
+    /**
+     * 表达式中的全部 SUM，按出现顺序
+     */
+    static List<SumExpr> sums(Collection<Expr> exprs) {
+        List<SumExpr> result = new ArrayList<>();
+        for (Expr expr : exprs) {
+            collect(expr, result);
+        }
+        return result;
+    }
+
+    private static void collect(Node node, List<SumExpr> result) {
+        if (node == null) {
+            return;
+        }
+        if (node instanceof SumExpr) {
+            result.add((SumExpr) node);
+        }
+        for (Node child : node.children()) {
+            collect(child, result);
+        }
+    }
+
+    private static Set<String> conditionColumns(SumExpr sumExpr) {
+        Set<String> columns = new TreeSet<>();
+        Deque<Node> stack = new ArrayDeque<>(CalcDsl.nodes(sumExpr.getCondition()));
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (node instanceof IdentifierExpr && ((IdentifierExpr) node).getColumn() != null) {
+                columns.add(((IdentifierExpr) node).getColumn().getColumnName());
+            }
+            stack.addAll(node.children());
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,243 @@
+package com.costsystem.modules.costcalc.service;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 追溯明细ID集合池
+ * 同一版本各指标 SUM 命中的明细ID列表按内容去重后统一存放，指标追溯中只记录集合引用。
+ * 每个集合按"连续区间"游程编码，区间起点相对上一区间终点做 zigzag 差值并以变长整数写出，
+ * 连续自增的ID区间只占几个字节；编码保留原始顺序，展开结果与原列表逐项一致。
+ */
+final class TraceItemSets {
+
+    private static final int FORMAT = 1;
+
+    private final Map<Long, byte[]> entries = new LinkedHashMap<>();
+
+    static TraceItemSets decode(byte[] data) {
+        TraceItemSets sets = new TraceItemSets();
+        if (data == null || data.length == 0) {
+            return sets;
+        }
+        Reader in = new Reader(data);
+        int format = in.readByte();
+        if (format != FORMAT) {
+            throw new IllegalArgumentException("不支持的追溯集合格式: " + format);
+        }
+        long size = in.readVarLong();
+        for (long i = 0; i < size; i++) {
+            long key = in.readLong();
+            int length = (int) in.readVarLong();
+            sets.entries.put(key, in.readBytes(length));
+        }
+        return sets;
+    }
+
+    /**
+     * 加入一个ID列表，返回其引用；内容相同的列表共用同一引用
+     */
+    String add(List<Long> ids) {
+        byte[] encoded = encodeIds(ids);
+        long key = hash(encoded);
+        while (true) {
+            byte[] existing = entries.get(key);
+            if (existing == null) {
+                entries.put(key, encoded);
+                break;
+            }
+            if (Arrays.equals(existing, encoded)) {
+                break;
+            }
+            key++;
+        }
+        return toRef(key);
+    }
+
+    /**
+     * 从另一集合池原样复制引用对应的集合，引用保持不变；源中不存在或引用冲突时返回 false
+     */
+    boolean copy(String ref, TraceItemSets source) {
+        Long key = parseRef(ref);
+        byte[] encoded = key == null ? null : source.entries.get(key);
+        if (encoded == null) {
+            return false;
+        }
+        byte[] existing = entries.putIfAbsent(key, encoded);
+        return existing == null || Arrays.equals(existing, encoded);
+    }
+
+    /**
+     * 展开引用对应的ID列表，引用不存在时返回 null
+     */
+    List<Long> get(String ref) {
+        Long key = parseRef(ref);
+        byte[] encoded = key == null ? null : entries.get(key);
+        return encoded == null ? null : decodeIds(encoded);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    byte[] encode() {
+        Writer out = new Writer();
+        out.writeByte(FORMAT);
+        out.writeVarLong(entries.size());
+        for (Map.Entry<Long, byte[]> entry : entries.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeVarLong(entry.getValue().length);
+            out.writeBytes(entry.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] encodeIds(List<Long> ids) {
+        Writer out = new Writer();
+        int n = ids.size();
+        out.writeVarLong(n);
+        long previous = 0;
+        int i = 0;
+        while (i < n) {
+            long start = ids.get(i);
+            int run = 1;
+            while (i + run < n && ids.get(i + run) == start + run) {
+                run++;
+            }
+            out.writeVarLong(zigzag(start - previous));
+            out.writeVarLong(run);
+            previous = start + run - 1;
+            i += run;
+        }
+        return out.toByteArray();
+    }
+
+    static List<Long> decodeIds(byte[] encoded) {
+        Reader in = new Reader(encoded);
+        long n = in.readVarLong();
+        if (n == 0) {
+            return Collections.emptyList();
+        }
+        List<Long> ids = new ArrayList<>((int) n);
+        long previous = 0;
+        while (ids.size() < n) {
+            long start = previous + unzigzag(in.readVarLong());
+            long run = in.readVarLong();
+            if (run <= 0 || ids.size() + run > n) {
+                throw new IllegalArgumentException("追溯集合数据损坏");
+            }
+            for (long offset = 0; offset < run; offset++) {
+                ids.add(start + offset);
+            }
+            previous = start + run - 1;
+        }
+        return ids;
+    }
+
+    private static String toRef(long key) {
+        return String.format("%016x", key);
+    }
+
+    private static Long parseRef(String ref) {
+        if (ref == null || ref.length() != 16) {
+            return null;
+        }
+        try {
+            return Long.parseUnsignedLong(ref, 16);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * FNV-1a 64 位哈希
+     */
+    private static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static final class Writer extends ByteArrayOutputStream {
+
+        void writeByte(int value) {
+            write(value);
+        }
+
+        void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (value >>> shift) & 0xff);
+            }
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] data;
+        private int position;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int readByte() {
+            if (position >= data.length) {
+                throw new IllegalArgumentException("追溯集合数据损坏");
+            }
+            return data[position++] & 0xff;
+        }
+
+        long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("追溯集合数据损坏");
+        }
+
+        byte[] readBytes(int length) {
+            if (length < 0 || position + length > data.length) {
+                throw new IllegalArgumentException("追溯集合数据损坏");
+            }
+            byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+            position += length;
+            return bytes;
+        }
+    }
+}
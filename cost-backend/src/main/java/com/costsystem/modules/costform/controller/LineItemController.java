@@ -2,9 +2,11 @@ package com.costsystem.modules.costform.controller;
 
 import com.costsystem.common.annotation.RequirePerm;
 import com.costsystem.common.dto.ApiResponse;
+import com.costsystem.modules.costcalc.dto.IndicatorSimulationDto;
 import com.costsystem.modules.costform.dto.LineItemBatchRequest;
 import com.costsystem.modules.costform.dto.LineItemDto;
 import com.costsystem.modules.costform.dto.LineItemImportResult;
+import com.costsystem.modules.costform.dto.LineItemSimulationRequest;
 import com.costsystem.modules.costform.service.LineItemService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
@@ -52,6 +54,17 @@ public class LineItemController {
         return ApiResponse.success(items);
     }
 
+    @PostMapping("/versions/{versionId}/line-items/simulate")
+    @Operation(summary = "模拟明细变更后的指标")
+    @RequirePerm("ITEM_READ")
+    public ApiResponse<List<IndicatorSimulationDto>> simulateLineItems(
+            @AuthenticationPrincipal Long currentUserId,
+            @PathVariable Long versionId,
+            @RequestBody LineItemSimulationRequest request) {
+        List<IndicatorSimulationDto> indicators = lineItemService.simulateLineItems(currentUserId, versionId, request);
+        return ApiResponse.success(indicators);
+    }
+
     @DeleteMapping("/versions/{versionId}/line-items/{itemId}")
     @Operation(summary = "删除明细行")
     @RequirePerm("ITEM_DELETE")
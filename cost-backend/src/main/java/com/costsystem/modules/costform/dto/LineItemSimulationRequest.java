@@ -0,0 +1,38 @@
+package com.costsystem.modules.costform.dto;
+
+import java.util.List;
+
+/**
+ * 明细变更模拟请求：items 与批量保存格式一致，deletedIds 为待删除的明细ID
+ * 严格遵循 cost-system-java 技能规则
+ */
+public class LineItemSimulationRequest {
+
+    private String module;
+    private List<LineItemDto> items;
+    private List<Long> deletedIds;
+
+    public String getModule() {
+        return module;
+    }
+
+    public void setModule(String module) {
+        this.module = module;
+    }
+
+    public List<LineItemDto> getItems() {
+        return items;
+    }
+
+    public void setItems(List<LineItemDto> items) {
+        this.items = items;
+    }
+
+    public List<Long> getDeletedIds() {
+        return deletedIds;
+    }
+
+    public void setDeletedIds(List<Long> deletedIds) {
+        this.deletedIds = deletedIds;
+    }
+}
@@ -55,6 +55,16 @@ public class FormVersion {
     @Column(name = "seal_pos_y")
     private Double sealPosY;
     
+    /**
+     * 明细修订号与重算输入指纹只由 FormVersionRepository 的更新语句维护，实体保存时不写入
+     */
+    @Column(name = "item_revision", nullable = false, insertable = false, updatable = false,
+            columnDefinition = "BIGINT NOT NULL DEFAULT 0")
+    private Long itemRevision = 0L;
+    
+    @Column(name = "calc_fingerprint", insertable = false, updatable = false)
+    private String calcFingerprint;
+    
     @Column(name = "updated_at", nullable = false)
     private LocalDateTime updatedAt;
     
@@ -152,6 +162,22 @@ public class FormVersion {
         this.sealPosY = sealPosY;
     }
 
+    public Long getItemRevision() {
+        return itemRevision;
+    }
+
+    public void setItemRevision(Long itemRevision) {
+        this.itemRevision = itemRevision;
+    }
+
+    public String getCalcFingerprint() {
+        return calcFingerprint;
+    }
+
+    public void setCalcFingerprint(String calcFingerprint) {
+        this.calcFingerprint = calcFingerprint;
+    }
+
     public LocalDateTime getUpdatedAt() { return updatedAt; }
     public void setUpdatedAt(LocalDateTime updatedAt) { this.updatedAt = updatedAt; }
 }
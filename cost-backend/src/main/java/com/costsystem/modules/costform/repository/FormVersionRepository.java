@@ -1,10 +1,17 @@
 package com.costsystem.modules.costform.repository;
 
 import com.costsystem.modules.costform.entity.FormVersion;
+import jakarta.persistence.LockModeType;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 
 /**
  * 表单版本仓储接口
@@ -17,4 +24,47 @@ public interface FormVersionRepository extends JpaRepository<FormVersion, Long>
     List<FormVersion> findByProjectIdOrderByVersionNoDesc(Long projectId);
 
     FormVersion findTopByProjectIdOrderByVersionNoDesc(Long projectId);
+
+    FormVersion findTopByProjectIdAndStatusInOrderByVersionNoDesc(Long projectId,
+                                                                  Collection<FormVersion.VersionStatus> statuses);
+
+    @Query("SELECT v.id FROM FormVersion v WHERE v.templateId = :templateId AND v.status = :status "
+            + "AND v.id > :afterId ORDER BY v.id ASC")
+    List<Long> findIdsByTemplateIdAndStatusAfter(@Param("templateId") Long templateId,
+                                                 @Param("status") FormVersion.VersionStatus status,
+                                                 @Param("afterId") Long afterId);
+
+    /**
+     * 明细写入后递增版本的明细修订号；以单条更新语句原子递增，不经过实体，避免并发写入丢失递增
+     */
+    @Modifying
+    @Query("UPDATE FormVersion v SET v.itemRevision = v.itemRevision + 1 WHERE v.id = :id")
+    int incrementItemRevision(@Param("id") Long id);
+
+    /**
+     * 锁定版本行（SELECT ... FOR UPDATE），同一版本的全量重算与指标增量维护依次进行
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT v FROM FormVersion v WHERE v.id = :id")
+    Optional<FormVersion> findByIdForUpdate(@Param("id") Long id);
+
+    /**
+     * 读取库中当前的明细修订号；递增语句不经过实体，已加载的实体可能仍持有写入前的值
+     */
+    @Query("SELECT v.itemRevision FROM FormVersion v WHERE v.id = :id")
+    Long findItemRevisionById(@Param("id") Long id);
+
+    /**
+     * 记录全量重算所依据的输入指纹
+     */
+    @Modifying
+    @Query("UPDATE FormVersion v SET v.calcFingerprint = :fingerprint WHERE v.id = :id")
+    int updateCalcFingerprint(@Param("id") Long id, @Param("fingerprint") String fingerprint);
+
+    /**
+     * 仅当已保存指纹仍为预期值时替换为新指纹，返回更新行数
+     */
+    @Modifying
+    @Query("UPDATE FormVersion v SET v.calcFingerprint = :next WHERE v.id = :id AND v.calcFingerprint = :expected")
+    int advanceCalcFingerprint(@Param("id") Long id, @Param("expected") String expected, @Param("next") String next);
 }
@@ -11,7 +11,7 @@ import java.util.List;
  * 严格遵循 cost-system-java 技能规则
  */
 @Repository
-public interface LineItemRepository extends JpaRepository<LineItem, Long> {
+public interface LineItemRepository extends JpaRepository<LineItem, Long>, LineItemRepositoryCustom {
 
     List<LineItem> findByVersionIdAndModuleCodeOrderBySortNoAsc(Long versionId, String moduleCode);
 
@@ -0,0 +1,59 @@
+package com.costsystem.modules.costform.repository;
+
+import com.costsystem.modules.costform.entity.LineItem;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 明细行聚合查询
+ * 严格遵循 cost-system-java 技能规则
+ */
+public interface LineItemRepositoryCustom {
+
+    /**
+     * 按给定维度列分组汇总版本明细，返回每组的维度取值、行数及各金额列合计。
+     * 文本维度按字节精确分组，大小写或尾随空格不同的取值各自成组；全部为空值的合计为 null
+     *
+     * @param groupColumns 维度列：module_code / category_code / unit / tax_rate
+     * @param sumColumns   金额列：qty / price_tax / amount_tax / tax_rate
+     */
+    List<GroupSum> sumByGroups(Long versionId, List<String> groupColumns, List<String> sumColumns);
+
+    /**
+     * 按ID顺序读取版本明细的ID与给定列，不加载完整实体；未读取的字段保持为空（sort_no 为默认值）。
+     * 用于按条件回查命中明细，以及重算时只读取规则引用的列
+     *
+     * @param columns 明细列：module_code / category_code / item_code / name / spec / unit / qty /
+     *                price_tax / amount_tax / tax_rate / remark / sort_no / ext_json
+     */
+    List<LineItem> findColumnsByVersionId(Long versionId, List<String> columns);
+
+    /**
+     * 分组汇总结果，key 中只填充分组维度列
+     */
+    class GroupSum {
+        private final LineItem key;
+        private final long count;
+        private final Map<String, BigDecimal> sums;
+
+        public GroupSum(LineItem key, long count, Map<String, BigDecimal> sums) {
+            this.key = key;
+            this.count = count;
+            this.sums = sums;
+        }
+
+        public LineItem getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public BigDecimal getSum(String column) {
+            return sums.get(column);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.costsystem.modules.costform.repository;
+
+import com.costsystem.modules.costform.entity.LineItem;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 明细行聚合查询实现（基于 JdbcTemplate，与 JPA 共享当前事务连接）
+ * 列名只接受白名单内的明细列，不拼接外部输入
+ * 严格遵循 cost-system-java 技能规则
+ */
+public class LineItemRepositoryImpl implements LineItemRepositoryCustom {
+
+    private static final Set<String> TEXT_COLUMNS = Set.of("module_code", "category_code", "unit");
+    private static final Set<String> DECIMAL_COLUMNS = Set.of("qty", "price_tax", "amount_tax", "tax_rate");
+    private static final Set<String> PROJECTION_COLUMNS = Set.of("module_code", "category_code", "unit",
+            "item_code", "name", "spec", "remark", "sort_no", "qty", "price_tax", "amount_tax", "tax_rate", "ext_json");
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public LineItemRepositoryImpl(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public List<GroupSum> sumByGroups(Long versionId, List<String> groupColumns, List<String> sumColumns) {
+        StringBuilder select = new StringBuilder("SELECT ");
+        StringBuilder groupBy = new StringBuilder();
+        for (String column : groupColumns) {
+            checkGroupColumn(column);
+            // 表排序规则不区分大小写，文本维度按二进制分组，保证与内存中逐行比较的语义一致
+            select.append("ANY_VALUE(").append(column).append("), ");
+            groupBy.append(groupBy.length() == 0 ? " GROUP BY " : ", ")
+                    .append(TEXT_COLUMNS.contains(column) ? "CAST(" + column + " AS BINARY)" : column);
+        }
+        select.append("COUNT(*)");
+        for (String column : sumColumns) {
+            checkColumn(DECIMAL_COLUMNS, column);
+            select.append(", SUM(").append(column).append(")");
+        }
+        String sql = select + " FROM cost_line_item WHERE version_id = ?" + groupBy;
+        return jdbcTemplate.query(sql, (rs, rowNum) -> {
+            LineItem key = new LineItem();
+            int index = 1;
+            for (String column : groupColumns) {
+                setColumn(key, column, rs, index++);
+            }
+            long count = rs.getLong(index++);
+            Map<String, BigDecimal> sums = new HashMap<>();
+            for (String column : sumColumns) {
+                sums.put(column, rs.getBigDecimal(index++));
+            }
+            return new GroupSum(key, count, sums);
+        }, versionId);
+    }
+
+    @Override
+    public List<LineItem> findColumnsByVersionId(Long versionId, List<String> columns) {
+        StringBuilder sql = new StringBuilder("SELECT id");
+        for (String column : columns) {
+            checkColumn(PROJECTION_COLUMNS, column);
+            sql.append(", ").append(column);
+        }
+        sql.append(" FROM cost_line_item WHERE version_id = ? ORDER BY id");
+        return jdbcTemplate.query(sql.toString(), (rs, rowNum) -> {
+            LineItem item = new LineItem();
+            item.setId(rs.getLong(1));
+            item.setVersionId(versionId);
+            int index = 2;
+            for (String column : columns) {
+                setColumn(item, column, rs, index++);
+            }
+            return item;
+        }, versionId);
+    }
+
+    private void checkGroupColumn(String column) {
+        if (!"tax_rate".equals(column)) {
+            checkColumn(TEXT_COLUMNS, column);
+        }
+    }
+
+    private void checkColumn(Set<String> allowed, String column) {
+        if (!allowed.contains(column)) {
+            throw new IllegalArgumentException("不支持的明细列: " + column);
+        }
+    }
+
+    private void setColumn(LineItem item, String column, ResultSet rs, int index) throws SQLException {
+        switch (column) {
+            case "module_code":
+                item.setModuleCode(rs.getString(index));
+                break;
+            case "category_code":
+                item.setCategoryCode(rs.getString(index));
+                break;
+            case "unit":
+                item.setUnit(rs.getString(index));
+                break;
+            case "item_code":
+                item.setItemCode(rs.getString(index));
+                break;
+            case "name":
+                item.setName(rs.getString(index));
+                break;
+            case "spec":
+                item.setSpec(rs.getString(index));
+                break;
+            case "remark":
+                item.setRemark(rs.getString(index));
+                break;
+            case "sort_no":
+                item.setSortNo(rs.getInt(index));
+                break;
+            case "qty":
+                item.setQty(rs.getBigDecimal(index));
+                break;
+            case "price_tax":
+                item.setPriceTax(rs.getBigDecimal(index));
+                break;
+            case "amount_tax":
+                item.setAmountTax(rs.getBigDecimal(index));
+                break;
+            case "tax_rate":
+                item.setTaxRate(rs.getBigDecimal(index));
+                break;
+            case "ext_json":
+                item.setExtJson(rs.getString(index));
+                break;
+            default:
+                throw new IllegalArgumentException("不支持的明细列: " + column);
+        }
+    }
+}
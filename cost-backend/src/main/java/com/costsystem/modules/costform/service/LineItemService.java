@@ -2,9 +2,14 @@ package com.costsystem.modules.costform.service;
 
 import com.costsystem.common.exception.BusinessException;
 import com.costsystem.modules.costaudit.service.AuditLogService;
+import com.costsystem.modules.costcalc.dto.IndicatorSimulationDto;
+import com.costsystem.modules.costcalc.service.CalcSimulationService;
+import com.costsystem.modules.costcalc.service.IncrementalCalcService;
+import com.costsystem.modules.costcalc.service.IncrementalCalcService.LineItemChange;
 import com.costsystem.modules.costform.dto.LineItemBatchRequest;
 import com.costsystem.modules.costform.dto.LineItemDto;
 import com.costsystem.modules.costform.dto.LineItemImportResult;
+import com.costsystem.modules.costform.dto.LineItemSimulationRequest;
 import com.costsystem.modules.costform.entity.FormVersion;
 import com.costsystem.modules.costform.entity.LineItem;
 import com.costsystem.modules.costform.repository.FormVersionRepository;
@@ -39,16 +44,22 @@ public class LineItemService {
     private final FormVersionRepository formVersionRepository;
     private final ProjectRepository projectRepository;
     private final AuditLogService auditLogService;
+    private final IncrementalCalcService incrementalCalcService;
+    private final CalcSimulationService calcSimulationService;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
     public LineItemService(LineItemRepository lineItemRepository,
                            FormVersionRepository formVersionRepository,
                            ProjectRepository projectRepository,
-                           AuditLogService auditLogService) {
+                           AuditLogService auditLogService,
+                           IncrementalCalcService incrementalCalcService,
+                           CalcSimulationService calcSimulationService) {
         this.lineItemRepository = lineItemRepository;
         this.formVersionRepository = formVersionRepository;
         this.projectRepository = projectRepository;
         this.auditLogService = auditLogService;
+        this.incrementalCalcService = incrementalCalcService;
+        this.calcSimulationService = calcSimulationService;
     }
 
     @Transactional(readOnly = true)
@@ -81,12 +92,14 @@ public class LineItemService {
             throw BusinessException.badRequest("module参数不能为空");
         }
         List<LineItemDto> saved = new ArrayList<>();
+        List<LineItemChange> changes = new ArrayList<>();
         int sortNo = 1;
         for (LineItemDto dto : request.getItems()) {
             if (dto == null || dto.getItemName() == null || dto.getItemName().isBlank()) {
                 continue;
             }
             LineItem entity;
+            LineItem beforeItem = null;
             Map<String, Object> beforeValues = null;
             boolean isCreate = dto.getId() == null;
             if (!isCreate) {
@@ -96,6 +109,7 @@ public class LineItemService {
                     throw BusinessException.badRequest("明细行与版本不匹配");
                 }
                 beforeValues = extractAmountFields(entity);
+                beforeItem = copyForCalc(entity);
             } else {
                 entity = new LineItem();
                 entity.setVersionId(versionId);
@@ -109,7 +123,9 @@ public class LineItemService {
             Map<String, Object> afterValues = extractAmountFields(entity);
             if (isCreate) {
                 logLineItemAction(userId, version, entity, "LINE_ITEM_CREATE", afterValues);
+                changes.add(LineItemChange.created(copyForCalc(entity)));
             } else {
+                changes.add(LineItemChange.updated(beforeItem, copyForCalc(entity)));
                 Map<String, Object> diff = diffAmountFields(beforeValues, afterValues);
                 if (!diff.isEmpty()) {
                     logLineItemAction(userId, version, entity, "LINE_ITEM_UPDATE", diff);
@@ -117,9 +133,54 @@ public class LineItemService {
             }
             sortNo++;
         }
+        if (!changes.isEmpty()) {
+            formVersionRepository.incrementItemRevision(versionId);
+        }
+        incrementalCalcService.applyLineItemChanges(version, changes);
+        calcSimulationService.evict(versionId);
         return saved;
     }
 
+    /**
+     * 模拟保存明细变更后的指标，按与批量保存相同的规则生成明细，不写入明细、指标与审计日志
+     */
+    @Transactional(readOnly = true)
+    public List<IndicatorSimulationDto> simulateLineItems(Long userId, Long versionId,
+                                                          LineItemSimulationRequest request) {
+        FormVersion version = loadVersionWithAccess(userId, versionId);
+        ensureDraft(version);
+        List<LineItemDto> items = request == null || request.getItems() == null
+                ? Collections.emptyList() : request.getItems();
+        String moduleCode = normalizeModule(request == null ? null : request.getModule());
+        if (moduleCode == null && !items.isEmpty()) {
+            throw BusinessException.badRequest("module参数不能为空");
+        }
+        return calcSimulationService.simulate(version, request == null ? null : request.getDeletedIds(), current -> {
+            List<LineItem> changed = new ArrayList<>();
+            int sortNo = 1;
+            for (LineItemDto dto : items) {
+                if (dto == null || dto.getItemName() == null || dto.getItemName().isBlank()) {
+                    continue;
+                }
+                LineItem entity;
+                if (dto.getId() != null) {
+                    LineItem existing = current.get(dto.getId());
+                    if (existing == null) {
+                        throw BusinessException.notFound("明细不存在");
+                    }
+                    entity = copyForCalc(existing);
+                } else {
+                    entity = new LineItem();
+                    entity.setVersionId(versionId);
+                }
+                applyDto(entity, dto, moduleCode, sortNo);
+                changed.add(entity);
+                sortNo++;
+            }
+            return changed;
+        });
+    }
+
     @Transactional
     public void deleteLineItem(Long userId, Long versionId, Long itemId) {
         FormVersion version = loadVersionWithAccess(userId, versionId);
@@ -129,7 +190,11 @@ public class LineItemService {
         if (!item.getVersionId().equals(versionId)) {
             throw BusinessException.badRequest("明细行与版本不匹配");
         }        logLineItemAction(userId, version, item, "LINE_ITEM_DELETE", extractAmountFields(item));
+        LineItemChange change = LineItemChange.deleted(copyForCalc(item));
         lineItemRepository.delete(item);
+        formVersionRepository.incrementItemRevision(versionId);
+        incrementalCalcService.applyLineItemChanges(version, List.of(change));
+        calcSimulationService.evict(versionId);
     }
 
     @Transactional
@@ -191,6 +256,8 @@ public class LineItemService {
         }
         if (!allItems.isEmpty()) {
             lineItemRepository.saveAll(allItems);
+            formVersionRepository.incrementItemRevision(versionId);
+            calcSimulationService.evict(versionId);
         }
         result.setSuccessCount(allItems.size());
         Map<String, Object> importDetail = new LinkedHashMap<>();
@@ -736,6 +803,29 @@ public class LineItemService {
             return columnIndex;
         }
     }
+    /**
+     * 复制参与指标计算的字段，避免后续修改实体影响增量计算的变更前数据
+     */
+    private LineItem copyForCalc(LineItem item) {
+        LineItem copy = new LineItem();
+        copy.setId(item.getId());
+        copy.setVersionId(item.getVersionId());
+        copy.setModuleCode(item.getModuleCode());
+        copy.setCategoryCode(item.getCategoryCode());
+        copy.setItemCode(item.getItemCode());
+        copy.setName(item.getName());
+        copy.setSpec(item.getSpec());
+        copy.setUnit(item.getUnit());
+        copy.setQty(item.getQty());
+        copy.setPriceTax(item.getPriceTax());
+        copy.setAmountTax(item.getAmountTax());
+        copy.setTaxRate(item.getTaxRate());
+        copy.setRemark(item.getRemark());
+        copy.setSortNo(item.getSortNo());
+        copy.setExtJson(item.getExtJson());
+        return copy;
+    }
+
     private Map<String, Object> extractAmountFields(LineItem item) {
         Map<String, Object> values = new LinkedHashMap<>();
         if (item == null) {
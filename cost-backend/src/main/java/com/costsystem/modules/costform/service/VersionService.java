@@ -2,6 +2,7 @@ package com.costsystem.modules.costform.service;
 
 import com.costsystem.common.exception.BusinessException;
 import com.costsystem.modules.costaudit.service.AuditLogService;
+import com.costsystem.modules.costcalc.service.IndicatorRollupService;
 import com.costsystem.modules.costform.dto.VersionCreateRequest;
 import com.costsystem.modules.costform.dto.VersionInfo;
 import com.costsystem.modules.costform.entity.FormVersion;
@@ -34,18 +35,20 @@ public class VersionService {
     private final TemplateRepository templateRepository;
     private final WorkflowService workflowService;
     private final AuditLogService auditLogService;
-
+    private final IndicatorRollupService indicatorRollupService;
 
     public VersionService(FormVersionRepository versionRepository,
                           ProjectRepository projectRepository,
                           TemplateRepository templateRepository,
                           WorkflowService workflowService,
-                          AuditLogService auditLogService) {
+                          AuditLogService auditLogService,
+                          IndicatorRollupService indicatorRollupService) {
         this.versionRepository = versionRepository;
         this.projectRepository = projectRepository;
         this.templateRepository = templateRepository;
         this.workflowService = workflowService;
         this.auditLogService = auditLogService;
+        this.indicatorRollupService = indicatorRollupService;
     }
 
     @Transactional
@@ -141,6 +144,7 @@ public class VersionService {
         version.setStatus(FormVersion.VersionStatus.APPROVED);
         version.setApprovedAt(LocalDateTime.now());
         versionRepository.save(version);
+        indicatorRollupService.refreshProject(version.getProjectId());
         Map<String, Object> detail = new HashMap<>();
         detail.put("status", version.getStatus().name());
         auditLogService.log(userId, version.getProjectId(), version.getId(), "VERSION", version.getId(), "VERSION_APPROVE", detail);
@@ -168,6 +172,7 @@ public class VersionService {
         version.setStatus(FormVersion.VersionStatus.ISSUED);
         version.setIssuedAt(LocalDateTime.now());
         versionRepository.save(version);
+        indicatorRollupService.refreshProject(version.getProjectId());
         Map<String, Object> detail = new HashMap<>();
         detail.put("status", version.getStatus().name());
         auditLogService.log(userId, version.getProjectId(), version.getId(), "VERSION", version.getId(), "VERSION_ISSUE", detail);
@@ -181,6 +186,7 @@ public class VersionService {
         }
         version.setStatus(FormVersion.VersionStatus.ARCHIVED);
         versionRepository.save(version);
+        indicatorRollupService.refreshProject(version.getProjectId());
         Map<String, Object> detail = new HashMap<>();
         detail.put("status", version.getStatus().name());
         auditLogService.log(userId, version.getProjectId(), version.getId(), "VERSION", version.getId(), "VERSION_ARCHIVE", detail);
@@ -3,6 +3,7 @@ package com.costsystem.modules.costproject.service;
 import com.costsystem.common.exception.BusinessException;
 import com.costsystem.modules.costauth.repository.UserRepository;
 import com.costsystem.modules.costauth.service.PermissionService;
+import com.costsystem.modules.costcalc.service.IndicatorRollupService;
 import com.costsystem.modules.costform.dto.LineItemImportResult;
 import com.costsystem.modules.costform.dto.VersionCreateRequest;
 import com.costsystem.modules.costform.dto.VersionInfo;
@@ -21,6 +22,7 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -48,6 +50,9 @@ public class ProjectService {
 
     @Autowired
     private LineItemService lineItemService;
+
+    @Autowired
+    private IndicatorRollupService indicatorRollupService;
     
     /**
      * 创建项目
@@ -113,9 +118,13 @@ public class ProjectService {
         project.setDescription(request.getDescription());
         project.setTagColor(request.getTagColor());
         project.setCoverUrl(request.getCoverUrl());
+        Long previousOrgId = project.getOrgId();
         project.setOrgId(request.getOrgId());
         
         project = projectRepository.save(project);
+        if (!Objects.equals(previousOrgId, project.getOrgId())) {
+            indicatorRollupService.refreshProject(projectId);
+        }
         
         return convertToProjectInfo(project);
     }
@@ -162,6 +171,7 @@ public class ProjectService {
         
         project.setStatus(Project.ProjectStatus.ARCHIVED);
         projectRepository.save(project);
+        indicatorRollupService.refreshProject(projectId);
     }
     
     /**
@@ -28,6 +28,9 @@ public class Template {
     @Column(name = "schema_json", nullable = false, columnDefinition = "json")
     private String schemaJson;
 
+    @Column(name = "rule_descriptor_json", columnDefinition = "json")
+    private String ruleDescriptorJson;
+
     @Column(name = "created_at", nullable = false)
     private LocalDateTime createdAt;
 
@@ -90,6 +93,14 @@ public class Template {
         this.schemaJson = schemaJson;
     }
 
+    public String getRuleDescriptorJson() {
+        return ruleDescriptorJson;
+    }
+
+    public void setRuleDescriptorJson(String ruleDescriptorJson) {
+        this.ruleDescriptorJson = ruleDescriptorJson;
+    }
+
     public LocalDateTime getCreatedAt() {
         return createdAt;
     }
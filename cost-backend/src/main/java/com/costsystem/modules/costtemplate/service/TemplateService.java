@@ -3,6 +3,7 @@ package com.costsystem.modules.costtemplate.service;
 import com.costsystem.common.exception.BusinessException;
 import com.costsystem.modules.costcalc.entity.CalcRule;
 import com.costsystem.modules.costcalc.repository.CalcRuleRepository;
+import com.costsystem.modules.costcalc.service.CalcRuleCompiler;
 import com.costsystem.modules.costtemplate.dto.TemplateCreateRequest;
 import com.costsystem.modules.costtemplate.dto.TemplateInfo;
 import com.costsystem.modules.costtemplate.dto.TemplateUpdateRequest;
@@ -23,11 +24,14 @@ public class TemplateService {
 
     private final TemplateRepository templateRepository;
     private final CalcRuleRepository calcRuleRepository;
+    private final CalcRuleCompiler calcRuleCompiler;
 
     public TemplateService(TemplateRepository templateRepository,
-                           CalcRuleRepository calcRuleRepository) {
+                           CalcRuleRepository calcRuleRepository,
+                           CalcRuleCompiler calcRuleCompiler) {
         this.templateRepository = templateRepository;
         this.calcRuleRepository = calcRuleRepository;
+        this.calcRuleCompiler = calcRuleCompiler;
     }
 
     @Transactional(readOnly = true)
@@ -88,6 +92,10 @@ public class TemplateService {
             throw BusinessException.conflict("已禁用模板不能直接发布，请先更新为草稿后再发布");
         }
         ensureDefaultCalcRules(target.getId());
+        // 发布前编译全部启用规则，无效规则在此拒绝而不是等到重算时才暴露
+        calcRuleCompiler.evictTemplate(target.getId());
+        target.setRuleDescriptorJson(calcRuleCompiler.compileRuleSet(
+                calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(target.getId(), true)));
 
         List<Template> publishedTemplates = templateRepository.findByStatusOrderByUpdatedAtDesc(Template.TemplateStatus.PUBLISHED);
         for (Template template : publishedTemplates) {
@@ -105,6 +113,7 @@ public class TemplateService {
     public TemplateInfo disableTemplate(Long templateId) {
         Template template = loadTemplate(templateId);
         template.setStatus(Template.TemplateStatus.DISABLED);
+        calcRuleCompiler.evictTemplate(template.getId());
         return toInfo(templateRepository.save(template));
     }
 
@@ -0,0 +1,4 @@
+-- 版本重算输入指纹：明细修订号随每次明细写入递增，与规则集修订共同决定重算输入是否变化
+ALTER TABLE `cost_form_version`
+  ADD COLUMN `item_revision` BIGINT NOT NULL DEFAULT 0 COMMENT '明细修订号，明细每次写入后递增',
+  ADD COLUMN `calc_fingerprint` VARCHAR(64) DEFAULT NULL COMMENT '上次全量重算的输入指纹';
@@ -0,0 +1,27 @@
+-- 跨项目指标汇总：每个启用项目仅保留最新已审批/已签发版本的指标值，按组织与指标键汇总
+CREATE TABLE IF NOT EXISTS `cost_indicator_rollup` (
+  `id` BIGINT NOT NULL AUTO_INCREMENT COMMENT '主键ID',
+  `org_id` BIGINT NOT NULL COMMENT '组织ID',
+  `project_id` BIGINT NOT NULL COMMENT '项目ID',
+  `version_id` BIGINT NOT NULL COMMENT '取值版本ID',
+  `indicator_key` VARCHAR(128) NOT NULL COMMENT '指标键',
+  `value` DECIMAL(18,2) NOT NULL COMMENT '指标值',
+  `updated_at` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `uk_cost_indicator_rollup_project_key` (`project_id`, `indicator_key`),
+  KEY `idx_cost_indicator_rollup_org_key` (`org_id`, `indicator_key`, `value`),
+  CONSTRAINT `fk_cost_indicator_rollup_project` FOREIGN KEY (`project_id`) REFERENCES `cost_project` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='跨项目指标汇总表';
+
+-- 以现有数据初始化汇总
+INSERT INTO `cost_indicator_rollup` (`org_id`, `project_id`, `version_id`, `indicator_key`, `value`)
+SELECT p.`org_id`, p.`id`, v.`id`, iv.`indicator_key`, iv.`value`
+FROM `cost_project` p
+JOIN `cost_form_version` v ON v.`project_id` = p.`id`
+JOIN `cost_indicator_value` iv ON iv.`version_id` = v.`id`
+WHERE p.`status` = 'ACTIVE'
+  AND p.`org_id` IS NOT NULL
+  AND v.`version_no` = (
+    SELECT MAX(v2.`version_no`) FROM `cost_form_version` v2
+    WHERE v2.`project_id` = p.`id` AND v2.`status` IN ('APPROVED', 'ISSUED')
+  );
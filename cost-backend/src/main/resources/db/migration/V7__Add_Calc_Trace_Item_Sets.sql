@@ -0,0 +1,11 @@
+-- 版本级追溯明细集合：指标追溯中 SUM 命中的明细ID列表按内容去重、压缩后集中存放
+CREATE TABLE IF NOT EXISTS `cost_calc_trace` (
+  `id` BIGINT NOT NULL AUTO_INCREMENT COMMENT '追溯集合ID',
+  `version_id` BIGINT NOT NULL COMMENT '版本ID',
+  `item_sets` LONGBLOB NOT NULL COMMENT '压缩的明细ID集合池',
+  `created_at` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  `updated_at` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `uk_cost_calc_trace_version` (`version_id`),
+  CONSTRAINT `fk_cost_calc_trace_version` FOREIGN KEY (`version_id`) REFERENCES `cost_form_version` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='追溯明细集合表';
@@ -0,0 +1,22 @@
+-- 模板批量重算任务：规则变更后按版本ID分块重算模板下全部草稿版本，游标用于中断后续跑
+CREATE TABLE IF NOT EXISTS `cost_calc_batch_job` (
+  `id` BIGINT NOT NULL AUTO_INCREMENT COMMENT '任务ID',
+  `template_id` BIGINT NOT NULL COMMENT '模板ID',
+  `status` VARCHAR(20) NOT NULL DEFAULT 'PENDING' COMMENT '状态：PENDING/RUNNING/COMPLETED/FAILED/SUPERSEDED',
+  `trigger_type` VARCHAR(20) NOT NULL COMMENT '触发方式：RULE_CHANGE/MANUAL',
+  `created_by` BIGINT DEFAULT NULL COMMENT '发起人ID，规则变更触发时为空',
+  `total_count` INT NOT NULL DEFAULT 0 COMMENT '待重算版本总数',
+  `processed_count` INT NOT NULL DEFAULT 0 COMMENT '已处理版本数',
+  `success_count` INT NOT NULL DEFAULT 0 COMMENT '重算成功版本数',
+  `failed_count` INT NOT NULL DEFAULT 0 COMMENT '重算失败版本数',
+  `skipped_count` INT NOT NULL DEFAULT 0 COMMENT '已非草稿而跳过的版本数',
+  `cursor_version_id` BIGINT NOT NULL DEFAULT 0 COMMENT '已完成分块的最大版本ID',
+  `failures_json` TEXT COMMENT '失败明细（版本ID与原因）',
+  `started_at` DATETIME DEFAULT NULL COMMENT '开始时间',
+  `finished_at` DATETIME DEFAULT NULL COMMENT '结束时间',
+  `created_at` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  `updated_at` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  PRIMARY KEY (`id`),
+  KEY `idx_cost_calc_batch_job_template` (`template_id`, `status`),
+  KEY `idx_cost_calc_batch_job_status` (`status`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='模板批量重算任务表';
@@ -0,0 +1,3 @@
+-- 模板发布时编译并校验启用的计算规则，保存规则集描述（引用的明细列、ext 路径与指标依赖）
+ALTER TABLE `cost_template`
+  ADD COLUMN `rule_descriptor_json` JSON DEFAULT NULL COMMENT '发布时的规则集描述JSON' AFTER `schema_json`;
@@ -0,0 +1,101 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.common.exception.BusinessException;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalContext;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalResult;
+import com.costsystem.modules.costcalc.service.CalcDsl.Expr;
+import com.costsystem.modules.costcalc.service.CalcDsl.ExpressionEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.FusedSumEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumExpr;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumTrace;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.costsystem.modules.costcalc.service.CalcFixtures.lineItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AggregateFunctionTest {
+
+    private final LineItemSnapshot snapshot = LineItemSnapshot.of(List.of(
+            lineItem(1L, "MATERIAL", "equip", "80.00"),
+            lineItem(2L, "MATERIAL", "EQUIP ", "20.5"),
+            lineItem(3L, "MATERIAL", null, "5.00"),
+            lineItem(4L, "EXPENSE", "INSTALL", "10.00"),
+            lineItem(5L, "MATERIAL", "INSTALL", "-1.00")), null);
+
+    @Test
+    void aggregatesShouldMatchBetweenFusedAndInterpretedEvaluation() {
+        assertValue("COUNT(*)", "5");
+        assertValue("COUNT(* WHERE module_code = 'MATERIAL')", "4");
+        assertValue("AVG(amount_tax WHERE module_code = 'MATERIAL')", "26.1250000000");
+        assertValue("MIN(amount_tax)", "-1.00");
+        assertValue("MAX(amount_tax * 2 WHERE module_code = 'EXPENSE')", "20.00");
+        assertValue("MAX(amount_tax WHERE module_code = 'NONE')", "0");
+        assertValue("AVG(amount_tax WHERE module_code = 'NONE')", "0");
+        assertValue("COUNT(*) + SUM(amount_tax)", "119.50");
+    }
+
+    @Test
+    void groupedAggregateShouldMergeGroupsCaseInsensitivelyInOnePass() {
+        Expr expr = ExpressionEvaluator.parse("SUM(amount_tax WHERE module_code = 'MATERIAL' GROUP BY category_code)");
+        Map<SumExpr, SumTrace> fused = FusedSumEvaluator.evaluate(List.of(expr), Set.of(), snapshot);
+        EvalResult result = ExpressionEvaluator.evaluate(expr, new EvalContext(snapshot, null, fused));
+
+        // 维度为空的行只计入合计
+        assertEquals(0, result.getValue().compareTo(new BigDecimal("104.50")));
+        assertEquals(List.of("EQUIP", "INSTALL"), List.copyOf(result.getGroups().keySet()));
+        SumTrace equip = result.getGroups().get("EQUIP");
+        assertEquals(new BigDecimal("100.50"), equip.getValue());
+        assertEquals(List.of(1L, 2L), equip.getItemIds());
+        assertEquals(List.of(5L), result.getGroups().get("INSTALL").getItemIds());
+
+        EvalResult interpreted = ExpressionEvaluator.evaluate(expr, new EvalContext(snapshot, null));
+        assertEquals(result.getGroups().keySet(), interpreted.getGroups().keySet());
+        assertEquals(new BigDecimal("100.50"), interpreted.getGroups().get("EQUIP").getValue());
+
+        Expr count = ExpressionEvaluator.parse("COUNT(* GROUP BY category_code)");
+        EvalResult counted = ExpressionEvaluator.evaluate(count, new EvalContext(snapshot, null));
+        assertEquals(new BigDecimal("2"), counted.getGroups().get("INSTALL").getValue());
+        assertEquals("COUNT(* GROUP BY category_code)", count.toString());
+    }
+
+    @Test
+    void onlyUngroupedSumAndCountShouldBeDecomposable() {
+        assertTrue(FusedSumEvaluator.isDecomposable(
+                ExpressionEvaluator.parse("SUM(amount_tax) / COUNT(* WHERE unit = 't')"), Set.of()));
+        assertFalse(FusedSumEvaluator.isDecomposable(
+                ExpressionEvaluator.parse("SUM(amount_tax) - MIN(amount_tax)"), Set.of()));
+        assertFalse(FusedSumEvaluator.isDecomposable(
+                ExpressionEvaluator.parse("SUM(amount_tax GROUP BY unit)"), Set.of()));
+        assertFalse(CalcDsl.canonicalKey(ExpressionEvaluator.parse("MIN(qty)"))
+                .equals(CalcDsl.canonicalKey(ExpressionEvaluator.parse("MAX(qty)"))));
+    }
+
+    @Test
+    void parseShouldRejectUnsupportedAggregateForms() {
+        assertThrows(BusinessException.class, () -> ExpressionEvaluator.parse("COUNT(qty)"));
+        assertThrows(BusinessException.class, () -> ExpressionEvaluator.parse("SUM(qty GROUP BY name)"));
+        assertThrows(BusinessException.class, () -> ExpressionEvaluator.parse("SUM(qty GROUP category_code)"));
+        assertThrows(BusinessException.class,
+                () -> ExpressionEvaluator.parse("SUM(qty GROUP BY category_code) * 2"));
+    }
+
+    private void assertValue(String expression, String expected) {
+        Expr expr = ExpressionEvaluator.parse(expression);
+        Map<SumExpr, SumTrace> fused = FusedSumEvaluator.evaluate(List.of(expr), Set.of(), snapshot);
+        BigDecimal fusedValue = ExpressionEvaluator.evaluate(expr,
+                new EvalContext(snapshot, Collections.emptyMap(), fused)).getValue();
+        BigDecimal interpreted = ExpressionEvaluator.evaluate(expr,
+                new EvalContext(snapshot, Collections.emptyMap())).getValue();
+        assertEquals(new BigDecimal(expected), fusedValue, expression);
+        assertEquals(fusedValue, interpreted, expression);
+    }
+}
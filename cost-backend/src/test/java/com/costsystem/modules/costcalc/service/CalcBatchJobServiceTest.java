@@ -0,0 +1,157 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.common.exception.BusinessException;
+import com.costsystem.modules.costcalc.entity.CalcBatchJob;
+import com.costsystem.modules.costcalc.entity.CalcBatchJob.JobStatus;
+import com.costsystem.modules.costcalc.repository.CalcBatchJobRepository;
+import com.costsystem.modules.costform.entity.FormVersion;
+import com.costsystem.modules.costform.repository.FormVersionRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class CalcBatchJobServiceTest {
+
+    @Mock
+    private CalcBatchJobRepository calcBatchJobRepository;
+    @Mock
+    private FormVersionRepository formVersionRepository;
+    @Mock
+    private RecalcCoordinator recalcCoordinator;
+
+    private ExecutorService calcBatchExecutor;
+    private CalcBatchJobService calcBatchJobService;
+
+    @BeforeEach
+    void setUp() {
+        calcBatchExecutor = Executors.newFixedThreadPool(2);
+        calcBatchJobService = new CalcBatchJobService(
+                calcBatchJobRepository, formVersionRepository, recalcCoordinator, calcBatchExecutor, Runnable::run);
+        ReflectionTestUtils.setField(calcBatchJobService, "batchChunkSize", 2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        calcBatchExecutor.shutdownNow();
+    }
+
+    @Test
+    void runJobShouldRecalcDraftVersionsChunkByChunkAndRecordFailures() {
+        CalcBatchJob job = job(10L, 0L, 0);
+        when(calcBatchJobRepository.markRunning(eq(10L), any())).thenReturn(1);
+        when(calcBatchJobRepository.findById(10L)).thenReturn(Optional.of(job));
+        when(formVersionRepository.findIdsByTemplateIdAndStatusAfter(200L, FormVersion.VersionStatus.DRAFT, 0L))
+                .thenReturn(List.of(1L, 2L, 3L));
+        when(formVersionRepository.findById(1L)).thenReturn(Optional.of(version(1L, FormVersion.VersionStatus.DRAFT)));
+        when(formVersionRepository.findById(2L)).thenReturn(Optional.of(version(2L, FormVersion.VersionStatus.DRAFT)));
+        when(formVersionRepository.findById(3L)).thenReturn(Optional.of(version(3L, FormVersion.VersionStatus.IN_APPROVAL)));
+        when(recalcCoordinator.recalculateVersion(anyLong())).thenAnswer(invocation -> {
+            if (Long.valueOf(2L).equals(invocation.getArgument(0))) {
+                throw BusinessException.badRequest("表达式错误");
+            }
+            return List.of();
+        });
+        when(calcBatchJobRepository.updateProgress(anyLong(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt(),
+                any(), any(), any())).thenReturn(1);
+
+        calcBatchJobService.runJob(10L);
+
+        verify(recalcCoordinator, times(2)).recalculateVersion(anyLong());
+        verify(calcBatchJobRepository).updateProgress(eq(10L), eq(3), eq(2), eq(1), eq(1), eq(0), eq(2L),
+                argThat(json -> json != null && json.contains("表达式错误")), any());
+        verify(calcBatchJobRepository).updateProgress(eq(10L), eq(3), eq(3), eq(1), eq(1), eq(1), eq(3L),
+                any(), any());
+        verify(calcBatchJobRepository).finish(eq(10L), eq(JobStatus.COMPLETED), any());
+    }
+
+    @Test
+    void runJobShouldResumeAfterCursorAndStopOnceSuperseded() {
+        CalcBatchJob job = job(11L, 5L, 3);
+        when(calcBatchJobRepository.markRunning(eq(11L), any())).thenReturn(1);
+        when(calcBatchJobRepository.findById(11L)).thenReturn(Optional.of(job));
+        when(formVersionRepository.findIdsByTemplateIdAndStatusAfter(200L, FormVersion.VersionStatus.DRAFT, 5L))
+                .thenReturn(List.of(6L, 7L, 8L, 9L));
+        when(formVersionRepository.findById(anyLong())).thenAnswer(invocation ->
+                Optional.of(version(invocation.getArgument(0), FormVersion.VersionStatus.DRAFT)));
+        when(calcBatchJobRepository.updateProgress(anyLong(), anyInt(), anyInt(), anyInt(), anyInt(), anyInt(),
+                any(), any(), any())).thenReturn(0);
+
+        calcBatchJobService.runJob(11L);
+
+        verify(recalcCoordinator, times(2)).recalculateVersion(anyLong());
+        verify(calcBatchJobRepository).updateProgress(eq(11L), eq(7), eq(5), eq(5), eq(0), eq(0), eq(7L),
+                any(), any());
+        verify(calcBatchJobRepository, never()).finish(anyLong(), any(), any());
+    }
+
+    @Test
+    void ruleChangeShouldSupersedeRunningJobAndReusePendingJob() {
+        CalcBatchJob pending = job(12L, 0L, 0);
+        pending.setStatus(JobStatus.PENDING);
+        when(calcBatchJobRepository.findFirstByTemplateIdAndStatusOrderByIdAsc(200L, JobStatus.PENDING))
+                .thenReturn(Optional.of(pending));
+
+        calcBatchJobService.onRulesChanged(200L);
+
+        verify(calcBatchJobRepository).supersedeRunning(eq(200L), any());
+        verify(calcBatchJobRepository, never()).save(any(CalcBatchJob.class));
+        verify(calcBatchJobRepository, never()).markRunning(anyLong(), any());
+    }
+
+    @Test
+    void startJobShouldCreateAndRunJobWhenNoneIsPending() {
+        when(calcBatchJobRepository.findFirstByTemplateIdAndStatusOrderByIdAsc(200L, JobStatus.PENDING))
+                .thenReturn(Optional.empty());
+        when(calcBatchJobRepository.save(any(CalcBatchJob.class))).thenAnswer(invocation -> {
+            CalcBatchJob saved = invocation.getArgument(0);
+            saved.setId(13L);
+            return saved;
+        });
+        when(calcBatchJobRepository.markRunning(eq(13L), any())).thenReturn(0);
+
+        assertEquals(Long.valueOf(13L), calcBatchJobService.startJob(1L, 200L).getId());
+
+        verify(calcBatchJobRepository).markRunning(eq(13L), any());
+        verify(formVersionRepository, never()).findIdsByTemplateIdAndStatusAfter(any(), any(), any());
+    }
+
+    private CalcBatchJob job(Long id, Long cursor, int processed) {
+        CalcBatchJob job = new CalcBatchJob();
+        job.setId(id);
+        job.setTemplateId(200L);
+        job.setStatus(JobStatus.RUNNING);
+        job.setCursorVersionId(cursor);
+        job.setProcessedCount(processed);
+        job.setSuccessCount(processed);
+        return job;
+    }
+
+    private FormVersion version(Long id, FormVersion.VersionStatus status) {
+        FormVersion version = new FormVersion();
+        version.setId(id);
+        version.setTemplateId(200L);
+        version.setStatus(status);
+        return version;
+    }
+}
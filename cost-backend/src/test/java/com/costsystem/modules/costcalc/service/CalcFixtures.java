@@ -0,0 +1,39 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.entity.CalcRule;
+import com.costsystem.modules.costform.entity.LineItem;
+
+import java.math.BigDecimal;
+
+/**
+ * 计算模块测试共用的规则与明细构造方法，规则属于模板 200，明细属于版本 11
+ */
+final class CalcFixtures {
+
+    private CalcFixtures() {
+    }
+
+    static CalcRule rule(Long id, String indicatorKey, String expression) {
+        CalcRule rule = new CalcRule();
+        rule.setId(id);
+        rule.setTemplateId(200L);
+        rule.setIndicatorKey(indicatorKey);
+        rule.setExpression(expression);
+        rule.setEnabled(true);
+        return rule;
+    }
+
+    static LineItem lineItem(Long id, String moduleCode, String amountTax) {
+        return lineItem(id, moduleCode, "DEFAULT", amountTax);
+    }
+
+    static LineItem lineItem(Long id, String moduleCode, String categoryCode, String amountTax) {
+        LineItem item = new LineItem();
+        item.setId(id);
+        item.setVersionId(11L);
+        item.setModuleCode(moduleCode);
+        item.setCategoryCode(categoryCode);
+        item.setAmountTax(amountTax == null ? null : new BigDecimal(amountTax));
+        return item;
+    }
+}
@@ -0,0 +1,111 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.common.exception.BusinessException;
+import com.costsystem.modules.costcalc.dto.CalcRuleInfo;
+import com.costsystem.modules.costcalc.dto.CalcRuleSaveRequest;
+import com.costsystem.modules.costcalc.entity.CalcRule;
+import com.costsystem.modules.costcalc.repository.CalcRuleRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class CalcRuleServiceTest {
+
+    @Mock
+    private CalcRuleRepository calcRuleRepository;
+    @Mock
+    private CalcBatchJobService calcBatchJobService;
+
+    private CalcRuleService calcRuleService;
+
+    @BeforeEach
+    void setUp() {
+        calcRuleService = new CalcRuleService(calcRuleRepository, new CalcRuleCompiler(), calcBatchJobService);
+    }
+
+    @Test
+    void createRuleShouldAppendAfterExistingRules() {
+        when(calcRuleRepository.findByTemplateIdOrderByOrderNoAscIdAsc(200L)).thenReturn(List.of(
+                rule(1L, "TOTAL_MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL')", 1),
+                rule(2L, "TOTAL_EXPENSE", "SUM(amount_tax WHERE module_code = 'EXPENSE')", 2)));
+        when(calcRuleRepository.save(any(CalcRule.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        CalcRuleInfo info = calcRuleService.createRule(200L, request("TOTAL_COST", "TOTAL_MATERIAL + TOTAL_EXPENSE"));
+
+        assertEquals(Integer.valueOf(3), info.getOrderNo());
+        assertEquals("TOTAL_COST", info.getIndicatorKey());
+        verify(calcBatchJobService).onRulesChanged(200L);
+    }
+
+    @Test
+    void updateRuleShouldRejectCircularIndicatorReference() {
+        CalcRule material = rule(1L, "TOTAL_MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL')", 1);
+        CalcRule cost = rule(2L, "TOTAL_COST", "TOTAL_MATERIAL + 1", 2);
+        when(calcRuleRepository.findById(1L)).thenReturn(Optional.of(material));
+        when(calcRuleRepository.findByTemplateIdOrderByOrderNoAscIdAsc(200L)).thenReturn(List.of(material, cost));
+
+        BusinessException ex = assertThrows(BusinessException.class,
+                () -> calcRuleService.updateRule(200L, 1L, request("TOTAL_MATERIAL", "TOTAL_COST * 0.5")));
+
+        assertTrue(ex.getMessage().contains("TOTAL_MATERIAL -> TOTAL_COST -> TOTAL_MATERIAL"));
+        verify(calcRuleRepository, never()).save(any(CalcRule.class));
+        verify(calcBatchJobService, never()).onRulesChanged(any());
+    }
+
+    @Test
+    void createRuleShouldRejectDuplicateIndicatorKey() {
+        when(calcRuleRepository.findByTemplateIdOrderByOrderNoAscIdAsc(200L)).thenReturn(List.of(
+                rule(1L, "TOTAL_MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL')", 1)));
+
+        assertThrows(BusinessException.class,
+                () -> calcRuleService.createRule(200L, request("TOTAL_MATERIAL", "SUM(qty)")));
+        verify(calcRuleRepository, never()).save(any(CalcRule.class));
+    }
+
+    @Test
+    void createDisabledRuleShouldRejectKeyOfDisabledRule() {
+        CalcRule disabled = rule(1L, "TOTAL_MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL')", 1);
+        disabled.setEnabled(false);
+        when(calcRuleRepository.findByTemplateIdOrderByOrderNoAscIdAsc(200L)).thenReturn(List.of(disabled));
+        CalcRuleSaveRequest request = request("TOTAL_MATERIAL", "SUM(qty)");
+        request.setEnabled(false);
+
+        BusinessException ex = assertThrows(BusinessException.class,
+                () -> calcRuleService.createRule(200L, request));
+
+        assertEquals(409, ex.getCode());
+        verify(calcRuleRepository, never()).save(any(CalcRule.class));
+    }
+
+    private CalcRuleSaveRequest request(String indicatorKey, String expression) {
+        CalcRuleSaveRequest request = new CalcRuleSaveRequest();
+        request.setIndicatorKey(indicatorKey);
+        request.setExpression(expression);
+        return request;
+    }
+
+    private CalcRule rule(Long id, String indicatorKey, String expression, int orderNo) {
+        CalcRule rule = new CalcRule();
+        rule.setId(id);
+        rule.setTemplateId(200L);
+        rule.setIndicatorKey(indicatorKey);
+        rule.setExpression(expression);
+        rule.setEnabled(true);
+        rule.setOrderNo(orderNo);
+        return rule;
+    }
+}
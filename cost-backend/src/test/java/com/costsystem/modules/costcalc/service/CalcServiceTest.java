@@ -3,30 +3,49 @@ package com.costsystem.modules.costcalc.service;
 import com.costsystem.common.exception.BusinessException;
 import com.costsystem.modules.costcalc.dto.IndicatorValueDto;
 import com.costsystem.modules.costcalc.entity.CalcRule;
+import com.costsystem.modules.costcalc.entity.CalcTrace;
 import com.costsystem.modules.costcalc.entity.IndicatorValue;
 import com.costsystem.modules.costcalc.repository.CalcRuleRepository;
+import com.costsystem.modules.costcalc.repository.CalcTraceRepository;
 import com.costsystem.modules.costcalc.repository.IndicatorValueRepository;
 import com.costsystem.modules.costform.entity.FormVersion;
+import com.costsystem.modules.costform.entity.LineItem;
 import com.costsystem.modules.costform.repository.FormVersionRepository;
 import com.costsystem.modules.costform.repository.LineItemRepository;
+import com.costsystem.modules.costform.repository.LineItemRepositoryCustom.GroupSum;
 import com.costsystem.modules.costproject.repository.ProjectRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.costsystem.modules.costcalc.service.CalcFixtures.lineItem;
+import static com.costsystem.modules.costcalc.service.CalcFixtures.rule;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -37,6 +56,8 @@ class CalcServiceTest {
     @Mock
     private IndicatorValueRepository indicatorValueRepository;
     @Mock
+    private CalcTraceRepository calcTraceRepository;
+    @Mock
     private FormVersionRepository formVersionRepository;
     @Mock
     private LineItemRepository lineItemRepository;
@@ -50,9 +71,13 @@ class CalcServiceTest {
         calcService = new CalcService(
                 calcRuleRepository,
                 indicatorValueRepository,
+                calcTraceRepository,
                 formVersionRepository,
                 lineItemRepository,
-                projectRepository
+                projectRepository,
+                new CalcRuleCompiler(),
+                ForkJoinPool.commonPool(),
+                new RuleProfiler(new SimpleMeterRegistry())
         );
     }
 
@@ -63,10 +88,9 @@ class CalcServiceTest {
         version.setProjectId(100L);
         version.setStatus(FormVersion.VersionStatus.ISSUED);
 
-        when(formVersionRepository.findById(11L)).thenReturn(Optional.of(version));
-        when(projectRepository.hasAccess(100L, 9L)).thenReturn(true);
+        when(formVersionRepository.findByIdForUpdate(11L)).thenReturn(Optional.of(version));
 
-        assertThrows(BusinessException.class, () -> calcService.recalculate(9L, 11L));
+        assertThrows(BusinessException.class, () -> calcService.recalculateVersion(11L));
     }
 
     @Test
@@ -84,28 +108,614 @@ class CalcServiceTest {
         rule.setExpression("1 + 2");
         rule.setEnabled(true);
 
-        AtomicReference<IndicatorValue> savedRef = new AtomicReference<>();
+        Map<String, IndicatorValue> saved = new HashMap<>();
 
         when(formVersionRepository.findById(11L)).thenReturn(Optional.of(version));
+        when(formVersionRepository.findByIdForUpdate(11L)).thenReturn(Optional.of(version));
         when(projectRepository.hasAccess(100L, 9L)).thenReturn(true);
         when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true)).thenReturn(List.of(rule));
         when(lineItemRepository.findByVersionId(11L)).thenReturn(List.of());
-        when(indicatorValueRepository.findByVersionIdAndIndicatorKey(11L, "IND_A")).thenReturn(Optional.empty());
-        when(indicatorValueRepository.save(any(IndicatorValue.class))).thenAnswer(invocation -> {
-            IndicatorValue value = invocation.getArgument(0);
-            savedRef.set(value);
-            return value;
-        });
-        when(indicatorValueRepository.findByVersionIdOrderByIndicatorKeyAsc(11L)).thenAnswer(invocation -> List.of(savedRef.get()));
+        stubIndicatorStore(11L, saved);
 
-        List<IndicatorValueDto> values = calcService.recalculate(9L, 11L);
+        List<IndicatorValueDto> values = calcService.recalculateVersion(11L);
 
         assertEquals(1, values.size());
         assertEquals(0, values.get(0).getValue().compareTo(new BigDecimal("3.00")));
 
-        when(indicatorValueRepository.findByVersionIdAndIndicatorKey(eq(11L), eq("IND_A"))).thenReturn(Optional.of(savedRef.get()));
+        when(indicatorValueRepository.findByVersionIdAndIndicatorKey(eq(11L), eq("IND_A"))).thenReturn(Optional.of(saved.get("IND_A")));
         Map<String, Object> trace = calcService.getTrace(9L, 11L, "IND_A");
         assertFalse(trace.isEmpty());
         assertEquals(7, ((Number) trace.get("rule_id")).intValue());
+        Map<?, ?> profile = (Map<?, ?>) trace.get("profile");
+        assertEquals(3, ((Number) profile.get("nodes")).intValue());
+        assertTrue(((Number) profile.get("trace_bytes")).intValue() > 0);
+        assertEquals(1, calcService.getSlowRules(10).size());
+    }
+
+    @Test
+    void recalculateShouldReuseCompiledRuleUntilRuleIsUpdated() {
+        // 关闭输入指纹，每次都真正求值规则
+        ReflectionTestUtils.setField(calcService, "fingerprintEnabled", false);
+        FormVersion version = new FormVersion();
+        version.setId(11L);
+        version.setProjectId(100L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+
+        CalcRule rule = new CalcRule();
+        rule.setId(7L);
+        rule.setTemplateId(200L);
+        rule.setIndicatorKey("IND_A");
+        rule.setExpression("1 + 2");
+        rule.setEnabled(true);
+        rule.setUpdatedAt(LocalDateTime.of(2024, 1, 1, 0, 0));
+
+        Map<String, IndicatorValue> saved = new HashMap<>();
+
+        when(formVersionRepository.findByIdForUpdate(11L)).thenReturn(Optional.of(version));
+        when(formVersionRepository.findItemRevisionById(11L)).thenReturn(0L);
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true)).thenReturn(List.of(rule));
+        when(lineItemRepository.findByVersionId(11L)).thenReturn(List.of());
+        stubIndicatorStore(11L, saved);
+
+        calcService.recalculateVersion(11L);
+        calcService.recalculateVersion(11L);
+        assertEquals(1L, calcService.getRuleCacheStats().getHitCount());
+        assertEquals(1L, calcService.getRuleCacheStats().getMissCount());
+
+        rule.setExpression("2 * 5");
+        rule.setUpdatedAt(LocalDateTime.of(2024, 1, 2, 0, 0));
+        List<IndicatorValueDto> values = calcService.recalculateVersion(11L);
+
+        assertEquals(2L, calcService.getRuleCacheStats().getMissCount());
+        assertEquals(0, values.get(0).getValue().compareTo(new BigDecimal("10.00")));
+    }
+
+    @Test
+    void recalculateShouldShareSingleScanAcrossSumRulesAndKeepTrace() {
+        FormVersion version = new FormVersion();
+        version.setId(11L);
+        version.setProjectId(100L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+
+        CalcRule material = new CalcRule();
+        material.setId(1L);
+        material.setTemplateId(200L);
+        material.setIndicatorKey("TOTAL_MATERIAL");
+        material.setExpression("SUM(amount_tax WHERE module_code = 'MATERIAL')");
+        material.setEnabled(true);
+
+        CalcRule expense = new CalcRule();
+        expense.setId(2L);
+        expense.setTemplateId(200L);
+        expense.setIndicatorKey("EXPENSE_IF_MATERIAL");
+        expense.setExpression("IF(TOTAL_MATERIAL > 100, SUM(line_item.amount_tax WHERE module_code = 'EXPENSE'), 0)");
+        expense.setEnabled(true);
+
+        Map<String, IndicatorValue> saved = new HashMap<>();
+
+        when(formVersionRepository.findById(11L)).thenReturn(Optional.of(version));
+        when(formVersionRepository.findByIdForUpdate(11L)).thenReturn(Optional.of(version));
+        when(projectRepository.hasAccess(100L, 9L)).thenReturn(true);
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true))
+                .thenReturn(List.of(material, expense));
+        when(lineItemRepository.findByVersionId(11L)).thenReturn(List.of(
+                lineItem(1L, "MATERIAL", "80.00"),
+                lineItem(2L, "EXPENSE", "15.50"),
+                lineItem(3L, "MATERIAL", "40.00"),
+                lineItem(4L, "EXPENSE", "4.50")));
+        when(indicatorValueRepository.findByVersionIdAndIndicatorKey(eq(11L), any()))
+                .thenAnswer(invocation -> Optional.ofNullable(saved.get(invocation.<String>getArgument(1))));
+        stubIndicatorStore(11L, saved);
+        stubTraceStore(11L);
+
+        List<IndicatorValueDto> values = calcService.recalculateVersion(11L);
+
+        assertEquals(0, values.get(0).getValue().compareTo(new BigDecimal("20.00")));
+        assertEquals(0, values.get(1).getValue().compareTo(new BigDecimal("120.00")));
+        Map<String, Object> trace = calcService.getTrace(9L, 11L, "EXPENSE_IF_MATERIAL");
+        List<?> intermediate = (List<?>) trace.get("intermediate");
+        assertEquals(1, intermediate.size());
+        assertEquals(List.of(2L, 4L), trace.get("matched_line_item_ids"));
+    }
+
+    @Test
+    void recalculateShouldReadColumnarSnapshotWithExactDecimalsAndExtFields() {
+        FormVersion version = new FormVersion();
+        version.setId(12L);
+        version.setProjectId(100L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+
+        CalcRule amount = new CalcRule();
+        amount.setId(1L);
+        amount.setTemplateId(200L);
+        amount.setIndicatorKey("TOTAL_AMOUNT");
+        amount.setExpression("SUM(amount_tax)");
+        amount.setEnabled(true);
+
+        CalcRule weight = new CalcRule();
+        weight.setId(2L);
+        weight.setTemplateId(200L);
+        weight.setIndicatorKey("STEEL_WEIGHT");
+        weight.setExpression("SUM(ext.weight WHERE unit = 't')");
+        weight.setEnabled(true);
+
+        LineItem first = lineItem(1L, "MATERIAL", "1.005");
+        first.setUnit("t");
+        first.setExtJson("{\"weight\": 2.5}");
+        LineItem second = lineItem(2L, "MATERIAL", "2");
+        second.setUnit("m");
+        second.setExtJson("{\"weight\": 7}");
+        LineItem third = lineItem(3L, "MATERIAL", null);
+        third.setUnit("t");
+        third.setExtJson("{\"weight\": 1.5}");
+
+        Map<String, IndicatorValue> saved = new HashMap<>();
+
+        when(formVersionRepository.findById(12L)).thenReturn(Optional.of(version));
+        when(formVersionRepository.findByIdForUpdate(12L)).thenReturn(Optional.of(version));
+        when(projectRepository.hasAccess(100L, 9L)).thenReturn(true);
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true))
+                .thenReturn(List.of(amount, weight));
+        when(lineItemRepository.findByVersionId(12L)).thenReturn(List.of(first, second, third));
+        when(indicatorValueRepository.findByVersionIdAndIndicatorKey(eq(12L), any()))
+                .thenAnswer(invocation -> Optional.ofNullable(saved.get(invocation.<String>getArgument(1))));
+        stubIndicatorStore(12L, saved);
+        stubTraceStore(12L);
+
+        List<IndicatorValueDto> values = calcService.recalculateVersion(12L);
+
+        assertEquals(0, values.get(0).getValue().compareTo(new BigDecimal("4.00")));
+        assertEquals(0, values.get(1).getValue().compareTo(new BigDecimal("3.01")));
+        assertTrue(saved.get("TOTAL_AMOUNT").getTraceJson().contains("\"result\":3.005"));
+        assertEquals(List.of(1L, 3L), calcService.getTrace(9L, 12L, "STEEL_WEIGHT").get("matched_line_item_ids"));
+    }
+
+    @Test
+    void recalculateShouldEvaluateDependencyLevelsInParallelWithSequentialSemantics() {
+        ReflectionTestUtils.setField(calcService, "parallelMinRows", 0);
+        FormVersion version = new FormVersion();
+        version.setId(13L);
+        version.setProjectId(100L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+
+        List<CalcRule> rules = List.of(
+                rule(1L, "TOTAL_MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL')"),
+                rule(2L, "TOTAL_EXPENSE", "SUM(amount_tax WHERE module_code = 'EXPENSE')"),
+                rule(3L, "EARLY", "LATER + 1"),
+                rule(4L, "TOTAL_COST", "TOTAL_MATERIAL + TOTAL_EXPENSE"),
+                rule(5L, "LATER", "TOTAL_COST * 2"));
+        Map<String, IndicatorValue> saved = new HashMap<>();
+
+        when(formVersionRepository.findByIdForUpdate(13L)).thenReturn(Optional.of(version));
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true)).thenReturn(rules);
+        when(lineItemRepository.findByVersionId(13L)).thenReturn(List.of(
+                lineItem(1L, "MATERIAL", "80.00"),
+                lineItem(2L, "EXPENSE", "15.50")));
+        stubIndicatorStore(13L, saved);
+
+        calcService.recalculateVersion(13L);
+
+        assertEquals(0, saved.get("TOTAL_COST").getValue().compareTo(new BigDecimal("95.50")));
+        assertEquals(0, saved.get("LATER").getValue().compareTo(new BigDecimal("191.00")));
+        // 引用排在后面的指标仍按 0 处理，与顺序求值一致
+        assertEquals(0, saved.get("EARLY").getValue().compareTo(BigDecimal.ONE));
+    }
+
+    @Test
+    void recalculateShouldUpsertInOneBatchAndDeleteStaleIndicators() {
+        FormVersion version = new FormVersion();
+        version.setId(14L);
+        version.setProjectId(100L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+
+        Map<String, IndicatorValue> saved = new HashMap<>();
+        saved.put("TOTAL_COST", indicator(31L, 14L, "TOTAL_COST", "元"));
+        saved.put("REMOVED", indicator(32L, 14L, "REMOVED", null));
+
+        when(formVersionRepository.findByIdForUpdate(14L)).thenReturn(Optional.of(version));
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true)).thenReturn(List.of(
+                rule(1L, "TOTAL_MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL')"),
+                rule(2L, "TOTAL_COST", "TOTAL_MATERIAL * 2")));
+        when(lineItemRepository.findByVersionId(14L)).thenReturn(List.of(lineItem(1L, "MATERIAL", "80.00")));
+        stubIndicatorStore(14L, saved);
+
+        List<IndicatorValueDto> values = calcService.recalculateVersion(14L);
+
+        verify(indicatorValueRepository, times(1)).upsertAll(anyList());
+        verify(indicatorValueRepository).deleteAllByIdInBatch(List.of(32L));
+        verify(indicatorValueRepository, times(1)).findByVersionIdOrderByIndicatorKeyAsc(14L);
+        assertEquals(List.of("TOTAL_COST", "TOTAL_MATERIAL"),
+                values.stream().map(IndicatorValueDto::getIndicatorKey).toList());
+        assertEquals(0, values.get(0).getValue().compareTo(new BigDecimal("160.00")));
+        assertEquals("元", values.get(0).getUnit());
+        assertEquals("TOTAL_MATERIAL * 2", values.get(0).getExpression());
+        assertEquals(Long.valueOf(31L), saved.get("TOTAL_COST").getId());
+    }
+
+    @Test
+    void recalculateShouldEmitGroupedAggregateFamilyAndDeleteVanishedGroups() {
+        FormVersion version = new FormVersion();
+        version.setId(14L);
+        version.setProjectId(100L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+
+        Map<String, IndicatorValue> saved = new HashMap<>();
+        saved.put("BY_CATEGORY.EQUIP", indicator(41L, 14L, "BY_CATEGORY.EQUIP", "元"));
+        saved.put("BY_CATEGORY.OLD", indicator(42L, 14L, "BY_CATEGORY.OLD", null));
+
+        when(formVersionRepository.findByIdForUpdate(14L)).thenReturn(Optional.of(version));
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true)).thenReturn(List.of(
+                rule(1L, "BY_CATEGORY", "SUM(amount_tax WHERE module_code = 'MATERIAL' GROUP BY category_code)"),
+                rule(2L, "AVG_MATERIAL", "AVG(amount_tax WHERE module_code = 'MATERIAL')"),
+                rule(3L, "ITEM_COUNT", "COUNT(*)")));
+        when(lineItemRepository.findByVersionId(14L)).thenReturn(List.of(
+                categorized(lineItem(1L, "MATERIAL", "80.00"), "EQUIP"),
+                categorized(lineItem(2L, "MATERIAL", "20.00"), "equip"),
+                categorized(lineItem(3L, "MATERIAL", "5.00"), "INSTALL"),
+                categorized(lineItem(4L, "EXPENSE", "10.00"), "INSTALL")));
+        stubIndicatorStore(14L, saved);
+
+        List<IndicatorValueDto> values = calcService.recalculateVersion(14L);
+
+        assertEquals(List.of("AVG_MATERIAL", "BY_CATEGORY", "BY_CATEGORY.EQUIP", "BY_CATEGORY.INSTALL", "ITEM_COUNT"),
+                values.stream().map(IndicatorValueDto::getIndicatorKey).toList());
+        assertEquals(0, values.get(0).getValue().compareTo(new BigDecimal("35.00")));
+        assertEquals(0, values.get(1).getValue().compareTo(new BigDecimal("105.00")));
+        assertEquals(0, values.get(2).getValue().compareTo(new BigDecimal("100.00")));
+        assertEquals(0, values.get(3).getValue().compareTo(new BigDecimal("5.00")));
+        assertEquals(0, values.get(4).getValue().compareTo(new BigDecimal("4.00")));
+        assertEquals("元", values.get(2).getUnit());
+        assertTrue(saved.get("BY_CATEGORY").getTraceJson().contains("GROUP BY category_code"));
+        assertEquals(Long.valueOf(41L), saved.get("BY_CATEGORY.EQUIP").getId());
+        assertTrue(saved.get("BY_CATEGORY.EQUIP").getTraceJson().contains("\"count\":2"));
+        assertEquals("SUM(amount_tax WHERE module_code = 'MATERIAL' GROUP BY category_code)",
+                values.get(3).getExpression());
+        verify(indicatorValueRepository).deleteAllByIdInBatch(List.of(42L));
+    }
+
+    @Test
+    void recalculateShouldStoreSharedCompactItemSetsAndExpandThemOnTraceRequest() {
+        FormVersion version = new FormVersion();
+        version.setId(15L);
+        version.setProjectId(100L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+
+        List<LineItem> items = new ArrayList<>();
+        for (long id = 1; id <= 2000; id++) {
+            items.add(lineItem(id, id == 1500 ? "EXPENSE" : "MATERIAL", "1.00"));
+        }
+        Map<String, IndicatorValue> saved = new HashMap<>();
+
+        when(formVersionRepository.findById(15L)).thenReturn(Optional.of(version));
+        when(formVersionRepository.findByIdForUpdate(15L)).thenReturn(Optional.of(version));
+        when(projectRepository.hasAccess(100L, 9L)).thenReturn(true);
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true)).thenReturn(List.of(
+                rule(1L, "TOTAL_MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL')"),
+                rule(2L, "MATERIAL_QTY", "SUM(quantity WHERE module_code = 'MATERIAL')")));
+        when(lineItemRepository.findByVersionId(15L)).thenReturn(items);
+        when(indicatorValueRepository.findByVersionIdAndIndicatorKey(eq(15L), any()))
+                .thenAnswer(invocation -> Optional.ofNullable(saved.get(invocation.<String>getArgument(1))));
+        stubIndicatorStore(15L, saved);
+        Map<Long, byte[]> traces = stubTraceStore(15L);
+
+        calcService.recalculateVersion(15L);
+
+        String traceJson = saved.get("TOTAL_MATERIAL").getTraceJson();
+        assertFalse(traceJson.contains("itemIds"));
+        assertFalse(traceJson.contains("matched_line_item_ids"));
+        assertTrue(traceJson.length() < 512);
+        // 两个 SUM 命中同一批明细，集合池只保存一份，且连续区间压缩后远小于明细数
+        assertEquals(1, TraceItemSets.decode(traces.get(15L)).size());
+        assertTrue(traces.get(15L).length < 64);
+
+        Map<String, Object> trace = calcService.getTrace(9L, 15L, "MATERIAL_QTY");
+        List<Long> expected = new ArrayList<>();
+        for (long id = 1; id <= 2000; id++) {
+            if (id != 1500) {
+                expected.add(id);
+            }
+        }
+        assertEquals(expected, trace.get("matched_line_item_ids"));
+        Map<?, ?> sum = (Map<?, ?>) ((List<?>) trace.get("intermediate")).get(0);
+        assertEquals(expected, sum.get("itemIds"));
+        assertFalse(sum.containsKey("itemSet"));
+    }
+
+    @Test
+    void recalculateShouldResolveDimensionConditionsWithSameSemanticsAsRowTests() {
+        FormVersion version = new FormVersion();
+        version.setId(16L);
+        version.setProjectId(100L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+
+        LineItem steel = lineItem(1L, "MATERIAL", "100.00");
+        steel.setCategoryCode("EQUIP");
+        steel.setUnit("t");
+        steel.setTaxRate(new BigDecimal("0.1300"));
+        LineItem cable = lineItem(2L, "SUBCONTRACT", "50.00");
+        cable.setCategoryCode("EQUIP");
+        cable.setUnit(null);
+        cable.setTaxRate(new BigDecimal("0.13"));
+        LineItem labor = lineItem(3L, "SUBCONTRACT", "30.00");
+        labor.setCategoryCode("CIVIL");
+        labor.setTaxRate(null);
+        LineItem fee = lineItem(4L, "EXPENSE", "7.00");
+        fee.setCategoryCode("EQUIP");
+        fee.setUnit("m");
+        fee.setTaxRate(new BigDecimal("0.09"));
+        Map<String, IndicatorValue> saved = new HashMap<>();
+
+        when(formVersionRepository.findByIdForUpdate(16L)).thenReturn(Optional.of(version));
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true)).thenReturn(List.of(
+                rule(1L, "EQUIP_COST",
+                        "SUM(amount_tax WHERE module_code IN ('MATERIAL','SUBCONTRACT') AND category_code = 'EQUIP')"),
+                rule(2L, "RATE_13", "SUM(amount_tax WHERE tax_rate = 0.13)"),
+                // 空值行按逐行求值的语义视为 0
+                rule(3L, "NOT_TON", "SUM(amount_tax WHERE unit != 't')"),
+                rule(4L, "ZERO_RATE", "SUM(amount_tax WHERE tax_rate = 0 OR module_code = 'EXPENSE')"),
+                rule(5L, "LOW_RATE_LARGE", "SUM(amount_tax WHERE tax_rate < 0.1 AND amount_tax > 10)")));
+        when(lineItemRepository.findByVersionId(16L)).thenReturn(List.of(steel, cable, labor, fee));
+        stubIndicatorStore(16L, saved);
+
+        calcService.recalculateVersion(16L);
+
+        assertEquals(0, saved.get("EQUIP_COST").getValue().compareTo(new BigDecimal("150.00")));
+        assertEquals(0, saved.get("RATE_13").getValue().compareTo(new BigDecimal("150.00")));
+        assertEquals(0, saved.get("NOT_TON").getValue().compareTo(new BigDecimal("87.00")));
+        assertEquals(0, saved.get("ZERO_RATE").getValue().compareTo(new BigDecimal("37.00")));
+        assertEquals(0, saved.get("LOW_RATE_LARGE").getValue().compareTo(new BigDecimal("30.00")));
+    }
+
+    @Test
+    void recalculateShouldPushDownDimensionSumsAndResolveTraceItemsOnRequest() {
+        ReflectionTestUtils.setField(calcService, "sqlPushdownEnabled", true);
+        FormVersion version = new FormVersion();
+        version.setId(17L);
+        version.setProjectId(100L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+        CalcRule notTon = rule(2L, "NOT_TON", "SUM(amount_tax WHERE unit != 't')");
+        Map<String, IndicatorValue> saved = new HashMap<>();
+
+        when(formVersionRepository.findById(17L)).thenReturn(Optional.of(version));
+        when(formVersionRepository.findByIdForUpdate(17L)).thenReturn(Optional.of(version));
+        when(projectRepository.hasAccess(100L, 9L)).thenReturn(true);
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true)).thenReturn(List.of(
+                rule(1L, "EQUIP_COST",
+                        "SUM(amount_tax WHERE module_code IN ('MATERIAL','SUBCONTRACT') AND category_code = 'EQUIP')"),
+                notTon,
+                rule(3L, "TOTAL", "IF(EQUIP_COST > 0, EQUIP_COST + SUM(qty), 0)")));
+        // 文本维度按字节分组：大小写不同的取值各自成组，与逐行比较一致不被 IN 命中
+        when(lineItemRepository.sumByGroups(17L, List.of("category_code", "module_code", "unit"),
+                List.of("amount_tax", "qty"))).thenReturn(List.of(
+                groupSum("MATERIAL", "EQUIP", "t", 2, "100.00", "3.0000"),
+                groupSum("material", "EQUIP", null, 1, "40.00", null),
+                groupSum("SUBCONTRACT", "EQUIP", null, 1, null, "1.5000")));
+        when(indicatorValueRepository.findByVersionIdAndIndicatorKey(eq(17L), any()))
+                .thenAnswer(invocation -> Optional.ofNullable(saved.get(invocation.<String>getArgument(1))));
+        stubIndicatorStore(17L, saved);
+
+        calcService.recalculateVersion(17L);
+
+        verify(lineItemRepository, never()).findByVersionId(any());
+        assertEquals(0, saved.get("EQUIP_COST").getValue().compareTo(new BigDecimal("100.00")));
+        assertEquals(0, saved.get("NOT_TON").getValue().compareTo(new BigDecimal("40.00")));
+        assertEquals(0, saved.get("TOTAL").getValue().compareTo(new BigDecimal("104.50")));
+        assertTrue(saved.get("NOT_TON").getTraceJson().contains("\"pushdown\":true"));
+
+        LineItem ton = new LineItem();
+        ton.setId(1L);
+        ton.setUnit("t");
+        LineItem blank = new LineItem();
+        blank.setId(3L);
+        LineItem meter = new LineItem();
+        meter.setId(4L);
+        meter.setUnit("m");
+        when(calcRuleRepository.findById(2L)).thenReturn(Optional.of(notTon));
+        when(lineItemRepository.findColumnsByVersionId(17L, List.of("unit"))).thenReturn(List.of(ton, blank, meter));
+
+        Map<String, Object> trace = calcService.getTrace(9L, 17L, "NOT_TON");
+        assertEquals(List.of(3L, 4L), trace.get("matched_line_item_ids"));
+        Map<?, ?> sum = (Map<?, ?>) ((List<?>) trace.get("intermediate")).get(0);
+        assertEquals(2, ((Number) sum.get("count")).intValue());
+        assertFalse(sum.containsKey("pushdown"));
+    }
+
+    @Test
+    void recalculateShouldLoadOnlyColumnsReferencedByRules() {
+        ReflectionTestUtils.setField(calcService, "narrowProjectionEnabled", true);
+        FormVersion version = new FormVersion();
+        version.setId(18L);
+        version.setProjectId(100L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+        Map<String, IndicatorValue> saved = new HashMap<>();
+
+        when(formVersionRepository.findByIdForUpdate(18L)).thenReturn(Optional.of(version));
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true)).thenReturn(List.of(
+                rule(1L, "WEIGHT", "SUM(ext.weight WHERE unit = 't')"),
+                rule(2L, "TOTAL", "WEIGHT + SUM(amount_tax)")));
+        LineItem first = new LineItem();
+        first.setId(1L);
+        first.setUnit("t");
+        first.setAmountTax(new BigDecimal("10.00"));
+        first.setExtJson("{\"weight\": 2.5}");
+        LineItem second = new LineItem();
+        second.setId(2L);
+        second.setAmountTax(new BigDecimal("5.00"));
+        second.setExtJson("{\"weight\": 7}");
+        when(lineItemRepository.findColumnsByVersionId(18L, List.of("amount_tax", "ext_json", "unit")))
+                .thenReturn(List.of(first, second));
+        stubIndicatorStore(18L, saved);
+
+        calcService.recalculateVersion(18L);
+
+        verify(lineItemRepository, never()).findByVersionId(any());
+        assertEquals(0, saved.get("WEIGHT").getValue().compareTo(new BigDecimal("2.50")));
+        assertEquals(0, saved.get("TOTAL").getValue().compareTo(new BigDecimal("17.50")));
+    }
+
+    @Test
+    void recalculateShouldReturnStoredIndicatorsWhileInputFingerprintIsUnchanged() {
+        FormVersion version = new FormVersion();
+        version.setId(19L);
+        version.setProjectId(100L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+        CalcRule total = rule(1L, "TOTAL", "SUM(amount_tax)");
+        LineItem item = new LineItem();
+        item.setId(1L);
+        item.setAmountTax(new BigDecimal("12.00"));
+        Map<String, IndicatorValue> saved = new HashMap<>();
+        AtomicLong itemRevision = new AtomicLong();
+
+        when(formVersionRepository.findByIdForUpdate(19L)).thenReturn(Optional.of(version));
+        when(formVersionRepository.findItemRevisionById(19L)).thenAnswer(invocation -> itemRevision.get());
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true))
+                .thenReturn(List.of(total));
+        when(lineItemRepository.findByVersionId(19L)).thenReturn(List.of(item));
+        stubIndicatorStore(19L, saved);
+        doAnswer(invocation -> {
+            version.setCalcFingerprint(invocation.getArgument(1));
+            return 1;
+        }).when(formVersionRepository).updateCalcFingerprint(eq(19L), any());
+
+        calcService.recalculateVersion(19L);
+        List<IndicatorValueDto> values = calcService.recalculateVersion(19L);
+
+        assertEquals(0, values.get(0).getValue().compareTo(new BigDecimal("12.00")));
+        assertEquals("SUM(amount_tax)", values.get(0).getExpression());
+        verify(lineItemRepository, times(1)).findByVersionId(19L);
+        verify(indicatorValueRepository, times(1)).upsertAll(anyList());
+
+        // 明细写入后库中修订号递增，规则更新后其更新时间变化，两者均使指纹失效
+        itemRevision.incrementAndGet();
+        calcService.recalculateVersion(19L);
+        total.setUpdatedAt(LocalDateTime.of(2024, 1, 1, 0, 0));
+        calcService.recalculateVersion(19L);
+        calcService.recalculateVersion(19L);
+        verify(lineItemRepository, times(3)).findByVersionId(19L);
+    }
+
+    @Test
+    void recalculateVersionShouldFingerprintRevisionReadFromDatabaseNotStaleEntity() {
+        FormVersion version = new FormVersion();
+        version.setId(21L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+        Map<String, IndicatorValue> saved = new HashMap<>();
+
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true))
+                .thenReturn(List.of(rule(1L, "TOTAL", "SUM(amount_tax)")));
+        when(lineItemRepository.findByVersionId(21L)).thenReturn(List.of(lineItem(1L, "MATERIAL", "12.00")));
+        when(formVersionRepository.findItemRevisionById(21L)).thenReturn(0L);
+        when(formVersionRepository.findByIdForUpdate(21L)).thenReturn(Optional.of(version));
+        stubIndicatorStore(21L, saved);
+        calcService.recalculateVersion(21L);
+
+        // 明细写入以更新语句递增修订号，锁定读取返回持久化上下文中写入前加载的实体，修订号仍为 0，重算须看到库中的 1
+        FormVersion stale = new FormVersion();
+        stale.setId(21L);
+        stale.setTemplateId(200L);
+        stale.setStatus(FormVersion.VersionStatus.DRAFT);
+        stale.setCalcFingerprint(version.getCalcFingerprint());
+        when(formVersionRepository.findByIdForUpdate(21L)).thenReturn(Optional.of(stale));
+        when(formVersionRepository.findItemRevisionById(21L)).thenReturn(1L);
+        when(lineItemRepository.findByVersionId(21L)).thenReturn(List.of(lineItem(1L, "MATERIAL", "15.00")));
+
+        List<IndicatorValueDto> values = calcService.recalculateVersion(21L);
+
+        assertEquals(0, values.get(0).getValue().compareTo(new BigDecimal("15.00")));
+        verify(lineItemRepository, times(2)).findByVersionId(21L);
+        verify(formVersionRepository).updateCalcFingerprint(eq(21L), eq(stale.getCalcFingerprint()));
+    }
+
+    @Test
+    void recalculateShouldAbortWithRuleNamedWhenRuleExceedsRowBudget() {
+        ReflectionTestUtils.setField(calcService, "fusedSumEnabled", false);
+        ReflectionTestUtils.setField(calcService, "ruleMaxRows", 3L);
+        FormVersion version = new FormVersion();
+        version.setId(20L);
+        version.setProjectId(100L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+
+        when(formVersionRepository.findByIdForUpdate(20L)).thenReturn(Optional.of(version));
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true))
+                .thenReturn(List.of(rule(1L, "CONST", "1 + 2"), rule(2L, "TOTAL", "SUM(amount_tax)")));
+        when(lineItemRepository.findByVersionId(20L)).thenReturn(List.of(
+                lineItem(1L, "MATERIAL", "1.00"), lineItem(2L, "MATERIAL", "2.00"),
+                lineItem(3L, "EXPENSE", "3.00"), lineItem(4L, "EXPENSE", "4.00")));
+
+        CalcBudgetExceededException ex = assertThrows(CalcBudgetExceededException.class,
+                () -> calcService.recalculateVersion(20L));
+
+        assertEquals(409, ex.getCode());
+        assertEquals("TOTAL", ex.getIndicatorKey());
+        assertEquals(Long.valueOf(2L), ex.getRuleId());
+        assertEquals("RULE", ex.getDetails().get("scope"));
+        assertEquals("ROWS", ex.getDetails().get("limit"));
+        assertEquals(4L, ex.getDetails().get("used"));
+        verify(indicatorValueRepository, never()).upsertAll(anyList());
+    }
+
+    private GroupSum groupSum(String moduleCode, String categoryCode, String unit, long count,
+                              String amountTax, String qty) {
+        LineItem key = new LineItem();
+        key.setModuleCode(moduleCode);
+        key.setCategoryCode(categoryCode);
+        key.setUnit(unit);
+        Map<String, BigDecimal> sums = new HashMap<>();
+        sums.put("amount_tax", amountTax == null ? null : new BigDecimal(amountTax));
+        sums.put("qty", qty == null ? null : new BigDecimal(qty));
+        return new GroupSum(key, count, sums);
+    }
+
+    private Map<Long, byte[]> stubTraceStore(Long versionId) {
+        Map<Long, byte[]> traces = new HashMap<>();
+        doAnswer(invocation -> {
+            traces.put(invocation.getArgument(0), invocation.getArgument(1));
+            return null;
+        }).when(calcTraceRepository).upsert(eq(versionId), any());
+        when(calcTraceRepository.findByVersionId(versionId)).thenAnswer(invocation -> {
+            CalcTrace trace = new CalcTrace();
+            trace.setVersionId(versionId);
+            trace.setItemSets(traces.get(versionId));
+            return Optional.of(trace);
+        });
+        return traces;
+    }
+
+    private void stubIndicatorStore(Long versionId, Map<String, IndicatorValue> saved) {
+        when(indicatorValueRepository.findByVersionIdOrderByIndicatorKeyAsc(versionId))
+                .thenAnswer(invocation -> new ArrayList<>(new TreeMap<>(saved).values()));
+        doAnswer(invocation -> {
+            List<IndicatorValue> values = invocation.getArgument(0);
+            values.forEach(value -> saved.put(value.getIndicatorKey(), value));
+            return null;
+        }).when(indicatorValueRepository).upsertAll(anyList());
+    }
+
+    private IndicatorValue indicator(Long id, Long versionId, String indicatorKey, String unit) {
+        IndicatorValue value = new IndicatorValue();
+        value.setId(id);
+        value.setVersionId(versionId);
+        value.setIndicatorKey(indicatorKey);
+        value.setUnit(unit);
+        value.setValue(BigDecimal.ZERO);
+        return value;
+    }
+
+    private LineItem categorized(LineItem item, String categoryCode) {
+        item.setCategoryCode(categoryCode);
+        return item;
     }
-}
+}
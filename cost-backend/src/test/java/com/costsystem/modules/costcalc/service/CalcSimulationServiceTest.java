@@ -0,0 +1,140 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.dto.IndicatorSimulationDto;
+import com.costsystem.modules.costcalc.repository.CalcRuleRepository;
+import com.costsystem.modules.costcalc.repository.IndicatorValueRepository;
+import com.costsystem.modules.costform.entity.FormVersion;
+import com.costsystem.modules.costform.entity.LineItem;
+import com.costsystem.modules.costform.repository.FormVersionRepository;
+import com.costsystem.modules.costform.repository.LineItemRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.costsystem.modules.costcalc.service.CalcFixtures.lineItem;
+import static com.costsystem.modules.costcalc.service.CalcFixtures.rule;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class CalcSimulationServiceTest {
+
+    @Mock
+    private CalcRuleRepository calcRuleRepository;
+    @Mock
+    private IndicatorValueRepository indicatorValueRepository;
+    @Mock
+    private LineItemRepository lineItemRepository;
+    @Mock
+    private FormVersionRepository formVersionRepository;
+
+    private CalcSimulationService calcSimulationService;
+    private FormVersion version;
+
+    @BeforeEach
+    void setUp() {
+        calcSimulationService = new CalcSimulationService(
+                calcRuleRepository, indicatorValueRepository, lineItemRepository, formVersionRepository,
+                new CalcRuleCompiler());
+        version = new FormVersion();
+        version.setId(11L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+    }
+
+    @Test
+    void simulateShouldApplyRowDeltasOnCachedBaselineWithoutWrites() {
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true)).thenReturn(List.of(
+                rule(1L, "TOTAL_MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL')"),
+                rule(2L, "TOTAL_EXPENSE", "SUM(amount_tax WHERE module_code = 'EXPENSE')"),
+                rule(3L, "TOTAL_COST", "TOTAL_MATERIAL + TOTAL_EXPENSE")));
+        when(formVersionRepository.findItemRevisionById(11L)).thenReturn(3L);
+        when(lineItemRepository.findByVersionId(11L)).thenReturn(List.of(
+                lineItem(1L, "MATERIAL", "80.00"), lineItem(2L, "EXPENSE", "20.00"), lineItem(3L, "MATERIAL", "5.00")));
+
+        Map<String, IndicatorSimulationDto> result = byKey(calcSimulationService.simulate(version, List.of(3L),
+                current -> List.of(changed(current.get(1L), "100.00"), lineItem(null, "EXPENSE", "7.00"))));
+
+        assertSimulated(result.get("TOTAL_MATERIAL"), "85.00", "100.00");
+        assertSimulated(result.get("TOTAL_EXPENSE"), "20.00", "27.00");
+        assertSimulated(result.get("TOTAL_COST"), "105.00", "127.00");
+        assertEquals(0, result.get("TOTAL_COST").getDelta().compareTo(new BigDecimal("22.00")));
+
+        // 基线未过期时复用缓存，模拟之间互不影响
+        result = byKey(calcSimulationService.simulate(version, null,
+                current -> List.of(changed(current.get(2L), "0.00"))));
+        assertSimulated(result.get("TOTAL_COST"), "105.00", "85.00");
+        verify(lineItemRepository, times(1)).findByVersionId(11L);
+        verify(indicatorValueRepository, never()).upsertAll(anyList());
+        verify(lineItemRepository, never()).save(any(LineItem.class));
+    }
+
+    @Test
+    void simulateShouldRebuildStaleBaselineAndRecalculateRulesThatCannotBeDecomposed() {
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true)).thenReturn(List.of(
+                rule(1L, "RATE", "2"),
+                rule(2L, "SCALED", "SUM(amount_tax * RATE WHERE module_code = 'MATERIAL')")));
+        when(formVersionRepository.findItemRevisionById(11L)).thenReturn(1L, 2L);
+        when(lineItemRepository.findByVersionId(11L)).thenReturn(
+                List.of(lineItem(1L, "MATERIAL", "80.00")),
+                List.of(lineItem(1L, "MATERIAL", "80.00"), lineItem(2L, "MATERIAL", "10.00")));
+
+        Map<String, IndicatorSimulationDto> result = byKey(calcSimulationService.simulate(version, null,
+                current -> List.of(changed(current.get(1L), "90.00"))));
+        assertSimulated(result.get("SCALED"), "160.00", "180.00");
+
+        result = byKey(calcSimulationService.simulate(version, List.of(1L), current -> List.of()));
+        assertSimulated(result.get("SCALED"), "180.00", "20.00");
+        verify(lineItemRepository, times(2)).findByVersionId(11L);
+    }
+
+    @Test
+    void simulateShouldRebuildBaselineWhenItemIsEditedInPlace() {
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true)).thenReturn(List.of(
+                rule(1L, "TOTAL_MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL')")));
+        // 行数、最大ID不变且在同一秒内修改，仅修订号变化
+        when(formVersionRepository.findItemRevisionById(11L)).thenReturn(4L, 5L);
+        when(lineItemRepository.findByVersionId(11L)).thenReturn(
+                List.of(lineItem(1L, "MATERIAL", "80.00")),
+                List.of(lineItem(1L, "MATERIAL", "95.00")));
+
+        Map<String, IndicatorSimulationDto> result = byKey(calcSimulationService.simulate(version, null,
+                current -> List.of()));
+        assertSimulated(result.get("TOTAL_MATERIAL"), "80.00", "80.00");
+
+        result = byKey(calcSimulationService.simulate(version, null, current -> List.of()));
+        assertSimulated(result.get("TOTAL_MATERIAL"), "95.00", "95.00");
+        verify(lineItemRepository, times(2)).findByVersionId(11L);
+    }
+
+    private void assertSimulated(IndicatorSimulationDto dto, String current, String simulated) {
+        assertEquals(0, dto.getCurrentValue().compareTo(new BigDecimal(current)));
+        assertEquals(0, dto.getSimulatedValue().compareTo(new BigDecimal(simulated)));
+    }
+
+    private Map<String, IndicatorSimulationDto> byKey(List<IndicatorSimulationDto> values) {
+        Map<String, IndicatorSimulationDto> result = new HashMap<>();
+        for (IndicatorSimulationDto value : values) {
+            result.put(value.getIndicatorKey(), value);
+        }
+        return result;
+    }
+
+    private LineItem changed(LineItem item, String amountTax) {
+        LineItem copy = lineItem(item.getId(), item.getModuleCode(), amountTax);
+        copy.setCategoryCode(item.getCategoryCode());
+        return copy;
+    }
+}
@@ -0,0 +1,63 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.service.CalcDsl.Expr;
+import com.costsystem.modules.costcalc.service.CalcDsl.ExpressionEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.FusedSumEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumExpr;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumTrace;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.costsystem.modules.costcalc.service.CalcFixtures.lineItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class CanonicalSumTest {
+
+    @Test
+    void canonicalKeyShouldMatchOnlyStructurallyIdenticalTrees() {
+        String key = key("SUM(amount_tax WHERE module_code = 'MATERIAL')");
+        assertEquals(key, key("SUM(  amount_tax WHERE module_code='MATERIAL' )"));
+        assertEquals(key, key("SUM(amount_tax WHERE module_code = \"MATERIAL\")"));
+
+        assertNotEquals(key, key("SUM(amount_tax WHERE module_code = 'material')"));
+        assertNotEquals(key, key("SUM(amount_tax WHERE module_code != 'MATERIAL')"));
+        assertNotEquals(key("SUM(qty * 1.0)"), key("SUM(qty * 1.00)"));
+        assertNotEquals(key("SUM(qty - 1 - 2)"), key("SUM(qty - (1 - 2))"));
+        // 字符串字面量中的引号与运算符不会与真实结构混淆
+        assertNotEquals(key("SUM(qty WHERE unit = \"t' OR unit = 'kg\")"),
+                key("SUM(qty WHERE unit = 't' OR unit = 'kg')"));
+    }
+
+    @Test
+    void identicalSumsAcrossRulesShouldBeEvaluatedOnceAndShareTrace() {
+        List<Expr> exprs = List.of(
+                ExpressionEvaluator.parse("SUM(amount_tax WHERE module_code = 'MATERIAL')"),
+                ExpressionEvaluator.parse("SUM(amount_tax WHERE module_code = 'MATERIAL') * 0.13"),
+                ExpressionEvaluator.parse("SUM(amount_tax WHERE module_code = 'MATERIAL') / SUM(amount_tax)"));
+        List<SumExpr> sums = SumPushdown.sums(exprs);
+        LineItemSnapshot snapshot = LineItemSnapshot.of(List.of(
+                lineItem(1L, "MATERIAL", "80.00"), lineItem(2L, "EXPENSE", "20.00"), lineItem(3L, "MATERIAL", "5.50")), null);
+
+        Map<SumExpr, SumTrace> result = FusedSumEvaluator.evaluate(exprs, Set.of(), snapshot);
+
+        assertEquals(4, result.size());
+        SumTrace material = result.get(sums.get(0));
+        assertSame(material, result.get(sums.get(1)));
+        assertSame(material, result.get(sums.get(2)));
+        assertNotSame(material, result.get(sums.get(3)));
+        assertEquals(0, material.getValue().compareTo(new BigDecimal("85.50")));
+        assertEquals(List.of(1L, 3L), material.getItemIds());
+        assertEquals(0, result.get(sums.get(3)).getValue().compareTo(new BigDecimal("105.50")));
+    }
+
+    private String key(String expression) {
+        return CalcDsl.canonicalKey(ExpressionEvaluator.parse(expression));
+    }
+}
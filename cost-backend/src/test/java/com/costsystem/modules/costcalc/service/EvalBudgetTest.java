@@ -0,0 +1,98 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalBudget;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalContext;
+import com.costsystem.modules.costcalc.service.CalcDsl.Expr;
+import com.costsystem.modules.costcalc.service.CalcDsl.ExpressionEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.FusedSumEvaluator;
+import com.costsystem.modules.costform.entity.LineItem;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EvalBudgetTest {
+
+    private final LineItemSnapshot snapshot = LineItemSnapshot.of(lineItems(50), null);
+
+    @Test
+    void nestedSumShouldBeChargedPerInnerRowAndAbortOnRowLimit() {
+        EvalBudget unlimited = EvalBudget.unlimited().child(0, 0, 0);
+        evaluate("SUM(qty * SUM(amount_tax))", unlimited);
+        unlimited.settle();
+        // 外层 50 行，每行再扫描内层 50 行
+        assertEquals(50 + 50 * 50, unlimited.getRows());
+
+        EvalBudget limited = EvalBudget.unlimited().child(0, 1000, 0);
+        EvalBudget.Exceeded exceeded = assertThrows(EvalBudget.Exceeded.class,
+                () -> evaluate("SUM(qty * SUM(amount_tax))", limited));
+        assertEquals(EvalBudget.Limit.ROWS, exceeded.getLimit());
+        assertEquals(1000, exceeded.getMax());
+        assertTrue(exceeded.getUsed() > 1000);
+        assertFalse(exceeded.isShared());
+    }
+
+    @Test
+    void nodeLimitShouldBeCheckedWhenRuleSettles() {
+        EvalBudget budget = EvalBudget.unlimited().child(3, 0, 0);
+        evaluate("1 + 2 * 3", budget);
+
+        EvalBudget.Exceeded exceeded = assertThrows(EvalBudget.Exceeded.class, budget::settle);
+        assertEquals(EvalBudget.Limit.NODES, exceeded.getLimit());
+        assertEquals(5, exceeded.getUsed());
+    }
+
+    @Test
+    void rulesShouldShareTheRecalcBudget() {
+        EvalBudget recalc = EvalBudget.of(0, 80, 0);
+        EvalBudget first = recalc.child(0, 60, 0);
+        evaluate("SUM(amount_tax)", first);
+        first.settle();
+
+        EvalBudget second = recalc.child(0, 60, 0);
+        evaluate("SUM(qty)", second);
+        EvalBudget.Exceeded exceeded = assertThrows(EvalBudget.Exceeded.class, second::settle);
+        assertTrue(exceeded.isShared());
+        assertEquals(100, exceeded.getUsed());
+        assertEquals(100, recalc.getRows());
+    }
+
+    @Test
+    void fusedScanShouldChargeEachRowOnceAndLeaveResultsUnchanged() {
+        List<Expr> exprs = List.of(ExpressionEvaluator.parse("SUM(amount_tax)"),
+                ExpressionEvaluator.parse("SUM(qty * 2)"));
+        EvalBudget budget = EvalBudget.unlimited().child(0, 0, 0);
+
+        assertEquals(FusedSumEvaluator.evaluate(exprs, Set.of(), snapshot).size(),
+                FusedSumEvaluator.evaluate(exprs, Set.of(), snapshot, false, budget).size());
+        assertEquals(50, budget.getRows());
+        assertThrows(EvalBudget.Exceeded.class, () -> FusedSumEvaluator.evaluate(exprs, Set.of(), snapshot, false,
+                EvalBudget.unlimited().child(0, 49, 0)));
+    }
+
+    private BigDecimal evaluate(String expression, EvalBudget budget) {
+        EvalContext ctx = new EvalContext(snapshot, Collections.emptyMap());
+        ctx.setBudget(budget);
+        return ExpressionEvaluator.evaluate(ExpressionEvaluator.parse(expression), ctx).getValue();
+    }
+
+    private List<LineItem> lineItems(int size) {
+        List<LineItem> items = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            LineItem item = new LineItem();
+            item.setId((long) i + 1);
+            item.setQty(new BigDecimal(i % 7));
+            item.setAmountTax(new BigDecimal(i).movePointLeft(1));
+            items.add(item);
+        }
+        return items;
+    }
+}
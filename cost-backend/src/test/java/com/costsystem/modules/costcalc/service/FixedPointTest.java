@@ -0,0 +1,112 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalContext;
+import com.costsystem.modules.costcalc.service.CalcDsl.Expr;
+import com.costsystem.modules.costcalc.service.CalcDsl.ExpressionEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.FixedPoint;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumAccumulator;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumExpr;
+import com.costsystem.modules.costform.entity.LineItem;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FixedPointTest {
+
+    private static final List<String> CORPUS = List.of(
+            "SUM(qty * price_tax)",
+            "SUM(amount_tax * 1.13 - qty)",
+            "SUM(-(qty + 0.001) * tax_rate)",
+            "SUM(sort_no * amount_tax + ADJUST)",
+            "SUM(amount_tax * amount_tax * amount_tax)",
+            "SUM(price_tax * price_tax * price_tax * qty)",
+            "SUM(qty / 3 + amount_tax)"
+    );
+
+    @Test
+    void fixedPointSumsShouldMatchBigDecimalIncludingScale() {
+        List<LineItem> items = lineItems(new Random(5), 300);
+        for (Map<String, BigDecimal> indicatorMap : List.of(
+                Map.of("ADJUST", new BigDecimal("0.5"), "qty", new BigDecimal("2")),
+                Collections.<String, BigDecimal>emptyMap())) {
+            for (String expression : CORPUS) {
+                SumExpr sumExpr = (SumExpr) ExpressionEvaluator.parse(expression);
+                LineItemSnapshot snapshot = LineItemSnapshot.of(items, null);
+                assertEquals(sumByBigDecimal(sumExpr, snapshot, indicatorMap),
+                        accumulate(sumExpr, snapshot, indicatorMap), expression);
+            }
+        }
+    }
+
+    @Test
+    void evalShouldRejectOverflowDivisionAndNullCells() {
+        LineItem item = new LineItem();
+        item.setId(1L);
+        item.setAmountTax(new BigDecimal("92233720368547758.07"));
+        item.setPriceTax(new BigDecimal("1.500000"));
+        LineItemSnapshot snapshot = LineItemSnapshot.of(List.of(item), null);
+        FixedPoint fixedPoint = new FixedPoint(snapshot);
+
+        assertTrue(fixedPoint.eval(parse("price_tax * 2"), 0));
+        assertEquals(0, new BigDecimal("3.000000").compareTo(
+                BigDecimal.valueOf(fixedPoint.getUnscaled(), fixedPoint.getScale())));
+        assertEquals(6, fixedPoint.getScale());
+        assertFalse(fixedPoint.eval(parse("amount_tax * 10"), 0));
+        assertFalse(fixedPoint.eval(parse("amount_tax + 0.01"), 0));
+        assertFalse(fixedPoint.eval(parse("qty * 2"), 0));
+        assertFalse(FixedPoint.supports(parse("price_tax / 2")));
+    }
+
+    private Expr parse(String expression) {
+        return (Expr) ExpressionEvaluator.parse("SUM(" + expression + ")").children().get(0);
+    }
+
+    private BigDecimal sumByBigDecimal(SumExpr sumExpr, LineItemSnapshot snapshot, Map<String, BigDecimal> indicatorMap) {
+        Expr expr = (Expr) sumExpr.children().get(0);
+        EvalContext ctx = new EvalContext(snapshot, indicatorMap);
+        BigDecimal sum = BigDecimal.ZERO;
+        for (int row = 0; row < snapshot.size(); row++) {
+            ctx.setCurrentRow(row);
+            sum = sum.add(expr.eval(ctx).asNumber());
+        }
+        return sum;
+    }
+
+    private BigDecimal accumulate(SumExpr sumExpr, LineItemSnapshot snapshot, Map<String, BigDecimal> indicatorMap) {
+        EvalContext ctx = new EvalContext(snapshot, indicatorMap);
+        SumAccumulator accumulator = new SumAccumulator(sumExpr, snapshot);
+        for (int row = 0; row < snapshot.size(); row++) {
+            ctx.setCurrentRow(row);
+            accumulator.accept(ctx, row);
+        }
+        return accumulator.toTrace().getValue();
+    }
+
+    private List<LineItem> lineItems(Random random, int size) {
+        String[] amounts = {"92233720368547758.07", "-92233720368547758.07", "1.50000000", "0.1000000000", "-0.00"};
+        List<LineItem> items = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            LineItem item = new LineItem();
+            item.setId((long) i + 1);
+            item.setQty(random.nextInt(5) == 0 ? null : BigDecimal.valueOf(random.nextInt(30000) - 5, random.nextInt(5)));
+            item.setPriceTax(random.nextInt(5) == 0 ? null
+                    : new BigDecimal(random.nextInt(1_000_000) + "." + random.nextInt(1_000_000)));
+            item.setAmountTax(random.nextInt(8) == 0
+                    ? new BigDecimal(amounts[random.nextInt(amounts.length)])
+                    : new BigDecimal(random.nextInt(20000) - 100 + "." + random.nextInt(10)));
+            item.setTaxRate(random.nextBoolean() ? new BigDecimal("0.13") : new BigDecimal("0.1300"));
+            item.setSortNo(random.nextInt(3) == 0 ? null : random.nextInt(50) - 10);
+            items.add(item);
+        }
+        return items;
+    }
+}
@@ -0,0 +1,258 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.entity.CalcRule;
+import com.costsystem.modules.costcalc.entity.CalcTrace;
+import com.costsystem.modules.costcalc.entity.IndicatorValue;
+import com.costsystem.modules.costcalc.repository.CalcRuleRepository;
+import com.costsystem.modules.costcalc.repository.CalcTraceRepository;
+import com.costsystem.modules.costcalc.repository.IndicatorValueRepository;
+import com.costsystem.modules.costcalc.service.IncrementalCalcService.LineItemChange;
+import com.costsystem.modules.costform.entity.FormVersion;
+import com.costsystem.modules.costform.entity.LineItem;
+import com.costsystem.modules.costform.repository.FormVersionRepository;
+import com.costsystem.modules.costform.repository.LineItemRepository;
+import com.costsystem.modules.costproject.repository.ProjectRepository;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.costsystem.modules.costcalc.service.CalcFixtures.lineItem;
+import static com.costsystem.modules.costcalc.service.CalcFixtures.rule;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class IncrementalCalcServiceTest {
+
+    @Mock
+    private CalcRuleRepository calcRuleRepository;
+    @Mock
+    private IndicatorValueRepository indicatorValueRepository;
+    @Mock
+    private CalcTraceRepository calcTraceRepository;
+    @Mock
+    private FormVersionRepository formVersionRepository;
+    @Mock
+    private LineItemRepository lineItemRepository;
+    @Mock
+    private ProjectRepository projectRepository;
+    @Mock
+    private RecalcCoordinator recalcCoordinator;
+
+    private CalcService calcService;
+    private IncrementalCalcService incrementalCalcService;
+    private final Map<String, IndicatorValue> saved = new TreeMap<>();
+    private final List<LineItem> lineItems = new ArrayList<>();
+    private final AtomicReference<byte[]> itemSets = new AtomicReference<>();
+    private FormVersion version;
+
+    @BeforeEach
+    void setUp() {
+        CalcRuleCompiler compiler = new CalcRuleCompiler();
+        calcService = spy(new CalcService(
+                calcRuleRepository,
+                indicatorValueRepository,
+                calcTraceRepository,
+                formVersionRepository,
+                lineItemRepository,
+                projectRepository,
+                compiler,
+                ForkJoinPool.commonPool(),
+                new RuleProfiler(new SimpleMeterRegistry())
+        ));
+        incrementalCalcService = new IncrementalCalcService(
+                calcRuleRepository,
+                indicatorValueRepository,
+                formVersionRepository,
+                compiler,
+                calcService,
+                recalcCoordinator
+        );
+        version = new FormVersion();
+        version.setId(11L);
+        version.setProjectId(100L);
+        version.setTemplateId(200L);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+    }
+
+    @Test
+    void applyLineItemChangesShouldPatchSumsAndMatchFullRecalculation() throws Exception {
+        // 关闭输入指纹，末尾的重算真正全量求值，而不是直接返回增量维护的指标
+        ReflectionTestUtils.setField(calcService, "fingerprintEnabled", false);
+        stubStore(List.of(
+                rule(1L, "TOTAL_MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL')"),
+                rule(2L, "TOTAL_EXPENSE", "SUM(amount_tax WHERE module_code = 'EXPENSE')"),
+                rule(3L, "TOTAL_COST", "TOTAL_MATERIAL + TOTAL_EXPENSE")));
+        lineItems.add(lineItem(1L, "MATERIAL", "80.00"));
+        lineItems.add(lineItem(2L, "EXPENSE", "15.50"));
+        lineItems.add(lineItem(3L, "MATERIAL", "40.00"));
+        calcService.recalculateVersion(11L);
+        IndicatorValue expense = saved.get("TOTAL_EXPENSE");
+        LocalDateTime expenseCalcTime = expense.getCalcTime();
+
+        LineItem before = lineItem(3L, "MATERIAL", "40.00");
+        LineItem after = lineItem(3L, "MATERIAL", "55.00");
+        LineItem created = lineItem(4L, "MATERIAL", "10.00");
+        lineItems.set(2, after);
+        lineItems.add(created);
+        incrementalCalcService.applyLineItemChanges(version, List.of(
+                LineItemChange.updated(before, after),
+                LineItemChange.created(created)));
+
+        verify(calcService, times(1)).recalculateVersion(11L);
+        assertEquals(0, saved.get("TOTAL_MATERIAL").getValue().compareTo(new BigDecimal("145.00")));
+        assertEquals(0, saved.get("TOTAL_COST").getValue().compareTo(new BigDecimal("160.50")));
+        assertSame(expenseCalcTime, saved.get("TOTAL_EXPENSE").getCalcTime());
+
+        Map<String, Map<String, Object>> incrementalTraces = new HashMap<>();
+        for (Map.Entry<String, IndicatorValue> entry : saved.entrySet()) {
+            incrementalTraces.put(entry.getKey(), withoutTimings(entry.getValue().getTraceJson()));
+        }
+        calcService.recalculateVersion(11L);
+        verify(lineItemRepository, times(2)).findByVersionId(11L);
+        for (Map.Entry<String, IndicatorValue> entry : saved.entrySet()) {
+            assertEquals(withoutTimings(entry.getValue().getTraceJson()), incrementalTraces.get(entry.getKey()),
+                    entry.getKey());
+        }
+    }
+
+    @Test
+    void applyLineItemChangesShouldAdvanceFingerprintToCurrentItemRevision() {
+        stubStore(List.of(rule(1L, "TOTAL_MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL')")));
+        lineItems.add(lineItem(1L, "MATERIAL", "80.00"));
+        AtomicLong itemRevision = new AtomicLong(4L);
+        when(formVersionRepository.findItemRevisionById(11L)).thenAnswer(invocation -> itemRevision.get());
+        calcService.recalculateVersion(11L);
+        String previous = version.getCalcFingerprint();
+
+        LineItem created = lineItem(2L, "MATERIAL", "10.00");
+        lineItems.add(created);
+        itemRevision.incrementAndGet();
+        incrementalCalcService.applyLineItemChanges(version, List.of(LineItemChange.created(created)));
+
+        ArgumentCaptor<String> next = ArgumentCaptor.forClass(String.class);
+        verify(formVersionRepository).advanceCalcFingerprint(eq(11L), eq(previous), next.capture());
+        // 推进后的指纹与全量重算对当前修订号算得的一致，重算直接返回增量维护的指标
+        version.setCalcFingerprint(next.getValue());
+        calcService.recalculateVersion(11L);
+        verify(lineItemRepository, times(1)).findByVersionId(11L);
+        assertEquals(0, saved.get("TOTAL_MATERIAL").getValue().compareTo(new BigDecimal("90.00")));
+    }
+
+    @Test
+    void applyLineItemChangesShouldFallBackToFullRecalculationWhenSumWasNotEvaluated() {
+        stubStore(List.of(
+                rule(1L, "TOTAL_MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL')"),
+                rule(2L, "EXPENSE_IF_LARGE",
+                        "IF(TOTAL_MATERIAL > 1000, SUM(amount_tax WHERE module_code = 'EXPENSE'), 0)")));
+        lineItems.add(lineItem(1L, "MATERIAL", "80.00"));
+        calcService.recalculateVersion(11L);
+        BigDecimal material = saved.get("TOTAL_MATERIAL").getValue();
+        when(recalcCoordinator.submit(11L)).thenReturn(new CompletableFuture<>());
+
+        LineItem deleted = lineItems.remove(0);
+        incrementalCalcService.applyLineItemChanges(version, List.of(LineItemChange.deleted(deleted)));
+
+        // 全量重算交由 RecalcCoordinator 异步执行，不在明细事务内同步重算
+        verify(recalcCoordinator).submit(11L);
+        verify(calcService, times(1)).recalculateVersion(11L);
+        assertSame(material, saved.get("TOTAL_MATERIAL").getValue());
+    }
+
+    @Test
+    void applyLineItemChangesShouldLockVersionBeforeReadingStoredIndicators() {
+        when(indicatorValueRepository.findForUpdateByVersionId(11L)).thenReturn(List.of());
+
+        incrementalCalcService.applyLineItemChanges(version,
+                List.of(LineItemChange.created(lineItem(1L, "MATERIAL", "1.00"))));
+
+        InOrder inOrder = inOrder(formVersionRepository, indicatorValueRepository);
+        inOrder.verify(formVersionRepository).findByIdForUpdate(11L);
+        inOrder.verify(indicatorValueRepository).findForUpdateByVersionId(11L);
+    }
+
+    @Test
+    void applyLineItemChangesShouldSkipVersionWithoutIndicators() {
+        when(indicatorValueRepository.findForUpdateByVersionId(11L)).thenReturn(List.of());
+
+        incrementalCalcService.applyLineItemChanges(version,
+                List.of(LineItemChange.created(lineItem(1L, "MATERIAL", "1.00"))));
+
+        verifyNoInteractions(calcRuleRepository, lineItemRepository, recalcCoordinator);
+    }
+
+    /**
+     * 解析追溯并去掉画像中的耗时项，其余画像项（节点数、扫描与命中行数、追溯字节数）须与全量重算一致
+     */
+    private static Map<String, Object> withoutTimings(String traceJson) throws Exception {
+        Map<String, Object> trace = new ObjectMapper().readValue(traceJson, new TypeReference<>() {});
+        Map<?, ?> profile = (Map<?, ?>) trace.get("profile");
+        assertNotNull(profile, traceJson);
+        profile.remove("parse_us");
+        profile.remove("eval_ms");
+        return trace;
+    }
+
+    private void stubStore(List<CalcRule> rules) {
+        when(formVersionRepository.findByIdForUpdate(11L)).thenReturn(Optional.of(version));
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(200L, true)).thenReturn(rules);
+        when(lineItemRepository.findByVersionId(11L)).thenAnswer(invocation -> new ArrayList<>(lineItems));
+        doAnswer(invocation -> {
+            List<IndicatorValue> values = invocation.getArgument(0);
+            values.forEach(value -> saved.put(value.getIndicatorKey(), value));
+            return null;
+        }).when(indicatorValueRepository).upsertAll(anyList());
+        lenient().when(indicatorValueRepository.save(any(IndicatorValue.class))).thenAnswer(invocation -> {
+            IndicatorValue value = invocation.getArgument(0);
+            saved.put(value.getIndicatorKey(), value);
+            return value;
+        });
+        when(indicatorValueRepository.findByVersionIdOrderByIndicatorKeyAsc(11L))
+                .thenAnswer(invocation -> new ArrayList<>(saved.values()));
+        when(indicatorValueRepository.findForUpdateByVersionId(11L))
+                .thenAnswer(invocation -> new ArrayList<>(saved.values()));
+        doAnswer(invocation -> {
+            itemSets.set(invocation.getArgument(1));
+            return null;
+        }).when(calcTraceRepository).upsert(eq(11L), any());
+        when(calcTraceRepository.findByVersionId(11L)).thenAnswer(invocation -> {
+            CalcTrace trace = new CalcTrace();
+            trace.setVersionId(11L);
+            trace.setItemSets(itemSets.get());
+            return Optional.of(trace);
+        });
+    }
+}
@@ -0,0 +1,117 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.dto.OrgIndicatorTotalDto;
+import com.costsystem.modules.costcalc.entity.IndicatorRollup;
+import com.costsystem.modules.costcalc.entity.IndicatorValue;
+import com.costsystem.modules.costcalc.repository.IndicatorRollupRepository;
+import com.costsystem.modules.costcalc.repository.IndicatorValueRepository;
+import com.costsystem.modules.costform.entity.FormVersion;
+import com.costsystem.modules.costform.repository.FormVersionRepository;
+import com.costsystem.modules.costproject.entity.Project;
+import com.costsystem.modules.costproject.repository.ProjectRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class IndicatorRollupServiceTest {
+
+    @Mock
+    private IndicatorRollupRepository rollupRepository;
+    @Mock
+    private IndicatorValueRepository indicatorValueRepository;
+    @Mock
+    private FormVersionRepository versionRepository;
+    @Mock
+    private ProjectRepository projectRepository;
+
+    private IndicatorRollupService indicatorRollupService;
+
+    @BeforeEach
+    void setUp() {
+        indicatorRollupService = new IndicatorRollupService(
+                rollupRepository,
+                indicatorValueRepository,
+                versionRepository,
+                projectRepository
+        );
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void refreshProjectShouldReplaceRowsWithLatestApprovedOrIssuedVersion() {
+        FormVersion version = new FormVersion();
+        version.setId(21L);
+        version.setProjectId(100L);
+
+        when(projectRepository.findById(100L)).thenReturn(Optional.of(project(Project.ProjectStatus.ACTIVE, 7L)));
+        when(versionRepository.findTopByProjectIdAndStatusInOrderByVersionNoDesc(100L,
+                Set.of(FormVersion.VersionStatus.APPROVED, FormVersion.VersionStatus.ISSUED))).thenReturn(version);
+        when(indicatorValueRepository.findByVersionIdOrderByIndicatorKeyAsc(21L))
+                .thenReturn(List.of(value("MATERIAL_COST", "120.50"), value("TOTAL_COST", "300.00")));
+
+        indicatorRollupService.refreshProject(100L);
+
+        verify(rollupRepository).deleteByProjectId(100L);
+        ArgumentCaptor<List<IndicatorRollup>> captor = ArgumentCaptor.forClass(List.class);
+        verify(rollupRepository).saveAll(captor.capture());
+        List<IndicatorRollup> rows = captor.getValue();
+        assertEquals(List.of("MATERIAL_COST", "TOTAL_COST"), rows.stream().map(IndicatorRollup::getIndicatorKey).toList());
+        assertEquals(new BigDecimal("300.00"), rows.get(1).getValue());
+        assertEquals(Long.valueOf(7L), rows.get(1).getOrgId());
+        assertEquals(Long.valueOf(21L), rows.get(1).getVersionId());
+    }
+
+    @Test
+    void refreshProjectShouldDropArchivedProjectFromRollup() {
+        when(projectRepository.findById(100L)).thenReturn(Optional.of(project(Project.ProjectStatus.ARCHIVED, 7L)));
+
+        indicatorRollupService.refreshProject(100L);
+
+        verify(rollupRepository).deleteByProjectId(100L);
+        verify(versionRepository, never()).findTopByProjectIdAndStatusInOrderByVersionNoDesc(any(), any());
+        verify(rollupRepository, never()).saveAll(anyList());
+    }
+
+    @Test
+    void getOrgTotalsShouldFilterByKeysOnlyWhenGiven() {
+        List<OrgIndicatorTotalDto> totals = List.of(new OrgIndicatorTotalDto("TOTAL_COST", new BigDecimal("900.00"), 3L));
+        when(rollupRepository.sumByOrgId(7L)).thenReturn(totals);
+        when(rollupRepository.sumByOrgIdAndKeys(7L, List.of("TOTAL_COST"))).thenReturn(totals);
+
+        assertEquals(totals, indicatorRollupService.getOrgTotals(7L, null));
+        assertEquals(totals, indicatorRollupService.getOrgTotals(7L, List.of("TOTAL_COST")));
+        verify(rollupRepository).sumByOrgId(7L);
+        verify(rollupRepository).sumByOrgIdAndKeys(7L, List.of("TOTAL_COST"));
+    }
+
+    private Project project(Project.ProjectStatus status, Long orgId) {
+        Project project = new Project();
+        project.setId(100L);
+        project.setStatus(status);
+        project.setOrgId(orgId);
+        return project;
+    }
+
+    private IndicatorValue value(String key, String value) {
+        IndicatorValue indicatorValue = new IndicatorValue();
+        indicatorValue.setIndicatorKey(key);
+        indicatorValue.setValue(new BigDecimal(value));
+        return indicatorValue;
+    }
+}
@@ -0,0 +1,67 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.service.LineItemSnapshot.Field;
+import com.costsystem.modules.costform.entity.LineItem;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LineItemSnapshotTest {
+
+    @Test
+    void extPathsShouldBeExtractedAsTypedColumns() {
+        LineItemSnapshot snapshot = LineItemSnapshot.of(items(
+                "{\"density\":7.85,\"count\":3,\"kind\":\"MATERIAL\",\"memo\":{\"skip\":[1,2]}}",
+                "{\"count\":12345678901,\"density\":0.5}",
+                null,
+                "{\"density\":null,\"count\":\"4\",\"kind\":true}"
+        ), List.of("density", "count", "kind"));
+
+        assertEquals(7.85, snapshot.value(Field.EXT, "density", 0));
+        assertEquals(0.5, snapshot.value(Field.EXT, "density", 1));
+        assertNull(snapshot.value(Field.EXT, "density", 2));
+        assertNull(snapshot.value(Field.EXT, "density", 3));
+        assertEquals(3, ((Number) snapshot.value(Field.EXT, "count", 0)).intValue());
+        assertEquals(12345678901L, snapshot.value(Field.EXT, "count", 1));
+        assertEquals("4", snapshot.value(Field.EXT, "count", 3));
+        assertEquals("MATERIAL", snapshot.value(Field.EXT, "kind", 0));
+        assertEquals(Boolean.TRUE, snapshot.value(Field.EXT, "kind", 3));
+    }
+
+    @Test
+    void nestedDuplicateAndMalformedExtJsonShouldMatchMapSemantics() {
+        LineItemSnapshot snapshot = LineItemSnapshot.of(items(
+                "{\"spec\":{\"grade\":\"Q235\",\"size\":{\"w\":2}},\"rate\":1,\"rate\":2}",
+                "{\"spec\":{\"grade\":\"Q345\"},\"spec\":\"flat\"}",
+                "{\"rate\":1,\"spec\":{\"grade\":",
+                "[{\"rate\":1}]"
+        ), List.of("spec", "spec.grade", "spec.size.w", "rate"));
+
+        assertEquals("Q235", snapshot.value(Field.EXT, "spec.grade", 0));
+        assertEquals(2, ((Number) snapshot.value(Field.EXT, "spec.size.w", 0)).intValue());
+        assertEquals(Map.of("w", 2), ((Map<?, ?>) snapshot.value(Field.EXT, "spec", 0)).get("size"));
+        assertEquals(2L, ((Number) snapshot.value(Field.EXT, "rate", 0)).longValue());
+        assertEquals("flat", snapshot.value(Field.EXT, "spec", 1));
+        assertNull(snapshot.value(Field.EXT, "spec.grade", 1));
+        assertNull(snapshot.value(Field.EXT, "rate", 2));
+        assertNull(snapshot.value(Field.EXT, "rate", 3));
+        assertEquals("Q345", LineItemSnapshot.of(items("{\"spec\":{\"grade\":\"Q345\"}}"), null)
+                .value(Field.EXT, "spec.grade", 0));
+    }
+
+    private List<LineItem> items(String... extJson) {
+        List<LineItem> items = new ArrayList<>();
+        for (int i = 0; i < extJson.length; i++) {
+            LineItem item = new LineItem();
+            item.setId((long) i + 1);
+            item.setExtJson(extJson[i]);
+            items.add(item);
+        }
+        return items;
+    }
+}
@@ -0,0 +1,159 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalBudget;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalContext;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalResult;
+import com.costsystem.modules.costcalc.service.CalcDsl.Expr;
+import com.costsystem.modules.costcalc.service.CalcDsl.ExpressionEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.FusedSumEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.ParallelScan;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumExpr;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumTrace;
+import com.costsystem.modules.costform.entity.LineItem;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParallelSumTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+    private static final List<String> EXPRESSIONS = List.of(
+            "SUM(amount_tax)",
+            "SUM(amount_tax * qty WHERE module_code = 'MATERIAL')",
+            "SUM(amount_tax / 3 WHERE qty > 2)",
+            "AVG(amount_tax GROUP BY category_code)",
+            "MIN(amount_tax + qty)",
+            "MAX(qty WHERE module_code = 'EXPENSE')",
+            "COUNT(* WHERE category_code IN ('EQUIP', 'MAT'))");
+
+    private final LineItemSnapshot snapshot = LineItemSnapshot.of(lineItems(60_000), null);
+    private final ParallelScan parallelScan = new ParallelScan(POOL, 1);
+
+    @Test
+    void parallelSumShouldMatchSequentialValueScaleAndItemOrder() {
+        assertTrue(parallelScan.splits(null, snapshot));
+        for (String expression : EXPRESSIONS) {
+            Expr expr = ExpressionEvaluator.parse(expression);
+            EvalResult sequential = ExpressionEvaluator.evaluate(expr, new EvalContext(snapshot, null));
+            EvalContext ctx = new EvalContext(snapshot, null);
+            ctx.setParallelScan(parallelScan);
+            EvalResult parallel = ExpressionEvaluator.evaluate(expr, ctx);
+
+            assertEquals(sequential.getValue(), parallel.getValue(), expression);
+            assertSameTrace(sequential.getSumTraces().get(0), parallel.getSumTraces().get(0));
+            assertEquals(sequential.getGroups().keySet(), parallel.getGroups().keySet(), expression);
+            for (String group : sequential.getGroups().keySet()) {
+                assertSameTrace(sequential.getGroups().get(group), parallel.getGroups().get(group));
+            }
+        }
+    }
+
+    @Test
+    void fusedScanShouldMatchSequentialAndChargeEachRowOnce() {
+        List<Expr> exprs = new ArrayList<>();
+        for (String expression : EXPRESSIONS) {
+            exprs.add(ExpressionEvaluator.parse(expression));
+        }
+        Map<SumExpr, SumTrace> sequential = FusedSumEvaluator.evaluate(exprs, Set.of(), snapshot);
+        EvalBudget budget = EvalBudget.unlimited().child(0, 0, 0);
+        Map<SumExpr, SumTrace> parallel = FusedSumEvaluator.evaluate(exprs, Set.of(), snapshot, false,
+                budget, parallelScan);
+
+        assertEquals(sequential.keySet(), parallel.keySet());
+        for (SumExpr sumExpr : sequential.keySet()) {
+            assertSameTrace(sequential.get(sumExpr), parallel.get(sumExpr));
+        }
+        EvalBudget sequentialBudget = EvalBudget.unlimited().child(0, 0, 0);
+        FusedSumEvaluator.evaluate(exprs, Set.of(), snapshot, false, sequentialBudget);
+        assertEquals(sequentialBudget.getRows(), budget.getRows());
+    }
+
+    @Test
+    void segmentsShouldChargeRuleBudgetWhileScanning() {
+        Expr expr = ExpressionEvaluator.parse("SUM(amount_tax)");
+        EvalBudget budget = EvalBudget.unlimited().child(0, 20_000, 0);
+        EvalContext ctx = new EvalContext(snapshot, null);
+        ctx.setParallelScan(parallelScan);
+        ctx.setBudget(budget);
+
+        EvalBudget.Exceeded ex = assertThrows(EvalBudget.Exceeded.class,
+                () -> ExpressionEvaluator.evaluate(expr, ctx));
+
+        assertEquals(EvalBudget.Limit.ROWS, ex.getLimit());
+        assertFalse(ex.isShared());
+        assertTrue(budget.getRows() < 30_000, "分段在超限后应尽快中止: " + budget.getRows());
+    }
+
+    @Test
+    void scanInsideCalcPoolShouldForkSegmentsAndMatchSequential() throws Exception {
+        Expr expr = ExpressionEvaluator.parse("SUM(amount_tax * qty WHERE module_code = 'MATERIAL')");
+        EvalBudget sequentialBudget = EvalBudget.unlimited().child(0, 0, 0);
+        EvalContext sequentialCtx = new EvalContext(snapshot, null);
+        sequentialCtx.setBudget(sequentialBudget);
+        EvalResult sequential = ExpressionEvaluator.evaluate(expr, sequentialCtx);
+        sequentialBudget.settle();
+        EvalBudget budget = EvalBudget.unlimited().child(0, 0, 0);
+
+        EvalResult parallel = POOL.submit(() -> {
+            EvalContext ctx = new EvalContext(snapshot, null);
+            ctx.setParallelScan(parallelScan);
+            ctx.setBudget(budget);
+            return ExpressionEvaluator.evaluate(expr, ctx);
+        }).get();
+
+        assertSameTrace(sequential.getSumTraces().get(0), parallel.getSumTraces().get(0));
+        budget.settle();
+        assertEquals(sequentialBudget.getRows(), budget.getRows());
+    }
+
+    @Test
+    void smallOrNestedSumsShouldStaySequential() {
+        assertFalse(new ParallelScan(POOL, 100_000).splits(null, snapshot));
+        BitSet few = new BitSet(snapshot.size());
+        few.set(0, 1_000);
+        assertFalse(new ParallelScan(POOL, 10_000).splits(few, snapshot));
+        assertTrue(new ParallelScan(POOL, 10_000).splits(null, snapshot));
+        assertFalse(parallelScan.splits(null, LineItemSnapshot.of(lineItems(1_000), null)));
+        assertTrue(((SumExpr) ExpressionEvaluator.parse("SUM(qty * SUM(amount_tax))")).hasNestedSum());
+        assertFalse(((SumExpr) ExpressionEvaluator.parse("SUM(qty WHERE module_code = 'MATERIAL')")).hasNestedSum());
+    }
+
+    private void assertSameTrace(SumTrace expected, SumTrace actual) {
+        assertEquals(expected.getExpression(), actual.getExpression());
+        assertEquals(expected.getValue(), actual.getValue(), expected.getExpression());
+        assertEquals(expected.getCount(), actual.getCount(), expected.getExpression());
+        assertEquals(expected.getItemIds(), actual.getItemIds(), expected.getExpression());
+    }
+
+    /**
+     * 取值含同值不同 scale（5 / 5.0 / 5.00）与足以使 long 累加溢出的大额行
+     */
+    private List<LineItem> lineItems(int size) {
+        String[] categories = {"EQUIP", "install ", "MAT", null};
+        String[] suffixes = {"", ".0", ".00", ".25"};
+        List<LineItem> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            LineItem item = new LineItem();
+            item.setId((long) i + 1);
+            item.setModuleCode(i % 5 == 0 ? "EXPENSE" : "MATERIAL");
+            item.setCategoryCode(categories[i % categories.length]);
+            item.setQty(new BigDecimal(i % 7));
+            item.setAmountTax(i % 97 == 0
+                    ? new BigDecimal("90000000000000.00")
+                    : new BigDecimal((i % 1000) + suffixes[i % 3 == 0 ? i % 4 : i % 3]));
+            items.add(item);
+        }
+        return items;
+    }
+}
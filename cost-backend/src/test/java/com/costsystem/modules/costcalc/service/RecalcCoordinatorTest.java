@@ -0,0 +1,141 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.common.exception.BusinessException;
+import com.costsystem.modules.costcalc.dto.IndicatorValueDto;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class RecalcCoordinatorTest {
+
+    @Mock
+    private CalcService calcService;
+
+    private QueueExecutor executor;
+    private RecalcCoordinator coordinator;
+
+    @BeforeEach
+    void setUp() {
+        executor = new QueueExecutor();
+        coordinator = new RecalcCoordinator(calcService, executor);
+    }
+
+    @Test
+    void requestsDuringRunningRecalcShouldCoalesceIntoOneFollowUp() throws Exception {
+        List<IndicatorValueDto> first = List.of(new IndicatorValueDto());
+        List<IndicatorValueDto> second = List.of(new IndicatorValueDto());
+        when(calcService.recalculateVersion(eq(2L), any())).thenReturn(first, second);
+
+        CompletableFuture<List<IndicatorValueDto>> running = coordinator.submit(2L);
+        CompletableFuture<List<IndicatorValueDto>> followUp = coordinator.submit(2L);
+        CompletableFuture<List<IndicatorValueDto>> merged = coordinator.submit(2L);
+
+        assertNotSame(running, followUp);
+        assertSame(followUp, merged);
+        // 后续重算要等当前重算结束才入队
+        assertEquals(1, executor.size());
+
+        executor.runNext();
+        assertSame(first, running.get());
+        assertFalse(followUp.isDone());
+        assertEquals(1, executor.size());
+
+        executor.runNext();
+        assertSame(second, followUp.get());
+        assertSame(second, merged.get());
+        verify(calcService, times(2)).recalculateVersion(eq(2L), any());
+
+        // 空闲后新的请求重新开始一次重算
+        coordinator.submit(2L);
+        assertEquals(1, executor.size());
+    }
+
+    @Test
+    void differentVersionsShouldBeQueuedIndependently() {
+        coordinator.submit(2L);
+        coordinator.submit(3L);
+        coordinator.submit(2L);
+        coordinator.submit(4L);
+
+        // 版本 2 的后续重算等待其当前重算结束，不占用排队位置
+        assertEquals(3, executor.size());
+    }
+
+    @Test
+    void fullBacklogShouldRejectWithConflictAndReleaseTheVersion() {
+        RecalcCoordinator rejecting = new RecalcCoordinator(calcService, command -> {
+            throw new RejectedExecutionException("full");
+        });
+
+        BusinessException error = assertThrows(BusinessException.class, () -> rejecting.recalculateVersion(5L));
+        assertEquals(409, error.getCode());
+        // 被拒绝的版本不残留占位，再次提交会重新尝试入队而不是并入永不执行的后续重算
+        assertTrue(rejecting.submit(5L).isCompletedExceptionally());
+    }
+
+    @Test
+    void failureShouldReachWaitingCallersAndStillStartFollowUp() throws Exception {
+        when(calcService.recalculateVersion(eq(3L), any()))
+                .thenThrow(BusinessException.badRequest("表达式错误"))
+                .thenReturn(List.of());
+
+        CompletableFuture<List<IndicatorValueDto>> running = coordinator.submit(3L);
+        CompletableFuture<List<IndicatorValueDto>> followUp = coordinator.submit(3L);
+        executor.runNext();
+
+        ExecutionException error = assertThrows(ExecutionException.class, running::get);
+        assertInstanceOf(BusinessException.class, error.getCause());
+        executor.runNext();
+        assertTrue(followUp.get().isEmpty());
+    }
+
+    @Test
+    void recalculateShouldCheckAccessBeforeSubmitting() {
+        when(calcService.recalculateVersion(eq(2L), any())).thenReturn(List.of());
+        RecalcCoordinator direct = new RecalcCoordinator(calcService, Runnable::run);
+
+        assertTrue(direct.recalculate(7L, 2L).isEmpty());
+        verify(calcService).checkRecalculable(7L, 2L);
+    }
+
+    private static final class QueueExecutor implements Executor {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        int size() {
+            return tasks.size();
+        }
+
+        void runNext() {
+            tasks.remove().run();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.common.exception.BusinessException;
+import com.costsystem.modules.costcalc.dto.IndicatorValueDto;
+import com.costsystem.modules.costcalc.dto.RecalcJobDto;
+import com.costsystem.modules.costcalc.dto.RuleCostDto;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class RecalcJobServiceTest {
+
+    @Mock
+    private CalcService calcService;
+
+    private final Queue<Runnable> stripe = new ArrayDeque<>();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private RecalcJobService recalcJobService;
+
+    @BeforeEach
+    void setUp() {
+        RecalcCoordinator coordinator = new RecalcCoordinator(calcService, stripe::add);
+        recalcJobService = new RecalcJobService(calcService, coordinator, meterRegistry);
+    }
+
+    @Test
+    void submitShouldReturnAtOnceAndReportRuleProgressUntilIndicatorsAreReady() {
+        List<IndicatorValueDto> indicators = List.of(new IndicatorValueDto());
+        RecalcJobDto[] midway = new RecalcJobDto[1];
+        String[] jobId = new String[1];
+        when(calcService.recalculateVersion(eq(2L), any())).thenAnswer(invocation -> {
+            RecalcProgress progress = invocation.getArgument(1);
+            progress.start();
+            progress.rulesLoaded(2);
+            progress.ruleEvaluated(new RuleCostDto(11L, "A", 3, 10, 1));
+            midway[0] = recalcJobService.getJob(7L, 2L, jobId[0]);
+            progress.ruleEvaluated(new RuleCostDto(12L, "B", 5, 400, 7));
+            return indicators;
+        });
+
+        RecalcJobDto submitted = recalcJobService.submit(7L, 2L);
+        jobId[0] = submitted.getJobId();
+        assertEquals("PENDING", submitted.getStatus());
+        assertNull(submitted.getIndicators());
+        verify(calcService).checkRecalculable(7L, 2L);
+
+        stripe.remove().run();
+
+        assertEquals("RUNNING", midway[0].getStatus());
+        assertEquals(2, midway[0].getTotalRules());
+        assertEquals(1, midway[0].getEvaluatedRules());
+        RecalcJobDto done = recalcJobService.getJob(7L, 2L, jobId[0]);
+        assertEquals("COMPLETED", done.getStatus());
+        assertEquals(2, done.getEvaluatedRules());
+        assertEquals(List.of("B", "A"),
+                done.getSlowestRules().stream().map(RuleCostDto::getIndicatorKey).toList());
+        assertSame(indicators, done.getIndicators());
+        assertNotNull(done.getFinishedAt());
+        assertEquals(0, recalcJobService.getActiveJobs());
+        assertEquals(1L, meterRegistry.timer("calc.recalc.jobs.duration").count());
+    }
+
+    @Test
+    void submitShouldRejectWhenTooManyJobsAreUnfinished() {
+        ReflectionTestUtils.setField(recalcJobService, "queueCapacity", 1);
+        when(calcService.recalculateVersion(eq(2L), any())).thenReturn(List.of());
+
+        recalcJobService.submit(7L, 2L);
+        BusinessException rejected = assertThrows(BusinessException.class, () -> recalcJobService.submit(7L, 3L));
+        assertEquals(409, rejected.getCode());
+        assertEquals(1.0, meterRegistry.counter("calc.recalc.jobs", "result", "rejected").count());
+
+        stripe.remove().run();
+        recalcJobService.submit(7L, 3L);
+        assertEquals(1, recalcJobService.getActiveJobs());
+    }
+
+    @Test
+    void failedJobShouldExposeErrorAndOnlyBeVisibleUnderItsVersion() {
+        when(calcService.recalculateVersion(eq(2L), any())).thenThrow(BusinessException.badRequest("表达式错误"));
+
+        String jobId = recalcJobService.submit(7L, 2L).getJobId();
+        stripe.remove().run();
+
+        RecalcJobDto failed = recalcJobService.getJob(7L, 2L, jobId);
+        assertEquals("FAILED", failed.getStatus());
+        assertEquals("表达式错误", failed.getError());
+        assertEquals(1.0, meterRegistry.counter("calc.recalc.jobs", "result", "failed").count());
+        assertThrows(BusinessException.class, () -> recalcJobService.getJob(7L, 3L, jobId));
+    }
+}
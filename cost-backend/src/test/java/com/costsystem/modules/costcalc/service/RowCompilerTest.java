@@ -0,0 +1,126 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.service.CalcDsl.Condition;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalContext;
+import com.costsystem.modules.costcalc.service.CalcDsl.Expr;
+import com.costsystem.modules.costcalc.service.CalcDsl.ExpressionEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.Node;
+import com.costsystem.modules.costcalc.service.CalcDsl.RowCompiler;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumAccumulator;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumExpr;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumTrace;
+import com.costsystem.modules.costform.entity.LineItem;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RowCompilerTest {
+
+    private static final List<String> CORPUS = List.of(
+            "SUM(amount_tax)",
+            "SUM(1)",
+            "SUM(qty * price_tax WHERE module_code = 'MATERIAL')",
+            "SUM(ROUND(qty * price_tax / 3, 2) WHERE module_code != 'EXPENSE')",
+            "SUM(-amount_tax WHERE module_code IN ('MATERIAL', 'EXPENSE', 0))",
+            "SUM(amount_tax WHERE module_code = 0 OR unit = 't')",
+            "SUM(amount_tax WHERE amount_tax > 100.5 AND amount_tax <= 9000)",
+            "SUM(amount_tax WHERE amount_tax >= 0.001)",
+            "SUM(qty WHERE tax_rate = 0.13 AND NOT_AN_INDICATOR = 0)",
+            "SUM(qty WHERE tax_rate IN (0.13, 0) OR qty < ADJUST)",
+            "SUM(IF(qty > 10, amount_tax, price_tax) WHERE category_code = 'EQUIP')",
+            "SUM(IF(module_code = 'MATERIAL', 'x', qty))",
+            "SUM(name WHERE name)",
+            "SUM(sort_no + qty / 0 WHERE sort_no >= 10)",
+            "SUM(ext.rate * amount_tax WHERE ext.kind = 'MATERIAL' OR ext.kind = 3)",
+            "SUM(amount_tax WHERE unit = module_code)",
+            "SUM(ADJUST * qty WHERE module_code = ADJUST OR unit IN (qty, 't'))",
+            "SUM(price_tax WHERE 'MATERIAL' = module_code AND 5 < qty)"
+    );
+
+    @Test
+    void compiledSumsShouldMatchInterpreterOnCorpus() {
+        List<LineItem> items = lineItems(new Random(11), 400);
+        Map<String, BigDecimal> indicators = Map.of("ADJUST", new BigDecimal("1.5"), "unit", BigDecimal.ZERO);
+        for (String expression : CORPUS) {
+            SumExpr sumExpr = (SumExpr) ExpressionEvaluator.parse(expression);
+            LineItemSnapshot snapshot = LineItemSnapshot.of(items, CalcDsl.collectExtPaths(List.of(sumExpr)));
+            assertNotNull(compile(sumExpr), expression);
+            for (Map<String, BigDecimal> indicatorMap : List.of(indicators, Collections.<String, BigDecimal>emptyMap())) {
+                for (boolean indexed : new boolean[]{false, true}) {
+                    SumTrace expected = accumulate(sumExpr, snapshot, indicatorMap, indexed, false);
+                    SumTrace actual = accumulate(sumExpr, snapshot, indicatorMap, indexed, true);
+                    assertEquals(expected.getValue(), actual.getValue(), expression);
+                    assertEquals(expected.getCount(), actual.getCount(), expression);
+                    assertEquals(expected.getItemIds(), actual.getItemIds(), expression);
+                }
+            }
+        }
+    }
+
+    @Test
+    void nestedSumShouldFallBackToInterpreter() {
+        SumExpr sumExpr = (SumExpr) ExpressionEvaluator.parse("SUM(qty * SUM(amount_tax) WHERE module_code = 'MATERIAL')");
+        LineItemSnapshot snapshot = LineItemSnapshot.of(lineItems(new Random(3), 20), null);
+
+        assertNull(compile(sumExpr));
+        SumTrace expected = accumulate(sumExpr, snapshot, Collections.emptyMap(), false, false);
+        SumTrace actual = accumulate(sumExpr, snapshot, Collections.emptyMap(), false, true);
+        assertEquals(expected.getValue(), actual.getValue());
+    }
+
+    private RowCompiler.CompiledSum compile(SumExpr sumExpr) {
+        List<Node> children = sumExpr.children();
+        return RowCompiler.compile((Expr) children.get(0), children.size() > 1 ? (Condition) children.get(1) : null);
+    }
+
+    private List<LineItem> lineItems(Random random, int size) {
+        String[] modules = {"MATERIAL", "EXPENSE", "0", null, ""};
+        List<LineItem> items = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            LineItem item = new LineItem();
+            item.setId(random.nextInt(10) == 0 ? null : (long) i + 1);
+            item.setModuleCode(modules[random.nextInt(modules.length)]);
+            item.setCategoryCode(random.nextBoolean() ? "EQUIP" : null);
+            item.setUnit(random.nextBoolean() ? "t" : random.nextBoolean() ? null : "MATERIAL");
+            item.setName(random.nextBoolean() ? null : random.nextBoolean() ? "0" : "pipe");
+            item.setTaxRate(random.nextInt(4) == 0 ? null : new BigDecimal(random.nextBoolean() ? "0.13" : "0.1300"));
+            item.setQty(random.nextInt(4) == 0 ? null : BigDecimal.valueOf(random.nextInt(30) - 5));
+            item.setPriceTax(random.nextInt(4) == 0 ? null : new BigDecimal(random.nextInt(1000) + ".25"));
+            item.setAmountTax(random.nextInt(4) == 0 ? null : new BigDecimal(random.nextInt(20000) - 100 + ".5"));
+            item.setSortNo(random.nextInt(3) == 0 ? null : random.nextInt(50));
+            item.setExtJson(random.nextInt(3) == 0 ? null
+                    : "{\"kind\":" + (random.nextBoolean() ? "\"MATERIAL\"" : random.nextInt(5)) + ",\"rate\":\"0.5\"}");
+            items.add(item);
+        }
+        // 一行无法定点表示的金额，使金额列退化为 BigDecimal 存储
+        items.get(size / 2).setAmountTax(new BigDecimal("1.123456789012345678901"));
+        return items;
+    }
+
+    private SumTrace accumulate(SumExpr sumExpr, LineItemSnapshot snapshot, Map<String, BigDecimal> indicatorMap,
+                                boolean indexed, boolean compiled) {
+        EvalContext ctx = new EvalContext(snapshot, indicatorMap);
+        SumAccumulator accumulator = new SumAccumulator(sumExpr, snapshot);
+        BitSet selected = indexed ? accumulator.select(ctx) : null;
+        if (compiled) {
+            accumulator.compile();
+        }
+        for (int row = 0; row < snapshot.size(); row++) {
+            if (selected == null || selected.get(row)) {
+                ctx.setCurrentRow(row);
+                accumulator.accept(ctx, row);
+            }
+        }
+        return accumulator.toTrace();
+    }
+}
@@ -0,0 +1,62 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.dto.RuleCostDto;
+import com.costsystem.modules.costcalc.dto.SlowRuleDto;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RuleProfilerTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final RuleProfiler ruleProfiler = new RuleProfiler(meterRegistry);
+
+    @Test
+    void slowestRulesShouldAggregateAcrossTemplatesAndFeedTimerByIndicatorKey() {
+        ruleProfiler.record(100L, 1L, cost(11L, "FAST", 2, 10, 300), 2_000_000L);
+        ruleProfiler.record(200L, 2L, cost(21L, "SLOW", 40, 5_000, 9_000), 40_000_000L);
+        ruleProfiler.record(200L, 3L, cost(21L, "SLOW", 20, 6_000, 8_000), 20_000_000L);
+
+        List<SlowRuleDto> slowest = ruleProfiler.slowestRules(10);
+
+        assertEquals(List.of("SLOW", "FAST"), slowest.stream().map(SlowRuleDto::getIndicatorKey).toList());
+        SlowRuleDto slow = slowest.get(0);
+        assertEquals(Long.valueOf(200L), slow.getTemplateId());
+        assertEquals(2, slow.getSamples());
+        assertEquals(40, slow.getMaxElapsedMillis());
+        assertEquals(30, slow.getAvgElapsedMillis());
+        assertEquals(6_000, slow.getMaxRows());
+        assertEquals(9_000, slow.getMaxTraceBytes());
+        assertEquals(Long.valueOf(3L), slow.getLastVersionId());
+        assertEquals(1, ruleProfiler.slowestRules(1).size());
+        assertEquals(2L, meterRegistry.timer("calc.rule.evaluation", "indicatorKey", "SLOW").count());
+        assertEquals(60.0, meterRegistry.timer("calc.rule.evaluation", "indicatorKey", "SLOW")
+                .totalTime(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void windowShouldDropOldestSamplesBySizeAndAge() {
+        ReflectionTestUtils.setField(ruleProfiler, "maxSamples", 2);
+        ruleProfiler.record(100L, 1L, cost(11L, "A", 50, 1, 1), 1L);
+        ruleProfiler.record(100L, 1L, cost(12L, "B", 5, 1, 1), 1L);
+        ruleProfiler.record(100L, 1L, cost(13L, "C", 3, 1, 1), 1L);
+        assertEquals(List.of("B", "C"),
+                ruleProfiler.slowestRules(10).stream().map(SlowRuleDto::getIndicatorKey).toList());
+
+        ReflectionTestUtils.setField(ruleProfiler, "windowMinutes", 0L);
+        assertTrue(ruleProfiler.slowestRules(10).isEmpty());
+    }
+
+    private RuleCostDto cost(Long ruleId, String indicatorKey, long elapsedMillis, long rows, long traceBytes) {
+        RuleCostDto cost = new RuleCostDto(ruleId, indicatorKey, rows * 3, rows, elapsedMillis);
+        cost.setMatchedRows(rows / 2);
+        cost.setTraceBytes(traceBytes);
+        return cost;
+    }
+}
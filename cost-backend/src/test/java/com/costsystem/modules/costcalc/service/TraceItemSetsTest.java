@@ -0,0 +1,61 @@
+package com.costsystem.modules.costcalc.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TraceItemSetsTest {
+
+    @Test
+    void encodedSetsShouldRoundTripInOriginalOrder() {
+        List<List<Long>> samples = new ArrayList<>();
+        samples.add(List.of());
+        samples.add(List.of(42L));
+        samples.add(List.of(5L, 6L, 7L, 3L, 4L, 100L, 99L, 98L));
+        samples.add(List.of(Long.MAX_VALUE, 1L, Long.MIN_VALUE + 1, 0L, -7L));
+        Random random = new Random(7);
+        List<Long> mixed = new ArrayList<>();
+        long id = 1_000_000L;
+        for (int i = 0; i < 5000; i++) {
+            id += random.nextInt(10) < 8 ? 1 : random.nextInt(500) - 100;
+            mixed.add(id);
+        }
+        samples.add(mixed);
+
+        TraceItemSets sets = new TraceItemSets();
+        List<String> refs = new ArrayList<>();
+        for (List<Long> sample : samples) {
+            refs.add(sets.add(sample));
+        }
+        TraceItemSets decoded = TraceItemSets.decode(sets.encode());
+        for (int i = 0; i < samples.size(); i++) {
+            assertEquals(samples.get(i), decoded.get(refs.get(i)));
+        }
+    }
+
+    @Test
+    void identicalSetsShouldShareOneEntryAndCopyKeepsReference() {
+        List<Long> ids = new ArrayList<>();
+        for (long id = 1; id <= 80_000; id++) {
+            ids.add(id);
+        }
+        TraceItemSets sets = new TraceItemSets();
+        String ref = sets.add(ids);
+        assertEquals(ref, sets.add(new ArrayList<>(ids)));
+        assertEquals(1, sets.size());
+        assertTrue(sets.encode().length < 32);
+
+        TraceItemSets copy = new TraceItemSets();
+        assertTrue(copy.copy(ref, sets));
+        assertFalse(copy.copy("0000000000000000", sets));
+        assertEquals(ids, TraceItemSets.decode(copy.encode()).get(ref));
+        assertNull(copy.get("not-a-ref"));
+    }
+}
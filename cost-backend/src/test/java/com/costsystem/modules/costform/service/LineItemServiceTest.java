@@ -2,6 +2,8 @@ package com.costsystem.modules.costform.service;
 
 import com.costsystem.common.exception.BusinessException;
 import com.costsystem.modules.costaudit.service.AuditLogService;
+import com.costsystem.modules.costcalc.service.CalcSimulationService;
+import com.costsystem.modules.costcalc.service.IncrementalCalcService;
 import com.costsystem.modules.costform.dto.LineItemBatchRequest;
 import com.costsystem.modules.costform.dto.LineItemDto;
 import com.costsystem.modules.costform.dto.LineItemImportResult;
@@ -24,6 +26,8 @@ import java.util.Optional;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -39,6 +43,10 @@ class LineItemServiceTest {
     private ProjectRepository projectRepository;
     @Mock
     private AuditLogService auditLogService;
+    @Mock
+    private IncrementalCalcService incrementalCalcService;
+    @Mock
+    private CalcSimulationService calcSimulationService;
 
     private LineItemService lineItemService;
 
@@ -48,7 +56,9 @@ class LineItemServiceTest {
                 lineItemRepository,
                 formVersionRepository,
                 projectRepository,
-                auditLogService
+                auditLogService,
+                incrementalCalcService,
+                calcSimulationService
         );
     }
 
@@ -81,6 +91,10 @@ class LineItemServiceTest {
 
         assertEquals(1, result.size());
         assertEquals(0, result.get(0).getTotalAmount().compareTo(new BigDecimal("6.00")));
+        verify(incrementalCalcService).applyLineItemChanges(eq(version), argThat(changes -> changes.size() == 1
+                && changes.get(0).getBefore() == null
+                && changes.get(0).getAfter().getId().equals(200L)));
+        verify(formVersionRepository).incrementItemRevision(11L);
     }
 
     @Test
@@ -100,6 +114,8 @@ class LineItemServiceTest {
 
         assertThrows(BusinessException.class, () -> lineItemService.deleteLineItem(9L, 11L, 300L));
         verify(lineItemRepository, never()).delete(any(LineItem.class));
+        verify(incrementalCalcService, never()).applyLineItemChanges(any(), any());
+        verify(formVersionRepository, never()).incrementItemRevision(any());
     }
 
     @Test
@@ -118,4 +134,4 @@ class LineItemServiceTest {
         assertEquals(0, result.getSuccessCount());
         assertEquals(1, result.getErrorCount());
     }
-}
+}
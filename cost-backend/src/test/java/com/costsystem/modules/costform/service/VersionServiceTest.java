@@ -2,6 +2,7 @@ package com.costsystem.modules.costform.service;
 
 import com.costsystem.common.exception.BusinessException;
 import com.costsystem.modules.costaudit.service.AuditLogService;
+import com.costsystem.modules.costcalc.service.IndicatorRollupService;
 import com.costsystem.modules.costform.dto.VersionCreateRequest;
 import com.costsystem.modules.costform.dto.VersionInfo;
 import com.costsystem.modules.costform.entity.FormVersion;
@@ -23,6 +24,7 @@ import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -39,6 +41,8 @@ class VersionServiceTest {
     private WorkflowService workflowService;
     @Mock
     private AuditLogService auditLogService;
+    @Mock
+    private IndicatorRollupService indicatorRollupService;
 
     private VersionService versionService;
 
@@ -49,7 +53,8 @@ class VersionServiceTest {
                 projectRepository,
                 templateRepository,
                 workflowService,
-                auditLogService
+                auditLogService,
+                indicatorRollupService
         );
     }
 
@@ -97,6 +102,24 @@ class VersionServiceTest {
         assertNotNull(version.getSubmittedAt());
         verify(workflowService).createApprovalTask(100L, 11L, 9L);
         verify(auditLogService).log(eq(9L), eq(100L), eq(11L), eq("VERSION"), eq(11L), eq("VERSION_SUBMIT"), any());
+        verify(indicatorRollupService, never()).refreshProject(any());
+    }
+
+    @Test
+    void issueVersionShouldRefreshProjectIndicatorRollup() {
+        FormVersion version = new FormVersion();
+        version.setId(11L);
+        version.setProjectId(100L);
+        version.setStatus(FormVersion.VersionStatus.APPROVED);
+
+        when(versionRepository.findById(11L)).thenReturn(Optional.of(version));
+        when(projectRepository.hasAccess(100L, 9L)).thenReturn(true);
+        when(versionRepository.save(any(FormVersion.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        versionService.issueVersion(9L, 11L);
+
+        assertEquals(FormVersion.VersionStatus.ISSUED, version.getStatus());
+        verify(indicatorRollupService).refreshProject(100L);
     }
 
     @Test
@@ -1,7 +1,9 @@
 package com.costsystem.modules.costtemplate.service;
 
 import com.costsystem.common.exception.BusinessException;
+import com.costsystem.modules.costcalc.entity.CalcRule;
 import com.costsystem.modules.costcalc.repository.CalcRuleRepository;
+import com.costsystem.modules.costcalc.service.CalcRuleCompiler;
 import com.costsystem.modules.costtemplate.dto.TemplateUpdateRequest;
 import com.costsystem.modules.costtemplate.entity.Template;
 import com.costsystem.modules.costtemplate.repository.TemplateRepository;
@@ -16,7 +18,9 @@ import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -27,12 +31,14 @@ class TemplateServiceTest {
     private TemplateRepository templateRepository;
     @Mock
     private CalcRuleRepository calcRuleRepository;
+    @Mock
+    private CalcRuleCompiler calcRuleCompiler;
 
     private TemplateService templateService;
 
     @BeforeEach
     void setUp() {
-        templateService = new TemplateService(templateRepository, calcRuleRepository);
+        templateService = new TemplateService(templateRepository, calcRuleRepository, calcRuleCompiler);
     }
 
     @Test
@@ -56,6 +62,56 @@ class TemplateServiceTest {
         assertEquals(Template.TemplateStatus.PUBLISHED, target.getStatus());
         verify(templateRepository).save(currentPublished);
         verify(templateRepository).save(target);
+        verify(calcRuleCompiler).evictTemplate(2L);
+    }
+
+    @Test
+    void publishTemplateShouldCompileRulesAndStoreDescriptor() {
+        TemplateService service = new TemplateService(templateRepository, calcRuleRepository, new CalcRuleCompiler());
+        Template target = new Template();
+        target.setId(3L);
+        target.setStatus(Template.TemplateStatus.DRAFT);
+
+        when(templateRepository.findById(3L)).thenReturn(Optional.of(target));
+        when(calcRuleRepository.existsByTemplateId(3L)).thenReturn(true);
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(3L, true)).thenReturn(List.of(
+                rule(1L, "MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL')"),
+                rule(2L, "WEIGHT", "SUM(ext.weight)"),
+                rule(3L, "TOTAL", "MATERIAL + WEIGHT")));
+        when(templateRepository.save(any(Template.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        service.publishTemplate(3L);
+
+        assertEquals(Template.TemplateStatus.PUBLISHED, target.getStatus());
+        assertEquals("{\"columns\":[\"amount_tax\",\"ext_json\",\"module_code\"],\"extPaths\":[\"weight\"],"
+                        + "\"dependencies\":{\"MATERIAL\":[],\"TOTAL\":[\"MATERIAL\",\"WEIGHT\"],\"WEIGHT\":[]}}",
+                target.getRuleDescriptorJson());
+    }
+
+    @Test
+    void publishTemplateShouldRejectInvalidRules() {
+        TemplateService service = new TemplateService(templateRepository, calcRuleRepository, new CalcRuleCompiler());
+        Template target = new Template();
+        target.setId(4L);
+        target.setStatus(Template.TemplateStatus.DRAFT);
+
+        when(templateRepository.findById(4L)).thenReturn(Optional.of(target));
+        when(calcRuleRepository.existsByTemplateId(4L)).thenReturn(true);
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(4L, true)).thenReturn(List.of(
+                rule(1L, "MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL'"),
+                rule(2L, "TOTAL", "MATERIAL")));
+
+        BusinessException ex = assertThrows(BusinessException.class, () -> service.publishTemplate(4L));
+        assertTrue(ex.getMessage().contains("MATERIAL"));
+
+        when(calcRuleRepository.findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc(4L, true)).thenReturn(List.of(
+                rule(1L, "A", "B + 1"),
+                rule(2L, "B", "A * 2")));
+        ex = assertThrows(BusinessException.class, () -> service.publishTemplate(4L));
+        assertTrue(ex.getMessage().contains("循环依赖"));
+
+        assertEquals(Template.TemplateStatus.DRAFT, target.getStatus());
+        verify(templateRepository, never()).save(any(Template.class));
     }
 
     @Test
@@ -73,4 +129,14 @@ class TemplateServiceTest {
 
         assertThrows(BusinessException.class, () -> templateService.updateTemplate(10L, request));
     }
-}
+
+    private CalcRule rule(Long id, String indicatorKey, String expression) {
+        CalcRule rule = new CalcRule();
+        rule.setId(id);
+        rule.setTemplateId(3L);
+        rule.setIndicatorKey(indicatorKey);
+        rule.setExpression(expression);
+        rule.setEnabled(true);
+        return rule;
+    }
+}
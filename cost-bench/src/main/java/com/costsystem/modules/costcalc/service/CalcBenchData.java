@@ -0,0 +1,128 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.entity.CalcRule;
+import com.costsystem.modules.costform.entity.LineItem;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 基准测试数据
+ * 按固定随机种子生成明细行，规则集取模板默认规则与一份贴近材料表的规则集，保证各次运行可比
+ */
+final class CalcBenchData {
+
+    static final long TEMPLATE_ID = 1L;
+    static final long VERSION_ID = 1L;
+
+    private static final LocalDateTime RULE_TIME = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+    private static final String[] MATERIAL_CATEGORIES = {"STEEL", "CABLE", "CONCRETE", "FITTING"};
+    private static final String[] UNITS = {"t", "m", "m3", "套"};
+    private static final String[] TAX_RATES = {"0.13", "0.09", "0.06"};
+
+    private CalcBenchData() {}
+
+    enum RuleSet {
+        /**
+         * TemplateService 为新模板生成的默认规则
+         */
+        DEFAULT(new String[][]{
+                {"TOTAL_MATERIAL", "SUM(amount_tax) WHERE module_code = \"MATERIAL\""},
+                {"TOTAL_SUBCONTRACT", "SUM(amount_tax) WHERE module_code = \"SUBCONTRACT\""},
+                {"TOTAL_EXPENSE", "SUM(amount_tax) WHERE module_code = \"EXPENSE\""},
+                {"TOTAL_COST", "TOTAL_MATERIAL + TOTAL_SUBCONTRACT + TOTAL_EXPENSE"}
+        }),
+        /**
+         * 材料表常见规则：分类汇总、ext 字段参与计算、税额拆分以及指标间引用
+         */
+        MATERIAL_SHEET(new String[][]{
+                {"TOTAL_MATERIAL", "SUM(amount_tax WHERE module_code = 'MATERIAL')"},
+                {"TOTAL_SUBCONTRACT", "SUM(amount_tax WHERE module_code = 'SUBCONTRACT')"},
+                {"TOTAL_EXPENSE", "SUM(amount_tax WHERE module_code = 'EXPENSE')"},
+                {"MATERIAL_QTY_AMOUNT", "SUM(qty * price_tax WHERE module_code = 'MATERIAL')"},
+                {"STEEL_WEIGHT", "SUM(qty * ext.weight WHERE category_code = 'STEEL')"},
+                {"MATERIAL_LOSS", "SUM(ROUND(amount_tax * ext.loss_rate, 2) WHERE module_code = 'MATERIAL')"},
+                {"MATERIAL_FREIGHT", "SUM(qty * ext.freight WHERE module_code = 'MATERIAL' AND ext.freight > 0)"},
+                {"TAX_AMOUNT", "SUM(amount_tax * tax_rate / (1 + tax_rate))"},
+                {"CABLE_AND_FITTING", "SUM(amount_tax WHERE category_code IN ('CABLE', 'FITTING'))"},
+                {"HIGH_VALUE_ITEMS", "SUM(IF(amount_tax > 2000, amount_tax, 0) WHERE module_code != 'EXPENSE')"},
+                {"TOTAL_COST", "TOTAL_MATERIAL + TOTAL_SUBCONTRACT + TOTAL_EXPENSE + MATERIAL_LOSS + MATERIAL_FREIGHT"},
+                {"MATERIAL_RATIO", "IF(TOTAL_COST > 0, ROUND(TOTAL_MATERIAL / TOTAL_COST, 4), 0)"}
+        });
+
+        private final String[][] rules;
+
+        RuleSet(String[][] rules) {
+            this.rules = rules;
+        }
+
+        List<CalcRule> rules() {
+            List<CalcRule> result = new ArrayList<>(rules.length);
+            for (int i = 0; i < rules.length; i++) {
+                CalcRule rule = new CalcRule();
+                rule.setId((long) i + 1);
+                rule.setTemplateId(TEMPLATE_ID);
+                rule.setIndicatorKey(rules[i][0]);
+                rule.setExpression(rules[i][1]);
+                rule.setEnabled(true);
+                rule.setOrderNo(i + 1);
+                rule.setCreatedAt(RULE_TIME);
+                rule.setUpdatedAt(RULE_TIME);
+                result.add(rule);
+            }
+            return result;
+        }
+
+        List<String> expressions() {
+            List<String> result = new ArrayList<>(rules.length);
+            for (String[] rule : rules) {
+                result.add(rule[1]);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 材料 60%、分包 15%、费用 25%；材料行带 4 个 ext 小数字段
+     */
+    static List<LineItem> lineItems(int size) {
+        Random random = new Random(20240101L + size);
+        List<LineItem> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int bucket = random.nextInt(20);
+            String module = bucket < 12 ? "MATERIAL" : bucket < 15 ? "SUBCONTRACT" : "EXPENSE";
+            BigDecimal qty = BigDecimal.valueOf(random.nextInt(1_000_000) + 1, 4);
+            BigDecimal price = BigDecimal.valueOf(random.nextInt(50_000_000) + 100, 6);
+            LineItem item = new LineItem();
+            item.setId((long) i + 1);
+            item.setVersionId(VERSION_ID);
+            item.setModuleCode(module);
+            item.setCategoryCode("MATERIAL".equals(module)
+                    ? MATERIAL_CATEGORIES[random.nextInt(MATERIAL_CATEGORIES.length)]
+                    : module + "_" + random.nextInt(4));
+            item.setItemCode(module.substring(0, 3) + "-" + (i + 1));
+            item.setName("明细" + (i + 1));
+            item.setUnit(UNITS[random.nextInt(UNITS.length)]);
+            item.setQty(qty);
+            item.setPriceTax(price);
+            item.setAmountTax(qty.multiply(price).setScale(2, RoundingMode.HALF_UP));
+            item.setTaxRate(new BigDecimal(TAX_RATES[random.nextInt(TAX_RATES.length)]));
+            item.setSortNo(i + 1);
+            if ("MATERIAL".equals(module)) {
+                item.setExtJson("{\"brand\":\"B" + random.nextInt(20) + "\""
+                        + ",\"weight\":" + random.nextInt(100_000) / 100.0
+                        + ",\"loss_rate\":" + random.nextInt(50) / 1000.0
+                        + ",\"freight\":" + (random.nextInt(10) == 0 ? 0 : random.nextInt(5_000) / 100.0)
+                        + ",\"density\":" + (random.nextInt(900) + 100) / 100.0
+                        + ",\"memo\":\"进场验收\"}");
+            }
+            items.add(item);
+        }
+        return items;
+    }
+}
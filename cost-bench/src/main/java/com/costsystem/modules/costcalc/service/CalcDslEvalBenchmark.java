@@ -0,0 +1,84 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.entity.CalcRule;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalContext;
+import com.costsystem.modules.costcalc.service.CalcDsl.EvalResult;
+import com.costsystem.modules.costcalc.service.CalcDsl.Expr;
+import com.costsystem.modules.costcalc.service.CalcDsl.ExpressionEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.FusedSumEvaluator;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumExpr;
+import com.costsystem.modules.costcalc.service.CalcDsl.SumTrace;
+import com.costsystem.modules.costform.entity.LineItem;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 求值器基准：快照构建（含 ext 字段抽取）与整套规则在快照上的求值（融合 SUM + 按依赖层级顺序求值），
+ * 与 CalcService.recalculateVersion 的计算部分一致，不含结果组装与持久化
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CalcDslEvalBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int lineItems;
+
+    @Param({"DEFAULT", "MATERIAL_SHEET"})
+    public String ruleSet;
+
+    @Param({"false", "true"})
+    public boolean compiledBackend;
+
+    private List<LineItem> items;
+    private List<Expr> exprs;
+    private Set<String> indicatorKeys;
+    private Set<String> extPaths;
+    private IndicatorGraph graph;
+    private LineItemSnapshot snapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        items = CalcBenchData.lineItems(lineItems);
+        List<String> keys = new ArrayList<>();
+        exprs = new ArrayList<>();
+        for (CalcRule rule : CalcBenchData.RuleSet.valueOf(ruleSet).rules()) {
+            keys.add(rule.getIndicatorKey());
+            exprs.add(ExpressionEvaluator.parse(rule.getExpression()));
+        }
+        indicatorKeys = new HashSet<>(keys);
+        extPaths = CalcDsl.collectExtPaths(exprs);
+        graph = IndicatorGraph.build(keys, exprs);
+        snapshot = LineItemSnapshot.of(items, extPaths);
+    }
+
+    @Benchmark
+    public void buildSnapshot(Blackhole blackhole) {
+        blackhole.consume(LineItemSnapshot.of(items, extPaths));
+    }
+
+    @Benchmark
+    public void evaluateRuleSet(Blackhole blackhole) {
+        Map<SumExpr, SumTrace> fusedSums = FusedSumEvaluator.evaluate(exprs, indicatorKeys, snapshot, compiledBackend);
+        EvalResult[] results = new EvalResult[graph.size()];
+        for (List<Integer> level : graph.getLevels()) {
+            for (Integer index : level) {
+                Map<String, BigDecimal> indicatorMap = new HashMap<>();
+                for (int dep : graph.getDependencies(index)) {
+                    indicatorMap.put(graph.getKey(dep), results[dep].getValue());
+                }
+                EvalContext ctx = new EvalContext(snapshot, indicatorMap, fusedSums);
+                ctx.setCompiledBackend(compiledBackend);
+                results[index] = ExpressionEvaluator.evaluate(exprs.get(index), ctx);
+            }
+        }
+        blackhole.consume(results);
+    }
+}
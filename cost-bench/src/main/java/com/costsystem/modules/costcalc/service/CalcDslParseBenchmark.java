@@ -0,0 +1,36 @@
+package com.costsystem.modules.costcalc.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calc DSL 解析基准：一次解析整套规则表达式（词法 + 语法树构建），不经过规则编译缓存
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CalcDslParseBenchmark {
+
+    @Param({"DEFAULT", "MATERIAL_SHEET"})
+    public String ruleSet;
+
+    private List<String> expressions;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        expressions = CalcBenchData.RuleSet.valueOf(ruleSet).expressions();
+    }
+
+    @Benchmark
+    public void parseRuleSet(Blackhole blackhole) {
+        for (String expression : expressions) {
+            blackhole.consume(CalcDsl.ExpressionEvaluator.parse(expression));
+        }
+    }
+}
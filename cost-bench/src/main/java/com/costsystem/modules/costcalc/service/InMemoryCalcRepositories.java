@@ -0,0 +1,121 @@
+package com.costsystem.modules.costcalc.service;
+
+import com.costsystem.modules.costcalc.entity.CalcRule;
+import com.costsystem.modules.costcalc.entity.IndicatorValue;
+import com.costsystem.modules.costcalc.repository.CalcRuleRepository;
+import com.costsystem.modules.costcalc.repository.CalcTraceRepository;
+import com.costsystem.modules.costcalc.repository.IndicatorValueRepository;
+import com.costsystem.modules.costform.entity.FormVersion;
+import com.costsystem.modules.costform.entity.LineItem;
+import com.costsystem.modules.costform.repository.FormVersionRepository;
+import com.costsystem.modules.costform.repository.LineItemRepository;
+import com.costsystem.modules.costproject.repository.ProjectRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 内存仓储
+ * 以动态代理实现 CalcService 重算时用到的仓储方法，使基准只度量计算与结果组装，不含数据库往返。
+ * 版本为固定的草稿版本，锁定读取直接返回该实体；
+ * 指标值按键保存并分配ID，重复重算走与线上一致的“更新已有指标”路径
+ */
+final class InMemoryCalcRepositories {
+
+    private final List<CalcRule> rules;
+    private final List<LineItem> lineItems;
+    private final FormVersion version = new FormVersion();
+    private final Map<String, IndicatorValue> indicators = new TreeMap<>();
+    private long nextIndicatorId = 1;
+    private byte[] traceItemSets;
+
+    InMemoryCalcRepositories(List<CalcRule> rules, List<LineItem> lineItems) {
+        this.rules = rules;
+        this.lineItems = lineItems;
+        version.setId(CalcBenchData.VERSION_ID);
+        version.setTemplateId(CalcBenchData.TEMPLATE_ID);
+        version.setStatus(FormVersion.VersionStatus.DRAFT);
+    }
+
+    CalcService newCalcService(ForkJoinPool pool) {
+        return new CalcService(
+                proxy(CalcRuleRepository.class),
+                proxy(IndicatorValueRepository.class),
+                proxy(CalcTraceRepository.class),
+                proxy(FormVersionRepository.class),
+                proxy(LineItemRepository.class),
+                proxy(ProjectRepository.class),
+                new CalcRuleCompiler(),
+                pool,
+                new RuleProfiler(new SimpleMeterRegistry()));
+    }
+
+    int traceSize() {
+        return traceItemSets == null ? 0 : traceItemSets.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T proxy(Class<T> type) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (target, method, args) -> {
+                    switch (method.getName()) {
+                        case "findByTemplateIdAndEnabledOrderByOrderNoAscIdAsc":
+                        case "findByTemplateIdOrderByOrderNoAscIdAsc":
+                            return rules;
+                        case "findByVersionId":
+                            return type == LineItemRepository.class ? lineItems : Optional.empty();
+                        case "findByVersionIdOrderByIndicatorKeyAsc":
+                            return new ArrayList<>(indicators.values());
+                        case "upsertAll":
+                            upsertAll((List<IndicatorValue>) args[0]);
+                            return null;
+                        case "deleteAllByIdInBatch":
+                            deleteByIds((Collection<Long>) args[0]);
+                            return null;
+                        case "deleteByVersionIdAndIndicatorKeyNotIn":
+                            indicators.clear();
+                            return null;
+                        case "upsert":
+                            traceItemSets = (byte[]) args[1];
+                            return null;
+                        case "deleteByVersionId":
+                            traceItemSets = null;
+                            return null;
+                        case "findByIdForUpdate":
+                            return Optional.of(version);
+                        case "findItemRevisionById":
+                            return 0L;
+                        case "updateCalcFingerprint":
+                            return 1;
+                        case "hashCode":
+                            return System.identityHashCode(target);
+                        case "equals":
+                            return target == args[0];
+                        case "toString":
+                            return type.getSimpleName() + "(in-memory)";
+                        default:
+                            throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+                    }
+                });
+    }
+
+    private synchronized void upsertAll(List<IndicatorValue> values) {
+        for (IndicatorValue value : values) {
+            if (value.getId() == null) {
+                value.setId(nextIndicatorId++);
+            }
+            indicators.put(value.getIndicatorKey(), value);
+        }
+    }
+
+    private synchronized void deleteByIds(Collection<Long> ids) {
+        indicators.values().removeIf(value -> ids.contains(value.getId()));
+    }
+}
@@ -0,0 +1,58 @@
+package com.costsystem.modules.costcalc.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 整版重算基准：经由 CalcService.recalculateVersion 完成规则编译缓存、快照、求值、追溯与指标组装，
+ * 仓储为内存实现，结果等价于去掉数据库往返后的 /versions/{id}/recalc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecalculateBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int lineItems;
+
+    @Param({"DEFAULT", "MATERIAL_SHEET"})
+    public String ruleSet;
+
+    @Param({"false", "true"})
+    public boolean compiledBackend;
+
+    private ForkJoinPool pool;
+    private CalcService calcService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        pool = new ForkJoinPool(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8)));
+        InMemoryCalcRepositories repositories = new InMemoryCalcRepositories(
+                CalcBenchData.RuleSet.valueOf(ruleSet).rules(), CalcBenchData.lineItems(lineItems));
+        calcService = repositories.newCalcService(pool);
+        Field field = CalcService.class.getDeclaredField("compiledBackendEnabled");
+        field.setAccessible(true);
+        field.setBoolean(calcService, compiledBackend);
+        // 关闭输入指纹，否则首轮之后每次调用都直接返回已保存的指标，只度量了指纹比对
+        Field fingerprint = CalcService.class.getDeclaredField("fingerprintEnabled");
+        fingerprint.setAccessible(true);
+        fingerprint.setBoolean(calcService, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public List<?> recalculateVersion() {
+        return calcService.recalculateVersion(CalcBenchData.VERSION_ID);
+    }
+}